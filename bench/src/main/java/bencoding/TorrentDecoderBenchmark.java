@@ -0,0 +1,99 @@
+package bencoding;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Average time to parse a single-file .torrent with TorrentDecoder, including hashing
+ * its info dictionary. A "small" torrent has 100 pieces (2 KB of hashes); a "large"
+ * one has 10,000 (200 KB, e.g. 2.5 GB in 256 KB pieces). The file is written once to
+ * a temporary file, so after the first read it comes from the page cache.
+ * @author Ari & Jay
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class TorrentDecoderBenchmark {
+	/**
+	 * Size of the torrent
+	 */
+	@Param({ "small", "large" })
+	public String size;
+
+	/**
+	 * The .torrent file
+	 */
+	private File torrent;
+
+	/**
+	 * Writes the .torrent file from a fixed seed.
+	 * @throws IOException on failure writing it
+	 */
+	@Setup
+	public void setup() throws IOException {
+		int pieces = size.equals("small") ? 100 : 10000;
+		int piece_length = 256 * 1024;
+		byte[] hashes = new byte[pieces * 20];
+		new Random(42).nextBytes(hashes);
+
+		TreeMap<String,Object> info = new TreeMap<String,Object>();
+		info.put("length", (long)pieces * piece_length);
+		info.put("name", "benchmark.bin");
+		info.put("piece length", piece_length);
+		info.put("pieces", hashes);
+		TreeMap<String,Object> root = new TreeMap<String,Object>();
+		root.put("announce", "http://127.0.0.1:6969/announce");
+		root.put("info", info);
+
+		torrent = File.createTempFile("rubt-bench", ".torrent");
+		FileOutputStream out = new FileOutputStream(torrent);
+		try {
+			out.write(BencodeEncoder.encode(root));
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Deletes the .torrent file.
+	 */
+	@TearDown
+	public void tearDown() {
+		torrent.delete();
+	}
+
+	/**
+	 * Parses the torrent.
+	 * @return the decoder
+	 * @throws IOException on failure reading it
+	 */
+	@Benchmark
+	public TorrentDecoder parse() throws IOException {
+		TorrentDecoder decoder = new TorrentDecoder(torrent.getPath());
+		if(!decoder.valid()) {
+			throw new IllegalStateException("Benchmark torrent did not parse.");
+		}
+		return decoder;
+	}
+}
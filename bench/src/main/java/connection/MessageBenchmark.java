@@ -0,0 +1,369 @@
+package connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of encoding & decoding peer-wire messages through TCPSocket:
+ * a request (the commonest small message) and a piece carrying a 16 KB block.
+ * "memory" measures TCPSocket alone over in-memory streams; "loopback" runs over a
+ * real loopback connection, so includes the socket streams' per-call system calls.
+ * @author Ari & Jay
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class MessageBenchmark {
+	/**
+	 * Size of a block, as requested by PeerSocket
+	 */
+	private static final int block_size = 16384;
+
+	/**
+	 * Where the messages travel
+	 */
+	@Param({ "memory", "loopback" })
+	public String transport;
+
+	/**
+	 * Socket messages are encoded into
+	 */
+	private TCPSocket sender;
+
+	/**
+	 * Socket request messages are decoded from
+	 */
+	private TCPSocket request_receiver;
+
+	/**
+	 * Socket piece messages are decoded from
+	 */
+	private TCPSocket piece_receiver;
+
+	/**
+	 * Block sent in piece messages
+	 */
+	private byte[] block;
+
+	/**
+	 * Block piece messages are decoded into
+	 */
+	private byte[] received_block;
+
+	/**
+	 * Every real socket opened, to close afterwards
+	 */
+	private Socket[] sockets = new Socket[0];
+
+	/**
+	 * Opens the sockets.
+	 * @throws IOException on failure opening loopback sockets
+	 */
+	@Setup
+	public void setup() throws IOException {
+		block = new byte[block_size];
+		new Random(42).nextBytes(block);
+		received_block = new byte[block_size];
+
+		byte[] request = encodedRequest();
+		byte[] piece = encodedPiece();
+		if(transport.equals("memory")) {
+			sender = new TCPSocket(new MemorySocket(null, OutputStream.nullOutputStream()));
+			request_receiver = new TCPSocket(new MemorySocket(new RepeatingInputStream(request), null));
+			piece_receiver = new TCPSocket(new MemorySocket(new RepeatingInputStream(piece), null));
+		}
+		else {
+			Socket[] drained = connectedPair();
+			Socket[] requests = connectedPair();
+			Socket[] pieces = connectedPair();
+			sockets = new Socket[] { drained[0], drained[1], requests[0], requests[1], pieces[0], pieces[1] };
+			startThread(new Drainer(drained[1].getInputStream()));
+			startThread(new Feeder(requests[0].getOutputStream(), repeat(request, 64 * 1024)));
+			startThread(new Feeder(pieces[0].getOutputStream(), repeat(piece, 64 * 1024)));
+			sender = new TCPSocket(drained[0]);
+			request_receiver = new TCPSocket(requests[1]);
+			piece_receiver = new TCPSocket(pieces[1]);
+		}
+	}
+
+	/**
+	 * Closes the sockets, which also ends their threads.
+	 * @throws IOException on failure closing
+	 */
+	@TearDown
+	public void tearDown() throws IOException {
+		for(Socket s : sockets) {
+			s.close();
+		}
+	}
+
+	/**
+	 * Encodes a request message, as PeerSocket does.
+	 */
+	@Benchmark
+	public void encodeRequest() {
+		sender.sendInteger(13);
+		sender.sendByte(6);
+		sender.sendInteger(7);
+		sender.sendInteger(block_size);
+		sender.sendInteger(block_size);
+	}
+
+	/**
+	 * Encodes a piece message with a block, as PeerSocket does.
+	 */
+	@Benchmark
+	public void encodePiece() {
+		sender.sendInteger(block_size + 9);
+		sender.sendByte(7);
+		sender.sendInteger(7);
+		sender.sendInteger(block_size);
+		sender.sendByteArray(block);
+	}
+
+	/**
+	 * Decodes a request message, as PeerSocket does.
+	 * @param bh Consumes the fields
+	 */
+	@Benchmark
+	public void decodeRequest(Blackhole bh) {
+		bh.consume(request_receiver.getInteger());
+		bh.consume(request_receiver.getByte());
+		bh.consume(request_receiver.getInteger());
+		bh.consume(request_receiver.getInteger());
+		bh.consume(request_receiver.getInteger());
+	}
+
+	/**
+	 * Decodes a piece message into a block, as PeerSocket does.
+	 * @param bh Consumes the fields
+	 */
+	@Benchmark
+	public void decodePiece(Blackhole bh) {
+		bh.consume(piece_receiver.getInteger());
+		bh.consume(piece_receiver.getByte());
+		bh.consume(piece_receiver.getInteger());
+		bh.consume(piece_receiver.getInteger());
+		piece_receiver.getByteArray(received_block, 0, block_size);
+		bh.consume(received_block);
+	}
+
+	/**
+	 * Encodes the request message decodeRequest() reads.
+	 * @return the message's bytes
+	 */
+	private static byte[] encodedRequest() {
+		return ByteBuffer.allocate(17).putInt(13).put((byte)6).putInt(7).putInt(block_size).putInt(block_size).array();
+	}
+
+	/**
+	 * Encodes the piece message decodePiece() reads.
+	 * @return the message's bytes
+	 */
+	private byte[] encodedPiece() {
+		return ByteBuffer.allocate(13 + block_size).putInt(block_size + 9).put((byte)7).putInt(7).putInt(block_size).put(block).array();
+	}
+
+	/**
+	 * Repeats a message until it fills at least a buffer of a given size.
+	 * @param message The message
+	 * @param min_size The fewest bytes wanted
+	 * @return whole copies of the message, concatenated
+	 */
+	private static byte[] repeat(byte[] message, int min_size) {
+		int copies = Math.max(1, (min_size + message.length - 1) / message.length);
+		byte[] repeated = new byte[copies * message.length];
+		for(int x = 0; x < copies; x++) {
+			System.arraycopy(message, 0, repeated, x * message.length, message.length);
+		}
+		return repeated;
+	}
+
+	/**
+	 * Opens a loopback connection.
+	 * @return the connecting end, then the accepted end
+	 * @throws IOException on failure connecting
+	 */
+	private static Socket[] connectedPair() throws IOException {
+		ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		try {
+			Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+			return new Socket[] { client, server.accept() };
+		}
+		finally {
+			server.close();
+		}
+	}
+
+	/**
+	 * Starts a daemon thread.
+	 * @param r The thread's code
+	 */
+	private static void startThread(Runnable r) {
+		Thread t = new Thread(r, "Benchmark peer");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * A Socket whose streams are given rather than connected.
+	 */
+	private static class MemorySocket extends Socket {
+		/**
+		 * Stream returned by getInputStream()
+		 */
+		private InputStream in;
+
+		/**
+		 * Stream returned by getOutputStream()
+		 */
+		private OutputStream out;
+
+		/**
+		 * Constructor
+		 * @param in Stream returned by getInputStream(), or null
+		 * @param out Stream returned by getOutputStream(), or null
+		 */
+		MemorySocket(InputStream in, OutputStream out) {
+			this.in = in;
+			this.out = out;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return in;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return out;
+		}
+
+		@Override
+		public void setSoTimeout(int timeout) {
+		}
+	}
+
+	/**
+	 * An endless stream of the same bytes, over & over.
+	 */
+	private static class RepeatingInputStream extends InputStream {
+		/**
+		 * The bytes repeated
+		 */
+		private byte[] bytes;
+
+		/**
+		 * Index of the next byte read
+		 */
+		private int position = 0;
+
+		/**
+		 * Constructor
+		 * @param bytes The bytes to repeat
+		 */
+		RepeatingInputStream(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		@Override
+		public int read() {
+			int b = bytes[position] & 0xFF;
+			position = (position + 1) % bytes.length;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] array, int offset, int length) {
+			int count = Math.min(length, bytes.length - position);
+			System.arraycopy(bytes, position, array, offset, count);
+			position = (position + count) % bytes.length;
+			return count;
+		}
+	}
+
+	/**
+	 * Reads & discards everything sent, until the socket closes.
+	 */
+	private static class Drainer implements Runnable {
+		/**
+		 * The stream drained
+		 */
+		private InputStream in;
+
+		/**
+		 * Constructor
+		 * @param in The stream to drain
+		 */
+		Drainer(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public void run() {
+			byte[] buffer = new byte[64 * 1024];
+			try {
+				while(in.read(buffer) >= 0) {
+				}
+			} catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * Writes the same bytes over & over, until the socket closes.
+	 */
+	private static class Feeder implements Runnable {
+		/**
+		 * The stream fed
+		 */
+		private OutputStream out;
+
+		/**
+		 * The bytes written
+		 */
+		private byte[] bytes;
+
+		/**
+		 * Constructor
+		 * @param out The stream to feed
+		 * @param bytes The bytes to write repeatedly
+		 */
+		Feeder(OutputStream out, byte[] bytes) {
+			this.out = out;
+			this.bytes = bytes;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while(true) {
+					out.write(bytes);
+				}
+			} catch (IOException e) {}
+		}
+	}
+}
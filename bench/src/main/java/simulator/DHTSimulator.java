@@ -0,0 +1,146 @@
+package simulator;
+
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import dht.DHTNode;
+import main.Log;
+import structures.InfoHash;
+import structures.Peer;
+
+/**
+ * Runs a small DHT in one process, on loopback: every node is a real DHTNode on its own
+ * UDP port, and all but the first join through the first.
+ * Each torrent is announced by one node and looked up by another, checking the
+ * lookup finds the announced peer, and timing both.
+ * Info hashes & the choice of nodes come from a fixed seed, so runs with the same options
+ * do the same lookups.
+ * @author Ari & Jay
+ */
+public class DHTSimulator {
+	/**
+	 * Usage text for the command line.
+	 */
+	public static final String usage = "Options are -nodes <n> -torrents <n> -loglevel <debug|info|warn|error>";
+
+	/**
+	 * Port announced for the peer of torrent 0; torrent i announces this plus i
+	 */
+	private static final int first_peer_port = 20000;
+
+	/**
+	 * Entry point.
+	 * @param args [options]
+	 */
+	public static void main(String[] args) {
+		int node_count = 50;
+		int torrents = 20;
+		int level = Log.level_error;
+
+		try {
+			for(int x = 0; x < args.length; x++) {
+				String value = (x + 1 < args.length) ? args[x + 1] : null;
+				if(value == null) {
+					System.err.println("Missing value for " + args[x] + ".");
+					System.err.println(usage);
+					return;
+				}
+				if(args[x].equals("-nodes")) {
+					node_count = Integer.parseInt(value);
+				}
+				else if(args[x].equals("-torrents")) {
+					torrents = Integer.parseInt(value);
+				}
+				else if(args[x].equals("-loglevel") && Log.parseLevel(value) >= 0) {
+					level = Log.parseLevel(value);
+				}
+				else {
+					System.err.println("Unknown option " + args[x] + ".");
+					System.err.println(usage);
+					return;
+				}
+				x++;
+			}
+		} catch (NumberFormatException e) {
+			System.err.println("Option values must be numbers.");
+			return;
+		}
+		if(node_count < 2 || torrents < 1) {
+			System.err.println("Need at least two nodes & one torrent.");
+			return;
+		}
+		Log.setLevel(level);
+
+		ArrayList<DHTNode> nodes = new ArrayList<DHTNode>();
+		int status;
+		try {
+			//Start the nodes, each joining through the first:
+			long start = System.currentTimeMillis();
+			List<InetSocketAddress> none = new ArrayList<InetSocketAddress>();
+			nodes.add(new DHTNode(new InetSocketAddress("127.0.0.1", 0), none));
+			List<InetSocketAddress> bootstrap = new ArrayList<InetSocketAddress>();
+			bootstrap.add(new InetSocketAddress("127.0.0.1", nodes.get(0).getPort()));
+			for(int x = 1; x < node_count; x++) {
+				nodes.add(new DHTNode(new InetSocketAddress("127.0.0.1", 0), bootstrap));
+			}
+			for(DHTNode node : nodes) {
+				node.start();
+			}
+			for(DHTNode node : nodes) {
+				node.bootstrap();
+			}
+			long joined = System.currentTimeMillis() - start;
+
+			long table_total = 0;
+			for(DHTNode node : nodes) {
+				table_total += node.getNodeCount();
+			}
+			System.out.println(node_count + " nodes joined in " + joined + " ms; " + (table_total / node_count) + " nodes known on average");
+
+			//Announce each torrent from one node, and look it up from another:
+			Random random = new Random(42);
+			int found = 0;
+			long announce_total = 0;
+			long lookup_total = 0;
+			for(int t = 0; t < torrents; t++) {
+				byte[] hash = new byte[20];
+				random.nextBytes(hash);
+				InfoHash info_hash = new InfoHash(hash, 0);
+				int announcer = random.nextInt(node_count);
+				int seeker = (announcer + 1 + random.nextInt(node_count - 1)) % node_count;
+				int port = first_peer_port + t;
+
+				long before = System.currentTimeMillis();
+				nodes.get(announcer).announce(info_hash, port);
+				long announced = System.currentTimeMillis();
+				List<Peer> peers = nodes.get(seeker).getPeers(info_hash);
+				long looked_up = System.currentTimeMillis();
+				announce_total += announced - before;
+				lookup_total += looked_up - announced;
+
+				for(Peer p : peers) {
+					if(p.getPort() == port) {
+						found++;
+						break;
+					}
+				}
+			}
+
+			System.out.println(found + "/" + torrents + " torrents found; announce " + (announce_total / torrents) + " ms, lookup " + (lookup_total / torrents) + " ms on average");
+			status = (found == torrents) ? 0 : 1;
+		} catch (SocketException e) {
+			System.err.println("Unable to run DHT: " + e.getMessage());
+			status = 2;
+		}
+		finally {
+			for(DHTNode node : nodes) {
+				node.stop();
+			}
+		}
+		Log.flush();
+		System.exit(status);
+	}
+}
@@ -0,0 +1,265 @@
+package simulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import structures.TokenBucket;
+
+/**
+ * A simulated network link from one peer to another: listens on a loopback port and
+ * forwards every connection to the other peer's real listener, delaying, throttling &
+ * "losing" the bytes in each direction independently.
+ * TCP never loses bytes, so loss is simulated as TCP experiences it: a lost chunk arrives
+ * a retransmission timeout late, and everything behind it waits (head-of-line blocking).
+ * @author Ari & Jay
+ */
+class LinkProxy implements Runnable {
+	/**
+	 * Largest chunk read & forwarded at once (in bytes)
+	 */
+	private static final int chunk_size = 16 * 1024;
+
+	/**
+	 * Shortest retransmission timeout, as on Linux (in milliseconds)
+	 */
+	private static final long min_rto = 200;
+
+	/**
+	 * Socket the connecting peer connects to
+	 */
+	private ServerSocket server;
+
+	/**
+	 * Real listening port of the peer connected to
+	 */
+	private int target_port;
+
+	/**
+	 * One-way delay (in milliseconds)
+	 */
+	private long latency;
+
+	/**
+	 * Bandwidth in each direction (in bytes/second), or 0 for unlimited
+	 */
+	private long bandwidth;
+
+	/**
+	 * Probability of a chunk being lost, from 0 to 1
+	 */
+	private double loss;
+
+	/**
+	 * Source of losses; seeded, so runs lose the same chunks
+	 */
+	private Random random;
+
+	/**
+	 * Constructor
+	 * Opens the link's port; run() accepts connections on it.
+	 * @param target_port Real listening port of the peer connected to
+	 * @param latency One-way delay (in milliseconds)
+	 * @param bandwidth Bandwidth in each direction (in bytes/second), or 0 for unlimited
+	 * @param loss Probability of a chunk being lost, from 0 to 1
+	 * @param seed Seed for choosing lost chunks
+	 * @throws IOException if no loopback port is free
+	 */
+	LinkProxy(int target_port, long latency, long bandwidth, double loss, long seed) throws IOException {
+		server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		this.target_port = target_port;
+		this.latency = latency;
+		this.bandwidth = bandwidth;
+		this.loss = loss;
+		random = new Random(seed);
+	}
+
+	/**
+	 * Gets the port peers should connect to, to use the link.
+	 * @return a port on the loopback address
+	 */
+	int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Closes the link's port, and with it the link; connections in progress end when
+	 * either peer closes them.
+	 */
+	void close() {
+		try {
+			server.close();
+		} catch (IOException e) {}
+	}
+
+	/**
+	 * Accepts & forwards connections until closed.
+	 */
+	@Override
+	public void run() {
+		while(!server.isClosed()) {
+			try {
+				Socket from = server.accept();
+				Socket to;
+				try {
+					to = new Socket(InetAddress.getLoopbackAddress(), target_port);
+				} catch (IOException e) {//peer isn't listening; refuse, as it would
+					from.close();
+					continue;
+				}
+				from.setTcpNoDelay(true);
+				to.setTcpNoDelay(true);
+				startPipe(from, to);
+				startPipe(to, from);
+			} catch (IOException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Starts forwarding one direction of a connection, through a delivery queue.
+	 * @param from The socket to read from
+	 * @param to The socket to write to
+	 * @throws IOException on failure getting the sockets' streams
+	 */
+	private void startPipe(Socket from, Socket to) throws IOException {
+		final LinkedBlockingQueue<Chunk> queue = new LinkedBlockingQueue<Chunk>();
+		final InputStream in = from.getInputStream();
+		final OutputStream out = to.getOutputStream();
+		final Socket[] sockets = { from, to };
+		final TokenBucket limit = new TokenBucket(bandwidth, null);
+
+		startThread(new Runnable() {
+			@Override
+			public void run() {
+				receive(in, queue);
+			}
+		}, "Link receiver");
+		startThread(new Runnable() {
+			@Override
+			public void run() {
+				deliver(queue, out, limit);
+				for(Socket s : sockets) {
+					try {
+						s.close();
+					} catch (IOException e) {}
+				}
+			}
+		}, "Link deliverer");
+	}
+
+	/**
+	 * Reads chunks and schedules their delivery, until the stream ends;
+	 * then queues an empty chunk to end delivery.
+	 * @param in The stream to read
+	 * @param queue The delivery queue
+	 */
+	private void receive(InputStream in, LinkedBlockingQueue<Chunk> queue) {
+		long last_due = 0;
+		while(true) {
+			byte[] buffer = new byte[chunk_size];
+			int length;
+			try {
+				length = in.read(buffer);
+			} catch (IOException e) {
+				length = -1;
+			}
+
+			//Due after the link's delay, a timeout later if lost, and never before the chunk ahead:
+			long due = System.nanoTime() + latency * 1000000L;
+			if(length > 0 && loss > 0 && nextLoss()) {
+				due += Math.max(min_rto, 2 * latency) * 1000000L;
+			}
+			if(last_due != 0 && due - last_due < 0) {
+				due = last_due;
+			}
+			last_due = due;
+
+			queue.add(new Chunk(buffer, Math.max(length, 0), due));
+			if(length < 0) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Writes chunks once due, within the bandwidth, until an empty chunk or a failed write.
+	 * @param queue The delivery queue
+	 * @param out The stream to write
+	 * @param limit The direction's bandwidth limit
+	 */
+	private static void deliver(LinkedBlockingQueue<Chunk> queue, OutputStream out, TokenBucket limit) {
+		try {
+			while(true) {
+				Chunk chunk = queue.take();
+				long wait = chunk.due - System.nanoTime();
+				if(wait > 0) {
+					Thread.sleep(wait / 1000000L, (int)(wait % 1000000L));
+				}
+				if(chunk.length == 0) {
+					return;
+				}
+				limit.acquire(chunk.length);
+				out.write(chunk.bytes, 0, chunk.length);
+			}
+		} catch (IOException e) {
+		} catch (InterruptedException e) {}
+	}
+
+	/**
+	 * Decides whether the next chunk is lost.
+	 * @return true if lost
+	 */
+	private synchronized boolean nextLoss() {
+		return random.nextDouble() < loss;
+	}
+
+	/**
+	 * Starts a daemon thread.
+	 * @param r The thread's code
+	 * @param name The thread's name
+	 */
+	static void startThread(Runnable r, String name) {
+		Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Bytes in flight on a link.
+	 */
+	private static class Chunk {
+		/**
+		 * The bytes
+		 */
+		final byte[] bytes;
+
+		/**
+		 * Number of bytes used, or 0 for the end of the stream
+		 */
+		final int length;
+
+		/**
+		 * System.nanoTime() at which the bytes arrive
+		 */
+		final long due;
+
+		/**
+		 * Constructor
+		 * @param bytes The bytes
+		 * @param length Number of bytes used, or 0 for the end of the stream
+		 * @param due System.nanoTime() at which the bytes arrive
+		 */
+		Chunk(byte[] bytes, int length, long due) {
+			this.bytes = bytes;
+			this.length = length;
+			this.due = due;
+		}
+	}
+}
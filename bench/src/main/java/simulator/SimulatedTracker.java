@@ -0,0 +1,171 @@
+package simulator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import bencoding.BencodeEncoder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand-in for an HTTP tracker, on the loopback interface, for one simulated swarm.
+ * Peers are told apart by the listening port they announce. Each peer is given every
+ * other announced peer, but at the port of the simulated link between the two, so
+ * every connection goes through a LinkProxy.
+ * @author Ari & Jay
+ */
+class SimulatedTracker {
+	/**
+	 * Seconds peers are told to wait between announces; short, so the swarm forms quickly
+	 */
+	private static final int interval = 1;
+
+	/**
+	 * The HTTP server
+	 */
+	private HttpServer server;
+
+	/**
+	 * Simulated peers' indexes, by real listening port
+	 */
+	private Map<Integer,Integer> peers_by_port;
+
+	/**
+	 * Link ports, by [from peer][to peer]
+	 */
+	private int[][] link_ports;
+
+	/**
+	 * Indexes of the peers which have announced & not stopped
+	 */
+	private Set<Integer> announced = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Indexes of the announced peers with nothing left to download
+	 */
+	private Set<Integer> seeds = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Constructor
+	 * Starts serving.
+	 * @param peers_by_port Simulated peers' indexes, by real listening port
+	 * @param link_ports Link ports, by [from peer][to peer]
+	 * @throws IOException if no loopback port is free
+	 */
+	SimulatedTracker(Map<Integer,Integer> peers_by_port, int[][] link_ports) throws IOException {
+		this.peers_by_port = peers_by_port;
+		this.link_ports = link_ports;
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 50);
+		server.createContext("/announce", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				announce(exchange);
+			}
+		});
+		server.start();
+	}
+
+	/**
+	 * Gets the URL to put in the torrent.
+	 * @return an http URL
+	 */
+	String getAnnounceURL() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/announce";
+	}
+
+	/**
+	 * Stops serving.
+	 */
+	void stop() {
+		server.stop(0);
+	}
+
+	/**
+	 * Answers one announce.
+	 * @param exchange The request & response
+	 * @throws IOException on failure writing the response
+	 */
+	private void announce(HttpExchange exchange) throws IOException {
+		try {
+			//Find the announcing peer:
+			Map<String,String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+			Integer from = null;
+			try {
+				from = peers_by_port.get(Integer.parseInt(query.get("port")));
+			} catch (NumberFormatException e) {}
+
+			Map<String,Object> response = new HashMap<String,Object>();
+			if(from == null) {
+				response.put("failure reason", "Unknown peer.");
+			}
+			else {
+				if("stopped".equals(query.get("event"))) {
+					announced.remove(from);
+					seeds.remove(from);
+				}
+				else {
+					announced.add(from);
+					if("0".equals(query.get("left"))) {
+						seeds.add(from);
+					}
+				}
+
+				//Every other peer, through the links from the announcing peer:
+				List<Object> peers = new ArrayList<Object>();
+				for(Integer to : announced) {
+					if(to.equals(from)) {
+						continue;
+					}
+					Map<String,Object> peer = new HashMap<String,Object>();
+					peer.put("peer id", SwarmSimulator.peerID(to));
+					peer.put("ip", "127.0.0.1");
+					peer.put("port", link_ports[from][to]);
+					peers.add(peer);
+				}
+				response.put("interval", interval);
+				response.put("min interval", interval);
+				response.put("complete", seeds.size());
+				response.put("incomplete", announced.size() - seeds.size());
+				response.put("peers", peers);
+			}
+
+			byte[] body = BencodeEncoder.encode(response);
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Splits a raw query string into its parameters, without decoding them.
+	 * @param query The query, or null
+	 * @return the parameters by name
+	 */
+	private static Map<String,String> parseQuery(String query) {
+		Map<String,String> parameters = new HashMap<String,String>();
+		if(query == null) {
+			return parameters;
+		}
+		for(String parameter : query.split("&")) {
+			int equals = parameter.indexOf('=');
+			if(equals > 0) {
+				parameters.put(parameter.substring(0, equals), parameter.substring(equals + 1));
+			}
+		}
+		return parameters;
+	}
+}
@@ -0,0 +1,63 @@
+package simulator;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import main.Log;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end regression benchmark: the time for a simulated swarm of one seeder and
+ * four leechers to move an 8 MB torrent, over instant links and over links with
+ * realistic latency. Each run is a whole swarm, so this is measured single-shot.
+ * @author Ari & Jay
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class SwarmBenchmark {
+	/**
+	 * One-way delay of every link (in milliseconds)
+	 */
+	@Param({ "0", "20" })
+	public long latency;
+
+	/**
+	 * Quiets the log, which would otherwise be timed too.
+	 */
+	@Setup
+	public void setup() {
+		Log.setLevel(Log.level_error);
+	}
+
+	/**
+	 * Runs the swarm to completion.
+	 * @return the result
+	 * @throws IOException on failure setting up the swarm
+	 */
+	@Benchmark
+	public SwarmResult swarm() throws IOException {
+		SwarmSimulator simulator = new SwarmSimulator(1, 4, 8 * 1024 * 1024, 256 * 1024);
+		simulator.setLinks(latency, 0, 0);
+		simulator.setTimeout(5 * 60 * 1000);
+		SwarmResult result = simulator.run();
+		if(!result.allCompleted()) {
+			throw new IllegalStateException("Swarm timed out:\n" + result);
+		}
+		return result;
+	}
+}
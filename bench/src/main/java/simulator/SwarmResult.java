@@ -0,0 +1,147 @@
+package simulator;
+
+/**
+ * What happened in one simulated swarm: when each leecher completed, and how much
+ * each peer uploaded.
+ * @author Ari & Jay
+ */
+public class SwarmResult {
+	/**
+	 * Number of seeders; peers 0 to seeders-1
+	 */
+	private final int seeders;
+
+	/**
+	 * Size of the torrent (in bytes)
+	 */
+	private final long file_size;
+
+	/**
+	 * Time each leecher took to complete (in milliseconds), or -1 if it didn't
+	 */
+	private final long[] complete_times;
+
+	/**
+	 * Bytes uploaded by each peer, seeders first
+	 */
+	private final long[] uploaded;
+
+	/**
+	 * Constructor
+	 * @param seeders Number of seeders
+	 * @param file_size Size of the torrent (in bytes)
+	 * @param complete_times Time each leecher took to complete (in milliseconds), or -1
+	 * @param uploaded Bytes uploaded by each peer, seeders first
+	 */
+	SwarmResult(int seeders, long file_size, long[] complete_times, long[] uploaded) {
+		this.seeders = seeders;
+		this.file_size = file_size;
+		this.complete_times = complete_times;
+		this.uploaded = uploaded;
+	}
+
+	/**
+	 * Whether every leecher completed before the timeout.
+	 * @return boolean
+	 */
+	public boolean allCompleted() {
+		for(long t : complete_times) {
+			if(t < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the time until the last leecher completed.
+	 * @return milliseconds, or -1 if any didn't
+	 */
+	public long getTimeToComplete() {
+		long last = 0;
+		for(long t : complete_times) {
+			if(t < 0) {
+				return -1;
+			}
+			last = Math.max(last, t);
+		}
+		return last;
+	}
+
+	/**
+	 * Gets the time a leecher took to complete.
+	 * @param leecher The leecher's index, from 0
+	 * @return milliseconds, or -1 if it didn't
+	 */
+	public long getTimeToComplete(int leecher) {
+		return complete_times[leecher];
+	}
+
+	/**
+	 * Gets the aggregate download throughput: the bytes every completed leecher
+	 * downloaded, over the time until the last of them completed.
+	 * @return bytes/second
+	 */
+	public double getThroughput() {
+		long bytes = 0;
+		long last = 0;
+		for(long t : complete_times) {
+			if(t >= 0) {
+				bytes += file_size;
+				last = Math.max(last, t);
+			}
+		}
+		return (last == 0) ? 0 : bytes * 1000.0 / last;
+	}
+
+	/**
+	 * Gets Jain's fairness index of the leechers' download rates:
+	 * 1 if every leecher downloaded equally fast, down to 1/leechers if one got everything.
+	 * Leechers which didn't complete count as rate 0.
+	 * @return between 0 and 1
+	 */
+	public double getFairness() {
+		double sum = 0;
+		double sum_squares = 0;
+		for(long t : complete_times) {
+			double rate = (t > 0) ? file_size * 1000.0 / t : 0;
+			sum += rate;
+			sum_squares += rate * rate;
+		}
+		return (sum_squares == 0) ? 0 : sum * sum / (complete_times.length * sum_squares);
+	}
+
+	/**
+	 * Gets the bytes a peer uploaded.
+	 * @param peer The peer's index; seeders first, then leechers
+	 * @return a long
+	 */
+	public long getUploaded(int peer) {
+		return uploaded[peer];
+	}
+
+	/**
+	 * Formats the result as a report, one line per peer after the totals.
+	 * @return a String
+	 */
+	@Override
+	public String toString() {
+		StringBuilder out = new StringBuilder();
+		long total = getTimeToComplete();
+		out.append("Time to complete: ").append((total < 0) ? "timed out" : total + " ms").append('\n');
+		out.append("Aggregate throughput: ").append((long)getThroughput() / 1024).append(" KB/s\n");
+		out.append(String.format("Fairness (Jain's index): %.3f%n", getFairness()));
+		for(int x = 0; x < uploaded.length; x++) {
+			if(x < seeders) {
+				out.append("Seeder ").append(x).append(": ");
+			}
+			else {
+				long t = complete_times[x - seeders];
+				out.append("Leecher ").append(x - seeders).append(": ");
+				out.append((t < 0) ? "timed out, " : t + " ms, " + file_size * 1000 / Math.max(1, t) / 1024 + " KB/s, ");
+			}
+			out.append("uploaded ").append(uploaded[x] / 1024).append(" KB\n");
+		}
+		return out.toString();
+	}
+}
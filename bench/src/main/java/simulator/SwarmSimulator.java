@@ -0,0 +1,412 @@
+package simulator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import main.Engine;
+import main.Log;
+import main.MakeTorrent;
+import structures.FileInfo;
+
+/**
+ * Runs a whole swarm in one process, on loopback: a stand-in tracker, and seeders &
+ * leechers which are each a real Engine (listener, peer sockets, choker, disk writer).
+ * Every connection between two peers goes through a LinkProxy, which adds the
+ * configured latency, bandwidth & loss.
+ * Times how long the leechers take to download a random file from the seeders,
+ * e.g. as an end-to-end regression benchmark for networking changes.
+ * Data is seeded from a fixed seed, so runs with the same options move the same bytes.
+ * @author Ari & Jay
+ */
+public class SwarmSimulator {
+	/**
+	 * Usage text for the command line.
+	 */
+	public static final String usage = "Options are -seeders <n> -leechers <n> -size <MB> -piece <KB> -latency <ms> -bandwidth <KB/s> -loss <percent> -timeout <seconds> -loglevel <debug|info|warn|error>";
+
+	/**
+	 * Time between checks for completed leechers (in milliseconds)
+	 */
+	private static final long poll_interval = 20;
+
+	/**
+	 * Number of seeders
+	 */
+	private int seeders;
+
+	/**
+	 * Number of leechers
+	 */
+	private int leechers;
+
+	/**
+	 * Size of the torrent (in bytes)
+	 */
+	private long file_size;
+
+	/**
+	 * Size of a piece (in bytes)
+	 */
+	private int piece_size;
+
+	/**
+	 * One-way delay of every link (in milliseconds)
+	 */
+	private long latency = 0;
+
+	/**
+	 * Bandwidth of every link in each direction (in bytes/second), or 0 for unlimited
+	 */
+	private long bandwidth = 0;
+
+	/**
+	 * Probability of a chunk being lost on a link, from 0 to 1
+	 */
+	private double loss = 0;
+
+	/**
+	 * Longest time to wait for the leechers (in milliseconds)
+	 */
+	private long timeout = 5 * 60 * 1000;
+
+	/**
+	 * Seed for the file's data & the links' losses
+	 */
+	private long seed = 42;
+
+	/**
+	 * Constructor
+	 * @param seeders Number of seeders
+	 * @param leechers Number of leechers
+	 * @param file_size Size of the torrent (in bytes)
+	 * @param piece_size Size of a piece (in bytes)
+	 */
+	public SwarmSimulator(int seeders, int leechers, long file_size, int piece_size) {
+		this.seeders = seeders;
+		this.leechers = leechers;
+		this.file_size = file_size;
+		this.piece_size = piece_size;
+	}
+
+	/**
+	 * Sets the conditions on every link; by default links are instant, unlimited & lossless.
+	 * @param latency One-way delay (in milliseconds)
+	 * @param bandwidth Bandwidth in each direction (in bytes/second), or 0 for unlimited
+	 * @param loss Probability of a chunk being lost, from 0 to 1
+	 */
+	public void setLinks(long latency, long bandwidth, double loss) {
+		this.latency = latency;
+		this.bandwidth = bandwidth;
+		this.loss = loss;
+	}
+
+	/**
+	 * Sets the longest time to wait for the leechers; by default 5 minutes.
+	 * @param timeout milliseconds
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Names a simulated peer for the tracker.
+	 * @param index The peer's index; seeders first, then leechers
+	 * @return a 20-character peer ID
+	 */
+	static String peerID(int index) {
+		return String.format("-SIM-%015d", index);
+	}
+
+	/**
+	 * Runs the swarm until every leecher completes or the timeout passes,
+	 * then shuts everything down & deletes its files.
+	 * @return what happened
+	 * @throws IOException on failure creating the files, torrent or sockets
+	 */
+	public SwarmResult run() throws IOException {
+		int peers = seeders + leechers;
+		File directory = File.createTempFile("rubt-swarm", "");
+		directory.delete();
+		directory.mkdirs();
+
+		LinkProxy[][] links = new LinkProxy[peers][peers];
+		SimulatedTracker tracker = null;
+		Engine[] engines = new Engine[peers];
+		try {
+			//Lay out the network:
+			int[] ports = freePorts(peers);
+			Map<Integer,Integer> peers_by_port = new HashMap<Integer,Integer>();
+			int[][] link_ports = new int[peers][peers];
+			for(int from = 0; from < peers; from++) {
+				peers_by_port.put(ports[from], from);
+				for(int to = 0; to < peers; to++) {
+					if(from != to) {
+						links[from][to] = new LinkProxy(ports[to], latency, bandwidth, loss, seed + from * peers + to);
+						link_ports[from][to] = links[from][to].getPort();
+						LinkProxy.startThread(links[from][to], "Link " + from + "-" + to);
+					}
+				}
+			}
+			tracker = new SimulatedTracker(peers_by_port, link_ports);
+
+			//Create the file & its torrent:
+			File data = new File(directory, "data");
+			writeRandomFile(data);
+			File torrent = new File(directory, "swarm.torrent");
+			FileOutputStream out = new FileOutputStream(torrent);
+			try {
+				out.write(MakeTorrent.create(data, tracker.getAnnounceURL(), piece_size, 0));
+			}
+			finally {
+				out.close();
+			}
+
+			//Create the peers; seeders start with every piece:
+			for(int x = 0; x < peers; x++) {
+				String name = (x < seeders) ? "seeder-" + x : "leecher-" + (x - seeders);
+				engines[x] = new Engine(torrent.getPath(), new File(directory, name).getPath());
+				engines[x].setPorts(ports[x], ports[x]);
+				if(x < seeders) {
+					fillFrom(engines[x].getFileInfo(), data);
+				}
+			}
+
+			//Start seeders, then time leechers from when they start:
+			for(int x = 0; x < seeders; x++) {
+				engines[x].start();
+			}
+			long start = System.nanoTime();
+			for(int x = seeders; x < peers; x++) {
+				engines[x].start();
+			}
+			long[] complete_times = waitForLeechers(engines, start);
+
+			long[] uploaded = new long[peers];
+			for(int x = 0; x < peers; x++) {
+				uploaded[x] = engines[x].getFileInfo().getBytesUploaded();
+			}
+			return new SwarmResult(seeders, file_size, complete_times, uploaded);
+		}
+		finally {
+			for(Engine engine : engines) {
+				if(engine != null) {
+					engine.shutdown();
+				}
+			}
+			for(int from = 0; from < peers; from++) {
+				for(int to = 0; to < peers; to++) {
+					if(links[from][to] != null) {
+						links[from][to].close();
+					}
+				}
+			}
+			if(tracker != null) {
+				tracker.stop();
+			}
+			delete(directory);
+		}
+	}
+
+	/**
+	 * Waits until every leecher completes or the timeout passes.
+	 * @param engines Every peer, seeders first
+	 * @param start System.nanoTime() when the leechers started
+	 * @return the time each leecher took (in milliseconds), or -1 if it didn't complete
+	 */
+	private long[] waitForLeechers(Engine[] engines, long start) {
+		long[] complete_times = new long[leechers];
+		int remaining = leechers;
+		for(int x = 0; x < leechers; x++) {
+			complete_times[x] = -1;
+		}
+
+		long deadline = start + timeout * 1000000L;
+		while(remaining > 0 && System.nanoTime() - deadline < 0) {
+			try {
+				Thread.sleep(poll_interval);
+			} catch (InterruptedException e) {}
+
+			for(int x = 0; x < leechers; x++) {
+				if(complete_times[x] < 0 && engines[seeders + x].getFileInfo().complete()) {
+					complete_times[x] = (System.nanoTime() - start) / 1000000L;
+					remaining--;
+				}
+			}
+		}
+		return complete_times;
+	}
+
+	/**
+	 * Fills a file with seeded random bytes.
+	 * @param file The file
+	 * @throws IOException on failure writing it
+	 */
+	private void writeRandomFile(File file) throws IOException {
+		Random random = new Random(seed);
+		byte[] buffer = new byte[1024 * 1024];
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			for(long written = 0; written < file_size; written += buffer.length) {
+				random.nextBytes(buffer);
+				out.write(buffer, 0, (int)Math.min(buffer.length, file_size - written));
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Gives a seeder every piece, read from the original file.
+	 * @param file The seeder's torrent
+	 * @param data The original file
+	 * @throws IOException on failure reading the file, or a piece being rejected
+	 */
+	private static void fillFrom(FileInfo file, File data) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(data, "r");
+		try {
+			for(int x = 0; x < file.getBitfieldBitSize(); x++) {
+				byte[] piece = new byte[file.getPieceSize(x)];
+				in.seek(file.getPieceOffset(x));
+				in.readFully(piece);
+				file.downloadingPiece(x);
+				try {
+					file.completePiece(x, piece);
+				} catch (Exception e) {
+					throw new IOException("Piece " + x + " rejected.");
+				}
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Finds free loopback ports, holding them all open at once so they differ.
+	 * @param count The number of ports
+	 * @return the ports, now closed again
+	 * @throws IOException if not enough ports are free
+	 */
+	private static int[] freePorts(int count) throws IOException {
+		ServerSocket[] sockets = new ServerSocket[count];
+		int[] ports = new int[count];
+		try {
+			for(int x = 0; x < count; x++) {
+				sockets[x] = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+				ports[x] = sockets[x].getLocalPort();
+			}
+		}
+		finally {
+			for(ServerSocket s : sockets) {
+				if(s != null) {
+					s.close();
+				}
+			}
+		}
+		return ports;
+	}
+
+	/**
+	 * Deletes a file, or a directory and everything in it.
+	 * @param file The file or directory
+	 */
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * Runs a swarm from the command line and prints the report.
+	 * @param args [options]
+	 */
+	public static void main(String[] args) {
+		int seeders = 1;
+		int leechers = 4;
+		long size_mb = 16;
+		int piece_kb = 256;
+		long latency = 20;
+		long bandwidth_kb = 0;
+		double loss_percent = 0;
+		long timeout_seconds = 300;
+		int level = Log.level_error;
+
+		try {
+			for(int x = 0; x < args.length; x++) {
+				String value = (x + 1 < args.length) ? args[x + 1] : null;
+				if(value == null) {
+					System.err.println("Missing value for " + args[x] + ".");
+					System.err.println(usage);
+					return;
+				}
+				if(args[x].equals("-seeders")) {
+					seeders = Integer.parseInt(value);
+				}
+				else if(args[x].equals("-leechers")) {
+					leechers = Integer.parseInt(value);
+				}
+				else if(args[x].equals("-size")) {
+					size_mb = Long.parseLong(value);
+				}
+				else if(args[x].equals("-piece")) {
+					piece_kb = Integer.parseInt(value);
+				}
+				else if(args[x].equals("-latency")) {
+					latency = Long.parseLong(value);
+				}
+				else if(args[x].equals("-bandwidth")) {
+					bandwidth_kb = Long.parseLong(value);
+				}
+				else if(args[x].equals("-loss")) {
+					loss_percent = Double.parseDouble(value);
+				}
+				else if(args[x].equals("-timeout")) {
+					timeout_seconds = Long.parseLong(value);
+				}
+				else if(args[x].equals("-loglevel") && Log.parseLevel(value) >= 0) {
+					level = Log.parseLevel(value);
+				}
+				else {
+					System.err.println("Unknown option " + args[x] + ".");
+					System.err.println(usage);
+					return;
+				}
+				x++;
+			}
+		} catch (NumberFormatException e) {
+			System.err.println("Option values must be numbers.");
+			return;
+		}
+		if(seeders < 1 || leechers < 1 || size_mb < 1 || piece_kb < 1) {
+			System.err.println("Need at least one seeder & leecher, and a positive size & piece size.");
+			return;
+		}
+		Log.setLevel(level);
+
+		SwarmSimulator simulator = new SwarmSimulator(seeders, leechers, size_mb * 1024 * 1024, piece_kb * 1024);
+		simulator.setLinks(latency, bandwidth_kb * 1024, loss_percent / 100);
+		simulator.setTimeout(timeout_seconds * 1000);
+		System.out.println(seeders + " seeders, " + leechers + " leechers, " + size_mb + " MB in " + piece_kb + " KB pieces; links " + latency + " ms, " + ((bandwidth_kb == 0) ? "unlimited" : bandwidth_kb + " KB/s") + ", " + loss_percent + "% loss");
+		try {
+			SwarmResult result = simulator.run();
+			System.out.print(result);
+			Log.flush();
+			System.exit(result.allCompleted() ? 0 : 1);
+		} catch (IOException e) {
+			System.err.println("Unable to run swarm: " + e.getMessage());
+			System.exit(2);
+		}
+	}
+}
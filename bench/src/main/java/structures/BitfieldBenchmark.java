@@ -0,0 +1,122 @@
+package structures;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Average time of whole-field Bitfield operations, as done per peer per message:
+ * scanning every bit, setting every bit, finding useful bits, checking for any bit,
+ * and loading a peer's bitfield message.
+ * @author Ari & Jay
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class BitfieldBenchmark {
+	/**
+	 * Number of pieces in the torrent
+	 */
+	@Param({ "1000", "100000", "1000000" })
+	public int pieces;
+
+	/**
+	 * Our bitfield, about half full
+	 */
+	private Bitfield ours;
+
+	/**
+	 * A peer's bitfield, about half full
+	 */
+	private Bitfield theirs;
+
+	/**
+	 * A peer's bitfield message, about half full
+	 */
+	private byte[] message;
+
+	/**
+	 * Fills the bitfields from a fixed seed.
+	 * @throws Exception never
+	 */
+	@Setup
+	public void setup() throws Exception {
+		Random random = new Random(42);
+		ours = new Bitfield(pieces);
+		theirs = new Bitfield(pieces);
+		for(int x = 0; x < pieces; x++) {
+			ours.setBit(x, random.nextBoolean());
+			theirs.setBit(x, random.nextBoolean());
+		}
+		message = theirs.getBytes().clone();
+	}
+
+	/**
+	 * Reads every bit, as the piece picker does.
+	 * @return the number of set bits
+	 */
+	@Benchmark
+	public int getEveryBit() {
+		int count = 0;
+		for(int x = 0; x < pieces; x++) {
+			count += ours.getBit(x);
+		}
+		return count;
+	}
+
+	/**
+	 * Sets every bit, alternating ones & zeros.
+	 * @return the bitfield
+	 */
+	@Benchmark
+	public Bitfield setEveryBit() {
+		for(int x = 0; x < pieces; x++) {
+			ours.setBit(x, (x & 1) == 0);
+		}
+		return ours;
+	}
+
+	/**
+	 * Finds the pieces a peer has which we don't.
+	 * @return the useful bits
+	 */
+	@Benchmark
+	public Bitfield getUsefulBits() {
+		return ours.getUsefulBits(theirs);
+	}
+
+	/**
+	 * Checks an empty field for any set bit, the worst case.
+	 * @return false
+	 */
+	@Benchmark
+	public boolean nonZeroEmpty() {
+		return new Bitfield(pieces).nonZero();
+	}
+
+	/**
+	 * Loads a peer's bitfield message.
+	 * @param bh Consumes the bitfield
+	 * @throws Exception never
+	 */
+	@Benchmark
+	public void setBytes(Blackhole bh) throws Exception {
+		theirs.setBytes(message);
+		bh.consume(theirs);
+	}
+}
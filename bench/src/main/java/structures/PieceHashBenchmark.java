@@ -0,0 +1,77 @@
+package structures;
+
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Average time to verify a downloaded piece against the torrent's SHA-1 hash,
+ * the way PeerSocket does when a piece is done, for common piece sizes.
+ * @author Ari & Jay
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class PieceHashBenchmark {
+	/**
+	 * Size of the piece (in KB)
+	 */
+	@Param({ "256", "1024", "4096" })
+	public int piece_kb;
+
+	/**
+	 * The piece's data
+	 */
+	private byte[] piece;
+
+	/**
+	 * The piece's expected hash
+	 */
+	private byte[] expected;
+
+	/**
+	 * Fills the piece from a fixed seed & hashes it.
+	 * @throws Exception never
+	 */
+	@Setup
+	public void setup() throws Exception {
+		piece = new byte[piece_kb * 1024];
+		new Random(42).nextBytes(piece);
+		expected = MessageDigest.getInstance("SHA-1").digest(piece);
+	}
+
+	/**
+	 * Hashes the piece and compares it with the expected hash.
+	 * @return true
+	 * @throws Exception never
+	 */
+	@Benchmark
+	public boolean verifyPiece() throws Exception {
+		MessageDigest md = MessageDigest.getInstance("SHA-1");
+		md.update(piece);
+		byte[] hash = md.digest();
+
+		boolean valid_hash = true;
+		for(int x = 0; x < 20; x++) {
+			if(hash[x] != expected[x]) {
+				valid_hash = false;
+			}
+		}
+		return valid_hash;
+	}
+}
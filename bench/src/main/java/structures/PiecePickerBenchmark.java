@@ -0,0 +1,118 @@
+package structures;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Average time for FileInfo.getMissingPiece() to pick a piece for a peer,
+ * with rarity built up from a varying number of connected peers.
+ * The torrent is a sparse file in a temporary directory; nothing is downloaded,
+ * so every piece stays missing.
+ * @author Ari & Jay
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class PiecePickerBenchmark {
+	/**
+	 * Size of a piece; small, so the sparse file stays small
+	 */
+	private static final int piece_size = 16 * 1024;
+
+	/**
+	 * Number of pieces in the torrent
+	 */
+	@Param({ "1000", "100000" })
+	public int pieces;
+
+	/**
+	 * Number of connected peers counted in the rarity
+	 */
+	@Param({ "1", "10", "100" })
+	public int peers;
+
+	/**
+	 * Directory holding the torrent & its metadata
+	 */
+	private File directory;
+
+	/**
+	 * The torrent
+	 */
+	private FileInfo file;
+
+	/**
+	 * The connected peers' bitfields, each about half full
+	 */
+	private Bitfield[] bitfields;
+
+	/**
+	 * Index of the peer picked for next
+	 */
+	private int next_peer = 0;
+
+	/**
+	 * Creates the torrent & peers from a fixed seed.
+	 * @throws Exception on failure creating the torrent
+	 */
+	@Setup
+	public void setup() throws Exception {
+		directory = File.createTempFile("rubt-bench", "");
+		directory.delete();
+		directory.mkdirs();
+		file = new FileInfo((long)pieces * piece_size, piece_size, new File(directory, "torrent").getPath());
+
+		Random random = new Random(42);
+		bitfields = new Bitfield[peers];
+		for(int p = 0; p < peers; p++) {
+			bitfields[p] = new Bitfield(pieces);
+			for(int x = 0; x < pieces; x++) {
+				if(random.nextBoolean()) {
+					bitfields[p].setBit(x, true);
+					file.incrementPieceRarity(x);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes & deletes the torrent.
+	 * @throws Exception on failure closing
+	 */
+	@TearDown
+	public void tearDown() throws Exception {
+		file.close();
+		for(File f : directory.listFiles()) {
+			f.delete();
+		}
+		directory.delete();
+	}
+
+	/**
+	 * Picks a piece for the next peer, round-robin.
+	 * @return the piece
+	 */
+	@Benchmark
+	public int getMissingPiece() {
+		Bitfield bitfield = bitfields[next_peer];
+		next_peer = (next_peer + 1) % peers;
+		return file.getMissingPiece(bitfield);
+	}
+}
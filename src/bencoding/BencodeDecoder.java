@@ -0,0 +1,176 @@
+package bencoding;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A decoder for bencoded values from other peers, the counterpart of BencodeEncoder.
+ * Byte strings decode to byte[], integers to Long, lists to List and dictionaries to Map
+ * with String keys. The input is untrusted, so nesting and string lengths are checked
+ * before anything is allocated.
+ * @author Ari & Jay
+ */
+public class BencodeDecoder {
+	/**
+	 * Deepest nesting of lists & dictionaries accepted
+	 */
+	private static final int max_depth = 32;
+
+	/**
+	 * The bytes being decoded
+	 */
+	private byte[] data;
+
+	/**
+	 * Index of the next byte to decode
+	 */
+	private int position;
+
+	/**
+	 * Index after the last byte which may be decoded
+	 */
+	private int end;
+
+	/**
+	 * Creates a decoder for part of an array.
+	 * @param data The bencoded bytes
+	 * @param offset Index of the first byte of the value
+	 * @param length Number of bytes which may be decoded
+	 */
+	public BencodeDecoder(byte[] data, int offset, int length) {
+		this.data = data;
+		position = offset;
+		end = offset + length;
+	}
+
+	/**
+	 * Decodes a value from the start of an array; any bytes after it are ignored.
+	 * @param data The bencoded bytes
+	 * @return a byte[], Long, List or Map
+	 * @throws IOException on malformed bencoding
+	 */
+	public static Object decode(byte[] data) throws IOException {
+		return new BencodeDecoder(data, 0, data.length).read();
+	}
+
+	/**
+	 * Decodes the next value.
+	 * @return a byte[], Long, List or Map
+	 * @throws IOException on malformed bencoding
+	 */
+	public Object read() throws IOException {
+		return read(0);
+	}
+
+	/**
+	 * Gets the index after the last value decoded, e.g. to find data which follows it.
+	 * @return an index into the array
+	 */
+	public int getPosition() {
+		return position;
+	}
+
+	/**
+	 * Decodes the next value.
+	 * @param depth Number of lists & dictionaries the value is inside
+	 * @return a byte[], Long, List or Map
+	 * @throws IOException on malformed bencoding
+	 */
+	private Object read(int depth) throws IOException {
+		if(depth > max_depth) {
+			throw new IOException("Bencoded value nested too deeply");
+		}
+
+		int b = peek();
+		if(b == 'i') {
+			position++;
+			return readNumber('e');
+		}
+		else if(b == 'l') {
+			position++;
+			List<Object> list = new ArrayList<Object>();
+			while(peek() != 'e') {
+				list.add(read(depth + 1));
+			}
+			position++;
+			return list;
+		}
+		else if(b == 'd') {
+			position++;
+			Map<String,Object> dictionary = new HashMap<String,Object>();
+			while(peek() != 'e') {
+				String key = new String(readBytes(), StandardCharsets.UTF_8);
+				dictionary.put(key, read(depth + 1));
+			}
+			position++;
+			return dictionary;
+		}
+		else if(b >= '0' && b <= '9') {
+			return readBytes();
+		}
+		throw new IOException("Unexpected byte '" + (char)b + "' in bencoded value");
+	}
+
+	/**
+	 * Decodes a byte string.
+	 * @return the string's raw bytes
+	 * @throws IOException on malformed bencoding
+	 */
+	private byte[] readBytes() throws IOException {
+		long length = readNumber(':');
+		if(length < 0 || length > end - position) {
+			throw new IOException("Bencoded string length " + length + " is out of bounds");
+		}
+		byte[] bytes = new byte[(int)length];
+		System.arraycopy(data, position, bytes, 0, bytes.length);
+		position += bytes.length;
+		return bytes;
+	}
+
+	/**
+	 * Decodes the digits of an integer or a string's length.
+	 * @param terminator The byte after the digits
+	 * @return the number
+	 * @throws IOException on malformed bencoding
+	 */
+	private long readNumber(int terminator) throws IOException {
+		boolean negative = false;
+		if(peek() == '-') {
+			negative = true;
+			position++;
+		}
+
+		long number = 0;
+		int digits = 0;
+		int b;
+		while((b = peek()) != terminator) {
+			if(b < '0' || b > '9' || ++digits > 18) {
+				throw new IOException("Invalid bencoded number");
+			}
+			number = number * 10 + (b - '0');
+			position++;
+		}
+		position++;
+
+		if(digits == 0) {
+			throw new IOException("Invalid bencoded number");
+		}
+		return negative ? -number : number;
+	}
+
+	/**
+	 * Gets the next byte without consuming it.
+	 * @return the byte, from 0 to 255
+	 * @throws IOException at the end of the data
+	 */
+	private int peek() throws IOException {
+		if(position >= end) {
+			throw new IOException("Bencoded value ends early");
+		}
+		return data[position] & 0xFF;
+	}
+}
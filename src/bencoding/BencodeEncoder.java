@@ -0,0 +1,133 @@
+package bencoding;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An encoder for bencoded values.
+ * Strings, byte arrays, integers, lists and dictionaries are supported.
+ * Dictionary keys are always written in lexicographical order, as required by the spec.
+ * @author Ari Hayes
+ */
+public class BencodeEncoder {
+	/**
+	 * The stream being written to.
+	 */
+	private OutputStream stream;
+
+	/**
+	 * Creates an encoder which writes to the given stream.
+	 * @param os The stream to write bencoded data to.
+	 */
+	public BencodeEncoder(OutputStream os) {
+		stream = os;
+	}
+
+	/**
+	 * Encodes a value to a new byte array.
+	 * @param value The value to encode
+	 * @return The bencoded bytes
+	 */
+	public static byte[] encode(Object value) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			new BencodeEncoder(bytes).write(value);
+		} catch (IOException e) {
+			//Impossible for a ByteArrayOutputStream
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Writes a value to the stream.
+	 * @param value A String, byte[], Integer, Long, List or Map with String keys.
+	 * @throws IOException on failure writing stream
+	 * @throws IllegalArgumentException on a value which cannot be bencoded
+	 */
+	@SuppressWarnings("unchecked")
+	public void write(Object value) throws IOException {
+		if(value instanceof byte[]) {
+			writeBytes((byte[])value);
+		}
+		else if(value instanceof String) {
+			writeBytes(((String)value).getBytes(StandardCharsets.UTF_8));
+		}
+		else if(value instanceof Integer || value instanceof Long) {
+			writeInteger(((Number)value).longValue());
+		}
+		else if(value instanceof List) {
+			writeList((List<Object>)value);
+		}
+		else if(value instanceof Map) {
+			writeDictionary((Map<String,Object>)value);
+		}
+		else {
+			throw new IllegalArgumentException("Cannot bencode " + value);
+		}
+	}
+
+	/**
+	 * Writes a byte string.
+	 * @param bytes The raw bytes of the string
+	 * @throws IOException on failure writing stream
+	 */
+	public void writeBytes(byte[] bytes) throws IOException {
+		writeAscii(Integer.toString(bytes.length));
+		stream.write(':');
+		stream.write(bytes);
+	}
+
+	/**
+	 * Writes an integer.
+	 * @param i The integer value
+	 * @throws IOException on failure writing stream
+	 */
+	public void writeInteger(long i) throws IOException {
+		stream.write('i');
+		writeAscii(Long.toString(i));
+		stream.write('e');
+	}
+
+	/**
+	 * Writes a list.
+	 * @param list The list's values
+	 * @throws IOException on failure writing stream
+	 */
+	public void writeList(List<Object> list) throws IOException {
+		stream.write('l');
+		for(Object value : list) {
+			write(value);
+		}
+		stream.write('e');
+	}
+
+	/**
+	 * Writes a dictionary, sorting its keys first.
+	 * @param dictionary The dictionary's keys and values
+	 * @throws IOException on failure writing stream
+	 */
+	public void writeDictionary(Map<String,Object> dictionary) throws IOException {
+		stream.write('d');
+		for(Map.Entry<String,Object> entry : new TreeMap<String,Object>(dictionary).entrySet()) {
+			writeBytes(entry.getKey().getBytes(StandardCharsets.UTF_8));
+			write(entry.getValue());
+		}
+		stream.write('e');
+	}
+
+	/**
+	 * Writes digits and other ASCII characters.
+	 * @param str The String to write
+	 * @throws IOException on failure writing stream
+	 */
+	private void writeAscii(String str) throws IOException {
+		for(int x = 0; x < str.length(); x++) {
+			stream.write((byte)str.charAt(x));
+		}
+	}
+}
@@ -4,7 +4,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 
-import main.RUBTClient;
+import main.Log;
 
 import structures.Peer;
 
@@ -106,39 +106,39 @@ public class ResponseDecoder {
 			//Error checking:
 			b = readByte();
 			if(b != -1) {
-				RUBTClient.logError("Found " + (char)b + ", expected end of response.");
+				Log.logError("Found " + (char)b + ", expected end of response.");
 			}
 			else if(failure != null) {
-				RUBTClient.logError("Failure: " + failure);
+				Log.logError("Failure: " + failure);
 			}
 			else if(interval == null) {
-				RUBTClient.logError("Interval not found; response may be corrupted.");
+				Log.logError("Interval not found; response may be corrupted.");
 			}
 			/*else if(tracker_id == null) {
-				RUBTClient.logError("Tracker id not found; response may be corrupted.");
+				Log.logError("Tracker id not found; response may be corrupted.");
 			}
 			else if(complete == null) {
-				RUBTClient.logError("Complete value not found; response may be corrupted.");
+				Log.logError("Complete value not found; response may be corrupted.");
 			}
 			else if(incomplete == null) {
-				RUBTClient.logError("Incomplete value not found; response may be corrupted.");
+				Log.logError("Incomplete value not found; response may be corrupted.");
 			}
 			else if(downloaded == null) {
-				RUBTClient.logError("Downloaded value not found; response may be corrupted.");
+				Log.logError("Downloaded value not found; response may be corrupted.");
 			}*/
 			else if(peers == null) {
-				RUBTClient.logError("Peers not found; response may be corrupted.");
+				Log.logError("Peers not found; response may be corrupted.");
 			}
 			else {
 				valid = true;
 			}
 			
 			if(warning != null) {
-				RUBTClient.logError("Warning: " + warning);
+				Log.warn("" + warning);
 			}
 		}
 		else {
-			RUBTClient.logError("Expected dictionary; response is corrupt.");
+			Log.logError("Expected dictionary; response is corrupt.");
 		}
 	}
 
@@ -165,21 +165,21 @@ public class ResponseDecoder {
 		int b = readByte();
 		while(b != -1) {
 			if(b == 'i') {//integer prefix
-				RUBTClient.logError("Found integer; expected ascii dictionary key.");
+				Log.logError("Found integer; expected ascii dictionary key.");
 				return false;
 			}
 			else if(b == 'l') {//list prefix
-				RUBTClient.logError("Found list; expected ascii dictionary key.");
+				Log.logError("Found list; expected ascii dictionary key.");
 				return false;
 			}
 			else if(b == 'd') {//dictionary prefix
-				RUBTClient.logError("Found dictionary; expected ascii dictionary key.");
+				Log.logError("Found dictionary; expected ascii dictionary key.");
 				return false;
 			}
 			else if(b == 'e') {//end of dictionary
 				if(dictionary_id == id_peer) {
 					if(id == null || ip == null || port == null) {
-						RUBTClient.logError("Missing peer data; response may be corrupt.");
+						Log.logError("Missing peer data; response may be corrupt.");
 						return false;
 					}
 					peers.add(new Peer(id,ip,port));
@@ -193,11 +193,11 @@ public class ResponseDecoder {
 				if(last_key != null) {
 					int comp = last_key.compareTo(key);
 					if(comp > 0) {
-						RUBTClient.logError("Dictionary keys not in lexicographical order; response is corrupt.");
+						Log.logError("Dictionary keys not in lexicographical order; response is corrupt.");
 						return false;
 					}
 					else if(comp == 0) {
-						RUBTClient.logError("Duplicate dictionary key found; response is corrupt.");
+						Log.logError("Duplicate dictionary key found; response is corrupt.");
 						return false;
 					}
 				}
@@ -219,7 +219,7 @@ public class ResponseDecoder {
 							}
 						}
 						else {//not a list
-							RUBTClient.logError("Unable to parse peer list; response may be corrupt.");
+							Log.logError("Unable to parse peer list; response may be corrupt.");
 							return false;
 						}
 					}
@@ -236,7 +236,7 @@ public class ResponseDecoder {
 								return true;
 							}
 							else {
-								RUBTClient.logError("Expected end of response after failure message; respomse may be corrupt.");
+								Log.logError("Expected end of response after failure message; respomse may be corrupt.");
 								return false;
 							}
 						}
@@ -296,7 +296,7 @@ public class ResponseDecoder {
 						value_parsed = true;
 						id = parseString(0);
 						if(id == null) {
-							RUBTClient.logError("Unable to parse peer id; response may be corrupt.");
+							Log.logError("Unable to parse peer id; response may be corrupt.");
 							return false;
 						}
 					}
@@ -304,7 +304,7 @@ public class ResponseDecoder {
 						value_parsed = true;
 						ip = parseString(0);
 						if(ip == null) {
-							RUBTClient.logError("Unable to parse ip; response may be corrupt.");
+							Log.logError("Unable to parse ip; response may be corrupt.");
 							return false;
 						}
 					}
@@ -312,14 +312,14 @@ public class ResponseDecoder {
 						value_parsed = true;
 						port = parseInteger();
 						if(port == null) {
-							RUBTClient.logError("Unable to parse port; response may be corrupt.");
+							Log.logError("Unable to parse port; response may be corrupt.");
 							return false;
 						}
 					}
 				}
 				
 				if(!value_parsed) {//unexpected dictionary key
-					RUBTClient.logError("Warning: unexpected dictionary key '" + key + "' in tracker response.");
+					Log.warn("unexpected dictionary key '" + key + "' in tracker response.");
 					parseValue();
 				}
 				
@@ -327,13 +327,13 @@ public class ResponseDecoder {
 				b = readByte();
 			}
 			else {//unexpected
-				RUBTClient.logError("Unexpected byte '" + (char)b +  "' in dictionary; response may be corrupt.");
+				Log.logError("Unexpected byte '" + (char)b +  "' in dictionary; response may be corrupt.");
 				return false;
 			}
 		}
 		
 		//End of file:
-		RUBTClient.logError("End of response reached; expected end of dictionary.");
+		Log.logError("End of response reached; expected end of dictionary.");
 		return false;
 	}
 	
@@ -355,7 +355,7 @@ public class ResponseDecoder {
 					}
 				}
 				else {
-					RUBTClient.logError("Peer list is in wrong format.");
+					Log.logError("Peer list is in wrong format.");
 					return false;
 				}
 				
@@ -365,7 +365,7 @@ public class ResponseDecoder {
 		}
 		
 		//End of file:
-		RUBTClient.logError("End of file reached; expected end of list.");
+		Log.logError("End of file reached; expected end of list.");
 		return false;
 	}
 
@@ -409,7 +409,7 @@ public class ResponseDecoder {
 			return parseString(b-'0');
 		}
 		else {//unexpected
-			RUBTClient.logError("Unexpected byte '" + (char)b +  "' in dictionary value; torrent may be corrupt.");
+			Log.logError("Unexpected byte '" + (char)b +  "' in dictionary value; torrent may be corrupt.");
 			return null;
 		}
 	}
@@ -431,7 +431,7 @@ public class ResponseDecoder {
 		}
 		
 		//End of file:
-		RUBTClient.logError("End of file reached; expected end of list.");
+		Log.logError("End of file reached; expected end of list.");
 		return false;
 	}
 	
@@ -453,7 +453,7 @@ public class ResponseDecoder {
 		for(int x = 0; x < len; x++) {
 			b = readByte();
 			if(b == -1) {//end of file
-				RUBTClient.logError("End of file reached; expected end of string-length.");
+				Log.logError("End of file reached; expected end of string-length.");
 				return null;
 			}
 			else {//next character
@@ -476,7 +476,7 @@ public class ResponseDecoder {
 		int b = readByte();
 		while(b != end_byte) {
 			if(b == -1) {//end of file
-				RUBTClient.logError("End of file reached; expected end of string-length.");
+				Log.logError("End of file reached; expected end of string-length.");
 				return null;
 			}
 			else if(b >= '0' && b <= '9') {//digit
@@ -484,7 +484,7 @@ public class ResponseDecoder {
 				b = readByte();
 			}
 			else {//unexpected
-				RUBTClient.logError("Non-digit " + (char)b + " in integer; torrent may be corrupt.");
+				Log.logError("Non-digit " + (char)b + " in integer; torrent may be corrupt.");
 				return null;
 			}
 		}
@@ -1,17 +1,20 @@
 package bencoding;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 
-import main.RUBTClient;
+import main.Log;
 
+import structures.FileEntry;
 import structures.InfoHash;
 
 /**
  * TorrentDecoder class
- * Parses and extracts data from a torrent file with a single tracker and single file.
+ * Parses and extracts data from a torrent file with a single tracker and one or more files.
  * @author Ari Hayes
  */
 public class TorrentDecoder {
@@ -45,6 +48,11 @@ public class TorrentDecoder {
 	 */
 	final int id_peer = 3;
 	
+	/**
+	 * Constant used during parsing.
+	 */
+	final int id_file = 4;
+	
 	/**
 	 * A string holding the announce url.
 	 */
@@ -53,13 +61,19 @@ public class TorrentDecoder {
 	/**
 	 * Length of the file.
 	 */
-	private int total_length = -1;
+	private long total_length = -1;
 	
 	/**
 	 * The name the file will be saved as.
+	 * For multi-file torrents, the name of the directory holding the files.
 	 */
 	private String file_name = null;
 	
+	/**
+	 * The files of a multi-file torrent, or null for a single-file torrent.
+	 */
+	private ArrayList<FileEntry> files = null;
+	
 	/**
 	 * The info_hash for the torrent file.
 	 */
@@ -70,6 +84,11 @@ public class TorrentDecoder {
 	 */
 	private int piece_length = -1;
 	
+	/**
+	 * Whether the torrent is private, so peers may only come from its tracker (BEP 27).
+	 */
+	private boolean private_torrent = false;
+	
 	/**
 	 * Array of 20-byte hashes for the pieces.
 	 * Has dimensions number_of_hashes x 20
@@ -95,7 +114,7 @@ public class TorrentDecoder {
 		try {
 			stream = new FileInputStream(file);
 		} catch (FileNotFoundException e) {
-			RUBTClient.logError("File " + file  + " not found.");
+			Log.logError("File " + file  + " not found.");
 			return;
 		}
 		
@@ -109,27 +128,45 @@ public class TorrentDecoder {
 			//Error checking:
 			b = readByte();
 			if(b != -1) {
-				RUBTClient.logError("Found " + (char)b + ", expected end of file.");
+				Log.logError("Found " + (char)b + ", expected end of file.");
 			}
 			else if(announce_url == null) {
-				RUBTClient.logError("Announce url not found; torrent may be corrupted.");
+				Log.logError("Announce url not found; torrent may be corrupted.");
+			}
+			else if(files != null && total_length != -1) {
+				Log.logError("Found both length and files; torrent may be corrupted.");
+			}
+			else if(files != null && files.isEmpty()) {
+				Log.logError("Empty file list; torrent may be corrupted.");
 			}
-			else if(total_length < 1) {
-				RUBTClient.logError("Valid file length not found; torrent may be corrupted.");
+			else if(files == null && total_length < 1) {
+				Log.logError("Valid file length not found; torrent may be corrupted.");
 			}
 			else if(file_name == null || file_name.length() < 1) {
-				RUBTClient.logError("Valid file name not found; torrent may be corrupted.");
+				Log.logError("Valid file name not found; torrent may be corrupted.");
 			}
 			else if(piece_length < 1) {
-				RUBTClient.logError("Valid piece length not found; torrent may be corrupted.");
+				Log.logError("Valid piece length not found; torrent may be corrupted.");
 			}
 			else if(piece_hashes == null) {
-				RUBTClient.logError("Valid hashes not found; torrent may be corrupted.");
+				Log.logError("Valid hashes not found; torrent may be corrupted.");
 			}
 			else {
 				valid = true;
 			}
 			
+			//Total length of a multi-file torrent:
+			if(files != null) {
+				total_length = 0;
+				for(FileEntry f : files) {
+					total_length += f.getLength();
+				}
+				if(total_length < 1) {
+					Log.logError("Files are all empty; torrent may be corrupted.");
+					valid = false;
+				}
+			}
+			
 			//Calculate info_hash:
 			try {
 				MessageDigest md = MessageDigest.getInstance("SHA-1");
@@ -138,12 +175,12 @@ public class TorrentDecoder {
 				}
 				info_hash = new InfoHash(md.digest());
 			} catch (Exception e) {
-				RUBTClient.logError("Error computing info hash.");
+				Log.logError("Error computing info hash.");
 				valid = false;
 			}
 		}
 		else {
-			RUBTClient.logError("Expected top-level dictionary; torrent is corrupt.");
+			Log.logError("Expected top-level dictionary; torrent is corrupt.");
 		}
 	}
 
@@ -159,19 +196,25 @@ public class TorrentDecoder {
 		 */
 		String last_key = null;
 		
+		/**
+		 * File data, for dictionaries in the files list
+		 */
+		Long entry_length = null;
+		String entry_path = null;
+		
 		//Parse:
 		int b = readByte();
 		while(b != -1) {
 			if(b == 'i') {//integer prefix
-				RUBTClient.logError("Found integer; expected ascii dictionary key.");
+				Log.logError("Found integer; expected ascii dictionary key.");
 				return false;
 			}
 			else if(b == 'l') {//list prefix
-				RUBTClient.logError("Found list; expected ascii dictionary key.");
+				Log.logError("Found list; expected ascii dictionary key.");
 				return false;
 			}
 			else if(b == 'd') {//dictionary prefix
-				RUBTClient.logError("Found dictionary; expected ascii dictionary key.");
+				Log.logError("Found dictionary; expected ascii dictionary key.");
 				return false;
 			}
 			else if(b == 'e') {//end of dictionary
@@ -179,6 +222,18 @@ public class TorrentDecoder {
 					this.info_found = false;
 					//this.info_bytes = this.info_bytes.substring(0, this.info_bytes.length() - 1);
 				}
+				else if(dictionary_id == id_file) {
+					if(entry_length == null || entry_path == null) {
+						Log.logError("Missing file length or path; torrent may be corrupt.");
+						return false;
+					}
+					long offset = 0;
+					if(!files.isEmpty()) {
+						FileEntry previous = files.get(files.size() - 1);
+						offset = previous.getOffset() + previous.getLength();
+					}
+					files.add(new FileEntry(entry_path, entry_length, offset));
+				}
 				return true;
 			}
 			else if(b >= '0' && b <= '9') {//string length
@@ -188,11 +243,11 @@ public class TorrentDecoder {
 				if(last_key != null) {
 					int comp = last_key.compareTo(key);
 					if(comp > 0) {
-						RUBTClient.logError("Dictionary keys not in lexicographical order; torrent is corrupt.");
+						Log.logError("Dictionary keys not in lexicographical order; torrent is corrupt.");
 						return false;
 					}
 					else if(comp == 0) {
-						RUBTClient.logError("Duplicate dictionary key found; torrent is corrupt.");
+						Log.logError("Duplicate dictionary key found; torrent is corrupt.");
 						return false;
 					}
 				}
@@ -208,7 +263,7 @@ public class TorrentDecoder {
 						value_parsed = true;
 						this.announce_url = parseString(0);
 						if(announce_url == null) {//not a String
-							RUBTClient.logError("Unable to parse announce url; torrent may be corrupt.");
+							Log.logError("Unable to parse announce url; torrent may be corrupt.");
 							return false;
 						}
 					}
@@ -222,17 +277,41 @@ public class TorrentDecoder {
 							}
 						}
 						else {//not a dictionary
-							RUBTClient.logError("Unable to parse info dictionary; torrent may be corrupt.");
+							Log.logError("Unable to parse info dictionary; torrent may be corrupt.");
 							return false;
 						}
 					}
 				}
-				else if(dictionary_id == id_info) {
+				else if(dictionary_id == id_file) {
 					if(key.equals("length")) {
 						value_parsed = true;
-						Integer i = parseInteger();
+						entry_length = parseLong();
+						if(entry_length == null) {
+							Log.logError("Unable to parse file length; torrent may be corrupt.");
+							return false;
+						}
+					}
+					else if(key.equals("path")) {
+						value_parsed = true;
+						entry_path = parsePath();
+						if(entry_path == null) {
+							Log.logError("Unable to parse file path; torrent may be corrupt.");
+							return false;
+						}
+					}
+				}
+				else if(dictionary_id == id_info) {
+					if(key.equals("files")) {
+						value_parsed = true;
+						if(!parseFileList()) {
+							return false;
+						}
+					}
+					else if(key.equals("length")) {
+						value_parsed = true;
+						Long i = parseLong();
 						if(i == null) {
-							RUBTClient.logError("Unable to parse length; torrent may be corrupt.");
+							Log.logError("Unable to parse length; torrent may be corrupt.");
 							return false;
 						}
 						else {
@@ -243,7 +322,7 @@ public class TorrentDecoder {
 						value_parsed = true;
 						this.file_name = parseString(0);
 						if(this.file_name == null) {
-							RUBTClient.logError("Unable to parse name; torrent may be corrupt.");
+							Log.logError("Unable to parse name; torrent may be corrupt.");
 							return false;
 						}
 					}
@@ -251,7 +330,7 @@ public class TorrentDecoder {
 						value_parsed = true;
 						Integer i = parseInteger();
 						if(i == null) {
-							RUBTClient.logError("Unable to parse piece_length; torrent may be corrupt.");
+							Log.logError("Unable to parse piece_length; torrent may be corrupt.");
 							return false;
 						}
 						else {
@@ -264,6 +343,17 @@ public class TorrentDecoder {
 							return false;
 						}
 					}
+					else if(key.equals("private")) {
+						value_parsed = true;
+						Long i = parseLong();
+						if(i == null) {
+							Log.logError("Unable to parse private flag; torrent may be corrupt.");
+							return false;
+						}
+						else {
+							this.private_torrent = (i == 1);
+						}
+					}
 				}
 				
 				if(!value_parsed) {//If the key is not one we want, parse anyway:
@@ -276,16 +366,84 @@ public class TorrentDecoder {
 				b = readByte();
 			}
 			else {//unexpected
-				RUBTClient.logError("Unexpected byte '" + (char)b +  "' in dictionary; torrent may be corrupt.");
+				Log.logError("Unexpected byte '" + (char)b +  "' in dictionary; torrent may be corrupt.");
 				return false;
 			}
 		}
 		
 		//End of file:
-		RUBTClient.logError("End of file reached; expected end of dictionary.");
+		Log.logError("End of file reached; expected end of dictionary.");
 		return false;
 	}
 	
+	/**
+	 * Parses the list of file dictionaries in a multi-file torrent.
+	 * @return true on success, false on failure.
+	 * @throws IOException on failure reading stream
+	 */
+	private boolean parseFileList() throws IOException {
+		files = new ArrayList<FileEntry>();
+		if(readByte() != 'l') {
+			Log.logError("File list is in wrong format.");
+			return false;
+		}
+		
+		int b = readByte();
+		while(b != -1) {
+			if(b == 'e') {//end of list
+				return true;
+			}
+			else if(b != 'd' || !parseDictionary(id_file)) {
+				Log.logError("File list is in wrong format.");
+				return false;
+			}
+			
+			//Read next byte:
+			b = readByte();
+		}
+		
+		//End of file:
+		Log.logError("End of file reached; expected end of file list.");
+		return false;
+	}
+	
+	/**
+	 * Parses a file's path: a list of directory names ending with the file name.
+	 * Components which could escape the download directory are rejected.
+	 * @return the path joined with File.separator, or null on failure.
+	 * @throws IOException on failure reading stream
+	 */
+	private String parsePath() throws IOException {
+		if(readByte() != 'l') {
+			return null;
+		}
+		
+		String path = null;
+		int b = readByte();
+		while(b != -1) {
+			if(b == 'e') {//end of list
+				return path;
+			}
+			else if(b < '0' || b > '9') {
+				return null;
+			}
+			
+			String component = parseString(b-'0');
+			if(component == null || component.length() == 0 || component.equals(".") || component.equals("..")
+					|| component.indexOf('/') >= 0 || component.indexOf('\\') >= 0) {
+				Log.logError("Unsafe file path component; torrent may be corrupt.");
+				return null;
+			}
+			path = (path == null) ? component : path + File.separator + component;
+			
+			//Read next byte:
+			b = readByte();
+		}
+		
+		//End of file:
+		return null;
+	}
+	
 	/**
 	 * Parses the SHA-1 hashes from the file stream.
 	 * @return true on success, false on failure.
@@ -296,7 +454,7 @@ public class TorrentDecoder {
 		int len = parseInteger(':',0);
 		
 		if(len % 20 != 0) {
-			RUBTClient.logError("Hash length not a multiple of 20; torrent may be corrupt.");
+			Log.logError("Hash length not a multiple of 20; torrent may be corrupt.");
 			return false;
 		}
 		
@@ -309,7 +467,7 @@ public class TorrentDecoder {
 				b = readByte();
 				if(b == -1) {//end of file
 					this.piece_hashes = null;
-					RUBTClient.logError("End of file reached; expected SHA-1 hash.");
+					Log.logError("End of file reached; expected SHA-1 hash.");
 					return false;
 				}
 				this.piece_hashes[x][y] = (byte)b;
@@ -351,7 +509,7 @@ public class TorrentDecoder {
 	 */
 	Object parseValue(int b) throws IOException {
 		if(b == 'i') {//integer prefix
-			return parseInteger('e',0);
+			return parseLong('e',0);
 		}
 		else if(b == 'l') {//list prefix
 			if(parseList()) {
@@ -373,7 +531,7 @@ public class TorrentDecoder {
 			return parseString(b-'0');
 		}
 		else {//unexpected
-			RUBTClient.logError("Unexpected byte '" + (char)b +  "' in dictionary value; torrent may be corrupt.");
+			Log.logError("Unexpected byte '" + (char)b +  "' in dictionary value; torrent may be corrupt.");
 			return null;
 		}
 	}
@@ -389,13 +547,16 @@ public class TorrentDecoder {
 			if(b == 'e') {//end of list
 				return true;
 			}
-			else {
-				return (parseValue(b) != null);
+			else if(parseValue(b) == null) {
+				return false;
 			}
+			
+			//Read next byte:
+			b = readByte();
 		}
 		
 		//End of file:
-		RUBTClient.logError("End of file reached; expected end of list.");
+		Log.logError("End of file reached; expected end of list.");
 		return false;
 	}
 	
@@ -417,7 +578,7 @@ public class TorrentDecoder {
 		for(int x = 0; x < len; x++) {
 			b = readByte();
 			if(b == -1) {//end of file
-				RUBTClient.logError("End of file reached; expected end of string-length.");
+				Log.logError("End of file reached; expected end of string-length.");
 				return null;
 			}
 			else {//next character
@@ -432,23 +593,61 @@ public class TorrentDecoder {
 	 * Parses an integer at current offset of the stream.
 	 * @param end_byte The byte signaling the end of the integer, either ':' or 'e'
 	 * @param first_digit The first digit of the integer if it was already read from stream.
-	 * @return The Integer object on success, null on failure.
+	 * @return The Integer object on success, null on failure or if the value does not fit in an int.
 	 * @throws IOException on failure reading stream
 	 */
 	Integer parseInteger(char end_byte, int first_digit) throws IOException {
-		Integer i = first_digit;
+		Long l = parseLong(end_byte, first_digit);
+		if(l == null) {
+			return null;
+		}
+		else if(l > Integer.MAX_VALUE) {
+			Log.logError("Integer " + l + " too large; torrent may be corrupt.");
+			return null;
+		}
+		return l.intValue();
+	}
+	
+	/**
+	 * Parses an integer at current offset of the stream.
+	 * @return The Integer object on success, null on failure.
+	 * @throws IOException on failure reading stream
+	 */
+	Integer parseInteger() throws IOException {
+		if(readByte() == 'i') {
+			return parseInteger('e',0);
+		}
+		else {
+			return null;
+		}
+	}
+	
+	/**
+	 * Parses a 64-bit integer at current offset of the stream.
+	 * Used for file lengths, which may be larger than 2 GiB.
+	 * @param end_byte The byte signaling the end of the integer, either ':' or 'e'
+	 * @param first_digit The first digit of the integer if it was already read from stream.
+	 * @return The Long object on success, null on failure.
+	 * @throws IOException on failure reading stream
+	 */
+	Long parseLong(char end_byte, int first_digit) throws IOException {
+		long i = first_digit;
 		int b = readByte();
 		while(b != end_byte) {
 			if(b == -1) {//end of file
-				RUBTClient.logError("End of file reached; expected end of string-length.");
+				Log.logError("End of file reached; expected end of string-length.");
 				return null;
 			}
 			else if(b >= '0' && b <= '9') {//digit
+				if(i > (Long.MAX_VALUE - (b-'0')) / 10) {
+					Log.logError("Integer too large; torrent may be corrupt.");
+					return null;
+				}
 				i = 10*i + (b-'0');
 				b = readByte();
 			}
 			else {//unexpected
-				RUBTClient.logError("Non-digit " + (char)b + " in integer; torrent may be corrupt.");
+				Log.logError("Non-digit " + (char)b + " in integer; torrent may be corrupt.");
 				return null;
 			}
 		}
@@ -456,13 +655,13 @@ public class TorrentDecoder {
 	}
 	
 	/**
-	 * Parses an integer at current offset of the stream.
-	 * @return The Integer object on success, null on failure.
+	 * Parses a 64-bit integer at current offset of the stream.
+	 * @return The Long object on success, null on failure.
 	 * @throws IOException on failure reading stream
 	 */
-	Integer parseInteger() throws IOException {
+	Long parseLong() throws IOException {
 		if(readByte() == 'i') {
-			return parseInteger('e',0);
+			return parseLong('e',0);
 		}
 		else {
 			return null;
@@ -486,10 +685,10 @@ public class TorrentDecoder {
 	}
 	
 	/**
-	 * Gets the file length
-	 * @return integer value or null
+	 * Gets the file length, or the total length of all files
+	 * @return long value, or -1
 	 */
-	public int getFileLength() {
+	public long getFileLength() {
 		return total_length;
 	}
 	
@@ -501,6 +700,28 @@ public class TorrentDecoder {
 		return file_name;
 	}
 	
+	/**
+	 * Whether this torrent holds a directory of files rather than a single file.
+	 * @return true for multi-file torrents
+	 */
+	public boolean isMultiFile() {
+		return files != null;
+	}
+	
+	/**
+	 * Gets the torrent's files.
+	 * A single-file torrent yields one entry, named after the file.
+	 * @return ArrayList of FileEntry objects, with paths relative to the download target
+	 */
+	public ArrayList<FileEntry> getFiles() {
+		if(files != null) {
+			return files;
+		}
+		ArrayList<FileEntry> single = new ArrayList<FileEntry>();
+		single.add(new FileEntry(file_name, total_length, 0));
+		return single;
+	}
+	
 	/**
 	 * Gets the info hash
 	 * @return InfoHash object or null
@@ -517,6 +738,15 @@ public class TorrentDecoder {
 		return piece_length;
 	}
 	
+	/**
+	 * Checks whether the torrent is private, in which case peers must not be
+	 * exchanged with other peers or found outside the tracker.
+	 * @return boolean
+	 */
+	public boolean isPrivate() {
+		return private_torrent;
+	}
+	
 	/**
 	 * Gets a piece hash
 	 * @param piece index of the piece whose hash we want
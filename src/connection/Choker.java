@@ -0,0 +1,387 @@
+package connection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import main.Log;
+
+import structures.FileInfo;
+
+/**
+ * Decides which peers we upload to (tit-for-tat).
+ * Every rechoke_interval, the interested peers with the best smoothed rates get the
+ * regular unchoke slots: the rate they send to us while we are downloading, or the
+ * rate we send to them while we are seeding, as measured by each peer's RateEstimators;
+ * peers on our LAN rank ahead of the rest, as LAN transfers cost no uplink and run at
+ * line rate. One further slot, the optimistic unchoke,
+ * goes to a random choked peer and rotates every optimistic_interval, so that new
+ * peers get a chance to prove themselves.
+ * This is the only place peers are unchoked, so slot counts are always taken from the
+ * peers' actual states rather than a separate counter.
+ * The number of regular slots is sized from measured upload throughput: while peers are
+ * waiting for a slot we try adding one, keep growing as long as each new slot adds a fair
+ * share of an existing slot's rate to our total, and give the slot back when it doesn't.
+ * The test is per slot, not a fixed fraction of the total, so growth isn't capped at a
+ * handful of slots on a fast uplink.
+ * @author Ari & Jay
+ */
+public class Choker implements Runnable {
+	/**
+	 * Time between rechokes (in milliseconds)
+	 */
+	public static final long rechoke_interval = 10 * 1000;
+
+	/**
+	 * Time between optimistic unchoke rotations (in milliseconds)
+	 */
+	public static final long optimistic_interval = 30 * 1000;
+
+	/**
+	 * Time between checks for free slots (in milliseconds)
+	 */
+	private static final long tick = 1000;
+
+	/**
+	 * Fraction of the average upload rate per slot which a new slot must add to be kept.
+	 */
+	private static final double slot_gain = 0.5;
+
+	/**
+	 * Rechokes to wait after giving a slot back before trying to grow again.
+	 */
+	private static final int slot_backoff = 3;
+
+	/**
+	 * The connected peers
+	 */
+	private PeerRegistry registry;
+
+	/**
+	 * Data for the file we are sharing
+	 */
+	private FileInfo file;
+
+	/**
+	 * Number of regular unchoke slots, not counting the optimistic unchoke.
+	 */
+	private volatile int regular_slots = 3;
+
+	/**
+	 * Fewest regular slots we may shrink to.
+	 */
+	private volatile int min_slots = 2;
+
+	/**
+	 * Most regular slots we may grow to.
+	 */
+	private volatile int max_slots = 500;
+
+	/**
+	 * Total smoothed upload rate at the previous rechoke (in bytes/second)
+	 */
+	private double last_total_upload = 0;
+
+	/**
+	 * Change made to regular_slots at the previous rechoke: +1, -1 or 0
+	 */
+	private int last_slot_change = 0;
+
+	/**
+	 * Rechokes left before we may try growing again.
+	 */
+	private int slot_cooldown = 0;
+
+	/**
+	 * The optimistically unchoked peer, or null
+	 */
+	private PeerSocket optimistic = null;
+
+	/**
+	 * A random number generator
+	 */
+	private Random random = new Random();
+
+	/**
+	 * Boolean to indicate if we should stop choking
+	 */
+	private volatile boolean done = false;
+
+	/**
+	 * Constructor
+	 * @param registry The connected peers
+	 * @param file The info for the file being shared
+	 */
+	public Choker(PeerRegistry registry, FileInfo file) {
+		this.registry = registry;
+		this.file = file;
+	}
+
+	/**
+	 * Rechokes every rechoke_interval until stopped, filling free slots in between.
+	 */
+	@Override
+	public void run() {
+		long last_rechoke = System.currentTimeMillis() - rechoke_interval;
+		long last_optimistic = 0;
+		while(!done) {
+			long now = System.currentTimeMillis();
+			//A failed pass mustn't end the thread, or nobody would be unchoked again:
+			try {
+				if(now - last_rechoke >= rechoke_interval) {
+					resizeSlots();
+					if(now - last_optimistic >= optimistic_interval) {
+						rotateOptimistic();
+						last_optimistic = now;
+					}
+					rechoke();
+					last_rechoke = now;
+				}
+				else {
+					fillFreeSlots();
+				}
+			} catch (RuntimeException e) {
+				Log.logError("Choker failed: " + e);
+				last_rechoke = now;//try again at the next interval, not every tick
+			}
+
+			try {
+				Thread.sleep(tick);
+			} catch (InterruptedException e) {}
+		}
+	}
+
+	/**
+	 * Stops the choker.
+	 */
+	public void stop() {
+		done = true;
+	}
+
+	/**
+	 * Sets limits on the number of regular unchoke slots.
+	 * @param min Fewest slots, at least 1
+	 * @param max Most slots
+	 */
+	public void setSlotLimits(int min, int max) {
+		min_slots = Math.max(1, min);
+		max_slots = Math.max(min_slots, max);
+		regular_slots = Math.min(max_slots, Math.max(min_slots, regular_slots));
+	}
+
+	/**
+	 * Gets the current number of regular unchoke slots.
+	 * @return integer amount
+	 */
+	public int getSlots() {
+		return regular_slots;
+	}
+
+	/**
+	 * Adjusts regular_slots by hill-climbing on total upload rate.
+	 * The torrent's upload meter reflects the slot count chosen at the previous rechoke.
+	 */
+	private void resizeSlots() {
+		double total = file.getUploadMeter().getRate();
+		int waiting = 0;
+		for(PeerSocket p : snapshot()) {
+			if(p.peerInterested() && p.peerChoking()) {
+				waiting++;
+			}
+		}
+
+		int change = 0;
+		//Average rate per slot before the last change:
+		int previous_slots = Math.max(1, regular_slots - last_slot_change);
+		if(last_slot_change > 0 && total - last_total_upload < slot_gain * last_total_upload / previous_slots) {
+			//The last slot we added didn't help; give it back:
+			change = -1;
+			slot_cooldown = slot_backoff;
+		}
+		else if(slot_cooldown > 0) {
+			slot_cooldown--;
+		}
+		else if(waiting > 0) {
+			//Peers want a slot, and adding one might raise throughput:
+			change = 1;
+		}
+
+		int slots = Math.min(max_slots, Math.max(min_slots, regular_slots + change));
+		if(slots != regular_slots) {
+			Log.log("Upload slots: " + regular_slots + " -> " + slots + " (uploading " + (long)total/1024 + " KB/s)");
+		}
+		last_slot_change = slots - regular_slots;
+		regular_slots = slots;
+		last_total_upload = total;
+	}
+
+	/**
+	 * Gives the regular slots to the best interested peers, and chokes everyone else
+	 * except the optimistic unchoke.
+	 */
+	private void rechoke() {
+		ArrayList<PeerSocket> peers = snapshot();
+
+		ArrayList<PeerSocket> interested = new ArrayList<PeerSocket>();
+		for(PeerSocket p : peers) {
+			if(p.peerInterested() && p != optimistic) {
+				interested.add(p);
+			}
+		}
+		rank(interested);
+
+		//Choke first, so the number of unchoked peers never exceeds the slots:
+		int unchoke_count = Math.min(regular_slots, interested.size());
+		HashSet<PeerSocket> chosen = new HashSet<PeerSocket>(interested.subList(0, unchoke_count));
+
+		for(PeerSocket p : peers) {
+			if(p != optimistic && !p.peerChoking() && !chosen.contains(p)) {
+				p.choke();
+			}
+		}
+		for(int x = 0; x < unchoke_count; x++) {
+			if(interested.get(x).peerChoking()) {
+				interested.get(x).unchoke();
+			}
+		}
+	}
+
+	/**
+	 * Sorts peers best first for a regular slot: LAN peers, then best rates, with ties
+	 * broken randomly.
+	 * @param peers The peers to sort
+	 */
+	private void rank(ArrayList<PeerSocket> peers) {
+		boolean seeding = file.complete();
+		Collections.shuffle(peers, random);//break ties randomly
+
+		//Read each peer's rate once, since peer threads change it while we sort:
+		ArrayList<Ranked> keys = new ArrayList<Ranked>(peers.size());
+		for(PeerSocket p : peers) {
+			keys.add(new Ranked(p, p.isLocal(), seeding ? p.getUploadRate() : p.getDownloadRate()));
+		}
+		Collections.sort(keys, new Comparator<Ranked>() {
+			@Override
+			public int compare(Ranked a, Ranked b) {
+				if(a.local != b.local) {
+					return a.local ? -1 : 1;
+				}
+				return Double.compare(b.rate, a.rate);
+			}
+		});
+
+		peers.clear();
+		for(Ranked r : keys) {
+			peers.add(r.peer);
+		}
+	}
+
+	/**
+	 * Moves the optimistic unchoke to a random choked, interested peer.
+	 */
+	private void rotateOptimistic() {
+		ArrayList<PeerSocket> candidates = new ArrayList<PeerSocket>();
+		for(PeerSocket p : snapshot()) {
+			if(p.peerInterested() && p.peerChoking()) {
+				candidates.add(p);
+			}
+		}
+		if(candidates.isEmpty()) {
+			return;
+		}
+
+		//The previous optimistic peer now competes for a regular slot in rechoke():
+		optimistic = candidates.get(random.nextInt(candidates.size()));
+		if(optimistic.unchoke()) {
+			Log.log("Optimistically unchoking peer " + optimistic.getPeer().getID());
+		}
+	}
+
+	/**
+	 * Unchokes interested peers if slots are free, e.g. after a peer lost interest.
+	 * Free slots are not held back until the next rechoke, and go to the waiting peers
+	 * rechoke() would rank first.
+	 */
+	private void fillFreeSlots() {
+		ArrayList<PeerSocket> peers = snapshot();
+		int unchoked = 0;
+		for(PeerSocket p : peers) {
+			if(!p.peerChoking() && p != optimistic) {
+				unchoked++;
+			}
+		}
+		if(optimistic != null && (!optimistic.connected() || optimistic.peerChoking())) {
+			optimistic = null;
+		}
+
+		if(unchoked >= regular_slots) {
+			return;
+		}
+
+		ArrayList<PeerSocket> waiting = new ArrayList<PeerSocket>();
+		for(PeerSocket p : peers) {
+			if(p.peerInterested() && p.peerChoking()) {
+				waiting.add(p);
+			}
+		}
+		rank(waiting);
+		for(PeerSocket p : waiting) {
+			if(unchoked >= regular_slots) {
+				break;
+			}
+			if(p.unchoke()) {
+				unchoked++;
+			}
+		}
+	}
+
+	/**
+	 * Copies the connected peers, so the registry can change while we work.
+	 * @return a new list
+	 */
+	private ArrayList<PeerSocket> snapshot() {
+		List<PeerSocket> registered = registry.snapshot();
+		ArrayList<PeerSocket> connected = new ArrayList<PeerSocket>(registered.size());
+		for(PeerSocket p : registered) {
+			if(p.connected()) {
+				connected.add(p);
+			}
+		}
+		return connected;
+	}
+
+	/**
+	 * A peer with the values it is ranked by, read once before sorting.
+	 */
+	private static class Ranked {
+		/**
+		 * The peer
+		 */
+		final PeerSocket peer;
+
+		/**
+		 * Whether the peer is on our LAN
+		 */
+		final boolean local;
+
+		/**
+		 * The peer's smoothed rate (in bytes/second)
+		 */
+		final double rate;
+
+		/**
+		 * Constructor
+		 * @param peer The peer
+		 * @param local Whether the peer is on our LAN
+		 * @param rate The peer's smoothed rate (in bytes/second)
+		 */
+		Ranked(PeerSocket peer, boolean local, double rate) {
+			this.peer = peer;
+			this.local = local;
+			this.rate = rate;
+		}
+	}
+}
@@ -0,0 +1,633 @@
+package connection;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import main.Log;
+import main.Metrics;
+
+import structures.Counter;
+import structures.FileInfo;
+import structures.Peer;
+import bencoding.TorrentDecoder;
+
+/**
+ * Makes the outgoing connections of every torrent registered with it.
+ * Peers from announces become candidates, deduplicated by address, and wait in a queue
+ * ordered by score: peers on our LAN come first, then peers which gave us data before,
+ * and peers which failed to connect last; a failed peer isn't retried until a backoff
+ * doubling with each failure, and is dropped after max_failures failures in a row.
+ * Each torrent keeps at most max_candidates; when full, a new peer replaces the worst idle
+ * candidate, if any is worse, so peer exchange can't grow the queue without bound.
+ * A connector thread starts connects in parallel, each on its peer's own thread with a short
+ * timeout, keeping at most max_half_open of them unanswered at once.
+ * @author Ari & Jay
+ */
+public class ConnectionManager implements Runnable {
+	/**
+	 * Longest wait for a peer to accept a connection (in milliseconds)
+	 */
+	public static final int connect_timeout = 5000;
+
+	/**
+	 * Default limit on connects in progress at once
+	 */
+	public static final int default_max_half_open = 16;
+
+	/**
+	 * Wait before retrying a peer after its first failure, doubled after each further failure (in milliseconds)
+	 */
+	private static final long retry_delay = 15 * 1000;
+
+	/**
+	 * Longest wait before retrying a failed peer (in milliseconds)
+	 */
+	private static final long max_retry_delay = 30 * 60 * 1000;
+
+	/**
+	 * Failed connects in a row after which a peer is dropped
+	 */
+	private static final int max_failures = 5;
+
+	/**
+	 * Time a dropped peer's address is ignored if found again (in milliseconds)
+	 */
+	private static final long drop_time = 30 * 60 * 1000;
+
+	/**
+	 * Most candidates per torrent, and most dropped addresses remembered per torrent
+	 */
+	private static final int max_candidates = 500;
+
+	/**
+	 * Wait before reconnecting to a peer after a connection ends (in milliseconds)
+	 */
+	private static final long reconnect_delay = 60 * 1000;
+
+	/**
+	 * Longest the connector sleeps before checking for work again (in milliseconds)
+	 */
+	private static final long idle_wait = 1000;
+
+	/**
+	 * Starting score of a peer found on our LAN, ahead of peers which merely gave us data
+	 */
+	private static final int local_score = 16;
+
+	/**
+	 * Connects started, in every torrent
+	 */
+	private static final Counter connects_started = Metrics.counter("connect.started");
+
+	/**
+	 * Connects which failed or timed out, in every torrent
+	 */
+	private static final Counter connects_failed = Metrics.counter("connect.failed");
+
+	/**
+	 * Candidates dropped for failing or to make room, in every torrent
+	 */
+	private static final Counter candidates_dropped = Metrics.counter("connect.candidates_dropped");
+
+	/**
+	 * Most connects in progress at once
+	 */
+	private int max_half_open;
+
+	/**
+	 * Connects in progress
+	 */
+	private int half_open = 0;
+
+	/**
+	 * Connections allowed, shared with the listener, or null for no limit.
+	 * Each connected peer holds a permit until removed from its peer registry.
+	 */
+	private Semaphore connection_slots;
+
+	/**
+	 * Candidates which may be connected to now, best first
+	 */
+	private PriorityQueue<Candidate> ready = new PriorityQueue<Candidate>(64, new Comparator<Candidate>() {
+		@Override
+		public int compare(Candidate a, Candidate b) {
+			if(a.score != b.score) {
+				return (a.score > b.score) ? -1 : 1;
+			}
+			return Long.compare(a.sequence, b.sequence);
+		}
+	});
+
+	/**
+	 * Candidates backing off or recently disconnected, soonest due first
+	 */
+	private PriorityQueue<Candidate> waiting = new PriorityQueue<Candidate>(64, new Comparator<Candidate>() {
+		@Override
+		public int compare(Candidate a, Candidate b) {
+			return Long.compare(a.next_attempt, b.next_attempt);
+		}
+	});
+
+	/**
+	 * Number given to the next candidate, so equal scores are tried in the order added
+	 */
+	private long next_sequence = 0;
+
+	/**
+	 * Mutex for the queues, the torrents' candidates & half_open
+	 */
+	private ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Signalled when candidates are added or a connect finishes
+	 */
+	private Condition changed = lock.newCondition();
+
+	/**
+	 * Boolean to indicate if the connector should stop
+	 */
+	private volatile boolean done = false;
+
+	/**
+	 * Constructor
+	 * @param max_half_open Most connects in progress at once
+	 * @param connection_slots Connections allowed, or null for no limit
+	 */
+	public ConnectionManager(int max_half_open, Semaphore connection_slots) {
+		this.max_half_open = max_half_open;
+		this.connection_slots = connection_slots;
+	}
+
+	/**
+	 * Starts the connector thread.
+	 */
+	public void start() {
+		done = false;
+		Thread t = new Thread(this, "Connector");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Stops the connector thread; connects in progress finish.
+	 */
+	public void stop() {
+		done = true;
+		lock.lock();
+		try {
+			changed.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Starts making connections for a torrent.
+	 * @param tor The decoded torrent metadata
+	 * @param fi The info for the file being downloaded
+	 * @param peers The registry to which we add the torrent's connected peers
+	 * @param id Our peer ID
+	 * @return the torrent's handle, for adding candidates & unregistering
+	 */
+	public Torrent register(TorrentDecoder tor, FileInfo fi, PeerRegistry peers, String id) {
+		return new Torrent(tor, fi, peers, id);
+	}
+
+	/**
+	 * Stops making connections for a torrent, and forgets its candidates.
+	 * Connections already made are unaffected.
+	 * @param torrent The torrent's handle
+	 */
+	public void unregister(Torrent torrent) {
+		lock.lock();
+		try {
+			torrent.registered = false;
+			for(Candidate c : torrent.candidates.values()) {
+				ready.remove(c);
+				waiting.remove(c);
+			}
+			torrent.candidates.clear();
+			torrent.dropped.clear();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds peers to connect to. Peers already known at the same address are ignored,
+	 * so announces & peer exchange may return the same peers every time, as are peers
+	 * dropped within drop_time. Once the torrent has max_candidates, a peer is only added
+	 * in place of a worse idle candidate.
+	 * @param torrent The torrent's handle
+	 * @param peers The peers
+	 */
+	public void addCandidates(Torrent torrent, List<Peer> peers) {
+		lock.lock();
+		try {
+			if(!torrent.registered) {
+				return;
+			}
+			for(Peer p : peers) {
+				String address = p.getIP() + ":" + p.getPort();//as Candidate.getAddress()
+				Candidate known = torrent.candidates.get(address);
+				if(known != null && p.isLocal()) {
+					//Found on the LAN after being announced; connect to it as local from now on:
+					known.peer.setLocal(true);
+				}
+				if(p.getID().equals(torrent.my_id) || known != null) {
+					continue;
+				}
+				Long dropped = torrent.dropped.get(address);
+				if(dropped != null) {
+					if(System.currentTimeMillis() - dropped < drop_time) {
+						continue;
+					}
+					torrent.dropped.remove(address);
+				}
+
+				Candidate c = new Candidate(torrent, p, next_sequence++);
+				if(torrent.candidates.size() >= max_candidates) {
+					Candidate worst = worstIdle(torrent);
+					if(worst == null || !worse(worst, c)) {
+						continue;
+					}
+					forget(worst);
+				}
+				torrent.candidates.put(address, c);
+				c.queued = true;
+				ready.add(c);
+			}
+			changed.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Code for the connector thread: starts connects to the best ready candidates,
+	 * within the half-open & connection limits, until stopped.
+	 */
+	@Override
+	public void run() {
+		while(!done) {
+			Candidate c = null;
+			lock.lock();
+			try {
+				//Move candidates whose wait is over into the ready queue:
+				long now = System.currentTimeMillis();
+				while(!waiting.isEmpty() && waiting.peek().next_attempt <= now) {
+					ready.add(waiting.poll());
+				}
+
+				if(ready.isEmpty() || half_open >= max_half_open) {
+					long wait = idle_wait;
+					if(!waiting.isEmpty()) {
+						wait = Math.min(wait, waiting.peek().next_attempt - now);
+					}
+					try {
+						changed.await(Math.max(1, wait), TimeUnit.MILLISECONDS);
+					} catch (InterruptedException e) {}
+					continue;
+				}
+				if(connection_slots != null && !connection_slots.tryAcquire()) {//wait for a peer to leave
+					try {
+						changed.await(idle_wait, TimeUnit.MILLISECONDS);
+					} catch (InterruptedException e) {}
+					continue;
+				}
+
+				c = ready.poll();
+				c.queued = false;
+				half_open++;
+			}
+			finally {
+				lock.unlock();
+			}
+
+			//Don't connect to a peer which connected to us:
+			if(c.torrent.peers.contains(c.peer.getIP(), c.peer.getPort(), c.peer.getID())) {
+				connectFinished(c, false);
+				retryLater(c, reconnect_delay, 0);
+				continue;
+			}
+			startConnect(c);
+		}
+	}
+
+	/**
+	 * Starts connecting to a candidate on a new peer thread, which then runs the peer.
+	 * @param c The candidate
+	 */
+	private void startConnect(final Candidate c) {
+		connects_started.increment();
+		final PeerSocket peer;
+		try {
+			peer = new PeerSocket(c.peer, c.torrent.torrent, c.torrent.file, c.torrent.my_id);
+		} catch (Exception e) {
+			Log.logError("Unable to connect peer " + c.peer.getID());
+			connectFinished(c, false);
+			drop(c);
+			return;
+		}
+
+		PeerThreads.newThread(new Runnable() {
+			@Override
+			public void run() {
+				boolean connected = peer.connect(connect_timeout);
+				connectFinished(c, connected);
+				if(!connected) {
+					connects_failed.increment();
+					c.failures++;
+					if(c.failures >= max_failures) {
+						drop(c);
+						return;
+					}
+					retryLater(c, Math.min(max_retry_delay, retry_delay << Math.min(c.failures - 1, 16)), -1);
+					return;
+				}
+
+				c.failures = 0;
+				if(!addPeer(c.torrent, peer)) {
+					return;
+				}
+				peer.run();
+
+				//Forget addresses which led back to ourselves, e.g. from peer exchange:
+				if(peer.isOurselves()) {
+					return;
+				}
+				//Prefer peers which gave us data when reconnecting:
+				retryLater(c, reconnect_delay, (peer.getDownloaded() > 0) ? 1 : 0);
+			}
+		}, "Peer " + c.peer.getID()).start();
+	}
+
+	/**
+	 * Adds a newly connected peer to its torrent's registry, unless the torrent was
+	 * unregistered while connecting: the engine no longer sweeps its registry then, so the
+	 * peer is disconnected instead and its connection permit returned.
+	 * @param torrent The peer's torrent
+	 * @param peer The connected peer
+	 * @return whether the peer was added
+	 */
+	private boolean addPeer(Torrent torrent, PeerSocket peer) {
+		lock.lock();
+		try {
+			if(torrent.registered) {
+				torrent.peers.add(peer);
+				return true;
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+		peer.disconnect();
+		if(connection_slots != null) {
+			connection_slots.release();
+		}
+		return false;
+	}
+
+	/**
+	 * Ends a connect: frees its half-open place, and its connection permit unless it connected.
+	 * @param c The candidate
+	 * @param connected Whether the peer is now connected, holding the permit
+	 */
+	private void connectFinished(Candidate c, boolean connected) {
+		if(!connected && connection_slots != null) {
+			connection_slots.release();
+		}
+		lock.lock();
+		try {
+			half_open--;
+			changed.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Puts a candidate back in the queue, to be tried again after a delay.
+	 * @param c The candidate
+	 * @param delay Wait before trying it (in milliseconds)
+	 * @param score_change Amount to add to its score
+	 */
+	private void retryLater(Candidate c, long delay, int score_change) {
+		lock.lock();
+		try {
+			if(!c.torrent.registered) {
+				return;
+			}
+			if(c.torrent.candidates.get(c.getAddress()) != c) {//dropped to make room while connecting
+				return;
+			}
+			c.score += score_change;
+			c.next_attempt = System.currentTimeMillis() + delay;
+			c.queued = true;
+			waiting.add(c);
+			changed.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drops a candidate which kept failing or can't be connected, ignoring its address for drop_time.
+	 * @param c The candidate
+	 */
+	private void drop(Candidate c) {
+		lock.lock();
+		try {
+			if(!c.torrent.registered || c.torrent.candidates.get(c.getAddress()) != c) {
+				return;
+			}
+			Log.debug("Dropping peer " + c.getAddress() + " (" + c.failures + " failed connects).");
+			forget(c);
+			c.torrent.dropped.put(c.getAddress(), System.currentTimeMillis());
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes a candidate from its torrent & the queues.
+	 * Called holding the lock.
+	 * @param c The candidate
+	 */
+	private void forget(Candidate c) {
+		c.torrent.candidates.remove(c.getAddress());
+		if(c.queued) {
+			ready.remove(c);
+			waiting.remove(c);
+			c.queued = false;
+		}
+		candidates_dropped.increment();
+	}
+
+	/**
+	 * Finds the worst of a torrent's candidates which is queued, rather than connecting or connected.
+	 * Called holding the lock.
+	 * @param torrent The torrent
+	 * @return the candidate, or null if none is queued
+	 */
+	private static Candidate worstIdle(Torrent torrent) {
+		Candidate worst = null;
+		for(Candidate c : torrent.candidates.values()) {
+			if(c.queued && (worst == null || worse(c, worst))) {
+				worst = c;
+			}
+		}
+		return worst;
+	}
+
+	/**
+	 * Compares candidates for eviction: more failures is worse, then a lower score.
+	 * @param a A candidate
+	 * @param b Another candidate
+	 * @return true if a is worse than b
+	 */
+	private static boolean worse(Candidate a, Candidate b) {
+		if(a.failures != b.failures) {
+			return a.failures > b.failures;
+		}
+		return a.score < b.score;
+	}
+
+	/**
+	 * A torrent making outgoing connections.
+	 */
+	public static class Torrent {
+		/**
+		 * The decoded torrent metadata
+		 */
+		final TorrentDecoder torrent;
+
+		/**
+		 * The info for the file being downloaded
+		 */
+		final FileInfo file;
+
+		/**
+		 * The registry to which we add the torrent's connected peers
+		 */
+		final PeerRegistry peers;
+
+		/**
+		 * Our peer ID
+		 */
+		final String my_id;
+
+		/**
+		 * Every known peer, by address; guarded by the manager's lock
+		 */
+		final HashMap<String,Candidate> candidates = new HashMap<String,Candidate>();
+
+		/**
+		 * Addresses of dropped peers, to the time they were dropped (in milliseconds),
+		 * oldest first & at most max_candidates; guarded by the manager's lock
+		 */
+		final LinkedHashMap<String,Long> dropped = new LinkedHashMap<String,Long>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,Long> eldest) {
+				return size() > max_candidates;
+			}
+		};
+
+		/**
+		 * Whether the torrent is still registered; guarded by the manager's lock
+		 */
+		boolean registered = true;
+
+		/**
+		 * Constructor
+		 * @param torrent The decoded torrent metadata
+		 * @param file The info for the file being downloaded
+		 * @param peers The registry to which we add the torrent's connected peers
+		 * @param my_id Our peer ID
+		 */
+		Torrent(TorrentDecoder torrent, FileInfo file, PeerRegistry peers, String my_id) {
+			this.torrent = torrent;
+			this.file = file;
+			this.peers = peers;
+			this.my_id = my_id;
+		}
+	}
+
+	/**
+	 * A peer we may connect to.
+	 */
+	private static class Candidate {
+		/**
+		 * The torrent the peer is in
+		 */
+		final Torrent torrent;
+
+		/**
+		 * The peer
+		 */
+		final Peer peer;
+
+		/**
+		 * Order added, to break ties in score
+		 */
+		final long sequence;
+
+		/**
+		 * Priority; higher is tried first
+		 */
+		int score = 0;
+
+		/**
+		 * Failed connects since the last success
+		 */
+		int failures = 0;
+
+		/**
+		 * Time before which the peer isn't tried (in milliseconds)
+		 */
+		long next_attempt = 0;
+
+		/**
+		 * Whether the candidate is in the ready or waiting queue, rather than connecting or connected
+		 */
+		boolean queued = false;
+
+		/**
+		 * Constructor
+		 * @param torrent The torrent the peer is in
+		 * @param peer The peer
+		 * @param sequence Order added
+		 */
+		Candidate(Torrent torrent, Peer peer, long sequence) {
+			this.torrent = torrent;
+			this.peer = peer;
+			this.sequence = sequence;
+			if(peer.isLocal()) {
+				score = local_score;
+			}
+		}
+
+		/**
+		 * @return the peer's address, as the torrent's candidates are keyed
+		 */
+		String getAddress() {
+			return peer.getIP() + ":" + peer.getPort();
+		}
+	}
+}
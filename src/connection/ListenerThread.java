@@ -3,18 +3,28 @@
  */
 package connection;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Vector;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 
-import main.RUBTClient;
+import main.Log;
+import main.Metrics;
 
+import structures.Counter;
 import structures.FileInfo;
+import structures.InfoHash;
+import structures.Peer;
 import bencoding.TorrentDecoder;
 
 /**
- * A listener for incoming connections.
+ * A listener for incoming connections, shared by every torrent registered with it.
+ * Each connection gets a thread which reads the peer's whole 68-byte handshake,
+ * looks its info hash up in a table of the torrents, and becomes a PeerSocket of that torrent.
+ * Connections for torrents we don't have are closed before any peer state is created.
  * @author Ari & Jay
  */
 public class ListenerThread implements Runnable {
@@ -24,25 +34,61 @@ public class ListenerThread implements Runnable {
 	ServerSocket listen;
 	
 	/**
-	 * The list of connected peers:
+	 * Length of a handshake: length byte, protocol, reserved bytes, info hash & peer ID
 	 */
-	Vector<PeerSocket> peerList;
+	private static final int handshake_length = 68;
 	
 	/**
-	 * The meta-data for the torrent.
+	 * The handshake's length byte & protocol string
 	 */
-	private TorrentDecoder torrent;
+	private static final byte[] protocol = "\u0013BitTorrent protocol".getBytes(StandardCharsets.ISO_8859_1);
 	
 	/**
-	 * Data for the file we want
+	 * Index of the info hash in the handshake
 	 */
-	private FileInfo file;
+	private static final int hash_offset = 28;
+	
+	/**
+	 * Index of the peer ID in the handshake
+	 */
+	private static final int id_offset = 48;
+	
+	/**
+	 * Index of the reserved byte with the extension protocol's bit
+	 */
+	private static final int extensions_offset = 25;
+	
+	/**
+	 * The extension protocol's bit in its reserved byte (BEP 10)
+	 */
+	private static final int extensions_bit = 0x10;
+	
+	/**
+	 * Longest wait for an incoming connection's handshake (in milliseconds)
+	 */
+	private static final int handshake_timeout = 30 * 1000;
+	
+	/**
+	 * Incoming connections closed because we don't have the torrent they asked for
+	 */
+	private static final Counter unknown_torrents = Metrics.counter("listener.unknown_torrent");
+	
+	/**
+	 * The torrents served, by info hash; read by every incoming connection's thread without locking
+	 */
+	private ConcurrentHashMap<InfoHash,Registration> torrents = new ConcurrentHashMap<InfoHash,Registration>();
 	
 	/**
 	 * Our peer ID
 	 */
 	private String my_id;
 	
+	/**
+	 * Connections allowed, shared with outgoing connections, or null for no limit.
+	 * Each connected peer holds a permit until removed from its peer registry.
+	 */
+	private Semaphore connection_slots;
+	
 	/**
 	 * Boolean to indicate if we should continue listening
 	 */
@@ -56,22 +102,41 @@ public class ListenerThread implements Runnable {
 	/**
 	 * Constructor
 	 * @param port The port to listen on
-	 * @param peerList The list to which we add connected peers
-	 * @param tor The decoded torrent metadata
-	 * @param fi The info for the file being downloaded
 	 * @param id Our peer ID
+	 * @param connection_slots Connections allowed, or null for no limit
 	 * @throws IOException If the listener fails to bind to the port.
 	 */
-	public ListenerThread(int port, Vector<PeerSocket> peerList, TorrentDecoder tor, FileInfo fi, String id) throws IOException {
+	public ListenerThread(int port, String id, Semaphore connection_slots) throws IOException {
 		this.port = port;
 		listen = new ServerSocket(port);
-		this.peerList = peerList;
-		torrent = tor;
-		file = fi;
 		my_id = id;
+		this.connection_slots = connection_slots;
 		done = false;
 	}
-
+	
+	/**
+	 * Starts accepting connections for a torrent.
+	 * @param tor The decoded torrent metadata
+	 * @param fi The info for the file being downloaded
+	 * @param peers The registry to which we add the torrent's connected peers
+	 */
+	public void register(TorrentDecoder tor, FileInfo fi, PeerRegistry peers) {
+		torrents.put(tor.getInfoHash(), new Registration(tor, fi, peers));
+	}
+	
+	/**
+	 * Stops accepting connections for a torrent; its connected peers are unaffected.
+	 * @param tor The decoded torrent metadata
+	 */
+	public void unregister(TorrentDecoder tor) {
+		Registration r = torrents.remove(tor.getInfoHash());
+		if(r != null) {
+			synchronized(r) {
+				r.registered = false;
+			}
+		}
+	}
+	
 	/**
 	 * Starts listening, continues until done = true after calling stop()
 	 */
@@ -84,18 +149,101 @@ public class ListenerThread implements Runnable {
 			} catch (IOException e) {}
 			
 			if(socket != null) {
-				try {
-					PeerSocket p = new PeerSocket(socket,torrent,file, my_id);
-					peerList.add(p);
-					new Thread(p).start();
-					RUBTClient.log("Incoming connection on listener.");
-				} catch (Exception e) {
-					RUBTClient.logError("Warning: A peer made a failed attempt to connect to us.");
+				if(connection_slots != null && !connection_slots.tryAcquire()) {
+					Log.warnLimited("connection limit", "Refused an incoming connection; too many connections.");
+					try {
+						socket.close();
+					} catch (IOException e) {}
+					continue;
 				}
+				
+				final Socket accepted = socket;
+				PeerThreads.newThread(new Runnable() {
+					@Override
+					public void run() {
+						route(accepted);
+					}
+				}, "Peer " + socket.getRemoteSocketAddress()).start();
 			}
 		}
 	}
 	
+	/**
+	 * Code for an incoming connection's thread: reads the peer's handshake,
+	 * and runs a PeerSocket for the torrent with its info hash, if we have it.
+	 * @param socket The accepted socket
+	 */
+	private void route(Socket socket) {
+		byte[] handshake = new byte[handshake_length];
+		try {
+			socket.setSoTimeout(handshake_timeout);
+			new DataInputStream(socket.getInputStream()).readFully(handshake);
+		} catch (IOException e) {
+			reject(socket, "A peer made a failed attempt to connect to us.");
+			return;
+		}
+		
+		for(int x = 0; x < protocol.length; x++) {
+			if(handshake[x] != protocol[x]) {
+				reject(socket, "A peer made a failed attempt to connect to us.");
+				return;
+			}
+		}
+		
+		Registration r = torrents.get(new InfoHash(handshake, hash_offset));
+		if(r == null) {
+			unknown_torrents.increment();
+			reject(socket, "A peer asked for a torrent we don't have.");
+			return;
+		}
+		
+		String id = new String(handshake, id_offset, 20, StandardCharsets.ISO_8859_1);
+		if(id.equals(my_id)) {//ourselves, e.g. at an address from peer exchange
+			reject(socket, "We connected to ourselves.");
+			return;
+		}
+		
+		TCPSocket tcp;
+		try {
+			tcp = new TCPSocket(socket);
+		} catch (IOException e) {
+			reject(socket, "A peer made a failed attempt to connect to us.");
+			return;
+		}
+		tcp.countReceived(handshake_length);
+		
+		boolean extensions = (handshake[extensions_offset] & extensions_bit) != 0;
+		PeerSocket p = new PeerSocket(tcp, new Peer(id, socket.getInetAddress().getHostAddress(), socket.getPort()), r.torrent, r.file, my_id, extensions);
+		//The engine stops sweeping its registry once unregistered, so don't add to it after:
+		boolean added = false;
+		synchronized(r) {
+			if(r.registered) {
+				added = r.peers.add(p);
+			}
+		}
+		if(!added) {
+			reject(socket, "A peer connected to a torrent being stopped.");
+			return;
+		}
+		Log.log("Incoming connection on listener.");
+		p.run();
+	}
+	
+	/**
+	 * Closes an incoming connection which never became a peer, returning its connection permit.
+	 * @param socket The accepted socket
+	 * @param reason Warning to log
+	 */
+	private void reject(Socket socket, String reason) {
+		try {
+			socket.close();
+		} catch (IOException e) {}
+		if(connection_slots != null) {
+			connection_slots.release();
+		}
+		Log.warnLimited("incoming failed", reason);
+	}
+	
 	/**
 	 * Start a thread for this listener.
 	 */
@@ -107,8 +255,9 @@ public class ListenerThread implements Runnable {
 		try {
 			listen = new ServerSocket(port);
 		} catch (IOException e) {
-			RUBTClient.logError("Listener broke.");
+			Log.logError("Listener broke.");
 		}
+		done = false;
 		new Thread(this).start();
 	}
 	
@@ -121,4 +270,41 @@ public class ListenerThread implements Runnable {
 			listen.close();
 		} catch (IOException e) {}
 	}
+	
+	/**
+	 * A torrent accepting connections.
+	 */
+	private static class Registration {
+		/**
+		 * The decoded torrent metadata
+		 */
+		final TorrentDecoder torrent;
+		
+		/**
+		 * The info for the file being downloaded
+		 */
+		final FileInfo file;
+		
+		/**
+		 * The registry to which we add the torrent's connected peers
+		 */
+		final PeerRegistry peers;
+		
+		/**
+		 * Whether the torrent is still registered; guarded by the Registration's monitor
+		 */
+		boolean registered = true;
+		
+		/**
+		 * Constructor
+		 * @param torrent The decoded torrent metadata
+		 * @param file The info for the file being downloaded
+		 * @param peers The registry to which we add the torrent's connected peers
+		 */
+		Registration(TorrentDecoder torrent, FileInfo file, PeerRegistry peers) {
+			this.torrent = torrent;
+			this.file = file;
+			this.peers = peers;
+		}
+	}
 }
@@ -0,0 +1,411 @@
+package connection;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import main.Log;
+import main.Metrics;
+
+import structures.Counter;
+import structures.InfoHash;
+import structures.Peer;
+
+/**
+ * Local peer discovery (BEP 14): finds peers of our torrents on the same LAN, without
+ * a tracker, by multicasting an announcement of each torrent's info hash & our listening
+ * port, and listening for other clients' announcements on the same group.
+ * A torrent is announced as soon as it registers and then every announce_interval, so peers
+ * on the LAN find each other within moments of starting, rather than after the next tracker
+ * announce. Peers found are queued with the connection manager, marked as local.
+ * Announcements are sent with a TTL of 1, so they never leave the LAN, and carry a random
+ * cookie, so we can ignore our own when the group loops them back.
+ * Threadsafe
+ * @author Ari & Jay
+ */
+public class LocalPeerDiscovery {
+	/**
+	 * The BEP 14 multicast group for IPv4
+	 */
+	public static final String default_group = "239.192.152.143";
+
+	/**
+	 * The BEP 14 multicast port
+	 */
+	public static final int default_port = 6771;
+
+	/**
+	 * Time between announcements of a torrent (in milliseconds)
+	 */
+	public static final long announce_interval = 5 * 60 * 1000;
+
+	/**
+	 * Time between checks for torrents due to be announced; also the receive timeout (in milliseconds)
+	 */
+	private static final int tick = 1000;
+
+	/**
+	 * Most info hashes in one announcement, keeping it within one unfragmented datagram
+	 */
+	private static final int max_hashes = 20;
+
+	/**
+	 * Size of the receive buffer; larger announcements are truncated and ignored
+	 */
+	private static final int max_packet = 1500;
+
+	/**
+	 * Announcements sent, by every instance
+	 */
+	private static final Counter announces_sent = Metrics.counter("lsd.announces_sent");
+
+	/**
+	 * Peers found in other clients' announcements, for torrents we have, by every instance
+	 */
+	private static final Counter peers_found = Metrics.counter("lsd.peers_found");
+
+	/**
+	 * The multicast group & port
+	 */
+	private InetSocketAddress group;
+
+	/**
+	 * The interface the group is joined on, or null for the system's default
+	 */
+	private NetworkInterface network_interface;
+
+	/**
+	 * Socket joined to the group, used both to send & to receive
+	 */
+	private MulticastSocket socket;
+
+	/**
+	 * Queues the peers found, for connecting
+	 */
+	private ConnectionManager connections;
+
+	/**
+	 * Random token sent in our announcements, to recognize them when they loop back
+	 */
+	private String cookie;
+
+	/**
+	 * The torrents announced, by info hash
+	 */
+	private ConcurrentHashMap<InfoHash,Registration> torrents = new ConcurrentHashMap<InfoHash,Registration>();
+
+	/**
+	 * Whether stop() has been called
+	 */
+	private volatile boolean done = false;
+
+	/**
+	 * Creates a socket joined to a multicast group; call start() to begin.
+	 * @param connections Queues the peers found, for connecting
+	 * @param group The multicast group & port; BEP 14's is default_group:default_port
+	 * @param network_interface The interface to join the group on, or null for the system's default
+	 * @throws IOException if the socket can't be opened or the group joined
+	 */
+	public LocalPeerDiscovery(ConnectionManager connections, InetSocketAddress group, NetworkInterface network_interface) throws IOException {
+		this.connections = connections;
+		this.group = group;
+		this.network_interface = network_interface;
+
+		//Other clients on this host listen on the same port:
+		socket = new MulticastSocket(null);
+		socket.setReuseAddress(true);
+		socket.bind(new InetSocketAddress(group.getPort()));
+		socket.setTimeToLive(1);
+		socket.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+		if(network_interface != null) {
+			socket.setNetworkInterface(network_interface);
+		}
+		socket.joinGroup(group, network_interface);
+		socket.setSoTimeout(tick);
+
+		byte[] random = new byte[8];
+		new SecureRandom().nextBytes(random);
+		cookie = hex(random);
+	}
+
+	/**
+	 * Creates a socket joined to BEP 14's multicast group; call start() to begin.
+	 * @param connections Queues the peers found, for connecting
+	 * @param network_interface The interface to join the group on, or null for the system's default
+	 * @throws IOException if the socket can't be opened or the group joined
+	 */
+	public LocalPeerDiscovery(ConnectionManager connections, NetworkInterface network_interface) throws IOException {
+		this(connections, new InetSocketAddress(default_group, default_port), network_interface);
+	}
+
+	/**
+	 * Starts the threads which listen for announcements and re-announce our torrents.
+	 */
+	public void start() {
+		Thread receiver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				receive();
+			}
+		}, "LSD receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+
+		Thread announcer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				announceDue();
+			}
+		}, "LSD announcer");
+		announcer.setDaemon(true);
+		announcer.start();
+	}
+
+	/**
+	 * Stops announcing & listening, and leaves the group.
+	 */
+	public void stop() {
+		done = true;
+		try {
+			socket.leaveGroup(group, network_interface);
+		} catch (IOException e) {}
+		socket.close();
+	}
+
+	/**
+	 * Starts announcing a torrent, right away and then every announce_interval, and queueing
+	 * the peers which announce it.
+	 * @param info_hash The torrent's info hash
+	 * @param port The port we accept the torrent's connections on
+	 * @param handle The torrent's handle in the connection manager
+	 */
+	public void register(InfoHash info_hash, int port, ConnectionManager.Torrent handle) {
+		Registration r = new Registration(port, handle);
+		r.next_announce = System.currentTimeMillis() + announce_interval;
+		torrents.put(info_hash, r);
+
+		List<InfoHash> hashes = new ArrayList<InfoHash>();
+		hashes.add(info_hash);
+		send(port, hashes);
+	}
+
+	/**
+	 * Stops announcing a torrent, and ignores its peers' announcements.
+	 * @param info_hash The torrent's info hash
+	 */
+	public void unregister(InfoHash info_hash) {
+		torrents.remove(info_hash);
+	}
+
+	/**
+	 * Code for the thread re-announcing each torrent when due, batching torrents
+	 * on the same port into one announcement.
+	 */
+	private void announceDue() {
+		while(!done) {
+			try {
+				Thread.sleep(tick);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			long now = System.currentTimeMillis();
+			ArrayList<InfoHash> due = new ArrayList<InfoHash>();
+			int port = 0;
+			for(Map.Entry<InfoHash,Registration> t : torrents.entrySet()) {
+				Registration r = t.getValue();
+				if(now < r.next_announce || (port != 0 && r.port != port)) {
+					continue;
+				}
+				port = r.port;
+				due.add(t.getKey());
+				r.next_announce = now + announce_interval;
+				if(due.size() >= max_hashes) {
+					break;
+				}
+			}
+			if(!due.isEmpty()) {
+				send(port, due);
+			}
+		}
+	}
+
+	/**
+	 * Multicasts an announcement.
+	 * @param port The port we accept the torrents' connections on
+	 * @param hashes The torrents' info hashes
+	 */
+	private void send(int port, List<InfoHash> hashes) {
+		StringBuilder message = new StringBuilder();
+		message.append("BT-SEARCH * HTTP/1.1\r\n");
+		message.append("Host: " + group.getAddress().getHostAddress() + ":" + group.getPort() + "\r\n");
+		message.append("Port: " + port + "\r\n");
+		for(InfoHash h : hashes) {
+			message.append("Infohash: " + hex(h.toBytes()) + "\r\n");
+		}
+		message.append("cookie: " + cookie + "\r\n");
+		message.append("\r\n\r\n");
+
+		byte[] data = message.toString().getBytes(StandardCharsets.ISO_8859_1);
+		try {
+			socket.send(new DatagramPacket(data, data.length, group));
+			announces_sent.increment();
+		} catch (IOException e) {
+			if(!done) {
+				Log.warnLimited("lsd send", "Unable to send local peer discovery announcement: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Code for the thread receiving announcements.
+	 */
+	private void receive() {
+		byte[] buffer = new byte[max_packet];
+		while(!done) {
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			try {
+				socket.receive(packet);
+			} catch (SocketTimeoutException e) {
+				continue;
+			} catch (IOException e) {
+				if(socket.isClosed()) {
+					return;
+				}
+				continue;
+			}
+			handle(new String(packet.getData(), packet.getOffset(), packet.getLength(), StandardCharsets.ISO_8859_1), packet.getAddress().getHostAddress());
+		}
+	}
+
+	/**
+	 * Reads an announcement, queueing its sender for each of its torrents we have.
+	 * Malformed announcements & our own are ignored.
+	 * @param message The announcement
+	 * @param ip The sender's address
+	 */
+	private void handle(String message, String ip) {
+		String[] lines = message.split("\r\n");
+		if(lines.length == 0 || !lines[0].startsWith("BT-SEARCH * HTTP/1.")) {
+			return;
+		}
+
+		int port = 0;
+		ArrayList<String> hashes = new ArrayList<String>();
+		for(int x = 1; x < lines.length; x++) {
+			int colon = lines[x].indexOf(':');
+			if(colon <= 0) {
+				continue;
+			}
+			String name = lines[x].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+			String value = lines[x].substring(colon + 1).trim();
+			if(name.equals("cookie") && value.equals(cookie)) {
+				return;
+			}
+			else if(name.equals("port")) {
+				try {
+					port = Integer.parseInt(value);
+				} catch (NumberFormatException e) {
+					return;
+				}
+			}
+			else if(name.equals("infohash") && hashes.size() < max_hashes) {
+				hashes.add(value);
+			}
+		}
+		if(port <= 0 || port > 65535) {
+			return;
+		}
+
+		for(String hash : hashes) {
+			InfoHash info_hash = parseHex(hash);
+			Registration r = (info_hash == null) ? null : torrents.get(info_hash);
+			if(r == null) {
+				continue;
+			}
+
+			Peer p = new Peer("", ip, port);
+			p.setLocal(true);
+			List<Peer> found = new ArrayList<Peer>();
+			found.add(p);
+			connections.addCandidates(r.handle, found);
+			peers_found.increment();
+		}
+	}
+
+	/**
+	 * Encodes bytes as lowercase hex, the form BEP 14 gives info hashes in.
+	 * @param bytes The bytes
+	 * @return two hex digits per byte
+	 */
+	private static String hex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for(byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+			hex.append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Decodes an info hash from hex, in either case.
+	 * @param hex 40 hex digits
+	 * @return the InfoHash, or null if invalid
+	 */
+	private static InfoHash parseHex(String hex) {
+		if(hex.length() != 40) {
+			return null;
+		}
+		byte[] bytes = new byte[20];
+		for(int x = 0; x < 20; x++) {
+			int high = Character.digit(hex.charAt(x * 2), 16);
+			int low = Character.digit(hex.charAt(x * 2 + 1), 16);
+			if(high < 0 || low < 0) {
+				return null;
+			}
+			bytes[x] = (byte)((high << 4) | low);
+		}
+		return new InfoHash(bytes, 0);
+	}
+
+	/**
+	 * A torrent being announced.
+	 */
+	private static class Registration {
+		/**
+		 * The port we accept the torrent's connections on
+		 */
+		final int port;
+
+		/**
+		 * The torrent's handle in the connection manager
+		 */
+		final ConnectionManager.Torrent handle;
+
+		/**
+		 * Time the torrent is next announced (in milliseconds)
+		 */
+		volatile long next_announce = 0;
+
+		/**
+		 * Constructor
+		 * @param port The port we accept the torrent's connections on
+		 * @param handle The torrent's handle in the connection manager
+		 */
+		Registration(int port, ConnectionManager.Torrent handle) {
+			this.port = port;
+			this.handle = handle;
+		}
+	}
+}
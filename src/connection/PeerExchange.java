@@ -0,0 +1,305 @@
+package connection;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import main.Log;
+import main.Metrics;
+
+import structures.Counter;
+import structures.Peer;
+import bencoding.BencodeDecoder;
+import bencoding.BencodeEncoder;
+
+/**
+ * Peer exchange (ut_pex, BEP 11) with one peer, over the extension protocol (BEP 10).
+ * Both sides name the extensions they support in an extension handshake; then, at most
+ * once every pex_interval, we send the peer the addresses of the torrent's other peers
+ * which connected or disconnected since our last message to it, in compact form.
+ * Peers the peer sends us are queued until the peer manager hands them to the connection manager.
+ * The PeerSocket does all the messaging; this holds the state & encodes the messages.
+ * @author Ari & Jay
+ */
+class PeerExchange {
+	/**
+	 * Extended message ID of the extension handshake
+	 */
+	static final int handshake_id = 0;
+
+	/**
+	 * Extended message ID the peer uses for ut_pex messages to us
+	 */
+	static final int local_pex_id = 1;
+
+	/**
+	 * Shortest time between ut_pex messages to a peer (in milliseconds)
+	 */
+	static final long pex_interval = 60 * 1000;
+
+	/**
+	 * Most peers added, or dropped, in one message
+	 */
+	private static final int max_peers = 50;
+
+	/**
+	 * Most received peers queued for the peer manager; the rest are discarded
+	 */
+	private static final int max_queued = 200;
+
+	/**
+	 * Size of a compact IPv4 address & port
+	 */
+	private static final int compact_length = 6;
+
+	/**
+	 * Client name & version sent in our extension handshake
+	 */
+	private static final String client_version = "RUBT 1.0";
+
+	/**
+	 * Peers learned from ut_pex messages, in every torrent
+	 */
+	private static final Counter peers_received = Metrics.counter("pex.peers_received");
+
+	/**
+	 * ut_pex messages sent, in every torrent
+	 */
+	private static final Counter messages_sent = Metrics.counter("pex.messages_sent");
+
+	/**
+	 * Extended message ID the peer wants for ut_pex messages, or 0 if it doesn't support them
+	 */
+	private volatile int remote_pex_id = 0;
+
+	/**
+	 * Port the peer listens on, from its extension handshake, or 0 if it didn't say
+	 */
+	private volatile int listen_port = 0;
+
+	/**
+	 * Addresses ("ip:port") the peer has from us, as added & not since dropped
+	 */
+	private HashSet<String> sent = new HashSet<String>();
+
+	/**
+	 * Time before which we don't send the peer another ut_pex message (in milliseconds)
+	 */
+	private long next_send = 0;
+
+	/**
+	 * Peers received & not yet taken by the peer manager; guarded by itself
+	 */
+	private ArrayList<Peer> received = new ArrayList<Peer>();
+
+	/**
+	 * Encodes our extension handshake.
+	 * @param port Port we listen on, or 0 if unknown
+	 * @return the bencoded handshake
+	 */
+	static byte[] handshake(int port) {
+		Map<String,Object> extensions = new HashMap<String,Object>();
+		extensions.put("ut_pex", local_pex_id);
+
+		Map<String,Object> handshake = new HashMap<String,Object>();
+		handshake.put("m", extensions);
+		handshake.put("v", client_version);
+		if(port > 0) {
+			handshake.put("p", port);
+		}
+		return BencodeEncoder.encode(handshake);
+	}
+
+	/**
+	 * Reads the peer's extension handshake.
+	 * A malformed handshake is ignored, leaving the extensions disabled, as BEP 10 allows.
+	 * @param payload The bencoded handshake
+	 * @param peer_id The peer's ID, for logging
+	 */
+	void receiveHandshake(byte[] payload, String peer_id) {
+		try {
+			Map<String,Object> handshake = dictionary(BencodeDecoder.decode(payload));
+			Object extensions = handshake.get("m");
+			if(extensions instanceof Map) {
+				Object id = dictionary(extensions).get("ut_pex");
+				if(id instanceof Long && (Long)id >= 0 && (Long)id <= 255) {
+					remote_pex_id = ((Long)id).intValue();
+				}
+			}
+			Object port = handshake.get("p");
+			if(port instanceof Long && (Long)port > 0 && (Long)port <= 65535) {
+				listen_port = ((Long)port).intValue();
+			}
+		} catch (IOException e) {
+			Log.warnLimited("bad extension handshake", "Peer " + peer_id + " sent an invalid extension handshake; ignoring it.");
+		}
+	}
+
+	/**
+	 * Checks whether the peer accepts ut_pex messages.
+	 * @return boolean
+	 */
+	boolean supported() {
+		return remote_pex_id > 0;
+	}
+
+	/**
+	 * @return the extended message ID the peer wants for ut_pex messages
+	 */
+	int getRemoteID() {
+		return remote_pex_id;
+	}
+
+	/**
+	 * @return the port the peer listens on, or 0 if it didn't say
+	 */
+	int getListenPort() {
+		return listen_port;
+	}
+
+	/**
+	 * Encodes the next ut_pex message, if one is due and anything changed.
+	 * Counts as sent, so the caller must send it.
+	 * @param connected Addresses ("ip:port") of the torrent's connected peers
+	 * @param own_address The peer's own address, which isn't sent to it, or null
+	 * @param now The current time (in milliseconds)
+	 * @return the bencoded message, or null if there is nothing to send
+	 */
+	byte[] nextMessage(Set<String> connected, String own_address, long now) {
+		if(!supported() || now < next_send) {
+			return null;
+		}
+
+		ArrayList<String> added = new ArrayList<String>();
+		for(String address : connected) {
+			if(added.size() >= max_peers) {
+				break;
+			}
+			if(!sent.contains(address) && !address.equals(own_address)) {
+				added.add(address);
+			}
+		}
+		ArrayList<String> dropped = new ArrayList<String>();
+		for(String address : sent) {
+			if(dropped.size() >= max_peers) {
+				break;
+			}
+			if(!connected.contains(address)) {
+				dropped.add(address);
+			}
+		}
+		if(added.isEmpty() && dropped.isEmpty()) {
+			return null;
+		}
+
+		//Peers left out for being over max_peers go in a later message:
+		sent.addAll(added);
+		sent.removeAll(dropped);
+		next_send = now + pex_interval;
+		messages_sent.increment();
+
+		Map<String,Object> message = new HashMap<String,Object>();
+		message.put("added", compact(added));
+		message.put("added.f", new byte[added.size()]);
+		message.put("dropped", compact(dropped));
+		return BencodeEncoder.encode(message);
+	}
+
+	/**
+	 * Reads a ut_pex message, queueing the peers it adds.
+	 * Dropped peers are ignored; the connection manager finds out by failing to connect.
+	 * @param payload The bencoded message
+	 * @param peer_id The peer's ID, for logging
+	 */
+	void receive(byte[] payload, String peer_id) {
+		byte[] added;
+		try {
+			Object value = dictionary(BencodeDecoder.decode(payload)).get("added");
+			if(!(value instanceof byte[])) {
+				return;
+			}
+			added = (byte[])value;
+		} catch (IOException e) {
+			Log.warnLimited("bad pex", "Peer " + peer_id + " sent an invalid ut_pex message; ignoring it.");
+			return;
+		}
+
+		synchronized(received) {
+			for(int x = 0; x + compact_length <= added.length && received.size() < max_queued; x += compact_length) {
+				int port = ((added[x + 4] & 0xFF) << 8) | (added[x + 5] & 0xFF);
+				if(port == 0) {
+					continue;
+				}
+				String ip = (added[x] & 0xFF) + "." + (added[x + 1] & 0xFF) + "." + (added[x + 2] & 0xFF) + "." + (added[x + 3] & 0xFF);
+				received.add(new Peer("", ip, port));
+				peers_received.increment();
+			}
+		}
+	}
+
+	/**
+	 * Moves the queued peers to a list.
+	 * @param peers The list to add them to
+	 */
+	void takeReceived(List<Peer> peers) {
+		synchronized(received) {
+			peers.addAll(received);
+			received.clear();
+		}
+	}
+
+	/**
+	 * Encodes addresses in compact form: 4 bytes of IPv4 address & 2 of port each.
+	 * Addresses which aren't numeric IPv4 are left out.
+	 * @param addresses Addresses as "ip:port"
+	 * @return the compact addresses
+	 */
+	static byte[] compact(List<String> addresses) {
+		byte[] bytes = new byte[addresses.size() * compact_length];
+		int length = 0;
+		for(String address : addresses) {
+			int colon = address.lastIndexOf(':');
+			String[] octets = address.substring(0, Math.max(colon, 0)).split("\\.");
+			if(colon < 0 || octets.length != 4) {
+				continue;
+			}
+			try {
+				for(int x = 0; x < 4; x++) {
+					int octet = Integer.parseInt(octets[x]);
+					if(octet < 0 || octet > 255) {
+						throw new NumberFormatException();
+					}
+					bytes[length + x] = (byte)octet;
+				}
+				int port = Integer.parseInt(address.substring(colon + 1));
+				bytes[length + 4] = (byte)(port >> 8);
+				bytes[length + 5] = (byte)port;
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			length += compact_length;
+		}
+
+		byte[] result = new byte[length];
+		System.arraycopy(bytes, 0, result, 0, length);
+		return result;
+	}
+
+	/**
+	 * Casts a decoded value to a dictionary.
+	 * @param value The decoded value
+	 * @return the dictionary
+	 * @throws IOException if the value isn't a dictionary
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String,Object> dictionary(Object value) throws IOException {
+		if(!(value instanceof Map)) {
+			throw new IOException("Expected a bencoded dictionary");
+		}
+		return (Map<String,Object>)value;
+	}
+}
@@ -0,0 +1,239 @@
+package connection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The connected peers of one torrent, shared by the listener, the connection manager,
+ * the choker and the peer manager.
+ * Peers are held in concurrent hash maps, so adding, removing & looking a peer up by
+ * address or peer ID take constant time and never block. Readers iterate snapshots:
+ * an immutable list built at most once per change to the registry, and shared by every
+ * reader until the next change.
+ * @author Ari & Jay
+ */
+public class PeerRegistry {
+	/**
+	 * Every registered peer
+	 */
+	private ConcurrentHashMap<PeerSocket,Boolean> members = new ConcurrentHashMap<PeerSocket,Boolean>();
+
+	/**
+	 * The registered peers, by "ip:port": the address connected to or from,
+	 * and for a peer which connected to us, the address it listens on once known
+	 */
+	private ConcurrentHashMap<String,PeerSocket> by_address = new ConcurrentHashMap<String,PeerSocket>();
+
+	/**
+	 * The registered peers, by peer ID; peers whose ID isn't known yet are left out
+	 */
+	private ConcurrentHashMap<String,PeerSocket> by_id = new ConcurrentHashMap<String,PeerSocket>();
+
+	/**
+	 * Number of changes made to the registry, to tell whether a snapshot is out of date
+	 */
+	private AtomicLong version = new AtomicLong();
+
+	/**
+	 * The last snapshot built, or null
+	 */
+	private volatile Snapshot snapshot = null;
+
+	/**
+	 * Port we accept the torrent's connections on, told to peers; 0 if unknown
+	 */
+	private volatile int listen_port = 0;
+
+	/**
+	 * Adds a peer.
+	 * @param p The peer
+	 * @return false if it was already registered
+	 */
+	public boolean add(PeerSocket p) {
+		if(members.putIfAbsent(p, Boolean.TRUE) != null) {
+			return false;
+		}
+		p.setRegistry(this);
+		by_address.putIfAbsent(address(p.getPeer().getIP(), p.getPeer().getPort()), p);
+		index(p);
+		version.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Removes a peer.
+	 * @param p The peer
+	 * @return false if it wasn't registered
+	 */
+	public boolean remove(PeerSocket p) {
+		if(members.remove(p) == null) {
+			return false;
+		}
+		by_address.remove(address(p.getPeer().getIP(), p.getPeer().getPort()), p);
+		String listen_address = p.getListenAddress();
+		if(listen_address != null) {
+			by_address.remove(listen_address, p);
+		}
+		by_id.remove(p.getPeer().getID(), p);
+		version.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Re-indexes a peer whose ID changed, when its handshake gave a different ID than expected.
+	 * @param p The peer, with its new ID
+	 * @param old_id The ID it was registered with
+	 */
+	void rename(PeerSocket p, String old_id) {
+		if(!members.containsKey(p)) {
+			return;
+		}
+		by_id.remove(old_id, p);
+		index(p);
+	}
+
+	/**
+	 * Indexes a peer which connected to us by the address it listens on, once it tells us,
+	 * so we don't also connect to it there.
+	 * @param p The peer
+	 */
+	void listening(PeerSocket p) {
+		String listen_address = p.getListenAddress();
+		if(listen_address != null && members.containsKey(p)) {
+			by_address.putIfAbsent(listen_address, p);
+		}
+	}
+
+	/**
+	 * Indexes a peer by its ID, replacing any disconnected peer with the same ID.
+	 * While two connections to one peer are both up, the first stays indexed.
+	 * @param p The peer
+	 */
+	private void index(PeerSocket p) {
+		String id = p.getPeer().getID();
+		if(id.length() == 0) {
+			return;
+		}
+		while(true) {
+			PeerSocket existing = by_id.putIfAbsent(id, p);
+			if(existing == null || existing == p || existing.connected() || by_id.replace(id, existing, p)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Finds a peer by peer ID.
+	 * @param id The peer's ID
+	 * @return the peer, or null if none is registered with that ID
+	 */
+	public PeerSocket getByID(String id) {
+		return by_id.get(id);
+	}
+
+	/**
+	 * Finds a peer by address.
+	 * @param ip The peer's ip
+	 * @param port The peer's port
+	 * @return the peer, or null if none is registered at that address
+	 */
+	public PeerSocket getByAddress(String ip, int port) {
+		return by_address.get(address(ip, port));
+	}
+
+	/**
+	 * Checks whether a peer is registered, at its address or under its ID.
+	 * @param ip The peer's ip
+	 * @param port The peer's port
+	 * @param id The peer's ID, or "" if unknown
+	 * @return boolean
+	 */
+	public boolean contains(String ip, int port, String id) {
+		return by_address.containsKey(address(ip, port)) || (id.length() > 0 && by_id.containsKey(id));
+	}
+
+	/**
+	 * Gets the registered peers, as they were at some moment during the call.
+	 * Never blocks; the list doesn't change, so it may be iterated freely.
+	 * @return an unmodifiable list
+	 */
+	public List<PeerSocket> snapshot() {
+		long current = version.get();
+		Snapshot s = snapshot;
+		if(s != null && s.version == current) {
+			return s.peers;
+		}
+
+		//Built after reading the version, so it holds at least every change counted in it:
+		List<PeerSocket> peers = Collections.unmodifiableList(new ArrayList<PeerSocket>(members.keySet()));
+		snapshot = new Snapshot(current, peers);
+		return peers;
+	}
+
+	/**
+	 * Sets the port we accept the torrent's connections on, to tell peers.
+	 * @param port The port
+	 */
+	public void setListenPort(int port) {
+		listen_port = port;
+	}
+
+	/**
+	 * @return the port we accept the torrent's connections on, or 0 if unknown
+	 */
+	public int getListenPort() {
+		return listen_port;
+	}
+
+	/**
+	 * @return the number of registered peers
+	 */
+	public int size() {
+		return members.size();
+	}
+
+	/**
+	 * @return true if no peers are registered
+	 */
+	public boolean isEmpty() {
+		return members.isEmpty();
+	}
+
+	/**
+	 * Makes the key a peer is indexed by in by_address.
+	 * @param ip The peer's ip
+	 * @param port The peer's port
+	 * @return "ip:port"
+	 */
+	private static String address(String ip, int port) {
+		return ip + ":" + port;
+	}
+
+	/**
+	 * The registered peers, as of a version of the registry.
+	 */
+	private static class Snapshot {
+		/**
+		 * The version the list was built for
+		 */
+		final long version;
+
+		/**
+		 * The peers
+		 */
+		final List<PeerSocket> peers;
+
+		/**
+		 * Constructor
+		 * @param version The version the list was built for
+		 * @param peers The peers
+		 */
+		Snapshot(long version, List<PeerSocket> peers) {
+			this.version = version;
+			this.peers = peers;
+		}
+	}
+}
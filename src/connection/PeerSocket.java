@@ -1,18 +1,26 @@
 package connection;
 
-import java.net.Socket;
-import java.net.SocketException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
-import main.RUBTClient;
+import main.Events;
+import main.Log;
+import main.Metrics;
 
 import bencoding.TorrentDecoder;
 
 import structures.Bitfield;
+import structures.Counter;
 import structures.FileInfo;
+import structures.Histogram;
 import structures.InfoHash;
 import structures.Peer;
+import structures.RateEstimator;
+import structures.TokenBucket;
 
 /**
  * A class which communicates with a given peer through a new socket.
@@ -24,10 +32,47 @@ public class PeerSocket implements Runnable {
 	 */
 	private TCPSocket socket;
 	
+	/**
+	 * Whether handshakes have been exchanged, so other messages may be sent
+	 */
+	private volatile boolean handshake_done = false;
+	
+	/**
+	 * Whether the listener already read the peer's whole handshake
+	 */
+	private boolean handshake_received = false;
+	
+	/**
+	 * The registry holding the peer, told when the peer's ID changes; null until registered
+	 */
+	private volatile PeerRegistry registry = null;
+	
+	/**
+	 * Whether the peer's handshake says it supports the extension protocol (BEP 10)
+	 */
+	private boolean peer_extensions = false;
+	
+	/**
+	 * Peer exchange state, used once both sides have sent extension handshakes
+	 */
+	private PeerExchange pex = new PeerExchange();
+	
+	/**
+	 * Whether the handshake showed the peer to be ourselves
+	 */
+	private volatile boolean ourselves = false;
+	
+	/**
+	 * Whether the peer is on our LAN: found by local peer discovery, or at a private or link-local address
+	 */
+	private volatile boolean local = false;
+	
 	/**
 	 * Mutex for messaging, so other threads can send choke, unchoke.
+	 * A ReentrantLock rather than a monitor, so a virtual thread blocking on the socket
+	 * while holding it doesn't pin its carrier thread.
 	 */
-	private Object socket_lock = new Object();
+	private ReentrantLock socket_lock = new ReentrantLock();
 	
 	/**
 	 * The peer's data (ip, port, id)
@@ -100,6 +145,12 @@ public class PeerSocket implements Runnable {
 	 */
 	private boolean peer_choking = true;
 	
+	/**
+	 * Chokes sent to the peer; guarded by socket_lock.
+	 * A block requested before a choke isn't sent after it, since the choke cancelled the request.
+	 */
+	private int chokes_sent = 0;
+	
 	/**
 	 * Peer is interested
 	 */
@@ -108,7 +159,7 @@ public class PeerSocket implements Runnable {
 	/**
 	 * Mutex for choking/interested states for peer
 	 */
-	private Object peer_state_lock = new Object();
+	private ReentrantLock peer_state_lock = new ReentrantLock();
 	
 	/**
 	 * Constant for messages
@@ -151,34 +202,127 @@ public class PeerSocket implements Runnable {
 	private final byte message_piece = 7;
 	
 	/**
-	 * Bytes downloaded by peer
+	 * Constant for extension protocol messages (BEP 10)
+	 */
+	private final byte message_extended = 20;
+	
+	/**
+	 * Reserved handshake bit for the extension protocol: bit 0x10 of reserved byte 5,
+	 * in the second 4 reserved bytes read as an integer
+	 */
+	private static final int reserved_extensions = 0x00100000;
+	
+	/**
+	 * Longest extension message accepted (in bytes)
+	 */
+	private static final int max_extended_length = 64 * 1024;
+	
+	/**
+	 * Longest message with an unknown id skipped, rather than disconnecting (in bytes)
+	 */
+	private static final int max_unknown_length = 128 * 1024;
+	
+	/**
+	 * Names of the messages, by id, for metrics
+	 */
+	private static final String[] message_names = { "choke", "unchoke", "interested", "not_interested", "have", "bitfield", "request", "piece" };
+	
+	/**
+	 * Messages received from every peer, by id
+	 */
+	private static final Counter[] messages_received = new Counter[message_names.length];
+	
+	/**
+	 * Messages sent to every peer, by id
+	 */
+	private static final Counter[] messages_sent = new Counter[message_names.length];
+	
+	/**
+	 * Messages received with an unknown id
 	 */
-	private long bytes_uploaded = 0;
+	private static final Counter messages_unknown = Metrics.counter("peer.received.unknown");
 	
 	/**
-	 * Bytes downloaded from peer
+	 * Extension protocol messages received from every peer
 	 */
-	private long bytes_downloaded = 0;
+	private static final Counter extended_received = Metrics.counter("peer.received.extended");
 	
 	/**
-	 * Indicates that bytes downloaded and uploaded should be set to zero.
+	 * Extension protocol messages sent to every peer
 	 */
-	private boolean reset_bytes = false;
+	private static final Counter extended_sent = Metrics.counter("peer.sent.extended");
 	
 	/**
-	 * Static counter of unchoked peers
+	 * Peers disconnected for breaking the protocol
 	 */
-	private static int unchoked_count = 0;
+	private static final Counter protocol_errors = Metrics.counter("peer.protocol_errors");
 	
 	/**
-	 * Maximum number of unchoked peers:
+	 * Failed outgoing connections
 	 */
-	private static final int unchoked_max = 3;
+	private static final Counter connect_failures = Metrics.counter("peer.connect_failures");
 	
 	/**
-	 * Mutex for unchoked counter:
+	 * Failed handshakes
 	 */
-	private static Object unchoked_lock = new Object();
+	private static final Counter handshake_failures = Metrics.counter("peer.handshake_failures");
+	
+	/**
+	 * Downloaded pieces which failed verification
+	 */
+	private static final Counter hash_failures = Metrics.counter("piece.hash_failures");
+	
+	/**
+	 * Time from requesting a block to having received all of it (in microseconds)
+	 */
+	private static final Histogram block_rtt = Metrics.histogram("peer.block_rtt_us");
+	
+	static {
+		for(int x = 0; x < message_names.length; x++) {
+			messages_received[x] = Metrics.counter("peer.received." + message_names[x]);
+			messages_sent[x] = Metrics.counter("peer.sent." + message_names[x]);
+		}
+	}
+	
+	/**
+	 * System.nanoTime() when we last requested a block
+	 */
+	private long request_time = 0;
+	
+	/**
+	 * Flight recorder event for the block we last requested, begun when requested
+	 */
+	private Events.BlockReceived block_event = null;
+	
+	/**
+	 * Measures payload downloaded by peer; feeds the torrent's meter.
+	 */
+	private RateEstimator upload_meter;
+	
+	/**
+	 * Measures payload downloaded from peer; feeds the torrent's meter.
+	 */
+	private RateEstimator download_meter;
+	
+	/**
+	 * Measures every byte sent to peer; feeds the torrent's meter.
+	 */
+	private RateEstimator sent_meter;
+	
+	/**
+	 * Measures every byte received from peer; feeds the torrent's meter.
+	 */
+	private RateEstimator received_meter;
+	
+	/**
+	 * Limit on our upload rate to this peer, nested in the torrent's limit.
+	 */
+	private TokenBucket upload_limit;
+	
+	/**
+	 * Limit on our download rate from this peer, nested in the torrent's limit.
+	 */
+	private TokenBucket download_limit;
 	
 	/**
 	 * Constructor for PeerSocket.
@@ -194,24 +338,56 @@ public class PeerSocket implements Runnable {
 		file = fi;
 		bitfield = new Bitfield(file.getBitfieldBitSize());
 		my_id = my_peer_id;
+		upload_limit = new TokenBucket(0, file.getUploadLimit());
+		download_limit = new TokenBucket(0, file.getDownloadLimit());
+		upload_meter = new RateEstimator(RateEstimator.default_window, file.getUploadMeter());
+		download_meter = new RateEstimator(RateEstimator.default_window, file.getDownloadMeter());
+		sent_meter = new RateEstimator(RateEstimator.default_window, file.getSentMeter());
+		received_meter = new RateEstimator(RateEstimator.default_window, file.getReceivedMeter());
 		socket = null;
 	}
 	
 	/**
-	 * Constructor
-	 * @param sock The connected socket
+	 * Constructor for an incoming connection, which the listener has routed to this torrent
+	 * after reading the peer's whole handshake.
+	 * @param sock The connected socket, from which the peer's first message is next
+	 * @param p The peer, with the ID from its handshake
 	 * @param tf the decoded metadata for the torrent
 	 * @param fi the info for the downloading file
 	 * @param my_peer_id the peer ID of us, the user
-	 * @throws SocketException on failed creation of TCPSocket
+	 * @param extensions Whether the peer's handshake says it supports the extension protocol
 	 */
-	public PeerSocket(Socket sock, TorrentDecoder tf, FileInfo fi, String my_peer_id) throws SocketException {
-		peer = new Peer("", sock.getRemoteSocketAddress().toString(), sock.getPort());
+	PeerSocket(TCPSocket sock, Peer p, TorrentDecoder tf, FileInfo fi, String my_peer_id, boolean extensions) {
+		peer = p;
 		torrent = tf;
 		file = fi;
 		bitfield = new Bitfield(file.getBitfieldBitSize());
 		my_id = my_peer_id;
-		socket = new TCPSocket(sock);
+		upload_limit = new TokenBucket(0, file.getUploadLimit());
+		download_limit = new TokenBucket(0, file.getDownloadLimit());
+		upload_meter = new RateEstimator(RateEstimator.default_window, file.getUploadMeter());
+		download_meter = new RateEstimator(RateEstimator.default_window, file.getDownloadMeter());
+		sent_meter = new RateEstimator(RateEstimator.default_window, file.getSentMeter());
+		received_meter = new RateEstimator(RateEstimator.default_window, file.getReceivedMeter());
+		socket = sock;
+		handshake_received = true;
+		peer_extensions = extensions;
+	}
+	
+	/**
+	 * Opens an outgoing connection to the peer; download() then handshakes over it.
+	 * @param timeout Longest wait for the peer to accept (in milliseconds)
+	 * @return true if connected
+	 */
+	public boolean connect(int timeout) {
+		try {
+			socket = new TCPSocket(peer.getIP(),peer.getPort(),timeout);
+			return true;
+		} catch (Exception e) {
+			connect_failures.increment();
+			Log.warnLimited("connect failed", "Failed to connect socket for peer " + peer.getID() + ".");
+			return false;
+		}
 	}
 	
 	/**
@@ -219,57 +395,36 @@ public class PeerSocket implements Runnable {
 	 */
 	public void download() {
 		//Create TCPSocket for outgoing connection:
-		if(socket == null) {
-			try {
-				socket = new TCPSocket(peer.getIP(),peer.getPort());
-			} catch (Exception e) {
-				RUBTClient.logError("Failed to connect socket for peer " + peer.getID() + ".");
-				return;
-			}
+		if(socket == null && !connect(ConnectionManager.connect_timeout)) {
+			return;
 		}
 		
+		socket.setMeters(sent_meter, received_meter);
+		local = peer.isLocal() || isLANAddress(socket.getRemoteAddress());
+		
 		//Perform handshake:
 		if(!handshake()) {
-			RUBTClient.logError("Handshake failed with " + peer.getID() + ".");
+			handshake_failures.increment();
+			Log.warnLimited("handshake failed", "Handshake failed with " + peer.getID() + ".");
 			socket.tryClose();
 			socket = null;
 			return;
 		}
 		else {
-			RUBTClient.log("Successful handshake with " + peer.getID() + ".");
+			Log.log("Successful handshake with " + peer.getID() + ".");
+		}
+		socket.setLimits(upload_limit, download_limit);
+		handshake_done = true;
+		
+		//Name the extensions we support (none, for a private torrent):
+		if(peer_extensions && !torrent.isPrivate()) {
+			sendExtended(PeerExchange.handshake_id, PeerExchange.handshake((registry != null) ? registry.getListenPort() : 0));
 		}
 		
 		//Start post-handshake communication:
 		while(socket.connected()) {
-			//Reset byte counts if appropriate:
-			if(reset_bytes) {
-				reset_bytes = false;
-				bytes_uploaded = 0;
-				bytes_downloaded = 0;
-			}
-			
-			//Unchoke peer if appropriate:
-			synchronized(peer_state_lock) {
-				if(peer_interested && peer_choking && incrementUnchoked()) {
-					RUBTClient.log("Sending unchoke to peer " + peer.getID());
-					
-					//Send unchoke:
-					socket.sendInteger(1);
-					socket.sendByte(message_unchoke);
-					peer_choking = false;
-				}
-			}
-			
 			//Tell the peer about any new pieces we have:
-			for(int x = 0; x < bitfield.getBitSize(); x++) {
-				if(bitfield.getBit(x) == 0 && file.getPieceState(x) == FileInfo.state_complete) {
-					bitfield.setBit(x, true);
-					socket.sendInteger(5);
-					socket.sendByte(message_have);
-					socket.sendInteger(x);
-					RUBTClient.log("Telling peer " + peer.getID() + " we have piece " + x);
-				}
-			}
+			sendHaves();
 			
 			if(am_choking && !am_interested) {//need to express interest
 				if(!useful_pieces) {
@@ -277,24 +432,21 @@ public class PeerSocket implements Runnable {
 				}
 				else {
 					am_interested = true;
-					socket.sendInteger(1);
-					socket.sendByte(message_interested);
+					sendInterest(true);
 				}
 			}
 			else if(!am_choking && am_interested) {//need to request piece
 				if(!useful_pieces) {
 					am_interested = false;
-					socket.sendInteger(1);
-					socket.sendByte(message_uninterested);
+					sendInterest(false);
 				}
 				else if(my_requested_piece < 0) {//no piece requested
 					//Determine which piece to request:
-					my_requested_piece = file.getMissingPiece(peer.getBitfield());
+					my_requested_piece = file.getMissingPiece(peer.getBitfield(), local);
 					if(my_requested_piece == -1) {//no needed piece
 						useful_pieces = false;
 						am_interested = false;
-						socket.sendInteger(1);
-						socket.sendByte(message_uninterested);
+						sendInterest(false);
 						continue;
 					}
 					else if(!file.downloadingPiece(my_requested_piece)) {//another peer got there first!
@@ -303,15 +455,7 @@ public class PeerSocket implements Runnable {
 					}
 					
 					//Prepare to request piece:
-					if(my_requested_piece == torrent.getHashCount() - 1) {//last piece
-						int last_size = torrent.getFileLength() % torrent.getPieceLength();
-						if(last_size == 0)
-							last_size = torrent.getPieceLength();
-						piece_bytes = new byte[last_size];
-					}
-					else {//normal piece
-						piece_bytes = new byte[torrent.getPieceLength()];
-					}
+					piece_bytes = new byte[file.getPieceSize(my_requested_piece)];
 					piece_bytes_done = 0;
 					int bytes_to_request = piece_bytes.length - piece_bytes_done;
 					if(bytes_to_request > 16384)
@@ -319,11 +463,7 @@ public class PeerSocket implements Runnable {
 					waiting_for_piece = true;
 					
 					//Start requesting piece:
-					socket.sendInteger(13);
-					socket.sendByte(message_request);
-					socket.sendInteger(my_requested_piece);
-					socket.sendInteger(piece_bytes_done);
-					socket.sendInteger(bytes_to_request);
+					sendRequest(bytes_to_request);
 				}
 				else if(waiting_for_piece) {//need to get data from stream
 					parseMessage();
@@ -331,15 +471,13 @@ public class PeerSocket implements Runnable {
 				
 				else if(piece_bytes_done == piece_bytes.length) {//piece is done
 					//Calculate piece's hash value
-					MessageDigest md = null;
-					try {
-						md = MessageDigest.getInstance("SHA-1");
-					} catch (NoSuchAlgorithmException e) {
-						RUBTClient.logError("Impossible Error: SHA-1 hashes don't exist.");
+					Events.PieceHashed hash_event = new Events.PieceHashed();
+					hash_event.begin();
+					byte[] hash = file.hashPiece(piece_bytes);
+					if(hash == null) {
+						Log.logError("Impossible Error: SHA-1 hashes don't exist.");
 						break;
 					}
-					md.update(piece_bytes);
-					byte[] hash = md.digest();
 					
 					//Verify hash:
 					boolean valid_hash = true;
@@ -348,14 +486,18 @@ public class PeerSocket implements Runnable {
 							valid_hash = false;
 						}
 					}
+					hash_event.piece = my_requested_piece;
+					hash_event.size = piece_bytes.length;
+					hash_event.valid = valid_hash;
+					hash_event.commit();
 					
 					if(valid_hash) {//Store piece
 						try {
 							file.completePiece(my_requested_piece, piece_bytes);
-							RUBTClient.log("Downloaded & verified piece " + my_requested_piece);
-							RUBTClient.log("We have " + file.getCompleteCount() + "/" + file.getBitfieldBitSize() + " pieces.");
+							Log.log("Downloaded & verified piece " + my_requested_piece);
+							Log.log("We have " + file.getCompleteCount() + "/" + file.getBitfieldBitSize() + " pieces.");
 						} catch (Exception e) {
-							RUBTClient.logError("Impossible Error: This verified piece makes no sense.");
+							Log.logError("Impossible Error: This verified piece makes no sense.");
 							file.cancelPiece(my_requested_piece);
 							break;
 						}
@@ -364,7 +506,8 @@ public class PeerSocket implements Runnable {
 						my_requested_piece = -1;
 					}
 					else {//Delete piece's data
-						RUBTClient.logError("Warning: Piece has wrong hash. Downloading again.");
+						hash_failures.increment();
+						Log.warn("Piece has wrong hash. Downloading again.");
 						piece_bytes_done = 0;
 					}
 				}
@@ -376,11 +519,7 @@ public class PeerSocket implements Runnable {
 					waiting_for_piece = true;
 					
 					//Continue requesting piece:
-					socket.sendInteger(13);
-					socket.sendByte(message_request);
-					socket.sendInteger(my_requested_piece);
-					socket.sendInteger(piece_bytes_done);
-					socket.sendInteger(bytes_to_request);
+					sendRequest(bytes_to_request);
 				}
 			}
 			else {
@@ -394,26 +533,32 @@ public class PeerSocket implements Runnable {
 			my_requested_piece = -1;
 		}
 		
-		if(socket.connected()) {
-			socket.tryClose();
-			socket = null;
+		//Under the lock, so other threads sending to the peer see the socket or null:
+		socket_lock.lock();
+		try {
+			if(socket.connected()) {
+				socket.tryClose();
+				socket = null;
+			}
+		}
+		finally {
+			socket_lock.unlock();
 		}
 		
-		//Disconnected after unchoking peer:
-		synchronized(peer_state_lock) {
-			synchronized(unchoked_lock) {
-				if(!peer_choking) {
-					peer_choking = true;
-					decrementUnchoked();
-				}
-			}
+		//Disconnected after unchoking peer; frees the slot for the choker:
+		peer_state_lock.lock();
+		try {
+			peer_choking = true;
+		}
+		finally {
+			peer_state_lock.unlock();
 		}
 		
 		//Decrement common-ness/antirarity/whatever of this peer's pieces
 		if(peer.getBitfield() != null) {
 			for(int x = 0; x < peer.getBitfield().getBitSize(); x++) {
 				if(peer.getBitfield().getBit(x) == 1) {
-					file.decrementPieceRarity(x);
+					file.decrementPieceRarity(x, local);
 				}
 			}
 		}
@@ -427,7 +572,23 @@ public class PeerSocket implements Runnable {
 		//Outside lock so other threads can choke/unchoke us while waiting for messages
 		int message_length = socket.getInteger();
 		
-		synchronized(socket_lock) {
+		//Also outside the lock: the message id, and the wait for download tokens for the rest,
+		//so a throttled peer doesn't hold up threads sending to it. No payload we accept is
+		//longer than max_unknown_length, bar a huge torrent's bitfield.
+		int message = -1;
+		if(message_length > 0) {
+			message = socket.getByte();
+			socket.awaitDownload(Math.min(message_length - 1, max_unknown_length));
+		}
+		
+		//A requested block, sent after the lock is released:
+		byte[] block = null;
+		int block_index = 0;
+		int block_begin = 0;
+		int block_chokes = 0;
+		
+		socket_lock.lock();
+		try {
 			if(message_length == 0) {//keep-alive
 				//Keep-alive is basically automatically implemented by the built-in timeout feature in Socket class, set to two minutes in TCPSocket.
 				first_message = false;
@@ -435,21 +596,29 @@ public class PeerSocket implements Runnable {
 			}
 			else if(message_length == -1) {//failure to read from socket (end of bytestream)
 				socket.tryClose();
-				RUBTClient.log("Warning: Peer " + peer.getID() + " socket not reading; presumed disconnected.");
+				Log.warn("Peer " + peer.getID() + " socket not reading; presumed disconnected.");
 				return;
 			}
 			else if(message_length < 0) {//negative length?!
-				RUBTClient.logError("Warning: Peer " + peer.getID() + " sent negative message-length " + message_length + "; disconnecting.");
+				protocolError("Peer " + peer.getID() + " sent negative message-length " + message_length + "; disconnecting.");
 				socket.tryClose();
 				return;
 			}
 			
-			//Get message id
+			//Count the message id, read above:
 			message_length--;
-			int message = socket.getByte();
+			if(message >= 0 && message < messages_received.length) {
+				messages_received[message].increment();
+			}
+			else if(message == message_extended) {
+				extended_received.increment();
+			}
+			else {
+				messages_unknown.increment();
+			}
 			if(message < 4) {
 				if(message_length != 0) {
-					RUBTClient.logError("Warning: Peer " + peer.getID() + " sent invalid message-length; disconnecting.");
+					protocolError("Peer " + peer.getID() + " sent invalid message-length; disconnecting.");
 					socket.tryClose();
 					return;
 				}
@@ -470,34 +639,48 @@ public class PeerSocket implements Runnable {
 			}
 			else if(message == message_interested) {
 				first_message = false;
-				synchronized(peer_state_lock) {
+				peer_state_lock.lock();
+				try {
 					peer_interested = true;
 				}
+				finally {
+					peer_state_lock.unlock();
+				}
 				
-				RUBTClient.log("Peer " + peer.getID() + " interested");
+				if(Log.debugEnabled()) {
+					Log.debug("Peer " + peer.getID() + " interested");
+				}
 			}
 			else if(message == message_uninterested) {
 				first_message = false;
 				
-				synchronized(peer_state_lock) {
+				peer_state_lock.lock();
+				try {
 					peer_interested = false;
 					if(!peer_choking) {
-						RUBTClient.log("Sending choke to peer " + peer.getID());
+						if(Log.debugEnabled()) {
+							Log.debug("Sending choke to peer " + peer.getID());
+						}
 						
 						//Send choke:
 						socket.sendInteger(1);
-						socket.sendByte(message_choke);
+						sendMessageID(message_choke);
 						peer_choking = true;
-						decrementUnchoked();
+						choked(true);
 					}
 				}
+				finally {
+					peer_state_lock.unlock();
+				}
 				
-				RUBTClient.log("Peer " + peer.getID() + " uninterested");
+				if(Log.debugEnabled()) {
+					Log.debug("Peer " + peer.getID() + " uninterested");
+				}
 			}
 			else if(message == message_have) {
 				first_message = false;
 				if(message_length != 4) {
-					RUBTClient.logError("Warning: Peer " + peer.getID() + " sent invalid message-length; disconnecting.");
+					protocolError("Peer " + peer.getID() + " sent invalid message-length; disconnecting.");
 					socket.tryClose();
 					return;
 				}
@@ -505,7 +688,7 @@ public class PeerSocket implements Runnable {
 				//Get bitfield bit:
 				int piece = socket.getInteger();
 				if(piece < 0 || piece >= file.getBitfieldBitSize()) {
-					RUBTClient.logError("Warning: Peer " + peer.getID() + " sent invalid bitfield-index; disconnecting.");
+					protocolError("Peer " + peer.getID() + " sent invalid bitfield-index; disconnecting.");
 					socket.tryClose();
 					return;
 				}
@@ -517,25 +700,27 @@ public class PeerSocket implements Runnable {
 				peer.getBitfield().setBit(piece, true);
 				
 				//Increment common-ness/antirarity/whatever of this piece
-				file.incrementPieceRarity(piece);
+				file.incrementPieceRarity(piece, local);
 				
 				//If appropriate, check if we need the peer's new piece
 				if(useful_pieces == false && file.getPieceState(piece) == FileInfo.state_missing) {
 					useful_pieces = true;
 				}
 				
-				RUBTClient.log("Peer " + peer.getID() + " has piece " + piece);
+				if(Log.debugEnabled()) {
+					Log.debug("Peer " + peer.getID() + " has piece " + piece);
+				}
 			}
 			else if(message == message_bitfield) {
 				if(!first_message) {
-					RUBTClient.logError("Warning: Peer " + peer.getID() + " sent bitfield at inappropriate time; disconnecting.");
+					protocolError("Peer " + peer.getID() + " sent bitfield at inappropriate time; disconnecting.");
 					first_message = false;
 					socket.tryClose();
 					return;
 				}
 				
 				if(message_length != file.getBitfieldByteSize()) {
-					RUBTClient.logError("Warning: Peer " + peer.getID() + " sent invalid bitfield-length; disconnecting.");
+					protocolError("Peer " + peer.getID() + " sent invalid bitfield-length; disconnecting.");
 					socket.tryClose();
 					return;
 				}
@@ -545,7 +730,7 @@ public class PeerSocket implements Runnable {
 				try {
 					peer.getBitfield().setBytes(socket.getByteArray(message_length));
 				} catch (Exception e) {
-					RUBTClient.logError("Warning: Peer " + peer.getID() + " sent invalid bitfield; disconnecting.");
+					protocolError("Peer " + peer.getID() + " sent invalid bitfield; disconnecting.");
 					socket.tryClose();
 					return;
 				}
@@ -554,7 +739,7 @@ public class PeerSocket implements Runnable {
 				if(peer.getBitfield() != null) {
 					for(int x = 0; x < peer.getBitfield().getBitSize(); x++) {
 						if(peer.getBitfield().getBit(x) == 1) {
-							file.incrementPieceRarity(x);
+							file.incrementPieceRarity(x, local);
 						}
 					}
 				}
@@ -562,7 +747,7 @@ public class PeerSocket implements Runnable {
 				//Check if we need any of the peer's pieces.
 				Bitfield useful_field = file.getUsefulBits(peer.getBitfield());
 				if(useful_field == null) {
-					RUBTClient.logError("Warning: Peer " + peer.getID() + " sent invalid bitfield; disconnecting.");
+					protocolError("Peer " + peer.getID() + " sent invalid bitfield; disconnecting.");
 					socket.tryClose();
 					return;
 				}
@@ -570,12 +755,14 @@ public class PeerSocket implements Runnable {
 					useful_pieces = true;
 				}
 				
-				RUBTClient.log("Got bitfield from " + peer.getID());
+				if(Log.debugEnabled()) {
+					Log.debug("Got bitfield from " + peer.getID());
+				}
 			}
 			else if(message == message_request) {
 				first_message = false;
 				if(message_length != 12) {
-					RUBTClient.logError("Warning: Peer " + peer.getID() + " sent invalid message-length; disconnecting.");
+					protocolError("Peer " + peer.getID() + " sent invalid message-length; disconnecting.");
 					socket.tryClose();
 					return;
 				}
@@ -586,55 +773,56 @@ public class PeerSocket implements Runnable {
 				
 				//Error check:
 				if(peer_choking) {
-					RUBTClient.logError("Warning: Peer " + peer.getID() + " sent request while being choked; ignoring.");
+					Log.warnLimited("request while choked", "Peer " + peer.getID() + " sent request while being choked; ignoring.");
 					//socket.tryClose();
 					return;
 				}
 				else if(!peer_interested) {
-					RUBTClient.logError("Warning: Peer " + peer.getID() + " sent request while not interested; disconnecting.");
+					protocolError("Peer " + peer.getID() + " sent request while not interested; disconnecting.");
 					socket.tryClose();
 					return;
 				}
 				else if(index < 0 || index >= file.getBitfieldBitSize() || begin < 0 || length < 1 || length > 16384) {
-					RUBTClient.logError("Warning: Peer " + peer.getID() + " sent invalid request; disconnecting.");
+					protocolError("Peer " + peer.getID() + " sent invalid request; disconnecting.");
 					socket.tryClose();
 					return;
 				}
 				else if(file.getPieceState(index) != FileInfo.state_complete) {
-					RUBTClient.logError("Warning: Peer " + peer.getID() + " sent request for incomplete piece; disconnecting.");
+					protocolError("Peer " + peer.getID() + " sent request for incomplete piece; disconnecting.");
 					socket.tryClose();
 					return;
 				}
 				else if(begin + length > file.getPieceSize(index)) {
-					RUBTClient.logError("Warning: Peer " + peer.getID() + " sent out-of-bounds request; disconnecting.");
+					protocolError("Peer " + peer.getID() + " sent out-of-bounds request; disconnecting.");
 					socket.tryClose();
 					return;
 				}
 				else if(peer.getBitfield() != null && peer.getBitfield().getBit(index) == 1) {
-					RUBTClient.logError("Warning: Peer " + peer.getID() + " requested a peice they already have; disconnecting.");
+					protocolError("Peer " + peer.getID() + " requested a peice they already have; disconnecting.");
 					socket.tryClose();
 					return;
 				}
 				
-				RUBTClient.log("Sending piece " + index + " (" + begin + "-" + (begin+length) +  ") to peer " + peer.getID());
-				
-				socket.sendInteger(length + 9);
-				socket.sendByte(message_piece);
-				socket.sendInteger(index);
-				socket.sendInteger(begin);
-				socket.sendByteArray(file.getPieceBytes(index), begin, length);
-				bytes_uploaded += length;
-				file.incrementUploaded(length);
+				try {
+					block = file.getBlock(index, begin, length);
+				} catch (IOException e) {
+					Log.logError("Unable to read piece " + index + " from disk; disconnecting peer " + peer.getID() + ".");
+					socket.tryClose();
+					return;
+				}
+				block_index = index;
+				block_begin = begin;
+				block_chokes = chokes_sent;
 			}
 			else if(message == message_piece) {
 				first_message = false;
 				if(message_length < 8) {
-					RUBTClient.logError("Warning: Peer " + peer.getID() + " sent invalid message-length; disconnecting.");
+					protocolError("Peer " + peer.getID() + " sent invalid message-length; disconnecting.");
 					socket.tryClose();
 					return;
 				}
 				else if(!waiting_for_piece) {
-					RUBTClient.logError("Warning: Peer " + peer.getID() + " sent unrequested piece; disconnecting.");
+					protocolError("Peer " + peer.getID() + " sent unrequested piece; disconnecting.");
 					socket.tryClose();
 					return;
 				}
@@ -648,17 +836,17 @@ public class PeerSocket implements Runnable {
 				
 				//Error check:
 				if(index != my_requested_piece) {
-					RUBTClient.logError("Warning: Peer " + peer.getID() + " sent wrong piece; disconnecting.");
+					protocolError("Peer " + peer.getID() + " sent wrong piece; disconnecting.");
 					socket.tryClose();
 					return;
 				}
 				else if(begin != piece_bytes_done) {
-					RUBTClient.logError("Warning: Peer " + peer.getID() + " sent wrong part of piece (" + begin + " instead of " + piece_bytes_done + "); disconnecting.");
+					protocolError("Peer " + peer.getID() + " sent wrong part of piece (" + begin + " instead of " + piece_bytes_done + "); disconnecting.");
 					socket.tryClose();
 					return;
 				}
 				else if(begin + message_length > piece_bytes.length) {
-					RUBTClient.logError("Warning: Peer " + peer.getID() + " sent too much data for piece; disconnecting.");
+					protocolError("Peer " + peer.getID() + " sent too much data for piece; disconnecting.");
 					socket.tryClose();
 					return;
 				}
@@ -666,16 +854,274 @@ public class PeerSocket implements Runnable {
 				//Get piece data:
 				socket.getByteArray(piece_bytes,piece_bytes_done,message_length);
 				piece_bytes_done += message_length;
+				block_rtt.record((System.nanoTime() - request_time) / 1000);
+				block_event.peer = peer.getID();
+				block_event.piece = index;
+				block_event.begin = begin;
+				block_event.size = message_length;
+				block_event.commit();
 				file.incrementDownloaded(message_length);
-				bytes_downloaded += message_length;
+				download_meter.add(message_length);
 				
 				//Error check:
 				if(!socket.connected()) {
-					RUBTClient.logError("Warning: Peer " + peer.getID() + " disconnected.");
+					Log.warn("Peer " + peer.getID() + " disconnected.");
 					return;
 				}
 			}
+			else if(message == message_extended) {
+				if(message_length < 1 || message_length > max_extended_length) {
+					protocolError("Peer " + peer.getID() + " sent invalid extension message-length; disconnecting.");
+					socket.tryClose();
+					return;
+				}
+				
+				int extended = socket.getByte();
+				byte[] payload = socket.getByteArray(message_length - 1);
+				if(extended < 0 || payload == null || torrent.isPrivate()) {
+					return;
+				}
+				
+				if(extended == PeerExchange.handshake_id) {
+					pex.receiveHandshake(payload, peer.getID());
+					if(registry != null) {
+						registry.listening(this);
+					}
+				}
+				else if(extended == PeerExchange.local_pex_id) {
+					pex.receive(payload, peer.getID());
+				}
+				//Extensions we didn't name in our handshake are ignored
+			}
+			else if(message >= 0) {//unknown message; skip it
+				if(message_length > max_unknown_length) {
+					protocolError("Peer " + peer.getID() + " sent oversized unknown message " + message + "; disconnecting.");
+					socket.tryClose();
+					return;
+				}
+				socket.getByteArray(message_length);
+			}
+		}
+		finally {
+			socket_lock.unlock();
+		}
+		
+		if(block != null) {
+			sendBlock(block_index, block_begin, block, block_chokes);
+		}
+	}
+	
+	/**
+	 * Sends a requested block, waiting for upload tokens before taking socket_lock,
+	 * so a throttled upload doesn't hold up threads sending to the peer, e.g. the Choker.
+	 * @param index The index of the piece
+	 * @param begin The offset of the block within the piece
+	 * @param block The block's bytes
+	 * @param chokes chokes_sent when the block was requested; if we choked the peer since, the block isn't sent
+	 */
+	private void sendBlock(int index, int begin, byte[] block, int chokes) {
+		socket.awaitUpload(block.length);
+		
+		socket_lock.lock();
+		try {
+			if(!socket.connected() || chokes != chokes_sent) {
+				return;
+			}
+			
+			if(Log.debugEnabled()) {
+				Log.debug("Sending piece " + index + " (" + begin + "-" + (begin+block.length) +  ") to peer " + peer.getID());
+			}
+			
+			socket.sendInteger(block.length + 9);
+			sendMessageID(message_piece);
+			socket.sendInteger(index);
+			socket.sendInteger(begin);
+			socket.sendByteArray(block);
+			upload_meter.add(block.length);
+			file.incrementUploaded(block.length);
+		}
+		finally {
+			socket_lock.unlock();
+		}
+	}
+	
+	/**
+	 * Sends a have message for every piece completed since we last told the peer.
+	 * Called by the peer's own thread, and periodically by the peer manager so that peers
+	 * hear of new pieces even while this thread is blocked waiting for a message.
+	 * Threadsafe
+	 */
+	public void sendHaves() {
+		socket_lock.lock();
+		try {
+			if(socket == null || !handshake_done) {
+				return;
+			}
+			for(int x = 0; x < bitfield.getBitSize(); x++) {
+				if(bitfield.getBit(x) == 0 && file.getPieceState(x) == FileInfo.state_complete) {
+					bitfield.setBit(x, true);
+					socket.sendInteger(5);
+					sendMessageID(message_have);
+					socket.sendInteger(x);
+					if(Log.debugEnabled()) {
+						Log.debug("Telling peer " + peer.getID() + " we have piece " + x);
+					}
+				}
+			}
+		}
+		finally {
+			socket_lock.unlock();
+		}
+	}
+	
+	/**
+	 * Sends the peer a ut_pex message with the torrent's peers which connected or
+	 * disconnected since our last one, if the peer supports it and one is due.
+	 * Called periodically by the peer manager.
+	 * Threadsafe
+	 * @param connected Addresses ("ip:port") of the torrent's connected peers
+	 */
+	public void sendPex(Set<String> connected) {
+		socket_lock.lock();
+		try {
+			if(socket == null || !handshake_done) {
+				return;
+			}
+			byte[] payload = pex.nextMessage(connected, getListenAddress(), System.currentTimeMillis());
+			if(payload != null) {
+				sendExtended(pex.getRemoteID(), payload);
+			}
+		}
+		finally {
+			socket_lock.unlock();
+		}
+	}
+	
+	/**
+	 * Moves the peers this peer told us about since the last call to a list,
+	 * for the connection manager.
+	 * Threadsafe
+	 * @param peers The list to add them to
+	 */
+	public void takeExchangedPeers(List<Peer> peers) {
+		pex.takeReceived(peers);
+	}
+	
+	/**
+	 * Gets the address other peers can connect to this peer at: the address we connected to,
+	 * or for a peer which connected to us, the port it listens on from its extension handshake.
+	 * @return "ip:port", or null if unknown
+	 */
+	public String getListenAddress() {
+		if(!handshake_received) {
+			return peer.getIP() + ":" + peer.getPort();
 		}
+		int port = pex.getListenPort();
+		return (port > 0) ? peer.getIP() + ":" + port : null;
+	}
+	
+	/**
+	 * Sends an extension protocol message.
+	 * @param extended The message's extended ID, as the peer named it
+	 * @param payload The bencoded message
+	 */
+	private void sendExtended(int extended, byte[] payload) {
+		socket_lock.lock();
+		try {
+			socket.sendInteger(payload.length + 2);
+			socket.sendByte(message_extended);
+			extended_sent.increment();
+			socket.sendByte(extended);
+			socket.sendByteArray(payload);
+		}
+		finally {
+			socket_lock.unlock();
+		}
+	}
+	
+	/**
+	 * Sends an interested or not interested message.
+	 * @param interested true for interested
+	 */
+	private void sendInterest(boolean interested) {
+		socket_lock.lock();
+		try {
+			socket.sendInteger(1);
+			sendMessageID(interested ? message_interested : message_uninterested);
+		}
+		finally {
+			socket_lock.unlock();
+		}
+	}
+	
+	/**
+	 * Requests the next block of the piece we are downloading.
+	 * @param length The block's size (in bytes)
+	 */
+	private void sendRequest(int length) {
+		socket_lock.lock();
+		try {
+			socket.sendInteger(13);
+			sendMessageID(message_request);
+			socket.sendInteger(my_requested_piece);
+			socket.sendInteger(piece_bytes_done);
+			socket.sendInteger(length);
+		}
+		finally {
+			socket_lock.unlock();
+		}
+		blockRequested(length);
+	}
+	
+	/**
+	 * Sends a message's id, counting the message.
+	 * @param message One of the message_ constants
+	 */
+	private void sendMessageID(byte message) {
+		socket.sendByte(message);
+		messages_sent[message].increment();
+	}
+	
+	/**
+	 * Times & records a block request just sent for the current piece.
+	 * @param length The block's size
+	 */
+	private void blockRequested(int length) {
+		request_time = System.nanoTime();
+		
+		Events.BlockRequested event = new Events.BlockRequested();
+		event.peer = peer.getID();
+		event.piece = my_requested_piece;
+		event.begin = piece_bytes_done;
+		event.size = length;
+		event.commit();
+		
+		block_event = new Events.BlockReceived();
+		block_event.begin();
+	}
+	
+	/**
+	 * Records our choking or unchoking the peer. Called holding socket_lock.
+	 * @param choked true for choke, false for unchoke
+	 */
+	private void choked(boolean choked) {
+		if(choked) {
+			chokes_sent++;
+		}
+		Events.Choke event = new Events.Choke();
+		event.peer = peer.getID();
+		event.choked = choked;
+		event.commit();
+	}
+	
+	/**
+	 * Logs a peer breaking the protocol, counting the error.
+	 * The caller disconnects the peer.
+	 * @param line The warning
+	 */
+	private void protocolError(String line) {
+		protocol_errors.increment();
+		Log.warn(line);
 	}
 	
 	/**
@@ -699,50 +1145,105 @@ public class PeerSocket implements Runnable {
 		socket.sendByte(19);
 		socket.sendString("BitTorrent protocol");
 		socket.sendInteger(0);
-		socket.sendInteger(0);
+		socket.sendInteger(torrent.isPrivate() ? 0 : reserved_extensions);
 		socket.sendByteArray(torrent.getInfoHash().toBytes());
 		socket.sendString(this.my_id);
 		
+		if(handshake_received) {//the listener read & checked the peer's handshake
+			return true;
+		}
+		
 		if(socket.getByte() != 19) {
-			RUBTClient.logError(peer.getID() + " sent incorrent string instead of \"BitTorrent protocol\"");
+			Log.logError(peer.getID() + " sent incorrent string instead of \"BitTorrent protocol\"");
 			return false;
 		}
 		String protocol = socket.getString(19);
 		if(protocol == null || !protocol.equals("BitTorrent protocol")) {
-			RUBTClient.logError(peer.getID() + " sent incorrent string instead of \"BitTorrent protocol\"");
+			Log.logError(peer.getID() + " sent incorrent string instead of \"BitTorrent protocol\"");
 			return false;
 		}
 		
-		if(socket.getInteger() != 0) {
-			RUBTClient.logError("Warning: reserved bytes nonzero in " + peer.getID() + "'s handshake.");
-		}
-		if(socket.getInteger() != 0) {
-			RUBTClient.logError("Warning: reserved bytes nonzero in " + peer.getID() + "'s handshake.");
-		}
+		//Reserved bytes; other clients set bits for extensions we don't support, so only ours is read:
+		socket.getInteger();
+		peer_extensions = (socket.getInteger() & reserved_extensions) != 0;
 		
 		InfoHash peer_hash;
 		try {
 			peer_hash = new InfoHash(socket.getByteArray(20));
 		} catch (Exception e) {
-			RUBTClient.logError(peer.getID() + " sent invalid info hash");
+			Log.logError(peer.getID() + " sent invalid info hash");
 			return false;
 		}
 		
 		if(!torrent.getInfoHash().equals(peer_hash)) {
-			RUBTClient.logError(peer.getID() + " sent wrong info hash");
+			Log.logError(peer.getID() + " sent wrong info hash");
 			return false;
 		}
 		
 		String peer_id = socket.getString(20);
+		if(peer_id == null) {
+			return false;
+		}
+		else if(peer_id.equals(my_id)) {
+			Log.warnLimited("connected to self", "Connected to ourselves at " + getListenAddress() + "; disconnecting.");
+			ourselves = true;
+			return false;
+		}
 		if(!peer.getID().equals(peer_id)) {
 			if(peer.getID().length() > 0)
-				RUBTClient.logError("Warning: peer's id, " + peer_id + ", is different than expected");
+				Log.warn("peer's id, " + peer_id + ", is different than expected");
+			String old_id = peer.getID();
 			peer.setID(peer_id);
+			if(registry != null) {
+				registry.rename(this, old_id);
+			}
 		}
 		
 		return true;
 	}
 
+	/**
+	 * Sets the registry holding the peer.
+	 * @param registry The registry
+	 */
+	void setRegistry(PeerRegistry registry) {
+		this.registry = registry;
+	}
+
+	/**
+	 * Checks whether the connection turned out to be to ourselves, so the address
+	 * isn't worth trying again.
+	 * @return boolean
+	 */
+	public boolean isOurselves() {
+		return ourselves;
+	}
+
+	/**
+	 * Checks whether the peer is on our LAN: found by local peer discovery, or connected
+	 * from or to a private or link-local address. Known once connected.
+	 * @return boolean
+	 */
+	public boolean isLocal() {
+		return local;
+	}
+
+	/**
+	 * Checks whether an address is on a LAN: IPv4 private or link-local, or IPv6
+	 * unique local or link-local. Loopback isn't, so peers on one host aren't favored.
+	 * @param address The address
+	 * @return boolean
+	 */
+	static boolean isLANAddress(InetAddress address) {
+		if(address == null) {
+			return false;
+		}
+		if(address instanceof Inet6Address && (address.getAddress()[0] & 0xFE) == 0xFC) {
+			return true;
+		}
+		return address.isSiteLocalAddress() || address.isLinkLocalAddress();
+	}
+
 	/**
 	 * Getter for the Peer object
 	 * @return a Peer object
@@ -774,7 +1275,7 @@ public class PeerSocket implements Runnable {
 	 * @return long
 	 */
 	public long getDownloaded() {
-		return bytes_downloaded;
+		return download_meter.getTotal();
 	}
 	
 	/**
@@ -782,15 +1283,43 @@ public class PeerSocket implements Runnable {
 	 * @return long
 	 */
 	public long getUploaded() {
-		return bytes_uploaded;
+		return upload_meter.getTotal();
 	}
 	
 	/**
-	 * Resets bytes downloaded/uploaded
-	 * There is a functional delay to avoid threading issues
+	 * Gets the smoothed rate at which the peer sends us piece data.
+	 * Threadsafe
+	 * @return bytes/second
+	 */
+	public double getDownloadRate() {
+		return download_meter.getRate();
+	}
+	
+	/**
+	 * Gets the smoothed rate at which we send the peer piece data.
+	 * Threadsafe
+	 * @return bytes/second
+	 */
+	public double getUploadRate() {
+		return upload_meter.getRate();
+	}
+	
+	/**
+	 * Gets the smoothed rate of non-piece bytes (headers, requests, haves...) from the peer.
+	 * Threadsafe
+	 * @return bytes/second
+	 */
+	public double getDownloadOverheadRate() {
+		return Math.max(0, received_meter.getRate() - download_meter.getRate());
+	}
+	
+	/**
+	 * Gets the smoothed rate of non-piece bytes (headers, requests, haves...) to the peer.
+	 * Threadsafe
+	 * @return bytes/second
 	 */
-	public void resetByteCounts() {
-		reset_bytes = true;
+	public double getUploadOverheadRate() {
+		return Math.max(0, sent_meter.getRate() - upload_meter.getRate());
 	}
 
 	/**
@@ -802,75 +1331,87 @@ public class PeerSocket implements Runnable {
 	}
 
 	/**
-	 * Chokes the peer without affecting the choking counter.
-	 * Used by main threads to choke worst peer
+	 * Sets limits on the transfer rates with this peer.
+	 * They apply within the torrent's and the global limits.
+	 * @param upload Most bytes/second sent to the peer, or 0 for no per-peer limit
+	 * @param download Most bytes/second received from the peer, or 0 for no per-peer limit
+	 */
+	public void setRateLimits(long upload, long download) {
+		upload_limit.setRate(upload);
+		download_limit.setRate(download);
+	}
+	
+	/**
+	 * Chokes the peer.
+	 * Used by the Choker
 	 * Threadsafe
 	 * @return true on success, or false on failure
 	 */
 	public boolean choke() {
-		synchronized(socket_lock) {
-			synchronized(peer_state_lock) {
+		socket_lock.lock();
+		try {
+			peer_state_lock.lock();
+			try {
 				if(socket == null || peer_choking) {
 					return false;
 				}
 				peer_choking = true;
 			}
+			finally {
+				peer_state_lock.unlock();
+			}
 			
 			socket.sendInteger(1);
-			socket.sendByte(message_choke);
+			sendMessageID(message_choke);
+			choked(true);
+		}
+		finally {
+			socket_lock.unlock();
 		}
 		
 		return true;
 	}
 	
 	/**
-	 * Unchokes the peer without affecting the choking counter.
-	 * Used by main threads to unchoke random peer
+	 * Unchokes the peer, if it is interested.
+	 * Used by the Choker
 	 * Threadsafe
 	 * @return true on success, or false on failure
 	 */
 	public boolean unchoke() {
-		synchronized(socket_lock) {
-			synchronized(peer_state_lock) {
+		socket_lock.lock();
+		try {
+			peer_state_lock.lock();
+			try {
 				if(socket == null || !peer_choking || !peer_interested) {
 					return false;
 				}
 				peer_choking = false;
 			}
+			finally {
+				peer_state_lock.unlock();
+			}
 			
 			socket.sendInteger(1);
-			socket.sendByte(message_unchoke);
+			sendMessageID(message_unchoke);
+			choked(false);
+		}
+		finally {
+			socket_lock.unlock();
 		}
 		
 		return true;
 	}
 	
 	/**
-	 * Decrements the counter of unchoked peers
-	 * Used by main threads if forcing a peer to unchoke fails.
+	 * Copies the peer's current state & statistics.
 	 * Threadsafe
+	 * @return a new PeerStats
 	 */
-	public static void decrementUnchoked() {
-		synchronized(unchoked_lock) {
-			unchoked_count--;
-		}
+	public PeerStats getStats() {
+		return new PeerStats(this);
 	}
 	
-	/**
-	 * Tries to decrement the counter of unchoked peers
-	 * Threadsafe
-	 * @return true on success, false on failure
-	 */
-	private static boolean incrementUnchoked() {
-		synchronized(unchoked_lock) {
-			if(unchoked_count < unchoked_max) {
-				unchoked_count++;
-				return true;
-			}
-		}
-		return false;
-	}
-
 	/**
 	 * Gets the index of the piece we are currently getting from this peer.
 	 * @return -1 if there is no such piece
@@ -886,12 +1427,4 @@ public class PeerSocket implements Runnable {
 	public boolean peerInterested() {
 		return peer_interested;
 	}
-
-	/**
-	 * Gets the max number of unchoked peers
-	 * @return integer amount
-	 */
-	public static int getMaxUnchoked() {
-		return unchoked_max;
-	}
 }
@@ -0,0 +1,142 @@
+package connection;
+
+/**
+ * An immutable copy of one peer's state and transfer statistics at one moment,
+ * for observers such as the GUI. Reading it never touches the live PeerSocket.
+ * @author Ari & Jay
+ */
+public class PeerStats {
+	/**
+	 * The peer's ID
+	 */
+	private final String id;
+
+	/**
+	 * The peer's IP address
+	 */
+	private final String ip;
+
+	/**
+	 * The piece we are downloading from the peer, or -1
+	 */
+	private final int current_piece;
+
+	/**
+	 * Whether we are choking the peer
+	 */
+	private final boolean choked;
+
+	/**
+	 * Whether the peer is interested in our pieces
+	 */
+	private final boolean interested;
+
+	/**
+	 * Bytes downloaded from the peer
+	 */
+	private final long downloaded;
+
+	/**
+	 * Bytes uploaded to the peer
+	 */
+	private final long uploaded;
+
+	/**
+	 * Smoothed download rate from the peer (in bytes/second)
+	 */
+	private final double download_rate;
+
+	/**
+	 * Smoothed upload rate to the peer (in bytes/second)
+	 */
+	private final double upload_rate;
+
+	/**
+	 * Constructor
+	 * Copies a peer's current state.
+	 * @param p The peer
+	 */
+	PeerStats(PeerSocket p) {
+		id = p.getPeer().getID();
+		ip = p.getPeer().getIP();
+		current_piece = p.getCurrentPiece();
+		choked = p.peerChoking();
+		interested = p.peerInterested();
+		downloaded = p.getDownloaded();
+		uploaded = p.getUploaded();
+		download_rate = p.getDownloadRate();
+		upload_rate = p.getUploadRate();
+	}
+
+	/**
+	 * Gets the peer's ID.
+	 * @return a String
+	 */
+	public String getID() {
+		return id;
+	}
+
+	/**
+	 * Gets the peer's IP address.
+	 * @return a String
+	 */
+	public String getIP() {
+		return ip;
+	}
+
+	/**
+	 * Gets the index of the piece we were downloading from this peer.
+	 * @return -1 if there was no such piece
+	 */
+	public int getCurrentPiece() {
+		return current_piece;
+	}
+
+	/**
+	 * Whether we were choking the peer.
+	 * @return boolean
+	 */
+	public boolean isChoked() {
+		return choked;
+	}
+
+	/**
+	 * Whether the peer was interested.
+	 * @return boolean
+	 */
+	public boolean isInterested() {
+		return interested;
+	}
+
+	/**
+	 * Gets the number of bytes downloaded from the peer.
+	 * @return long
+	 */
+	public long getDownloaded() {
+		return downloaded;
+	}
+
+	/**
+	 * Gets the number of bytes uploaded to the peer.
+	 * @return long
+	 */
+	public long getUploaded() {
+		return uploaded;
+	}
+
+	/**
+	 * Gets the smoothed download rate from the peer.
+	 * @return bytes/second
+	 */
+	public double getDownloadRate() {
+		return download_rate;
+	}
+
+	/**
+	 * Gets the smoothed upload rate to the peer.
+	 * @return bytes/second
+	 */
+	public double getUploadRate() {
+		return upload_rate;
+	}
+}
@@ -0,0 +1,84 @@
+package connection;
+
+import java.lang.reflect.Method;
+
+import main.Log;
+
+/**
+ * Creates the threads which run PeerSockets, as either platform threads or,
+ * when enabled at startup, virtual threads (Java 21+).
+ * A virtual thread parks instead of holding an OS thread while it blocks on its socket,
+ * so thousands of mostly idle peers can share a small pool of carrier threads.
+ * Locks held across blocking I/O on peer threads are ReentrantLocks rather than
+ * monitors, since a virtual thread blocking inside synchronized pins its carrier.
+ * Virtual threads are reached through reflection, so the client still builds and runs
+ * on older JVMs, falling back to platform threads.
+ * @author Ari & Jay
+ */
+public class PeerThreads {
+	/**
+	 * Thread.Builder.name(String), or null if virtual threads are off or unavailable
+	 */
+	private static Method builder_name = null;
+
+	/**
+	 * Thread.Builder.unstarted(Runnable), or null if virtual threads are off or unavailable
+	 */
+	private static Method builder_unstarted = null;
+
+	/**
+	 * Thread.ofVirtual(), or null if virtual threads are off or unavailable
+	 */
+	private static Method of_virtual = null;
+
+	/**
+	 * Switches peer threads to virtual threads, if this JVM supports them.
+	 * Call once at startup, before any peers connect.
+	 * @param enabled true for virtual threads, false for platform threads
+	 * @return true if peer threads will be virtual
+	 */
+	public static boolean setVirtual(boolean enabled) {
+		of_virtual = null;
+		if(!enabled) {
+			return false;
+		}
+
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			builder_name = builder.getMethod("name", String.class);
+			builder_unstarted = builder.getMethod("unstarted", Runnable.class);
+			of_virtual = Thread.class.getMethod("ofVirtual");
+			return true;
+		} catch (Exception e) {
+			Log.logError("Virtual threads need Java 21 or later; using platform threads.");
+			return false;
+		}
+	}
+
+	/**
+	 * Whether peer threads are virtual.
+	 * @return boolean
+	 */
+	public static boolean isVirtual() {
+		return of_virtual != null;
+	}
+
+	/**
+	 * Creates an unstarted thread for a peer, or for an incoming connection not yet routed to a torrent.
+	 * @param peer The PeerSocket or connection to run
+	 * @param name The thread's name
+	 * @return a new Thread
+	 */
+	public static Thread newThread(Runnable peer, String name) {
+		Method virtual = of_virtual;
+		if(virtual != null) {
+			try {
+				Object builder = builder_name.invoke(virtual.invoke(null), name);
+				return (Thread)builder_unstarted.invoke(builder, peer);
+			} catch (Exception e) {
+				Log.logError("Unable to create virtual thread; using a platform thread.");
+			}
+		}
+		return new Thread(peer, name);
+	}
+}
@@ -3,9 +3,17 @@ package connection;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 
+import main.Metrics;
+
+import structures.Counter;
+import structures.RateEstimator;
+import structures.TokenBucket;
+
 /**
  * A wrapper for Socket with some extra send and get methods.
  * @author Ari Hayes
@@ -30,6 +38,41 @@ class TCPSocket {
 	 * Whether or not the socket is connected to a server.
 	 */
 	private boolean connected;
+	
+	/**
+	 * Limit on bytes sent, or null
+	 */
+	private volatile TokenBucket upload_limit = null;
+	
+	/**
+	 * Limit on bytes received, or null
+	 */
+	private volatile TokenBucket download_limit = null;
+	
+	/**
+	 * Counts every byte sent, including message headers, or null
+	 */
+	private volatile RateEstimator sent_meter = null;
+	
+	/**
+	 * Counts every byte received, including message headers, or null
+	 */
+	private volatile RateEstimator received_meter = null;
+	
+	/**
+	 * Most bytes sent or received per token reservation, so limited peers take turns.
+	 */
+	private static final int limit_chunk = 16384;
+	
+	/**
+	 * Bytes sent on every socket
+	 */
+	private static final Counter bytes_sent = Metrics.counter("peer.bytes_sent");
+	
+	/**
+	 * Bytes received on every socket
+	 */
+	private static final Counter bytes_received = Metrics.counter("peer.bytes_received");
 
 	/**
 	 * Constructor for TCPSocket
@@ -52,10 +95,12 @@ class TCPSocket {
 	 * Constructor for TCPSocket
 	 * @param ip The ip address to connect to.
 	 * @param port The port to connect to.
-	 * @throws Exception on stream or socket failure.
+	 * @param connect_timeout Longest wait for the connection to be accepted (in milliseconds)
+	 * @throws Exception on stream or socket failure, or timeout.
 	 */
-	public TCPSocket(String ip, int port) throws Exception {
-		socket = new Socket(ip,port);
+	public TCPSocket(String ip, int port, int connect_timeout) throws Exception {
+		socket = new Socket();
+		socket.connect(new InetSocketAddress(ip,port), connect_timeout);
 		socket.setSoTimeout(2*60*1000);//timeout 2 minutes for reads
 		ostream = socket.getOutputStream();
 		istream = socket.getInputStream();
@@ -73,6 +118,7 @@ class TCPSocket {
 
 		try {
 			ostream.write(b);
+			countSent(1);
 		} catch (IOException ex) {
 			tryClose();
 		}
@@ -83,15 +129,7 @@ class TCPSocket {
 	 * @param bytes The byte array to send
 	 */
 	public void sendByteArray(byte[] bytes) {
-		if (!connected()) {
-			return;
-		}
-
-		try {
-			ostream.write(bytes);
-		} catch (IOException ex) {
-			tryClose();
-		}
+		sendByteArray(bytes, 0, bytes.length);
 	}
 	
 	/**
@@ -107,6 +145,7 @@ class TCPSocket {
 
 		try {
 			ostream.write(bytes,offset,length);
+			countSent(length);
 		} catch (IOException ex) {
 			tryClose();
 		}
@@ -126,6 +165,7 @@ class TCPSocket {
 			ostream.write(i >> 16 & 0xff);
 			ostream.write(i >> 8 & 0xff);
 			ostream.write(i & 0xff);
+			countSent(4);
 		} catch (IOException ex) {
 			tryClose();
 		}
@@ -144,6 +184,7 @@ class TCPSocket {
 			for(int x = 0; x < str.length(); x++) {
 				ostream.write((byte)str.charAt(x));
 			}
+			countSent(str.length());
 		} catch (IOException ex) {
 			tryClose();
 		}
@@ -159,7 +200,9 @@ class TCPSocket {
 		}
 
 		try {
-			return istream.read();
+			int b = istream.read();
+			countReceived(1);
+			return b;
 		} catch (IOException ex) {
 			tryClose();
 			return -1;
@@ -176,16 +219,9 @@ class TCPSocket {
 			return null;
 		}
 		
-		try {
-			byte[] bytes = new byte[length];
-			for(int x = 0; x < length; x++) {
-				bytes[x] = (byte) istream.read();
-			}
-			return bytes;
-		} catch (IOException ex) {
-			tryClose();
-			return null;
-		}
+		byte[] bytes = new byte[length];
+		getByteArray(bytes, 0, length);
+		return connected() ? bytes : null;
 	}
 	
 	/**
@@ -199,6 +235,7 @@ class TCPSocket {
 			for(int x = offset; x < length + offset; x++) {
 				array[x] = (byte)istream.read();
 			}
+			countReceived(length);
 		} catch (IOException e) {
 			tryClose();
 		}
@@ -226,6 +263,7 @@ class TCPSocket {
 					i = i | next_byte;
 				}
 			}
+			countReceived(4);
 			return i;
 		} catch (IOException ex) {
 			tryClose();
@@ -254,6 +292,7 @@ class TCPSocket {
 					str = str + (char)next_byte;
 				}
 			}
+			countReceived(length);
 			return str;
 		} catch (IOException ex) {
 			tryClose();
@@ -261,6 +300,91 @@ class TCPSocket {
 		}
 	}
 
+	/**
+	 * Sets the buckets limiting this socket's transfer rates.
+	 * Transfers are limited only by the caller waiting in awaitUpload() & awaitDownload(),
+	 * which it should do without holding locks other threads need, since the wait may be long.
+	 * @param upload Limit on bytes sent, or null
+	 * @param download Limit on bytes received, or null
+	 */
+	public void setLimits(TokenBucket upload, TokenBucket download) {
+		upload_limit = upload;
+		download_limit = download;
+	}
+
+	/**
+	 * Waits until bytes may be sent under the upload limit, if any.
+	 * @param bytes The number of bytes about to be sent
+	 */
+	public void awaitUpload(int bytes) {
+		await(upload_limit, bytes);
+	}
+
+	/**
+	 * Waits until bytes may be received under the download limit, if any.
+	 * @param bytes The number of bytes about to be received
+	 */
+	public void awaitDownload(int bytes) {
+		await(download_limit, bytes);
+	}
+
+	/**
+	 * Takes tokens from a bucket in chunks, so limited peers take turns.
+	 * @param limit The bucket, or null for no limit
+	 * @param bytes The number of tokens to take
+	 */
+	private static void await(TokenBucket limit, int bytes) {
+		if(limit == null) {
+			return;
+		}
+		for(int x = 0; x < bytes; x += limit_chunk) {
+			limit.acquire(Math.min(limit_chunk, bytes - x));
+		}
+	}
+
+	/**
+	 * Sets the estimators which count every byte sent and received on this socket.
+	 * @param sent Counts bytes sent, or null
+	 * @param received Counts bytes received, or null
+	 */
+	public void setMeters(RateEstimator sent, RateEstimator received) {
+		sent_meter = sent;
+		received_meter = received;
+	}
+	
+	/**
+	 * Adds to the sent byte meter, if any, and the metrics.
+	 * @param bytes The number of bytes sent
+	 */
+	private void countSent(int bytes) {
+		bytes_sent.add(bytes);
+		RateEstimator meter = sent_meter;
+		if(meter != null) {
+			meter.add(bytes);
+		}
+	}
+	
+	/**
+	 * Adds to the received byte meter, if any, and the metrics.
+	 * Also used for bytes read from the socket before it was wrapped, such as a routed handshake.
+	 * @param bytes The number of bytes received
+	 */
+	void countReceived(int bytes) {
+		bytes_received.add(bytes);
+		RateEstimator meter = received_meter;
+		if(meter != null) {
+			meter.add(bytes);
+		}
+	}
+
+	/**
+	 * Gets the address of the other end.
+	 * @return the InetAddress
+	 */
+	public InetAddress getRemoteAddress() {
+		return socket.getInetAddress();
+	}
+
 	/**
 	 * Gets the connection state.
 	 * @return true iff the socket is connected
@@ -4,6 +4,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 
+import main.Events;
+import main.Metrics;
+
+import structures.Counter;
+import structures.Histogram;
+
 /**
  * A class for sending tracker requests and getting a response stream.
  * @author Ari & Jay
@@ -14,6 +20,16 @@ public class Tracker {
 	 */
 	private String url;
 	
+	/**
+	 * Time from sending a request to getting the response (in microseconds)
+	 */
+	private static final Histogram announce_latency = Metrics.histogram("tracker.announce_us");
+	
+	/**
+	 * Requests which failed
+	 */
+	private static final Counter announce_failures = Metrics.counter("tracker.announce_failures");
+	
 	/**
 	 * The info hash, url encoded
 	 */
@@ -52,7 +68,23 @@ public class Tracker {
 	 * @return tracker response as an InputStream
 	 * @throws IOException on failed URL get request
 	 */
-	public InputStream request(long uploaded, long downloaded, int left, String event) throws IOException {
-		return new URL(url + "?info_hash=" + hash + "&peer_id=" + id + "&port=" + port + "&uploaded=" + uploaded + "&downloaded=" + downloaded + "&left=" + left + "&event=" + event).openStream();
+	public InputStream request(long uploaded, long downloaded, long left, String event) throws IOException {
+		Events.TrackerAnnounce announce_event = new Events.TrackerAnnounce();
+		announce_event.begin();
+		announce_event.tracker = url;
+		announce_event.event = event;
+		long start = System.nanoTime();
+		try {
+			InputStream response = new URL(url + "?info_hash=" + hash + "&peer_id=" + id + "&port=" + port + "&uploaded=" + uploaded + "&downloaded=" + downloaded + "&left=" + left + "&event=" + event).openStream();
+			announce_latency.record((System.nanoTime() - start) / 1000);
+			announce_event.succeeded = true;
+			return response;
+		} catch (IOException e) {
+			announce_failures.increment();
+			throw e;
+		}
+		finally {
+			announce_event.commit();
+		}
 	}
 }
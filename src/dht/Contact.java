@@ -0,0 +1,39 @@
+package dht;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A DHT node we know of: its ID, its address, and how recently it answered us.
+ * @author Ari & Jay
+ */
+class Contact {
+	/**
+	 * The node's 20-byte ID, or null for a bootstrap node not yet heard from
+	 */
+	final byte[] id;
+
+	/**
+	 * The node's UDP address
+	 */
+	final InetSocketAddress address;
+
+	/**
+	 * Time the node last sent us a message (in milliseconds), or 0 if never
+	 */
+	long last_seen = 0;
+
+	/**
+	 * Queries to the node which timed out since it last answered
+	 */
+	int failures = 0;
+
+	/**
+	 * Constructor
+	 * @param id The node's 20-byte ID, or null if unknown
+	 * @param address The node's UDP address
+	 */
+	Contact(byte[] id, InetSocketAddress address) {
+		this.id = id;
+		this.address = address;
+	}
+}
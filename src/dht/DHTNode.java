@@ -0,0 +1,904 @@
+package dht;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import main.Log;
+import main.Metrics;
+
+import structures.Counter;
+import structures.InfoHash;
+import structures.Peer;
+import bencoding.BencodeDecoder;
+import bencoding.BencodeEncoder;
+
+/**
+ * A node of the mainline DHT (BEP 5), for finding a torrent's peers without a tracker.
+ * The node speaks KRPC, bencoded dictionaries over UDP: it answers ping, find_node,
+ * get_peers & announce_peer queries from other nodes, and runs iterative lookups to find
+ * the peers of a torrent and announce ourselves to the nodes closest to its info hash.
+ * One thread receives messages and times out unanswered queries; another keeps the
+ * routing table fresh, re-bootstrapping while it knows too few nodes.
+ * At most max_outstanding queries are unanswered at once; a lookup waits for a free slot.
+ * Only IPv4 nodes & peers are supported.
+ * Threadsafe
+ * @author Ari & Jay
+ */
+public class DHTNode {
+	/**
+	 * Bootstrap nodes of the public DHT, as "host:port"
+	 */
+	private static final String[] default_bootstrap = {"router.bittorrent.com:6881", "dht.transmissionbt.com:6881", "router.utorrent.com:6881"};
+
+	/**
+	 * Time a query may go unanswered before it fails (in milliseconds)
+	 */
+	static final long query_timeout = 3000;
+
+	/**
+	 * Most queries unanswered at once
+	 */
+	private static final int max_outstanding = 64;
+
+	/**
+	 * Time between checks for timed-out queries (in milliseconds)
+	 */
+	private static final int sweep_interval = 250;
+
+	/**
+	 * Time between routing table upkeep rounds (in milliseconds)
+	 */
+	private static final long maintenance_interval = 60 * 1000;
+
+	/**
+	 * Time after which a node we haven't heard from is pinged (in milliseconds)
+	 */
+	private static final long refresh_interval = 15 * 60 * 1000;
+
+	/**
+	 * Most nodes pinged per upkeep round
+	 */
+	private static final int max_pings = 32;
+
+	/**
+	 * Time between token secret changes; a token stays valid for up to twice this (in milliseconds)
+	 */
+	private static final long token_interval = 5 * 60 * 1000;
+
+	/**
+	 * Length of the tokens we hand out
+	 */
+	private static final int token_length = 8;
+
+	/**
+	 * Most peers sent in one get_peers reply
+	 */
+	private static final int max_values = 50;
+
+	/**
+	 * Size of the receive buffer; larger datagrams are truncated and fail to decode
+	 */
+	private static final int max_packet = 2048;
+
+	/**
+	 * Size of a compact node: 20-byte ID, 4-byte IPv4 address & 2-byte port
+	 */
+	private static final int compact_node_length = 26;
+
+	/**
+	 * Size of a compact peer: 4-byte IPv4 address & 2-byte port
+	 */
+	private static final int compact_peer_length = 6;
+
+	/**
+	 * KRPC error code for a malformed query
+	 */
+	private static final int error_protocol = 203;
+
+	/**
+	 * KRPC error code for an unknown query method
+	 */
+	private static final int error_method = 204;
+
+	/**
+	 * Queries sent, by every node
+	 */
+	private static final Counter queries_sent = Metrics.counter("dht.queries_sent");
+
+	/**
+	 * Queries received, by every node
+	 */
+	private static final Counter queries_received = Metrics.counter("dht.queries_received");
+
+	/**
+	 * Queries sent which went unanswered, by every node
+	 */
+	private static final Counter timeouts = Metrics.counter("dht.timeouts");
+
+	/**
+	 * Datagrams received which weren't valid KRPC, by every node
+	 */
+	private static final Counter invalid = Metrics.counter("dht.invalid");
+
+	/**
+	 * Our node ID
+	 */
+	private final byte[] my_id = new byte[20];
+
+	/**
+	 * Socket the node sends & receives on
+	 */
+	private DatagramSocket socket;
+
+	/**
+	 * Bootstrap nodes, possibly unresolved
+	 */
+	private List<InetSocketAddress> bootstrap;
+
+	/**
+	 * The nodes we know
+	 */
+	private RoutingTable table;
+
+	/**
+	 * Peers announced to us
+	 */
+	private PeerStore store = new PeerStore();
+
+	/**
+	 * Unanswered queries, by transaction ID
+	 */
+	private ConcurrentHashMap<Integer,Call> calls = new ConcurrentHashMap<Integer,Call>();
+
+	/**
+	 * One permit per query which may be unanswered
+	 */
+	private Semaphore slots = new Semaphore(max_outstanding);
+
+	/**
+	 * Next transaction ID, modulo 65536
+	 */
+	private AtomicInteger next_transaction;
+
+	/**
+	 * Source of node IDs & token secrets
+	 */
+	private SecureRandom random = new SecureRandom();
+
+	/**
+	 * Secret our tokens are made from; guarded by this
+	 */
+	private byte[] secret = new byte[20];
+
+	/**
+	 * The secret before the last change, whose tokens are still accepted; guarded by this
+	 */
+	private byte[] previous_secret;
+
+	/**
+	 * Time the secret last changed (in milliseconds); guarded by this
+	 */
+	private long secret_time;
+
+	/**
+	 * Whether the node has been stopped
+	 */
+	private volatile boolean done = false;
+
+	/**
+	 * Thread doing routing table upkeep, or null before start()
+	 */
+	private Thread maintainer = null;
+
+	/**
+	 * Constructor
+	 * @param bind Address to receive on
+	 * @param bootstrap Nodes to join the DHT through; may be unresolved, and are resolved on each use
+	 * @throws SocketException if the address can't be bound
+	 */
+	public DHTNode(InetSocketAddress bind, List<InetSocketAddress> bootstrap) throws SocketException {
+		this.bootstrap = bootstrap;
+		socket = new DatagramSocket(bind);
+		socket.setSoTimeout(sweep_interval);
+		random.nextBytes(my_id);
+		random.nextBytes(secret);
+		previous_secret = secret;
+		secret_time = System.currentTimeMillis();
+		table = new RoutingTable(my_id);
+		next_transaction = new AtomicInteger(random.nextInt());
+	}
+
+	/**
+	 * Parses a "host:port" address, without resolving it.
+	 * @param address The address
+	 * @return an unresolved InetSocketAddress
+	 * @throws NumberFormatException if there is no valid port
+	 */
+	public static InetSocketAddress parseAddress(String address) {
+		int colon = address.lastIndexOf(':');
+		if(colon <= 0) {
+			throw new NumberFormatException("Expected host:port");
+		}
+		int port = Integer.parseInt(address.substring(colon + 1));
+		if(port <= 0 || port > 65535) {
+			throw new NumberFormatException("Port out of range");
+		}
+		return InetSocketAddress.createUnresolved(address.substring(0, colon), port);
+	}
+
+	/**
+	 * Gets the public DHT's usual bootstrap nodes.
+	 * @return a new List of unresolved addresses
+	 */
+	public static List<InetSocketAddress> defaultBootstrap() {
+		List<InetSocketAddress> nodes = new ArrayList<InetSocketAddress>();
+		for(String address : default_bootstrap) {
+			nodes.add(parseAddress(address));
+		}
+		return nodes;
+	}
+
+	/**
+	 * Starts receiving, and joins the DHT in the background.
+	 */
+	public void start() {
+		Thread receiver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				receive();
+			}
+		}, "DHT receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+
+		maintainer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				maintain();
+			}
+		}, "DHT maintenance");
+		maintainer.setDaemon(true);
+		maintainer.start();
+	}
+
+	/**
+	 * Stops the node, failing any unanswered queries so running lookups end.
+	 */
+	public void stop() {
+		done = true;
+		socket.close();
+		if(maintainer != null) {
+			maintainer.interrupt();
+		}
+		sweep(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Joins the DHT by looking up our own ID, starting from the bootstrap nodes & any nodes
+	 * already known, which fills the routing table with nodes near us; then refreshes the
+	 * buckets farther away than the closest node found, with a lookup of a random ID in each,
+	 * so nodes far from us know of us and we of them.
+	 * Blocks until the lookups end.
+	 */
+	public void bootstrap() {
+		new Lookup(this, my_id, false).run(startingNodes(my_id));
+		int deepest = table.deepest();
+		for(int x = 0; x < deepest && !done; x++) {
+			byte[] target = table.randomID(x, random);
+			new Lookup(this, target, false).run(startingNodes(target));
+		}
+	}
+
+	/**
+	 * Finds peers of a torrent. Blocks until the lookup ends.
+	 * @param info_hash The torrent's info hash
+	 * @return the peers found; possibly none
+	 */
+	public List<Peer> getPeers(InfoHash info_hash) {
+		Lookup lookup = new Lookup(this, info_hash.toBytes(), true);
+		lookup.run(startingNodes(info_hash.toBytes()));
+		return lookup.getPeers();
+	}
+
+	/**
+	 * Finds peers of a torrent, and announces that we accept its connections on a port
+	 * to the closest nodes to its info hash. Blocks until the lookup ends.
+	 * @param info_hash The torrent's info hash
+	 * @param port The port we listen on
+	 * @return the peers found; possibly none
+	 */
+	public List<Peer> announce(InfoHash info_hash, int port) {
+		Lookup lookup = new Lookup(this, info_hash.toBytes(), true);
+		lookup.run(startingNodes(info_hash.toBytes()));
+
+		for(Contact c : lookup.getAnnounceable()) {
+			Map<String,Object> args = new HashMap<String,Object>();
+			args.put("info_hash", info_hash.toBytes());
+			args.put("port", port);
+			args.put("implied_port", 0);
+			args.put("token", lookup.getToken(c.address));
+			query(c, "announce_peer", args, null);
+		}
+		return lookup.getPeers();
+	}
+
+	/**
+	 * @return the UDP port the node receives on
+	 */
+	public int getPort() {
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * @return the number of nodes in the routing table
+	 */
+	public int getNodeCount() {
+		return table.size();
+	}
+
+	/**
+	 * @return our node ID; not to be modified
+	 */
+	byte[] getID() {
+		return my_id;
+	}
+
+	/**
+	 * Sends a query, waiting up to query_timeout for a free query slot.
+	 * The answer, timeout or error is reported to the lookup, if any.
+	 * @param contact The node to query
+	 * @param method The query method
+	 * @param args The query arguments, to which our ID is added
+	 * @param lookup The lookup to report to, or null
+	 * @return false if the query wasn't sent, and won't be reported
+	 */
+	boolean query(Contact contact, String method, Map<String,Object> args, Lookup lookup) {
+		if(done || contact.address.isUnresolved()) {
+			return false;
+		}
+		try {
+			if(!slots.tryAcquire(query_timeout, TimeUnit.MILLISECONDS)) {
+				return false;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+
+		int transaction;
+		Call call;
+		do {
+			transaction = next_transaction.getAndIncrement() & 0xFFFF;
+			call = new Call(transaction, contact, lookup, System.currentTimeMillis() + query_timeout);
+		} while(calls.putIfAbsent(transaction, call) != null);
+
+		args.put("id", my_id);
+		Map<String,Object> message = new HashMap<String,Object>();
+		message.put("t", new byte[]{(byte)(transaction >> 8), (byte)transaction});
+		message.put("y", "q");
+		message.put("q", method);
+		message.put("a", args);
+		try {
+			send(message, contact.address);
+		} catch (IOException e) {
+			//Unless a sweep already failed it:
+			if(calls.remove(transaction, call)) {
+				slots.release();
+				return false;
+			}
+			return true;
+		}
+		queries_sent.increment();
+		return true;
+	}
+
+	/**
+	 * Code for the thread receiving messages, which also times out unanswered queries.
+	 */
+	private void receive() {
+		byte[] buffer = new byte[max_packet];
+		long next_sweep = 0;
+		while(!done) {
+			long now = System.currentTimeMillis();
+			if(now >= next_sweep) {
+				sweep(now);
+				next_sweep = now + sweep_interval;
+			}
+
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			try {
+				socket.receive(packet);
+			} catch (SocketTimeoutException e) {
+				continue;
+			} catch (IOException e) {
+				if(!done) {
+					Log.warnLimited("dht receive", "DHT receive failed: " + e.getMessage());
+				}
+				if(socket.isClosed()) {
+					return;
+				}
+				continue;
+			}
+
+			//Compact formats are IPv4 only:
+			if(!(packet.getAddress() instanceof Inet4Address)) {
+				continue;
+			}
+			try {
+				Object message = new BencodeDecoder(packet.getData(), packet.getOffset(), packet.getLength()).read();
+				handle(dictionary(message), (InetSocketAddress)packet.getSocketAddress());
+			} catch (IOException e) {
+				invalid.increment();
+			}
+		}
+	}
+
+	/**
+	 * Handles a received message.
+	 * @param message The decoded message
+	 * @param from Address it came from
+	 * @throws IOException if it's malformed
+	 */
+	private void handle(Map<String,Object> message, InetSocketAddress from) throws IOException {
+		byte[] transaction = bytes(message.get("t"));
+		String type = string(message.get("y"));
+		if(type.equals("q")) {
+			handleQuery(message, transaction, from);
+		}
+		else if(type.equals("r") || type.equals("e")) {
+			handleReply(message, transaction, from, type.equals("r"));
+		}
+	}
+
+	/**
+	 * Answers a query, and records the node which sent it.
+	 * @param message The query
+	 * @param transaction Its transaction ID
+	 * @param from Address it came from
+	 * @throws IOException if it's malformed
+	 */
+	private void handleQuery(Map<String,Object> message, byte[] transaction, InetSocketAddress from) throws IOException {
+		queries_received.increment();
+		String method = string(message.get("q"));
+		Map<String,Object> args = dictionary(message.get("a"));
+		byte[] id = bytes(args.get("id"));
+		if(id.length != 20) {
+			sendError(transaction, from, error_protocol, "Invalid node ID");
+			return;
+		}
+		long now = System.currentTimeMillis();
+
+		Map<String,Object> reply = new HashMap<String,Object>();
+		reply.put("id", my_id);
+		if(method.equals("ping")) {
+			//Answered with just our ID
+		}
+		else if(method.equals("find_node")) {
+			byte[] target = bytes(args.get("target"));
+			if(target.length != 20) {
+				sendError(transaction, from, error_protocol, "Invalid target");
+				return;
+			}
+			reply.put("nodes", encodeNodes(table.closest(target, RoutingTable.bucket_size)));
+		}
+		else if(method.equals("get_peers")) {
+			byte[] info_hash = bytes(args.get("info_hash"));
+			if(info_hash.length != 20) {
+				sendError(transaction, from, error_protocol, "Invalid info_hash");
+				return;
+			}
+			reply.put("token", token(from.getAddress(), currentSecret(now)));
+			//Nodes even with values, so lookups keep converging on the closest nodes:
+			reply.put("nodes", encodeNodes(table.closest(info_hash, RoutingTable.bucket_size)));
+			List<byte[]> values = store.get(new InfoHash(info_hash, 0), max_values, now);
+			if(!values.isEmpty()) {
+				reply.put("values", new ArrayList<Object>(values));
+			}
+		}
+		else if(method.equals("announce_peer")) {
+			byte[] info_hash = bytes(args.get("info_hash"));
+			byte[] token = bytes(args.get("token"));
+			Object implied = args.get("implied_port");
+			Object port = args.get("port");
+			int peer_port = from.getPort();
+			if(!(implied instanceof Long && (Long)implied != 0)) {
+				if(!(port instanceof Long && (Long)port > 0 && (Long)port <= 65535)) {
+					sendError(transaction, from, error_protocol, "Invalid port");
+					return;
+				}
+				peer_port = ((Long)port).intValue();
+			}
+			if(info_hash.length != 20 || !validToken(token, from.getAddress(), now)) {
+				sendError(transaction, from, error_protocol, "Invalid token");
+				return;
+			}
+			store.add(new InfoHash(info_hash, 0), compact(from.getAddress(), peer_port), now);
+		}
+		else {
+			sendError(transaction, from, error_method, "Method unknown");
+			return;
+		}
+
+		table.seen(id, from, now);
+		Map<String,Object> response = new HashMap<String,Object>();
+		response.put("t", transaction);
+		response.put("y", "r");
+		response.put("r", reply);
+		try {
+			send(response, from);
+		} catch (IOException e) {
+			Log.warnLimited("dht send", "DHT send failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Handles the answer or error for one of our queries, ignoring it unless it comes
+	 * from the node queried.
+	 * @param message The reply
+	 * @param transaction Its transaction ID
+	 * @param from Address it came from
+	 * @param answer true for an answer, false for an error
+	 */
+	private void handleReply(Map<String,Object> message, byte[] transaction, InetSocketAddress from, boolean answer) {
+		if(transaction.length != 2) {
+			return;
+		}
+		Integer key = ((transaction[0] & 0xFF) << 8) | (transaction[1] & 0xFF);
+		Call call = calls.get(key);
+		if(call == null || !call.contact.address.equals(from) || !calls.remove(key, call)) {
+			return;
+		}
+		slots.release();
+
+		byte[] id = null;
+		List<Contact> nodes = new ArrayList<Contact>();
+		List<String> values = new ArrayList<String>();
+		byte[] token = null;
+		if(answer) {
+			try {
+				Map<String,Object> reply = dictionary(message.get("r"));
+				id = bytes(reply.get("id"));
+				if(reply.get("nodes") instanceof byte[]) {
+					nodes = decodeNodes((byte[])reply.get("nodes"));
+				}
+				if(reply.get("values") instanceof List) {
+					for(Object value : (List<?>)reply.get("values")) {
+						if(value instanceof byte[] && ((byte[])value).length == compact_peer_length) {
+							String peer = decodePeer((byte[])value);
+							if(peer != null) {
+								values.add(peer);
+							}
+						}
+					}
+				}
+				if(reply.get("token") instanceof byte[]) {
+					token = (byte[])reply.get("token");
+				}
+			} catch (IOException e) {
+				invalid.increment();
+				id = null;
+			}
+		}
+
+		if(id == null || id.length != 20) {
+			if(call.lookup != null) {
+				call.lookup.failed(from);
+			}
+			return;
+		}
+		table.seen(id, from, System.currentTimeMillis());
+		if(call.lookup != null) {
+			call.lookup.responded(from, id, nodes, values, token);
+		}
+	}
+
+	/**
+	 * Fails the queries whose time is up.
+	 * @param now The current time (in milliseconds)
+	 */
+	private void sweep(long now) {
+		for(Call call : calls.values()) {
+			if(call.deadline <= now && calls.remove(call.transaction, call)) {
+				slots.release();
+				timeouts.increment();
+				if(call.contact.id != null) {
+					table.failed(call.contact.id);
+				}
+				if(call.lookup != null) {
+					call.lookup.failed(call.contact.address);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Code for the routing table upkeep thread: joins the DHT while the table is nearly
+	 * empty, pings nodes not heard from lately, and expires announced peers.
+	 */
+	private void maintain() {
+		while(!done) {
+			long now = System.currentTimeMillis();
+			store.expire(now);
+			if(table.size() < RoutingTable.bucket_size) {
+				bootstrap();
+			}
+			int pinged = 0;
+			for(Contact c : table.questionable(now - refresh_interval)) {
+				if(done || pinged++ >= max_pings) {
+					break;
+				}
+				query(c, "ping", new HashMap<String,Object>(), null);
+			}
+
+			try {
+				Thread.sleep(maintenance_interval);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Gets the nodes to start a lookup from: the closest known to the target, and
+	 * the bootstrap nodes if we know too few.
+	 * @param target The ID or info hash
+	 * @return the nodes
+	 */
+	private List<Contact> startingNodes(byte[] target) {
+		List<Contact> nodes = table.closest(target, RoutingTable.bucket_size);
+		if(nodes.size() >= RoutingTable.bucket_size) {
+			return nodes;
+		}
+		for(InetSocketAddress address : bootstrap) {
+			if(address.isUnresolved()) {
+				address = new InetSocketAddress(address.getHostString(), address.getPort());
+			}
+			if(!address.isUnresolved() && address.getAddress() instanceof Inet4Address) {
+				nodes.add(new Contact(null, address));
+			}
+		}
+		return nodes;
+	}
+
+	/**
+	 * Gets the secret for new tokens, changing it every token_interval.
+	 * @param now The current time (in milliseconds)
+	 * @return the secret
+	 */
+	private synchronized byte[] currentSecret(long now) {
+		if(now - secret_time >= token_interval) {
+			previous_secret = secret;
+			secret = new byte[20];
+			random.nextBytes(secret);
+			secret_time = now;
+		}
+		return secret;
+	}
+
+	/**
+	 * Checks a token from an announce_peer query, made from the current or previous secret.
+	 * @param token The token
+	 * @param address Address of the node announcing
+	 * @param now The current time (in milliseconds)
+	 * @return boolean
+	 */
+	private synchronized boolean validToken(byte[] token, InetAddress address, long now) {
+		byte[] current = currentSecret(now);
+		return MessageDigest.isEqual(token, token(address, current)) || MessageDigest.isEqual(token, token(address, previous_secret));
+	}
+
+	/**
+	 * Makes the token for a node's address: the start of SHA-1(secret, address), so only we
+	 * can make it and only that address can use it.
+	 * @param address The node's address
+	 * @param secret The secret
+	 * @return the token
+	 */
+	private static byte[] token(InetAddress address, byte[] secret) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			md.update(secret);
+			md.update(address.getAddress());
+			return Arrays.copyOf(md.digest(), token_length);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Sends an error reply.
+	 * @param transaction The query's transaction ID
+	 * @param to Address of the node which sent the query
+	 * @param code The KRPC error code
+	 * @param text The error text
+	 */
+	private void sendError(byte[] transaction, InetSocketAddress to, int code, String text) {
+		List<Object> error = new ArrayList<Object>();
+		error.add(code);
+		error.add(text);
+		Map<String,Object> message = new HashMap<String,Object>();
+		message.put("t", transaction);
+		message.put("y", "e");
+		message.put("e", error);
+		try {
+			send(message, to);
+		} catch (IOException e) {
+			Log.warnLimited("dht send", "DHT send failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Sends a message.
+	 * @param message The message
+	 * @param to The node's address
+	 * @throws IOException if sending fails
+	 */
+	private void send(Map<String,Object> message, InetSocketAddress to) throws IOException {
+		byte[] data = BencodeEncoder.encode(message);
+		socket.send(new DatagramPacket(data, data.length, to));
+	}
+
+	/**
+	 * Encodes nodes in compact form, leaving out non-IPv4 nodes.
+	 * @param nodes The nodes
+	 * @return 26 bytes per node
+	 */
+	static byte[] encodeNodes(List<Contact> nodes) {
+		byte[] bytes = new byte[nodes.size() * compact_node_length];
+		int length = 0;
+		for(Contact c : nodes) {
+			if(c.id == null || !(c.address.getAddress() instanceof Inet4Address)) {
+				continue;
+			}
+			System.arraycopy(c.id, 0, bytes, length, 20);
+			System.arraycopy(compact(c.address.getAddress(), c.address.getPort()), 0, bytes, length + 20, compact_peer_length);
+			length += compact_node_length;
+		}
+		return Arrays.copyOf(bytes, length);
+	}
+
+	/**
+	 * Decodes nodes in compact form, skipping any with port 0.
+	 * @param bytes 26 bytes per node
+	 * @return the nodes
+	 */
+	static List<Contact> decodeNodes(byte[] bytes) {
+		ArrayList<Contact> nodes = new ArrayList<Contact>();
+		for(int x = 0; x + compact_node_length <= bytes.length; x += compact_node_length) {
+			int port = ((bytes[x + 24] & 0xFF) << 8) | (bytes[x + 25] & 0xFF);
+			if(port == 0) {
+				continue;
+			}
+			try {
+				InetAddress address = InetAddress.getByAddress(Arrays.copyOfRange(bytes, x + 20, x + 24));
+				nodes.add(new Contact(Arrays.copyOfRange(bytes, x, x + 20), new InetSocketAddress(address, port)));
+			} catch (UnknownHostException e) {
+				continue;
+			}
+		}
+		return nodes;
+	}
+
+	/**
+	 * Encodes an IPv4 address & port in compact form.
+	 * @param address The IPv4 address
+	 * @param port The port
+	 * @return 6 bytes
+	 */
+	private static byte[] compact(InetAddress address, int port) {
+		byte[] bytes = new byte[compact_peer_length];
+		System.arraycopy(address.getAddress(), 0, bytes, 0, 4);
+		bytes[4] = (byte)(port >> 8);
+		bytes[5] = (byte)port;
+		return bytes;
+	}
+
+	/**
+	 * Decodes a compact peer.
+	 * @param bytes 6 bytes
+	 * @return "ip:port", or null for port 0
+	 */
+	private static String decodePeer(byte[] bytes) {
+		int port = ((bytes[4] & 0xFF) << 8) | (bytes[5] & 0xFF);
+		if(port == 0) {
+			return null;
+		}
+		return (bytes[0] & 0xFF) + "." + (bytes[1] & 0xFF) + "." + (bytes[2] & 0xFF) + "." + (bytes[3] & 0xFF) + ":" + port;
+	}
+
+	/**
+	 * Casts a decoded value to a byte string.
+	 * @param value The decoded value
+	 * @return the bytes
+	 * @throws IOException if the value isn't a byte string
+	 */
+	private static byte[] bytes(Object value) throws IOException {
+		if(!(value instanceof byte[])) {
+			throw new IOException("Expected a bencoded string");
+		}
+		return (byte[])value;
+	}
+
+	/**
+	 * Casts a decoded value to a String.
+	 * @param value The decoded value
+	 * @return the String
+	 * @throws IOException if the value isn't a byte string
+	 */
+	private static String string(Object value) throws IOException {
+		return new String(bytes(value), StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Casts a decoded value to a dictionary.
+	 * @param value The decoded value
+	 * @return the dictionary
+	 * @throws IOException if the value isn't a dictionary
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String,Object> dictionary(Object value) throws IOException {
+		if(!(value instanceof Map)) {
+			throw new IOException("Expected a bencoded dictionary");
+		}
+		return (Map<String,Object>)value;
+	}
+
+	/**
+	 * A query waiting for its answer.
+	 */
+	private static class Call {
+		/**
+		 * The transaction ID
+		 */
+		final int transaction;
+
+		/**
+		 * The node queried
+		 */
+		final Contact contact;
+
+		/**
+		 * The lookup to report to, or null
+		 */
+		final Lookup lookup;
+
+		/**
+		 * Time the query fails if unanswered (in milliseconds)
+		 */
+		final long deadline;
+
+		/**
+		 * Constructor
+		 * @param transaction The transaction ID
+		 * @param contact The node queried
+		 * @param lookup The lookup to report to, or null
+		 * @param deadline Time the query fails if unanswered (in milliseconds)
+		 */
+		Call(int transaction, Contact contact, Lookup lookup, long deadline) {
+			this.transaction = transaction;
+			this.contact = contact;
+			this.lookup = lookup;
+			this.deadline = deadline;
+		}
+	}
+}
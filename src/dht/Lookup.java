@@ -0,0 +1,276 @@
+package dht;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import structures.Peer;
+
+/**
+ * An iterative Kademlia lookup: finds the nodes closest to a target ID by repeatedly
+ * querying the closest nodes found so far, alpha at a time, until the bucket_size closest
+ * nodes which still answer have all answered.
+ * A get_peers lookup also collects the peers the nodes know for the target info hash,
+ * and the tokens needed to announce to them.
+ * Threadsafe; run() blocks the calling thread while replies arrive on the node's.
+ * @author Ari & Jay
+ */
+class Lookup {
+	/**
+	 * Most queries in flight at once (Kademlia's alpha)
+	 */
+	static final int alpha = 3;
+
+	/**
+	 * Most queries one lookup sends, so a lookup among unresponsive nodes ends
+	 */
+	static final int max_queries = 64;
+
+	/**
+	 * Most peers collected
+	 */
+	private static final int max_peers = 200;
+
+	/**
+	 * The node sending the queries
+	 */
+	private DHTNode node;
+
+	/**
+	 * The ID or info hash looked up
+	 */
+	private byte[] target;
+
+	/**
+	 * Whether this is a get_peers lookup, else find_node
+	 */
+	private boolean get_peers;
+
+	/**
+	 * Nodes found, closest first
+	 */
+	private ArrayList<Contact> candidates = new ArrayList<Contact>();
+
+	/**
+	 * Addresses of every node found
+	 */
+	private HashSet<InetSocketAddress> known = new HashSet<InetSocketAddress>();
+
+	/**
+	 * Addresses of the nodes queried
+	 */
+	private HashSet<InetSocketAddress> queried = new HashSet<InetSocketAddress>();
+
+	/**
+	 * Addresses of the nodes which timed out or sent an error
+	 */
+	private HashSet<InetSocketAddress> failed = new HashSet<InetSocketAddress>();
+
+	/**
+	 * Nodes which answered, with the IDs they answered with
+	 */
+	private ArrayList<Contact> responded = new ArrayList<Contact>();
+
+	/**
+	 * Tokens from nodes which answered get_peers, by address
+	 */
+	private HashMap<InetSocketAddress,byte[]> tokens = new HashMap<InetSocketAddress,byte[]>();
+
+	/**
+	 * Peers collected, as "ip:port"
+	 */
+	private LinkedHashSet<String> peers = new LinkedHashSet<String>();
+
+	/**
+	 * Queries sent & not yet answered or failed
+	 */
+	private int in_flight = 0;
+
+	/**
+	 * Queries sent
+	 */
+	private int queries = 0;
+
+	/**
+	 * Constructor
+	 * @param node The node sending the queries
+	 * @param target The ID or info hash to look up
+	 * @param get_peers true for a get_peers lookup, false for find_node
+	 */
+	Lookup(DHTNode node, byte[] target, boolean get_peers) {
+		this.node = node;
+		this.target = target;
+		this.get_peers = get_peers;
+	}
+
+	/**
+	 * Runs the lookup, returning when it converges, runs out of nodes or queries,
+	 * or the node stops.
+	 * @param start Nodes to start from
+	 */
+	void run(List<Contact> start) {
+		synchronized(this) {
+			add(start);
+		}
+
+		while(true) {
+			ArrayList<Contact> next;
+			synchronized(this) {
+				next = next();
+				if(next.isEmpty()) {
+					if(in_flight == 0) {
+						return;
+					}
+					try {
+						wait(DHTNode.query_timeout);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+					continue;
+				}
+				in_flight += next.size();
+				queries += next.size();
+				for(Contact c : next) {
+					queried.add(c.address);
+				}
+			}
+
+			//Queried outside the lock, as sending may wait for a free query slot:
+			for(Contact c : next) {
+				Map<String,Object> args = new HashMap<String,Object>();
+				args.put(get_peers ? "info_hash" : "target", target);
+				if(!node.query(c, get_peers ? "get_peers" : "find_node", args, this)) {
+					failed(c.address);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Picks the next nodes to query: unqueried nodes among the bucket_size closest
+	 * which haven't failed, as long as fewer than alpha queries are in flight.
+	 * Called holding the lock.
+	 * @return the nodes; empty if none are due
+	 */
+	private ArrayList<Contact> next() {
+		ArrayList<Contact> next = new ArrayList<Contact>();
+		int considered = 0;
+		for(Contact c : candidates) {
+			if(in_flight + next.size() >= alpha || queries + next.size() >= max_queries || considered >= RoutingTable.bucket_size) {
+				break;
+			}
+			if(failed.contains(c.address)) {
+				continue;
+			}
+			considered++;
+			if(!queried.contains(c.address)) {
+				next.add(c);
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Adds newly found nodes to the candidates, skipping known ones & ourselves.
+	 * Called holding the lock.
+	 * @param nodes The nodes
+	 */
+	private void add(List<Contact> nodes) {
+		boolean added = false;
+		for(Contact c : nodes) {
+			if((c.id == null || !Arrays.equals(c.id, node.getID())) && known.add(c.address)) {
+				candidates.add(c);
+				added = true;
+			}
+		}
+		if(added) {
+			Collections.sort(candidates, RoutingTable.byDistance(target));
+		}
+	}
+
+	/**
+	 * Records a node's answer.
+	 * @param from The node's address
+	 * @param id The node's ID
+	 * @param nodes The nodes it sent, or an empty list
+	 * @param values The peers it sent, as compact addresses, or an empty list
+	 * @param token The token it sent, or null
+	 */
+	synchronized void responded(InetSocketAddress from, byte[] id, List<Contact> nodes, List<String> values, byte[] token) {
+		in_flight--;
+		responded.add(new Contact(id, from));
+		add(nodes);
+		for(String peer : values) {
+			if(peers.size() >= max_peers) {
+				break;
+			}
+			peers.add(peer);
+		}
+		if(token != null) {
+			tokens.put(from, token);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Records a query timing out, failing to send, or being answered with an error.
+	 * @param address The node's address
+	 */
+	synchronized void failed(InetSocketAddress address) {
+		in_flight--;
+		failed.add(address);
+		notifyAll();
+	}
+
+	/**
+	 * Gets the closest nodes which answered with a token, to announce to.
+	 * @return up to bucket_size nodes, closest first
+	 */
+	synchronized List<Contact> getAnnounceable() {
+		ArrayList<Contact> nodes = new ArrayList<Contact>();
+		Collections.sort(responded, RoutingTable.byDistance(target));
+		for(Contact c : responded) {
+			if(nodes.size() >= RoutingTable.bucket_size) {
+				break;
+			}
+			if(tokens.containsKey(c.address)) {
+				nodes.add(c);
+			}
+		}
+		return nodes;
+	}
+
+	/**
+	 * @param address A node's address
+	 * @return the token the node sent, or null
+	 */
+	synchronized byte[] getToken(InetSocketAddress address) {
+		return tokens.get(address);
+	}
+
+	/**
+	 * @return the peers collected
+	 */
+	synchronized List<Peer> getPeers() {
+		ArrayList<Peer> found = new ArrayList<Peer>();
+		for(String address : peers) {
+			int colon = address.lastIndexOf(':');
+			found.add(new Peer("", address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+		}
+		return found;
+	}
+
+	/**
+	 * @return the number of nodes which answered
+	 */
+	synchronized int getResponses() {
+		return responded.size();
+	}
+}
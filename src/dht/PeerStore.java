@@ -0,0 +1,113 @@
+package dht;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import structures.InfoHash;
+
+/**
+ * The peers other nodes announced to us, by info hash, for answering get_peers.
+ * Announcements expire after peer_lifetime unless renewed, and both the number of torrents
+ * and the peers per torrent are capped, so a flood of announces can't exhaust memory.
+ * Threadsafe
+ * @author Ari & Jay
+ */
+class PeerStore {
+	/**
+	 * Time an announced peer is kept without being announced again (in milliseconds)
+	 */
+	static final long peer_lifetime = 30 * 60 * 1000;
+
+	/**
+	 * Most torrents peers are stored for
+	 */
+	private static final int max_torrents = 1000;
+
+	/**
+	 * Most peers stored per torrent; the one announced longest ago gives way to a new one
+	 */
+	private static final int max_peers = 100;
+
+	/**
+	 * The stored peers: by info hash, then by compact address (as an ISO-8859-1 string)
+	 * to the time they expire, least recently announced first
+	 */
+	private HashMap<InfoHash,LinkedHashMap<String,Long>> torrents = new HashMap<InfoHash,LinkedHashMap<String,Long>>();
+
+	/**
+	 * Stores an announced peer, or renews it.
+	 * @param info_hash The torrent
+	 * @param compact The peer's compact IPv4 address & port
+	 * @param now The current time (in milliseconds)
+	 */
+	synchronized void add(InfoHash info_hash, byte[] compact, long now) {
+		LinkedHashMap<String,Long> peers = torrents.get(info_hash);
+		if(peers == null) {
+			if(torrents.size() >= max_torrents) {
+				return;
+			}
+			peers = new LinkedHashMap<String,Long>();
+			torrents.put(info_hash, peers);
+		}
+
+		String key = new String(compact, StandardCharsets.ISO_8859_1);
+		peers.remove(key);
+		if(peers.size() >= max_peers) {
+			Iterator<String> oldest = peers.keySet().iterator();
+			oldest.next();
+			oldest.remove();
+		}
+		peers.put(key, now + peer_lifetime);
+	}
+
+	/**
+	 * Gets the peers stored for a torrent, most recently announced first.
+	 * @param info_hash The torrent
+	 * @param count Most peers to return
+	 * @param now The current time (in milliseconds)
+	 * @return compact addresses
+	 */
+	synchronized List<byte[]> get(InfoHash info_hash, int count, long now) {
+		ArrayList<byte[]> values = new ArrayList<byte[]>();
+		LinkedHashMap<String,Long> peers = torrents.get(info_hash);
+		if(peers == null) {
+			return values;
+		}
+		for(Map.Entry<String,Long> peer : peers.entrySet()) {
+			if(peer.getValue() > now) {
+				values.add(peer.getKey().getBytes(StandardCharsets.ISO_8859_1));
+			}
+		}
+		//Stored least recent first:
+		int from = Math.max(values.size() - count, 0);
+		ArrayList<byte[]> newest = new ArrayList<byte[]>(values.subList(from, values.size()));
+		Collections.reverse(newest);
+		return newest;
+	}
+
+	/**
+	 * Forgets the peers whose announcements expired.
+	 * @param now The current time (in milliseconds)
+	 */
+	synchronized void expire(long now) {
+		Iterator<LinkedHashMap<String,Long>> t = torrents.values().iterator();
+		while(t.hasNext()) {
+			LinkedHashMap<String,Long> peers = t.next();
+			Iterator<Long> p = peers.values().iterator();
+			while(p.hasNext()) {
+				if(p.next() <= now) {
+					p.remove();
+				}
+			}
+			if(peers.isEmpty()) {
+				t.remove();
+			}
+		}
+	}
+}
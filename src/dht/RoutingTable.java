@@ -0,0 +1,241 @@
+package dht;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The Kademlia routing table: the nodes we know, in one k-bucket per bit of XOR distance
+ * from our own ID, each holding at most bucket_size nodes.
+ * Bucket i holds nodes whose ID first differs from ours at bit i, so the table knows many
+ * nodes near us and a few far away, and its size stays bounded at 160 * bucket_size nodes.
+ * As Kademlia prefers nodes which have stayed up, a full bucket only takes a new node
+ * in place of one which stopped answering.
+ * Threadsafe
+ * @author Ari & Jay
+ */
+class RoutingTable {
+	/**
+	 * Most nodes in a bucket (Kademlia's k)
+	 */
+	static final int bucket_size = 8;
+
+	/**
+	 * Failed queries after which a node is replaced by the next new node in its bucket
+	 */
+	static final int max_failures = 2;
+
+	/**
+	 * Our node ID
+	 */
+	private byte[] my_id;
+
+	/**
+	 * The buckets, by index of the first bit in which their nodes' IDs differ from ours;
+	 * each in order of last seen, least recent first
+	 */
+	private ArrayList<ArrayList<Contact>> buckets = new ArrayList<ArrayList<Contact>>();
+
+	/**
+	 * Constructor
+	 * @param my_id Our node ID
+	 */
+	RoutingTable(byte[] my_id) {
+		this.my_id = my_id;
+		for(int x = 0; x < 160; x++) {
+			buckets.add(new ArrayList<Contact>(0));
+		}
+	}
+
+	/**
+	 * Records a message from a node: refreshes it if known, else adds it if its bucket
+	 * has room or a node which stopped answering.
+	 * @param id The node's ID
+	 * @param address The node's UDP address
+	 * @param now The current time (in milliseconds)
+	 */
+	synchronized void seen(byte[] id, InetSocketAddress address, long now) {
+		int index = bucketIndex(my_id, id);
+		if(index < 0) {//ourselves
+			return;
+		}
+		ArrayList<Contact> bucket = buckets.get(index);
+
+		Contact stale = null;
+		for(int x = 0; x < bucket.size(); x++) {
+			Contact c = bucket.get(x);
+			if(Arrays.equals(c.id, id)) {
+				bucket.remove(x);
+				if(c.address.equals(address)) {
+					c.last_seen = now;
+					c.failures = 0;
+					bucket.add(c);
+					return;
+				}
+				//The node moved, leaving room to add it again at its new address:
+				stale = null;
+				break;
+			}
+			else if(stale == null && c.failures >= max_failures) {
+				stale = c;
+			}
+		}
+
+		if(bucket.size() >= bucket_size) {
+			if(stale == null) {
+				return;
+			}
+			bucket.remove(stale);
+		}
+		Contact c = new Contact(id, address);
+		c.last_seen = now;
+		bucket.add(c);
+	}
+
+	/**
+	 * Records a query to a node timing out.
+	 * @param id The node's ID
+	 */
+	synchronized void failed(byte[] id) {
+		int index = bucketIndex(my_id, id);
+		if(index < 0) {
+			return;
+		}
+		for(Contact c : buckets.get(index)) {
+			if(Arrays.equals(c.id, id)) {
+				c.failures++;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Finds the known nodes closest to an ID, skipping nodes which stopped answering.
+	 * @param target The ID
+	 * @param count Most nodes to return
+	 * @return new Contacts, closest first
+	 */
+	synchronized List<Contact> closest(final byte[] target, int count) {
+		ArrayList<Contact> all = new ArrayList<Contact>();
+		for(ArrayList<Contact> bucket : buckets) {
+			for(Contact c : bucket) {
+				if(c.failures < max_failures) {
+					all.add(c);
+				}
+			}
+		}
+		Collections.sort(all, byDistance(target));
+
+		ArrayList<Contact> closest = new ArrayList<Contact>();
+		for(int x = 0; x < all.size() && x < count; x++) {
+			closest.add(new Contact(all.get(x).id, all.get(x).address));
+		}
+		return closest;
+	}
+
+	/**
+	 * Finds nodes not heard from recently, to ping.
+	 * @param since Time before which a node is questionable (in milliseconds)
+	 * @return new Contacts
+	 */
+	synchronized List<Contact> questionable(long since) {
+		ArrayList<Contact> nodes = new ArrayList<Contact>();
+		for(ArrayList<Contact> bucket : buckets) {
+			for(Contact c : bucket) {
+				if(c.last_seen < since) {
+					nodes.add(new Contact(c.id, c.address));
+				}
+			}
+		}
+		return nodes;
+	}
+
+	/**
+	 * @return the number of nodes in the table
+	 */
+	synchronized int size() {
+		int size = 0;
+		for(ArrayList<Contact> bucket : buckets) {
+			size += bucket.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Finds the bucket of the closest node we know, as all buckets before it cover
+	 * ranges of IDs farther away than it.
+	 * @return the index of the last non-empty bucket, or -1 if the table is empty
+	 */
+	synchronized int deepest() {
+		for(int x = buckets.size() - 1; x >= 0; x--) {
+			if(!buckets.get(x).isEmpty()) {
+				return x;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Makes a random ID which would go in a bucket.
+	 * @param index The bucket's index
+	 * @param random Source of the random bits
+	 * @return an ID sharing its first index bits with ours, and differing at the next
+	 */
+	byte[] randomID(int index, Random random) {
+		byte[] id = new byte[my_id.length];
+		random.nextBytes(id);
+		for(int x = 0; x <= index; x++) {
+			int mask = 0x80 >> (x % 8);
+			boolean bit = (my_id[x / 8] & mask) != 0;
+			if(x == index) {
+				bit = !bit;
+			}
+			id[x / 8] = (byte)(bit ? (id[x / 8] | mask) : (id[x / 8] & ~mask));
+		}
+		return id;
+	}
+
+	/**
+	 * Orders nodes by XOR distance from an ID, closest first; nodes with unknown IDs last.
+	 * @param target The ID
+	 * @return a Comparator
+	 */
+	static Comparator<Contact> byDistance(final byte[] target) {
+		return new Comparator<Contact>() {
+			@Override
+			public int compare(Contact a, Contact b) {
+				if(a.id == null || b.id == null) {
+					return (a.id == null ? 1 : 0) - (b.id == null ? 1 : 0);
+				}
+				for(int x = 0; x < target.length; x++) {
+					int da = (a.id[x] ^ target[x]) & 0xFF;
+					int db = (b.id[x] ^ target[x]) & 0xFF;
+					if(da != db) {
+						return da - db;
+					}
+				}
+				return 0;
+			}
+		};
+	}
+
+	/**
+	 * Finds the first bit in which two IDs differ, numbered from the most significant.
+	 * @param a An ID
+	 * @param b Another ID
+	 * @return 0 to 159, or -1 if the IDs are equal
+	 */
+	static int bucketIndex(byte[] a, byte[] b) {
+		for(int x = 0; x < a.length; x++) {
+			int difference = (a[x] ^ b[x]) & 0xFF;
+			if(difference != 0) {
+				return x * 8 + Integer.numberOfLeadingZeros(difference) - 24;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,1109 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+
+import dht.DHTNode;
+import structures.FileInfo;
+import structures.Peer;
+import structures.TokenBucket;
+import bencoding.ResponseDecoder;
+import bencoding.TorrentDecoder;
+import connection.Choker;
+import connection.ConnectionManager;
+import connection.ListenerThread;
+import connection.LocalPeerDiscovery;
+import connection.PeerRegistry;
+import connection.PeerSocket;
+import connection.PeerStats;
+import connection.PeerThreads;
+import connection.Tracker;
+
+/**
+ * Downloads & seeds one torrent, with no user interface.
+ * Runs a listener, a connection manager (outgoing peer connections), an announcer thread
+ * (tracker requests, whose peers it queues for connecting) and a peer manager thread
+ * (choker, disconnected-peer cleanup & publishing peer stats).
+ * An engine in a Session instead shares the session's listener, connection manager,
+ * thread pools and limits.
+ * Observers such as the GUI poll getSnapshot() and Log; the engine never calls them.
+ * Run it directly for a headless daemon.
+ * @author Ari & Jay
+ */
+public class Engine {
+	/**
+	 * Usage text for the command line.
+	 */
+	public static final String usage = "Expected arguments are <torrent file> <download target> [options]";
+
+	/**
+	 * Options text for the command line.
+	 */
+	public static final String options = "Options are -minslots <n> -maxslots <n> -up <KB/s> -down <KB/s> -virtual -loglevel <debug|info|warn|error> -metrics <port> -port <port> -dht -bootstrap <host:port> -lsd -lsdif <interface>";
+
+	/**
+	 * Time between peer cleanups & stats publications (in milliseconds)
+	 */
+	public static final long manage_interval = 1500;
+
+	/**
+	 * Time between DHT announces (in milliseconds)
+	 */
+	public static final long dht_interval = 15 * 60 * 1000;
+
+	/**
+	 * Time before retrying a DHT announce which found no peers (in milliseconds)
+	 */
+	public static final long dht_retry_interval = 60 * 1000;
+
+	/**
+	 * Most time shutdown() waits for a thread which may be blocked on the network (in milliseconds)
+	 */
+	private static final long thread_stop_timeout = 5000;
+
+	/**
+	 * Source of the random part of generated peer IDs
+	 */
+	private static final Random id_random = new Random();
+
+	/**
+	 * Decoded metadata for the torrent
+	 */
+	private TorrentDecoder torrent_data;
+
+	/**
+	 * Structure to deal with state of downloaded file
+	 */
+	private FileInfo file_info;
+
+	/**
+	 * Structure to decode tracker response
+	 */
+	private volatile ResponseDecoder decoder = null;
+
+	/**
+	 * Structure to listen for incoming connections
+	 */
+	private ListenerThread listener = null;
+
+	/**
+	 * Structure making outgoing connections
+	 */
+	private ConnectionManager connections = null;
+
+	/**
+	 * This torrent's handle in the connection manager
+	 */
+	private volatile ConnectionManager.Torrent connection_handle = null;
+
+	/**
+	 * Nodes to join the DHT through, or null if the DHT is off
+	 */
+	private List<InetSocketAddress> dht_bootstrap = null;
+
+	/**
+	 * DHT node finding peers without the tracker, or null; the session's, if in one
+	 */
+	private DHTNode dht = null;
+
+	/**
+	 * Thread announcing to the DHT, or null
+	 */
+	private Thread dht_announcer = null;
+
+	/**
+	 * Thread announcing to the tracker, or null before start()
+	 */
+	private Thread announcer = null;
+
+	/**
+	 * Thread running the peer manager & choker, or null before start()
+	 */
+	private Thread peer_manager = null;
+
+	/**
+	 * Whether to find peers on the LAN by local peer discovery
+	 */
+	private boolean lsd_enabled = false;
+
+	/**
+	 * Interface to discover LAN peers on, or null for the system's default
+	 */
+	private NetworkInterface lsd_interface = null;
+
+	/**
+	 * Local peer discovery, or null; the session's, if in one
+	 */
+	private LocalPeerDiscovery lsd = null;
+
+	/**
+	 * Lowest port to listen on
+	 */
+	private int first_port = 6881;
+
+	/**
+	 * Highest port to listen on
+	 */
+	private int last_port = 6889;
+
+	/**
+	 * Structure deciding which peers to upload to
+	 */
+	private Choker choker = null;
+
+	/**
+	 * Fewest upload slots the choker may use
+	 */
+	private int min_slots = 2;
+
+	/**
+	 * Most upload slots the choker may use
+	 */
+	private int max_slots = 500;
+
+	/**
+	 * Limit on total upload rate, shared by every torrent & peer
+	 */
+	private TokenBucket upload_limit = new TokenBucket(0, null);
+
+	/**
+	 * Limit on total download rate, shared by every torrent & peer
+	 */
+	private TokenBucket download_limit = new TokenBucket(0, null);
+
+	/**
+	 * Structure to deal with sending tracker requests
+	 */
+	private Tracker tracker;
+
+	/**
+	 * Target for saving downloaded file
+	 */
+	private String target;
+
+	/**
+	 * Our peer ID
+	 */
+	private String peer_id;
+
+	/**
+	 * Structure containing all the peers
+	 */
+	private PeerRegistry peers = new PeerRegistry();
+
+	/**
+	 * The connected peers' stats, as last published by the peer manager; never modified
+	 */
+	private volatile List<PeerStats> peer_stats = Collections.emptyList();
+
+	/**
+	 * Boolean indicating completion of the downloaded file
+	 */
+	private volatile boolean file_saved = false;
+
+	/**
+	 * Boolean indicating whether to stop the torrent.
+	 */
+	private volatile boolean done = true;
+
+	/**
+	 * Whether shutdown() has been called; the engine's threads exit once it is.
+	 */
+	private volatile boolean shut_down = false;
+
+	/**
+	 * Time of the next tracker announce (in milliseconds)
+	 */
+	private volatile long next_announce = 0;
+
+	/**
+	 * Server for the metrics, or null
+	 */
+	private MetricsServer metrics_server = null;
+
+	/**
+	 * The session sharing its listener, pools & limits with this engine, or null if the engine runs alone
+	 */
+	private Session session = null;
+
+	/**
+	 * Connections allowed across the session, or null for no limit.
+	 * Each peer in peers holds a permit until removed.
+	 */
+	private Semaphore connection_slots = null;
+
+	/**
+	 * Constructor
+	 * Reads the torrent and opens (or creates) the download target.
+	 * @param torrent Path of the .torrent file
+	 * @param target Where to save the file (or directory, for a multi-file torrent)
+	 * @throws IOException if the torrent is missing or invalid, or the target can't be opened
+	 */
+	public Engine(String torrent, String target) throws IOException {
+		this(decode(torrent), target, null);
+	}
+
+	/**
+	 * Constructor for an engine in a session
+	 * Opens (or creates) the download target of an already decoded torrent.
+	 * @param torrent_data The torrent, from decode()
+	 * @param target Where to save the file (or directory, for a multi-file torrent)
+	 * @param session The session to share, or null to run alone
+	 * @throws IOException if the target can't be opened
+	 */
+	Engine(TorrentDecoder torrent_data, String target, Session session) throws IOException {
+		this.torrent_data = torrent_data;
+		this.target = target;
+		this.session = session;
+		if(session != null) {
+			upload_limit = session.getUploadLimit();
+			download_limit = session.getDownloadLimit();
+			connection_slots = session.getConnectionSlots();
+		}
+
+		//Prepare the file_info object, on the session's pools if any:
+		ScheduledExecutorService io_pool = (session == null) ? null : session.getIOPool();
+		ExecutorService hash_pool = (session == null) ? null : session.getHashPool();
+		try {
+			if(torrent_data.isMultiFile()) {//target is a directory
+				file_info = new FileInfo(torrent_data.getFiles(), torrent_data.getPieceLength(), target, io_pool, hash_pool);
+			}
+			else {
+				file_info = new FileInfo(torrent_data.getFileLength(), torrent_data.getPieceLength(), target, io_pool, hash_pool);
+			}
+		} catch (Exception e) {
+			throw new IOException("Cannot read/create file.");
+		}
+		file_info.getUploadLimit().setParent(upload_limit);
+		file_info.getDownloadLimit().setParent(download_limit);
+
+		//Corrupt resume data says nothing about what's on disk; hash every piece:
+		if(file_info.needsRecheck()) {
+			byte[][] hashes = new byte[torrent_data.getHashCount()][];
+			for(int x = 0; x < hashes.length; x++) {
+				hashes[x] = torrent_data.getHash(x);
+			}
+			int intact = file_info.recheck(hashes);
+			Log.warn("Rechecked " + target + ": " + intact + " of " + file_info.getBitfieldBitSize() + " pieces intact.");
+		}
+
+		//Check if file is already done:
+		if(file_info.complete()) {
+			file_saved = true;
+		}
+
+		if(session == null) {
+			peer_id = generatePeerID();
+			registerGauges();
+		}
+		else {//the session's gauges cover every engine
+			peer_id = session.getPeerID();
+		}
+	}
+
+	/**
+	 * Creates an engine from command-line arguments, logging any errors.
+	 * @param args <torrent file> <download target> [options]
+	 * @return a new Engine, or null on error
+	 */
+	public static Engine fromArgs(String[] args) {
+		//Error check:
+		if(args.length < 2) {
+			Log.logError("Wrong number of arguments.");
+			Log.logError(usage);
+			Log.logError(options);
+			return null;
+		}
+
+		//Read optional args, before opening anything an error would leave open:
+		int min_slots = -1;
+		int max_slots = -1;
+		long up = 0;
+		long down = 0;
+		int port = 0;
+		int metrics_port = 0;
+		boolean virtual_threads = false;
+		List<InetSocketAddress> bootstrap = null;
+		boolean lsd = false;
+		NetworkInterface lsd_interface = null;
+		try {
+			for(int x = 2; x < args.length; x++) {
+				if(args[x].equals("-minslots") && x + 1 < args.length) {
+					min_slots = Integer.parseInt(args[++x]);
+				}
+				else if(args[x].equals("-maxslots") && x + 1 < args.length) {
+					max_slots = Integer.parseInt(args[++x]);
+				}
+				else if(args[x].equals("-up") && x + 1 < args.length) {
+					up = Integer.parseInt(args[++x]) * 1024L;
+				}
+				else if(args[x].equals("-down") && x + 1 < args.length) {
+					down = Integer.parseInt(args[++x]) * 1024L;
+				}
+				else if(args[x].equals("-virtual")) {
+					virtual_threads = true;
+				}
+				else if(args[x].equals("-loglevel") && x + 1 < args.length && Log.parseLevel(args[x+1]) >= 0) {
+					Log.setLevel(Log.parseLevel(args[++x]));
+				}
+				else if(args[x].equals("-port") && x + 1 < args.length) {
+					port = Integer.parseInt(args[++x]);
+				}
+				else if(args[x].equals("-dht")) {
+					if(bootstrap == null) {
+						bootstrap = new ArrayList<InetSocketAddress>();
+					}
+				}
+				else if(args[x].equals("-bootstrap") && x + 1 < args.length) {
+					if(bootstrap == null) {
+						bootstrap = new ArrayList<InetSocketAddress>();
+					}
+					bootstrap.add(DHTNode.parseAddress(args[++x]));
+				}
+				else if(args[x].equals("-lsd")) {
+					lsd = true;
+				}
+				else if(args[x].equals("-lsdif") && x + 1 < args.length) {
+					lsd = true;
+					lsd_interface = findInterface(args[++x]);
+					if(lsd_interface == null) {
+						return null;
+					}
+				}
+				else if(args[x].equals("-metrics") && x + 1 < args.length) {
+					metrics_port = Integer.parseInt(args[++x]);
+				}
+				else {
+					Log.logError("Unknown option " + args[x] + ".");
+					return null;
+				}
+			}
+		} catch (NumberFormatException e) {
+			Log.logError("Option values must be integers, and bootstrap nodes host:port.");
+			return null;
+		}
+
+		//Serve metrics before opening the torrent, so a busy port leaves nothing to close:
+		MetricsServer metrics_server = null;
+		if(metrics_port != 0) {
+			try {
+				metrics_server = new MetricsServer(metrics_port);
+				Log.log("Serving metrics at http://127.0.0.1:" + metrics_port + "/metrics");
+			} catch (IOException e) {
+				Log.logError("Unable to serve metrics on port " + metrics_port + ".");
+				return null;
+			}
+		}
+
+		Engine engine;
+		try {
+			engine = new Engine(args[0], args[1]);
+		} catch (IOException e) {
+			Log.logError(e.getMessage());
+			if(metrics_server != null) {
+				metrics_server.stop();
+			}
+			return null;
+		}
+		engine.metrics_server = metrics_server;
+
+		if(min_slots >= 0) {
+			engine.min_slots = min_slots;
+		}
+		if(max_slots >= 0) {
+			engine.max_slots = max_slots;
+		}
+		engine.upload_limit.setRate(up);
+		engine.download_limit.setRate(down);
+		if(port != 0) {
+			engine.setPorts(port, port);
+		}
+		if(virtual_threads && PeerThreads.setVirtual(true)) {
+			Log.log("Running peers on virtual threads.");
+		}
+		if(bootstrap != null) {
+			engine.enableDHT(bootstrap);
+		}
+		if(lsd) {
+			engine.enableLocalDiscovery(lsd_interface);
+		}
+
+		return engine;
+	}
+
+	/**
+	 * Reads & checks a .torrent file, without touching its download target.
+	 * @param torrent Path of the .torrent file
+	 * @return the decoded torrent
+	 * @throws IOException if the torrent is missing or invalid
+	 */
+	static TorrentDecoder decode(String torrent) throws IOException {
+		//Error checking:
+		File f = new File(torrent);
+		if(f.isDirectory() || !f.exists()) {
+			throw new IOException("Torrent file not found.");
+		}
+
+		//Parse torrent file
+		TorrentDecoder torrent_data;
+		try {
+			torrent_data = new TorrentDecoder(torrent);
+		} catch (IOException e) {
+			throw new IOException("Unable to read torrent file.");
+		}
+		if(!torrent_data.valid()) {
+			throw new IOException("Invalid torrent file.");
+		}
+		return torrent_data;
+	}
+
+	/**
+	 * Entry point for running without a GUI.
+	 * @param args <torrent file> <download target> [options]
+	 */
+	public static void main(String[] args) {
+		final Engine engine = fromArgs(args);
+		if(engine == null) {
+			Log.flush();
+			return;
+		}
+
+		//Add shutdown hook:
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				engine.shutdown();
+			}
+		});
+
+		engine.start();
+	}
+
+	/**
+	 * Starts listening, announces to the tracker, and starts the announcer and peer manager threads.
+	 * @return false if no listening port was free
+	 */
+	public boolean start() {
+		//Start listening for connections from peers:
+		int port;
+		if(session != null) {
+			listener = session.getListener();
+			connections = session.getConnections();
+			port = session.getPort();
+		}
+		else {
+			connections = new ConnectionManager(ConnectionManager.default_max_half_open, null);
+			connections.start();
+			for(port = first_port; port <= last_port; port++) {
+				try {
+					listener = new ListenerThread(port,peer_id,null);
+					new Thread(listener).start();
+					Log.log("Listening on port " + port);
+				} catch (IOException e) {
+					continue;
+				}
+				break;
+			}
+			if(port > last_port) {
+				Log.logError("Unable to create listener on any port.");
+				return false;
+			}
+		}
+		peers.setListenPort(port);
+		listener.register(torrent_data,file_info,peers);
+		connection_handle = connections.register(torrent_data,file_info,peers,peer_id);
+
+		//Prepare to connect to tracker:
+		tracker = new Tracker(torrent_data.getAnnounceURL(), torrent_data.getInfoHash().toString(), peer_id, port);
+
+		//Alert tracker to download about to start:
+		try {
+			decoder = new ResponseDecoder(tracker.request(file_info.getBytesUploaded(), file_info.getBytesDownloaded(), file_info.getBytesLeft(), "started"));
+			Log.log("Sent intial tracker request.");
+		} catch (IOException e) {
+			Log.warn("Unable to communicate with tracker.");
+		}
+
+		//Join the DHT, unless the torrent is private:
+		if(session != null) {
+			dht = session.getDHT();
+		}
+		else if(dht_bootstrap != null && !torrent_data.isPrivate()) {
+			try {
+				dht = new DHTNode(new InetSocketAddress(port), dht_bootstrap);
+				dht.start();
+				Log.log("DHT node on UDP port " + port);
+			} catch (SocketException e) {
+				Log.warn("Unable to start DHT node on UDP port " + port + ".");
+			}
+		}
+
+		//Find peers on the LAN, unless the torrent is private:
+		if(session != null) {
+			lsd = session.getLocalDiscovery();
+		}
+		else if(lsd_enabled && !torrent_data.isPrivate()) {
+			try {
+				lsd = new LocalPeerDiscovery(connections, lsd_interface);
+				lsd.start();
+			} catch (IOException e) {
+				Log.warn("Unable to start local peer discovery: " + e.getMessage());
+			}
+		}
+		if(lsd != null && !torrent_data.isPrivate()) {
+			lsd.register(torrent_data.getInfoHash(), port, connection_handle);
+		}
+
+		//Start peer-managing and announcing threads:
+		done = false;
+		startPeerManager();
+		//A daemon, so a tracker which never answers can't keep the process alive:
+		announcer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				announce();
+			}
+		}, "Announcer");
+		announcer.setDaemon(true);
+		announcer.start();
+		if(dht != null && !torrent_data.isPrivate()) {
+			dht_announcer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					announceDHT();
+				}
+			}, "DHT announcer");
+			dht_announcer.setDaemon(true);
+			dht_announcer.start();
+		}
+		return true;
+	}
+
+	/**
+	 * Disconnects every peer and stops listening, but keeps the engine ready to resume().
+	 * Blocks until the peers have disconnected.
+	 */
+	public void stop() {
+		listener.unregister(torrent_data);
+		connections.unregister(connection_handle);
+		if(lsd != null) {
+			lsd.unregister(torrent_data.getInfoHash());
+		}
+		if(session == null) {
+			listener.stop();
+		}
+
+		done = true;
+		waitForPeers();
+		join(peer_manager, 0);
+	}
+
+	/**
+	 * Starts listening and managing peers again after stop().
+	 */
+	public void resume() {
+		if(session == null) {
+			listener.start();
+		}
+		listener.register(torrent_data,file_info,peers);
+		connection_handle = connections.register(torrent_data,file_info,peers,peer_id);
+		if(lsd != null && !torrent_data.isPrivate()) {
+			lsd.register(torrent_data.getInfoHash(), peers.getListenPort(), connection_handle);
+		}
+
+		done = false;
+		startPeerManager();
+	}
+
+	/**
+	 * Called during shutdown.
+	 * Stops the listener and waits for all the peers to disconnect.
+	 * Informs tracker of download stopping, and finishes writing to disk.
+	 * Returns once the engine's threads have exited.
+	 */
+	public void shutdown() {
+		shut_down = true;
+
+		//Stop listener:
+		if(listener != null) {
+			listener.unregister(torrent_data);
+			connections.unregister(connection_handle);
+			if(session == null) {
+				listener.stop();
+				connections.stop();
+			}
+		}
+
+		if(!done) {
+			//Gracefully disconnect, if not already stopped
+			try {
+				new ResponseDecoder(tracker.request(file_info.getBytesUploaded(), file_info.getBytesDownloaded(), file_info.getBytesLeft(), "stopped"));
+				Log.log("Disconnected from tracker.");
+			} catch (IOException e) {
+				Log.warn("Unable to communicate with tracker.");
+			}
+
+			//Stop peer-managing thread:
+			done = true;
+
+			//Wait for threads to stop:
+			waitForPeers();
+		}
+
+		//Stop local peer discovery, if ours:
+		if(lsd != null) {
+			lsd.unregister(torrent_data.getInfoHash());
+			if(session == null) {
+				lsd.stop();
+			}
+		}
+
+		//Wait for the peer manager, and for the announcer to notice shut_down:
+		join(peer_manager, 0);
+		join(announcer, thread_stop_timeout);
+
+		//Stop announcing to the DHT, and leave it if the node is ours:
+		if(dht_announcer != null) {
+			dht_announcer.interrupt();
+			join(dht_announcer, thread_stop_timeout);
+		}
+		if(session == null && dht != null) {
+			dht.stop();
+		}
+
+		//Write any queued pieces & metadata:
+		try {
+			file_info.close();
+		} catch (IOException e) {
+			Log.logError("Unable to save file to disk.");
+		}
+		if(metrics_server != null) {
+			metrics_server.stop();
+		}
+		Log.flush();
+	}
+
+	/**
+	 * Sets the ports to try listening on, lowest first; by default 6881-6889.
+	 * Call before start().
+	 * @param first The lowest port
+	 * @param last The highest port
+	 */
+	public void setPorts(int first, int last) {
+		first_port = first;
+		last_port = last;
+	}
+
+	/**
+	 * Finds peers through the mainline DHT as well as the tracker, joining it through
+	 * the given nodes, or the public DHT's usual bootstrap nodes if none are given.
+	 * Ignored for private torrents, and in a session, which has its own DHT node.
+	 * Call before start().
+	 * @param bootstrap Nodes to join through, as possibly unresolved addresses; may be empty
+	 */
+	public void enableDHT(List<InetSocketAddress> bootstrap) {
+		dht_bootstrap = bootstrap.isEmpty() ? DHTNode.defaultBootstrap() : bootstrap;
+	}
+
+	/**
+	 * Finds peers on the LAN by local peer discovery (BEP 14) as well, and favors them.
+	 * Ignored for private torrents, and in a session, which has its own.
+	 * Call before start().
+	 * @param network_interface The interface to discover peers on, or null for the system's default
+	 */
+	public void enableLocalDiscovery(NetworkInterface network_interface) {
+		lsd_enabled = true;
+		lsd_interface = network_interface;
+	}
+
+	/**
+	 * Finds a network interface by name, logging an error if there is none.
+	 * @param name The interface's name, e.g. eth0
+	 * @return the NetworkInterface, or null
+	 */
+	static NetworkInterface findInterface(String name) {
+		try {
+			NetworkInterface network_interface = NetworkInterface.getByName(name);
+			if(network_interface != null) {
+				return network_interface;
+			}
+		} catch (SocketException e) {}
+		Log.logError("Unknown network interface " + name + ".");
+		return null;
+	}
+
+	/**
+	 * Copies the engine's current state.
+	 * Threadsafe
+	 * @return a new EngineSnapshot
+	 */
+	public EngineSnapshot getSnapshot() {
+		ResponseDecoder d = decoder;
+		Integer leeches = null;
+		Integer seeds = null;
+		if(d != null && d.getComplete() != null && d.getDownloaded() != null) {
+			leeches = d.getIncomplete();
+			seeds = d.getComplete();
+		}
+
+		long announce_seconds = Math.max(0, (next_announce - System.currentTimeMillis()) / 1000);
+		return new EngineSnapshot(this, peer_stats, leeches, seeds, announce_seconds, !done);
+	}
+
+	/**
+	 * Getter for the torrent's data & file state.
+	 * @return the FileInfo
+	 */
+	public FileInfo getFileInfo() {
+		return file_info;
+	}
+
+	/**
+	 * Getter for our peer ID.
+	 * @return a String
+	 */
+	public String getPeerID() {
+		return peer_id;
+	}
+
+	/**
+	 * Getter for the torrent's metadata.
+	 * @return the TorrentDecoder
+	 */
+	public TorrentDecoder getTorrent() {
+		return torrent_data;
+	}
+
+	/**
+	 * Getter for the limit on total upload rate.
+	 * @return the TokenBucket
+	 */
+	public TokenBucket getUploadLimit() {
+		return upload_limit;
+	}
+
+	/**
+	 * Getter for the limit on total download rate.
+	 * @return the TokenBucket
+	 */
+	public TokenBucket getDownloadLimit() {
+		return download_limit;
+	}
+
+	/**
+	 * Starts a thread which runs the choker and removes disconnected peers from the list,
+	 * until stopped.
+	 */
+	private void startPeerManager() {
+		peer_manager = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				managePeers();
+			}
+		}, "Peer manager");
+		peer_manager.start();
+	}
+
+	/**
+	 * Waits for a thread to exit.
+	 * @param thread The thread, or null
+	 * @param timeout Most time to wait (in milliseconds), or 0 to wait until it exits
+	 */
+	private static void join(Thread thread, long timeout) {
+		if(thread == null || thread == Thread.currentThread()) {
+			return;
+		}
+		try {
+			thread.join(timeout);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Code for the thread announcing to the DHT: looks up the torrent's peers, announces us
+	 * to the nodes closest to it, and queues the peers for connecting, every dht_interval,
+	 * or sooner while it finds none. Idles while the engine is stopped.
+	 */
+	private void announceDHT() {
+		long next = 0;
+		while(true) {
+			try {
+				Thread.sleep(1000);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if(done || System.currentTimeMillis() < next) {
+				continue;
+			}
+
+			List<Peer> found = dht.announce(torrent_data.getInfoHash(), peers.getListenPort());
+			if(!done && !found.isEmpty()) {
+				Log.debug("DHT found " + found.size() + " peers.");
+				connections.addCandidates(connection_handle, found);
+			}
+			next = System.currentTimeMillis() + (found.isEmpty() ? dht_retry_interval : dht_interval);
+		}
+	}
+
+	/**
+	 * Code for a thread which runs the choker, removes disconnected peers, and exchanges peers with the rest.
+	 */
+	private void managePeers() {
+		choker = new Choker(peers, file_info);
+		choker.setSlotLimits(min_slots, max_slots);
+		Thread choker_thread = new Thread(choker, "Choker");
+		choker_thread.start();
+
+		while(!done) {
+			try {
+				Thread.sleep(manage_interval);
+			} catch (InterruptedException e1) {}
+
+			//Remove disconnected peers, and tell the rest about new pieces & each other
+			List<PeerSocket> current = peers.snapshot();
+			HashSet<String> addresses = new HashSet<String>();
+			for(PeerSocket p : current) {
+				String address = p.getListenAddress();
+				if(address != null && p.connected()) {
+					addresses.add(address);
+				}
+			}
+			ArrayList<Peer> exchanged = new ArrayList<Peer>();
+			for(PeerSocket p : current) {
+				if(!p.connected()) {
+					if(peers.remove(p)) {
+						releaseConnection();
+					}
+				}
+				else {
+					p.sendHaves();
+					p.sendPex(addresses);
+					p.takeExchangedPeers(exchanged);
+				}
+			}
+
+			//Connect to peers we heard of from other peers:
+			if(!exchanged.isEmpty()) {
+				connections.addCandidates(connection_handle, exchanged);
+			}
+
+			publishStats();
+		}//main loop of this thread
+
+		choker.stop();
+		join(choker_thread, 0);
+
+		disconnectPeers();
+		publishStats();
+	}
+
+	/**
+	 * Disconnects every peer & removes it, returning its connection permit.
+	 */
+	private void disconnectPeers() {
+		for(PeerSocket p : peers.snapshot()) {
+			p.disconnect();
+			if(peers.remove(p)) {
+				releaseConnection();
+			}
+		}
+	}
+
+	/**
+	 * Blocks until the peers are gone after done is set. The peer manager disconnects them,
+	 * but a peer may be added after its last sweep, so we disconnect any still here too.
+	 */
+	private void waitForPeers() {
+		while(!peers.isEmpty()) {
+			disconnectPeers();
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {}
+		}
+	}
+
+	/**
+	 * Returns a removed peer's connection permit to the session.
+	 */
+	private void releaseConnection() {
+		if(connection_slots != null) {
+			connection_slots.release();
+		}
+	}
+
+	/**
+	 * Replaces the published peer stats with a new copy of every connected peer's stats.
+	 */
+	private void publishStats() {
+		List<PeerSocket> connected = peers.snapshot();
+		ArrayList<PeerStats> stats = new ArrayList<PeerStats>(connected.size());
+		for(PeerSocket p : connected) {
+			stats.add(p.getStats());
+		}
+		peer_stats = Collections.unmodifiableList(stats);
+	}
+
+	/**
+	 * Registers gauges for the engine's state with the metrics registry.
+	 */
+	private void registerGauges() {
+		Metrics.gauge("engine.peers", new Metrics.Gauge() {
+			@Override
+			public long get() {
+				return peer_stats.size();
+			}
+		});
+		Metrics.gauge("engine.pieces_completed", new Metrics.Gauge() {
+			@Override
+			public long get() {
+				return file_info.getPiecesCompleted();
+			}
+		});
+		Metrics.gauge("engine.download_rate", new Metrics.Gauge() {
+			@Override
+			public long get() {
+				return (long)file_info.getDownloadMeter().getRate();
+			}
+		});
+		Metrics.gauge("engine.upload_rate", new Metrics.Gauge() {
+			@Override
+			public long get() {
+				return (long)file_info.getUploadMeter().getRate();
+			}
+		});
+		Metrics.gauge("cache.hits", new Metrics.Gauge() {
+			@Override
+			public long get() {
+				return file_info.getCache().getHits();
+			}
+		});
+		Metrics.gauge("cache.misses", new Metrics.Gauge() {
+			@Override
+			public long get() {
+				return file_info.getCache().getMisses();
+			}
+		});
+	}
+
+	/**
+	 * Code for a thread which announces to the tracker and connects to the peers it returns.
+	 * Idles while the engine is stopped, after announcing "stopped", and returns on shutdown().
+	 */
+	private void announce() {
+		//Set interval for tracker communication:
+		Integer interval = (decoder == null) ? null : decoder.getInterval();
+		Integer min_interval = (decoder == null) ? null : decoder.getMinInterval();
+		if(min_interval == null) {
+			if(interval == null) {
+				min_interval = 0;
+				interval = 60;
+			}
+			else {
+				min_interval = interval/2;
+			}
+		}
+		else if(interval == null) {
+			interval = min_interval * 2;
+		}
+
+		//Loop for announces and peer connections:
+		while(!shut_down) {
+			//Queue the peers for connecting:
+			if(decoder != null) {
+				connections.addCandidates(connection_handle, decoder.getPeers());
+			}
+
+			//Sleep for random seconds between min-interval and 2*interval:
+			int sleep = (int)(Math.random()*(interval*2 - min_interval) + min_interval);
+			next_announce = System.currentTimeMillis() + sleep * 1000L;
+			for(int x = 0; x < sleep || done; x++) {
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException e1) {}
+
+				//shutdown() sends "stopped" itself, if not already stopped:
+				if(shut_down) {
+					return;
+				}
+				if(done) {
+					if(x < sleep) {
+						x = sleep;
+						try {
+							decoder = new ResponseDecoder(tracker.request(file_info.getBytesUploaded(), file_info.getBytesDownloaded(), file_info.getBytesLeft(), "stopped"));
+						} catch (IOException e) {
+							x = 0;
+						}
+					}
+					else {
+						x = sleep;
+					}
+				}
+
+				//Check if we need to alert tracker to download complete:
+				if(!file_saved && file_info.complete()) {
+					break;
+				}
+			}
+
+			//Alert tracker to download completion:
+			if(file_info.complete() && !file_saved) {
+				try {
+					file_info.saveFile(target);
+					file_saved = true;
+					Log.log("DOWNLOAD COMPLETE!");
+					decoder = new ResponseDecoder(tracker.request(file_info.getBytesUploaded(), file_info.getBytesDownloaded(), file_info.getBytesLeft(), "completed"));
+				} catch (IOException e) {
+					Log.logError("Unable to save file to disk.");
+				}
+			}
+			else {//Tracker announcement:
+				try {
+					Log.log("Sending announce to tracker.");
+					decoder = new ResponseDecoder(tracker.request(file_info.getBytesUploaded(), file_info.getBytesDownloaded(), file_info.getBytesLeft(), "started"));
+				} catch (IOException e) {
+					Log.logError("Unable to connect to the tracker.");
+					return;
+				}
+			}
+		}//tracker communication loop
+	}
+
+	/**
+	 * Generates a 20-char peer_id with group#, datetime-stamp and 4 random characters,
+	 * so engines started in the same minute (e.g. in one process) still have different IDs.
+	 * @return a String
+	 */
+	static String generatePeerID() {
+		Calendar cal = Calendar.getInstance();
+		String peer_id = "Grp03.";
+		if(cal.get(Calendar.MONTH) < 9)
+			peer_id += "0";
+		peer_id += (cal.get(Calendar.MONTH) + 1);
+		if(cal.get(Calendar.DATE) < 10)
+			peer_id += "0";
+		peer_id += cal.get(Calendar.DATE) + ".";
+		if(cal.get(Calendar.HOUR_OF_DAY) < 10)
+			peer_id += "0";
+		peer_id += cal.get(Calendar.HOUR_OF_DAY);
+		if(cal.get(Calendar.MINUTE) < 10)
+			peer_id += "0";
+		peer_id += cal.get(Calendar.MINUTE) + ".";
+		for(int x = 0; x < 4; x++) {
+			peer_id += Character.forDigit(id_random.nextInt(36), 36);
+		}
+		return peer_id;
+	}
+}
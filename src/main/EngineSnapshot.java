@@ -0,0 +1,221 @@
+package main;
+
+import java.util.List;
+
+import connection.PeerStats;
+
+/**
+ * An immutable copy of an Engine's state at one moment, for observers such as the GUI.
+ * @author Ari & Jay
+ */
+public class EngineSnapshot {
+	/**
+	 * Total bytes downloaded, including previous sessions
+	 */
+	private final long bytes_downloaded;
+
+	/**
+	 * Total bytes uploaded, including previous sessions
+	 */
+	private final long bytes_uploaded;
+
+	/**
+	 * Smoothed payload download rate (in bytes/second)
+	 */
+	private final double download_rate;
+
+	/**
+	 * Smoothed payload upload rate (in bytes/second)
+	 */
+	private final double upload_rate;
+
+	/**
+	 * Number of pieces in the torrent
+	 */
+	private final int pieces_total;
+
+	/**
+	 * Number of verified pieces
+	 */
+	private final int pieces_complete;
+
+	/**
+	 * Connected peers' stats, as last published
+	 */
+	private final List<PeerStats> peers;
+
+	/**
+	 * Leeches reported by the tracker, or null
+	 */
+	private final Integer leeches;
+
+	/**
+	 * Seeds reported by the tracker, or null
+	 */
+	private final Integer seeds;
+
+	/**
+	 * Our peer ID
+	 */
+	private final String peer_id;
+
+	/**
+	 * Seconds until the next tracker announce
+	 */
+	private final long announce_seconds;
+
+	/**
+	 * Block requests served from the piece cache
+	 */
+	private final long cache_hits;
+
+	/**
+	 * Block requests which had to read from disk
+	 */
+	private final long cache_misses;
+
+	/**
+	 * Whether the engine is running (not stopped)
+	 */
+	private final boolean running;
+
+	/**
+	 * Constructor
+	 * @param engine The engine to copy
+	 * @param peers The engine's published peer stats; not copied, so must never be modified
+	 * @param leeches Leeches reported by the tracker, or null
+	 * @param seeds Seeds reported by the tracker, or null
+	 * @param announce_seconds Seconds until the next tracker announce
+	 * @param running Whether the engine is running
+	 */
+	EngineSnapshot(Engine engine, List<PeerStats> peers, Integer leeches, Integer seeds, long announce_seconds, boolean running) {
+		bytes_downloaded = engine.getFileInfo().getBytesDownloaded();
+		bytes_uploaded = engine.getFileInfo().getBytesUploaded();
+		download_rate = engine.getFileInfo().getDownloadMeter().getRate();
+		upload_rate = engine.getFileInfo().getUploadMeter().getRate();
+		pieces_total = engine.getFileInfo().getBitfieldBitSize();
+		pieces_complete = engine.getFileInfo().getPiecesCompleted();
+		cache_hits = engine.getFileInfo().getCache().getHits();
+		cache_misses = engine.getFileInfo().getCache().getMisses();
+		peer_id = engine.getPeerID();
+		this.peers = peers;
+		this.leeches = leeches;
+		this.seeds = seeds;
+		this.announce_seconds = announce_seconds;
+		this.running = running;
+	}
+
+	/**
+	 * Gets the bytes downloaded.
+	 * @return a long
+	 */
+	public long getBytesDownloaded() {
+		return bytes_downloaded;
+	}
+
+	/**
+	 * Gets the bytes uploaded.
+	 * @return a long
+	 */
+	public long getBytesUploaded() {
+		return bytes_uploaded;
+	}
+
+	/**
+	 * Gets the smoothed download rate.
+	 * @return bytes/second
+	 */
+	public double getDownloadRate() {
+		return download_rate;
+	}
+
+	/**
+	 * Gets the smoothed upload rate.
+	 * @return bytes/second
+	 */
+	public double getUploadRate() {
+		return upload_rate;
+	}
+
+	/**
+	 * Gets the number of pieces in the torrent.
+	 * @return an int
+	 */
+	public int getPiecesTotal() {
+		return pieces_total;
+	}
+
+	/**
+	 * Gets the number of verified pieces.
+	 * @return an int
+	 */
+	public int getPiecesCompleted() {
+		return pieces_complete;
+	}
+
+	/**
+	 * Gets the connected peers' stats.
+	 * The engine publishes a new list every Engine.manage_interval, so observers can tell
+	 * whether anything changed by comparing lists with ==.
+	 * @return an unmodifiable list
+	 */
+	public List<PeerStats> getPeers() {
+		return peers;
+	}
+
+	/**
+	 * Gets the leeches reported by the tracker.
+	 * @return an Integer, or null if unknown
+	 */
+	public Integer getLeeches() {
+		return leeches;
+	}
+
+	/**
+	 * Gets the seeds reported by the tracker.
+	 * @return an Integer, or null if unknown
+	 */
+	public Integer getSeeds() {
+		return seeds;
+	}
+
+	/**
+	 * Gets our peer ID.
+	 * @return a String
+	 */
+	public String getPeerID() {
+		return peer_id;
+	}
+
+	/**
+	 * Gets the time until the next tracker announce.
+	 * @return seconds
+	 */
+	public long getAnnounceSeconds() {
+		return announce_seconds;
+	}
+
+	/**
+	 * Gets the number of block requests served from the piece cache.
+	 * @return a long
+	 */
+	public long getCacheHits() {
+		return cache_hits;
+	}
+
+	/**
+	 * Gets the number of block requests which had to read from disk.
+	 * @return a long
+	 */
+	public long getCacheMisses() {
+		return cache_misses;
+	}
+
+	/**
+	 * Whether the engine is running.
+	 * @return false if stopped
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+}
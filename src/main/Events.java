@@ -0,0 +1,207 @@
+package main;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events for the life of a piece, peer I/O, choking & announcing.
+ * Record with e.g. java -XX:StartFlightRecording=filename=rubt.jfr ... and open the file
+ * in JDK Mission Control, where the events sit alongside GC & thread activity.
+ * While nothing is recording, creating & committing an event costs almost nothing,
+ * so they are always emitted; set fields only when shouldCommit() for costly ones.
+ * @author Ari & Jay
+ */
+public class Events {
+	/**
+	 * A piece claimed for downloading from one peer.
+	 */
+	@Name("rubt.PieceClaimed")
+	@Label("Piece Claimed")
+	@Category({ "RUBT", "Pieces" })
+	public static class PieceClaimed extends Event {
+		/**
+		 * The piece's index
+		 */
+		@Label("Piece")
+		public int piece;
+	}
+
+	/**
+	 * A claimed piece given up on, e.g. because its peer choked us or disconnected.
+	 */
+	@Name("rubt.PieceCancelled")
+	@Label("Piece Cancelled")
+	@Category({ "RUBT", "Pieces" })
+	public static class PieceCancelled extends Event {
+		/**
+		 * The piece's index
+		 */
+		@Label("Piece")
+		public int piece;
+	}
+
+	/**
+	 * A downloaded piece's SHA-1 check; lasts as long as hashing.
+	 */
+	@Name("rubt.PieceHashed")
+	@Label("Piece Hashed")
+	@Category({ "RUBT", "Pieces" })
+	public static class PieceHashed extends Event {
+		/**
+		 * The piece's index
+		 */
+		@Label("Piece")
+		public int piece;
+
+		/**
+		 * The piece's size
+		 */
+		@Label("Size")
+		@DataAmount
+		public int size;
+
+		/**
+		 * Whether the hash matched the torrent's
+		 */
+		@Label("Valid")
+		public boolean valid;
+	}
+
+	/**
+	 * One or more adjacent pieces written to disk; lasts as long as the write.
+	 */
+	@Name("rubt.PieceWritten")
+	@Label("Piece Written")
+	@Category({ "RUBT", "Pieces" })
+	public static class PieceWritten extends Event {
+		/**
+		 * The first piece's index
+		 */
+		@Label("First Piece")
+		public int piece;
+
+		/**
+		 * Bytes written
+		 */
+		@Label("Size")
+		@DataAmount
+		public int size;
+	}
+
+	/**
+	 * A block requested from a peer.
+	 */
+	@Name("rubt.BlockRequested")
+	@Label("Block Requested")
+	@Category({ "RUBT", "Peer I/O" })
+	public static class BlockRequested extends Event {
+		/**
+		 * The peer's ID
+		 */
+		@Label("Peer")
+		public String peer;
+
+		/**
+		 * The piece's index
+		 */
+		@Label("Piece")
+		public int piece;
+
+		/**
+		 * The block's offset within the piece
+		 */
+		@Label("Offset")
+		public int begin;
+
+		/**
+		 * The block's size
+		 */
+		@Label("Size")
+		@DataAmount
+		public int size;
+	}
+
+	/**
+	 * A requested block received from a peer; lasts from the request to the block's last byte.
+	 */
+	@Name("rubt.BlockReceived")
+	@Label("Block Received")
+	@Category({ "RUBT", "Peer I/O" })
+	public static class BlockReceived extends Event {
+		/**
+		 * The peer's ID
+		 */
+		@Label("Peer")
+		public String peer;
+
+		/**
+		 * The piece's index
+		 */
+		@Label("Piece")
+		public int piece;
+
+		/**
+		 * The block's offset within the piece
+		 */
+		@Label("Offset")
+		public int begin;
+
+		/**
+		 * The block's size
+		 */
+		@Label("Size")
+		@DataAmount
+		public int size;
+	}
+
+	/**
+	 * Our choking or unchoking a peer.
+	 */
+	@Name("rubt.Choke")
+	@Label("Choke")
+	@Description("We choked or unchoked a peer")
+	@Category({ "RUBT", "Choking" })
+	public static class Choke extends Event {
+		/**
+		 * The peer's ID
+		 */
+		@Label("Peer")
+		public String peer;
+
+		/**
+		 * true for choke, false for unchoke
+		 */
+		@Label("Choked")
+		public boolean choked;
+	}
+
+	/**
+	 * A tracker request; lasts until the response arrives or the request fails.
+	 */
+	@Name("rubt.TrackerAnnounce")
+	@Label("Tracker Announce")
+	@Category({ "RUBT", "Tracker" })
+	public static class TrackerAnnounce extends Event {
+		/**
+		 * The tracker's announce URL
+		 */
+		@Label("Tracker")
+		public String tracker;
+
+		/**
+		 * The request's event, e.g. "started"
+		 */
+		@Label("Event")
+		public String event;
+
+		/**
+		 * Whether the tracker answered
+		 */
+		@Label("Succeeded")
+		public boolean succeeded;
+	}
+}
@@ -0,0 +1,395 @@
+package main;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The client's log.
+ * Lines have a level (debug, info, warn, error); lines below the current level are
+ * dropped before they are queued, and hot paths check debugEnabled() before building
+ * a message, so disabled debug logging costs one volatile read.
+ * Logging threads never block or lock: a line is put in a bounded lock-free ring
+ * (dropped & counted if the ring is full), and a background thread writes it to
+ * System.out (System.err for warnings & errors) and to a ring of recent lines,
+ * which observers such as the GUI poll with getLinesSince(). Logging never touches Swing.
+ * Repetitive warnings can be rate-limited with warnLimited().
+ * @author Ari & Jay
+ */
+public class Log {
+	/**
+	 * Level for per-message & per-block detail
+	 */
+	public static final int level_debug = 0;
+
+	/**
+	 * Level for normal progress
+	 */
+	public static final int level_info = 1;
+
+	/**
+	 * Level for misbehaving peers & recoverable failures
+	 */
+	public static final int level_warn = 2;
+
+	/**
+	 * Level for failures
+	 */
+	public static final int level_error = 3;
+
+	/**
+	 * Names of the levels, by level
+	 */
+	private static final String[] level_names = { "debug", "info", "warn", "error" };
+
+	/**
+	 * Number of recent lines kept for observers.
+	 */
+	public static final int recent_size = 1000;
+
+	/**
+	 * Number of lines the queue can hold; a power of two.
+	 */
+	private static final int queue_size = 8192;
+
+	/**
+	 * Shortest time between lines with the same rate-limit key (in nanoseconds)
+	 */
+	private static final long limit_interval = 10L * 1000 * 1000 * 1000;
+
+	/**
+	 * Time the writer sleeps when the queue is empty (in nanoseconds)
+	 */
+	private static final long writer_idle = 20L * 1000 * 1000;
+
+	/**
+	 * Lowest level logged
+	 */
+	private static volatile int level = level_info;
+
+	/**
+	 * Queued lines, by position % queue_size
+	 */
+	private static final String[] queue_lines = new String[queue_size];
+
+	/**
+	 * Queued lines' levels, by position % queue_size
+	 */
+	private static final int[] queue_levels = new int[queue_size];
+
+	/**
+	 * Per queue slot: the position it may next be written at, or that position + 1 once it
+	 * holds a line for the writer. Publishes the slot's contents between threads.
+	 */
+	private static final AtomicLongArray queue_sequences = new AtomicLongArray(queue_size);
+
+	/**
+	 * Position at which the next line will be queued
+	 */
+	private static final AtomicLong queue_tail = new AtomicLong(0);
+
+	/**
+	 * Position of the next line for the writer; only the writer changes it.
+	 */
+	private static volatile long queue_head = 0;
+
+	/**
+	 * Position up to which lines have been printed; only the writer changes it.
+	 */
+	private static volatile long queue_printed = 0;
+
+	/**
+	 * Most characters batched before printing, even if more lines are queued
+	 */
+	private static final int max_batch = 64 * 1024;
+
+	/**
+	 * Lines dropped because the queue was full
+	 */
+	private static final AtomicLong dropped = new AtomicLong(0);
+
+	/**
+	 * Rate-limit state by key
+	 */
+	private static final ConcurrentHashMap<String,Limit> limits = new ConcurrentHashMap<String,Limit>();
+
+	/**
+	 * The most recent lines; line n is at n % recent_size.
+	 */
+	private static String[] recent = new String[recent_size];
+
+	/**
+	 * Number of lines written so far.
+	 */
+	private static long line_count = 0;
+
+	/**
+	 * Mutex for recent and line_count, shared only by the writer and observers.
+	 */
+	private static ReentrantLock recent_lock = new ReentrantLock();
+
+	/**
+	 * The background writer thread.
+	 */
+	private static Thread writer;
+
+	static {
+		for(int x = 0; x < queue_size; x++) {
+			queue_sequences.set(x, x);
+		}
+
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "Log writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Rate-limit state for one key.
+	 */
+	private static class Limit {
+		/**
+		 * System.nanoTime() at which the key may next be logged
+		 */
+		AtomicLong next = new AtomicLong(System.nanoTime());
+
+		/**
+		 * Lines suppressed since the key was last logged
+		 */
+		AtomicInteger suppressed = new AtomicInteger(0);
+	}
+
+	/**
+	 * Sets the lowest level logged.
+	 * @param new_level One of the level_ constants
+	 */
+	public static void setLevel(int new_level) {
+		level = Math.max(level_debug, Math.min(level_error, new_level));
+	}
+
+	/**
+	 * Finds a level by name.
+	 * @param name "debug", "info", "warn" or "error"
+	 * @return the level, or -1 if there is no such level
+	 */
+	public static int parseLevel(String name) {
+		for(int x = 0; x < level_names.length; x++) {
+			if(level_names[x].equalsIgnoreCase(name)) {
+				return x;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Whether debug lines are logged; check before building a debug message.
+	 * @return boolean
+	 */
+	public static boolean debugEnabled() {
+		return level <= level_debug;
+	}
+
+	/**
+	 * Writes a debug line to the log.
+	 * Callers on hot paths should check debugEnabled() first.
+	 * @param line The line String to write
+	 */
+	public static void debug(String line) {
+		enqueue(level_debug, line);
+	}
+
+	/**
+	 * Writes a line to the log.
+	 * Also writes it to System.out
+	 * @param line The line String to write
+	 */
+	public static void log(String line) {
+		enqueue(level_info, line);
+	}
+
+	/**
+	 * Writes "WARN:" followed by a line to the log.
+	 * Also writes it normally to System.err
+	 * @param line The line String to write
+	 */
+	public static void warn(String line) {
+		enqueue(level_warn, line);
+	}
+
+	/**
+	 * Writes a warning, unless one with the same key was written in the last 10 seconds.
+	 * The next warning written for the key says how many were suppressed.
+	 * @param key Identifies the kind of warning, e.g. "request while choked"
+	 * @param line The line String to write
+	 */
+	public static void warnLimited(String key, String line) {
+		if(level > level_warn) {
+			return;
+		}
+
+		Limit limit = limits.get(key);
+		if(limit == null) {
+			limits.putIfAbsent(key, new Limit());
+			limit = limits.get(key);
+		}
+
+		long now = System.nanoTime();
+		long next = limit.next.get();
+		if(now - next < 0 || !limit.next.compareAndSet(next, now + limit_interval)) {
+			limit.suppressed.incrementAndGet();
+			return;
+		}
+
+		int suppressed = limit.suppressed.getAndSet(0);
+		enqueue(level_warn, (suppressed == 0) ? line : line + " (" + suppressed + " similar suppressed)");
+	}
+
+	/**
+	 * Writes "ERROR:" followed by a line to the log.
+	 * Also writes it normally to System.err
+	 * @param line The line String to write
+	 */
+	public static void logError(String line) {
+		enqueue(level_error, line);
+	}
+
+	/**
+	 * Waits until every queued line has been written, or a second has passed.
+	 */
+	public static void flush() {
+		long target = queue_tail.get();
+		long deadline = System.currentTimeMillis() + 1000;
+		while(queue_printed < target && System.currentTimeMillis() < deadline) {
+			LockSupport.parkNanos(writer_idle);
+		}
+	}
+
+	/**
+	 * Gets the lines logged since a position; lines too old to be kept are skipped.
+	 * @param position 0, or a value previously returned by this method
+	 * @param lines List to add the lines to, oldest first
+	 * @return the position after the newest line, to pass in next time
+	 */
+	public static long getLinesSince(long position, List<String> lines) {
+		recent_lock.lock();
+		try {
+			for(long x = Math.max(position, line_count - recent_size); x < line_count; x++) {
+				lines.add(recent[(int)(x % recent_size)]);
+			}
+			return line_count;
+		}
+		finally {
+			recent_lock.unlock();
+		}
+	}
+
+	/**
+	 * Puts a line in the queue for the writer, without blocking.
+	 * @param line_level The line's level
+	 * @param line The line
+	 */
+	private static void enqueue(int line_level, String line) {
+		if(line_level < level) {
+			return;
+		}
+
+		while(true) {
+			long position = queue_tail.get();
+			int slot = (int)(position & (queue_size - 1));
+			long sequence = queue_sequences.get(slot);
+			if(sequence == position) {//slot is free
+				if(queue_tail.compareAndSet(position, position + 1)) {
+					queue_lines[slot] = line;
+					queue_levels[slot] = line_level;
+					queue_sequences.set(slot, position + 1);//publish
+					return;
+				}
+			}
+			else if(sequence < position) {//full: writer hasn't freed the slot yet
+				dropped.incrementAndGet();
+				return;
+			}
+			//else another thread claimed the slot first; try the next
+		}
+	}
+
+	/**
+	 * Code for the writer thread: takes lines from the queue and writes them, forever.
+	 */
+	private static void write() {
+		StringBuilder out = new StringBuilder();
+		StringBuilder err = new StringBuilder();
+		while(true) {
+			long head = queue_head;
+			int slot = (int)(head & (queue_size - 1));
+			boolean empty = (queue_sequences.get(slot) != head + 1);
+			if(empty || out.length() + err.length() > max_batch) {
+				//Print what we have:
+				print(System.out, out);
+				print(System.err, err);
+				queue_printed = head;
+				long lost = dropped.getAndSet(0);
+				if(lost > 0) {
+					System.err.println(lost + " log lines dropped");
+					remember("WARN: " + lost + " log lines dropped");
+				}
+			}
+			if(empty) {
+				LockSupport.parkNanos(writer_idle);
+				continue;
+			}
+
+			String line = queue_lines[slot];
+			int line_level = queue_levels[slot];
+			queue_lines[slot] = null;
+			queue_sequences.set(slot, head + queue_size);//free the slot
+			queue_head = head + 1;
+
+			if(line_level >= level_warn) {
+				err.append(line).append('\n');
+				remember(((line_level == level_error) ? "ERROR: " : "WARN: ") + line);
+			}
+			else {
+				out.append(line).append('\n');
+				remember((line_level == level_debug) ? "DEBUG: " + line : line);
+			}
+		}
+	}
+
+	/**
+	 * Prints and empties a batch of lines.
+	 * @param stream Where to print
+	 * @param lines The batch
+	 */
+	private static void print(PrintStream stream, StringBuilder lines) {
+		if(lines.length() > 0) {
+			stream.print(lines);
+			stream.flush();
+			lines.setLength(0);
+		}
+	}
+
+	/**
+	 * Adds a line to the ring of recent lines.
+	 * @param line The line
+	 */
+	private static void remember(String line) {
+		recent_lock.lock();
+		try {
+			recent[(int)(line_count % recent_size)] = line;
+			line_count++;
+		}
+		finally {
+			recent_lock.unlock();
+		}
+	}
+}
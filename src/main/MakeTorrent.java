@@ -0,0 +1,110 @@
+package main;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import structures.PieceHasher;
+import bencoding.BencodeEncoder;
+
+/**
+ * Command-line tool which creates a .torrent file for a single file.
+ * Pieces are hashed in parallel by a PieceHasher.
+ * @author Ari & Jay
+ */
+public class MakeTorrent {
+	/**
+	 * Main method for the tool
+	 * @param args &lt;file&gt; &lt;announce url&gt; &lt;torrent file&gt; [piece length] [threads]
+	 */
+	public static void main(String[] args) {
+		//Error check:
+		if(args.length < 3 || args.length > 5) {
+			System.err.println("Wrong number of arguments.");
+			System.err.println("Expected arguments are <file> <announce url> <torrent file> [piece length] [threads]");
+			return;
+		}
+
+		File file = new File(args[0]);
+		if(file.isDirectory() || !file.exists() || file.length() < 1) {
+			System.err.println("File not found, or empty.");
+			return;
+		}
+
+		//Read optional args:
+		int piece_length;
+		int threads = 0;
+		try {
+			if(args.length > 3) {
+				piece_length = Integer.parseInt(args[3]);
+			}
+			else {
+				piece_length = PieceHasher.choosePieceLength(file.length());
+			}
+			if(args.length > 4) {
+				threads = Integer.parseInt(args[4]);
+			}
+		} catch (NumberFormatException e) {
+			System.err.println("Piece length and thread count must be integers.");
+			return;
+		}
+		if(piece_length < PieceHasher.min_allowed_piece_length || piece_length > PieceHasher.max_allowed_piece_length) {
+			System.err.println("Piece length must be from " + PieceHasher.min_allowed_piece_length + " to " + PieceHasher.max_allowed_piece_length + " bytes.");
+			return;
+		}
+		if(1 + (file.length() - 1) / piece_length > PieceHasher.max_piece_count) {
+			System.err.println("File has too many pieces for a piece length of " + piece_length + " bytes.");
+			return;
+		}
+
+		//Hash & write:
+		long start = System.currentTimeMillis();
+		try {
+			byte[] torrent = create(file, args[1], piece_length, threads);
+			FileOutputStream out = new FileOutputStream(args[2]);
+			try {
+				out.write(torrent);
+			}
+			finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Unable to create torrent: " + e.getMessage());
+			return;
+		}
+		long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+		System.out.println("Wrote " + args[2] + " (" + (1 + (file.length()-1)/piece_length) + " pieces of " + piece_length/1024 + " KB)");
+		System.out.println("Hashed " + file.length()/1024/1024 + " MB in " + elapsed + " ms (" + file.length()/1024*1000/elapsed/1024 + " MB/s)");
+	}
+
+	/**
+	 * Builds the bencoded metainfo for a single file.
+	 * @param file The file to describe
+	 * @param announce_url The tracker's announce url
+	 * @param piece_length The size of each piece (in bytes)
+	 * @param threads The number of hashing threads, or 0 for one per core
+	 * @return the contents of the .torrent file
+	 * @throws IOException on failure reading or hashing the file
+	 * @throws IllegalArgumentException if the piece length is out of PieceHasher's range
+	 */
+	public static byte[] create(File file, String announce_url, int piece_length, int threads) throws IOException {
+		byte[] hashes = new PieceHasher(file.getPath(), piece_length, threads).hash();
+
+		Map<String,Object> info = new HashMap<String,Object>();
+		info.put("length", file.length());
+		info.put("name", file.getName());
+		info.put("piece length", piece_length);
+		info.put("pieces", hashes);
+
+		Map<String,Object> root = new HashMap<String,Object>();
+		root.put("announce", announce_url);
+		root.put("created by", "RUBTClient");
+		root.put("creation date", System.currentTimeMillis() / 1000);
+		root.put("info", info);
+
+		return BencodeEncoder.encode(root);
+	}
+}
@@ -0,0 +1,178 @@
+package main;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import structures.Counter;
+import structures.Histogram;
+
+/**
+ * The client's metrics registry: named counters, gauges & histograms, shared by every
+ * part of the engine and dumped as text or JSON (e.g. by MetricsServer).
+ * Look a metric up once, into a static final field, and record into it on hot paths;
+ * recording never locks or allocates, so metrics are always on.
+ * Names are dotted, lowercase, and end in their unit where it isn't a plain count,
+ * e.g. "peer.block_rtt_us".
+ * @author Ari & Jay
+ */
+public class Metrics {
+	/**
+	 * A value read when metrics are dumped, e.g. the number of connected peers.
+	 */
+	public interface Gauge {
+		/**
+		 * Reads the current value; called from the dumping thread.
+		 * @return a long
+		 */
+		long get();
+	}
+
+	/**
+	 * Percentiles dumped for each histogram
+	 */
+	private static final double[] percentiles = { 50, 90, 99, 99.9 };
+
+	/**
+	 * Counters by name
+	 */
+	private static final ConcurrentHashMap<String,Counter> counters = new ConcurrentHashMap<String,Counter>();
+
+	/**
+	 * Histograms by name
+	 */
+	private static final ConcurrentHashMap<String,Histogram> histograms = new ConcurrentHashMap<String,Histogram>();
+
+	/**
+	 * Gauges by name
+	 */
+	private static final ConcurrentHashMap<String,Gauge> gauges = new ConcurrentHashMap<String,Gauge>();
+
+	/**
+	 * Gets a counter, creating it the first time its name is used.
+	 * @param name The counter's name
+	 * @return the Counter
+	 */
+	public static Counter counter(String name) {
+		Counter counter = counters.get(name);
+		if(counter == null) {
+			counters.putIfAbsent(name, new Counter());
+			counter = counters.get(name);
+		}
+		return counter;
+	}
+
+	/**
+	 * Gets a histogram, creating it the first time its name is used.
+	 * @param name The histogram's name
+	 * @return the Histogram
+	 */
+	public static Histogram histogram(String name) {
+		Histogram histogram = histograms.get(name);
+		if(histogram == null) {
+			histograms.putIfAbsent(name, new Histogram());
+			histogram = histograms.get(name);
+		}
+		return histogram;
+	}
+
+	/**
+	 * Registers a gauge, replacing any with the same name.
+	 * @param name The gauge's name
+	 * @param gauge The gauge
+	 */
+	public static void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * Unregisters a gauge, if it is still the one registered under its name.
+	 * @param name The gauge's name
+	 * @param gauge The gauge
+	 */
+	public static void removeGauge(String name, Gauge gauge) {
+		gauges.remove(name, gauge);
+	}
+
+	/**
+	 * Dumps every metric as text, one per line, sorted by name.
+	 * @return a String
+	 */
+	public static String toText() {
+		StringBuilder out = new StringBuilder();
+		for(Map.Entry<String,Counter> e : new TreeMap<String,Counter>(counters).entrySet()) {
+			out.append(e.getKey()).append(' ').append(e.getValue().get()).append('\n');
+		}
+		for(Map.Entry<String,Gauge> e : new TreeMap<String,Gauge>(gauges).entrySet()) {
+			out.append(e.getKey()).append(' ').append(e.getValue().get()).append('\n');
+		}
+		for(Map.Entry<String,Histogram> e : new TreeMap<String,Histogram>(histograms).entrySet()) {
+			Histogram h = e.getValue();
+			out.append(e.getKey()).append(" count=").append(h.getCount());
+			out.append(" mean=").append((long)h.getMean());
+			for(double p : percentiles) {
+				out.append(" p").append(percentileName(p)).append('=').append(h.getPercentile(p));
+			}
+			out.append(" max=").append(h.getMax()).append('\n');
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Dumps every metric as a JSON object with "counters", "gauges" & "histograms" objects,
+	 * each keyed by name.
+	 * @return a String
+	 */
+	public static String toJSON() {
+		StringBuilder out = new StringBuilder("{\"counters\":{");
+		boolean first = true;
+		for(Map.Entry<String,Counter> e : new TreeMap<String,Counter>(counters).entrySet()) {
+			out.append(first ? "" : ",").append(quote(e.getKey())).append(':').append(e.getValue().get());
+			first = false;
+		}
+
+		out.append("},\"gauges\":{");
+		first = true;
+		for(Map.Entry<String,Gauge> e : new TreeMap<String,Gauge>(gauges).entrySet()) {
+			out.append(first ? "" : ",").append(quote(e.getKey())).append(':').append(e.getValue().get());
+			first = false;
+		}
+
+		out.append("},\"histograms\":{");
+		first = true;
+		for(Map.Entry<String,Histogram> e : new TreeMap<String,Histogram>(histograms).entrySet()) {
+			Histogram h = e.getValue();
+			out.append(first ? "" : ",").append(quote(e.getKey()));
+			out.append(":{\"count\":").append(h.getCount());
+			out.append(",\"sum\":").append(h.getSum());
+			for(double p : percentiles) {
+				out.append(",\"p").append(percentileName(p)).append("\":").append(h.getPercentile(p));
+			}
+			out.append(",\"max\":").append(h.getMax()).append('}');
+			first = false;
+		}
+		out.append("}}");
+		return out.toString();
+	}
+
+	/**
+	 * Names a percentile for dumping, e.g. "99" or "99_9".
+	 * @param p The percentile
+	 * @return a String
+	 */
+	private static String percentileName(double p) {
+		if(p == Math.floor(p)) {
+			return Long.toString((long)p);
+		}
+		return Double.toString(p).replace('.', '_');
+	}
+
+	/**
+	 * Quotes a name as a JSON string.
+	 * @param name The name
+	 * @return the quoted name
+	 */
+	private static String quote(String name) {
+		return "\"" + name.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+}
@@ -0,0 +1,74 @@
+package main;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the metrics registry over HTTP on the loopback interface only:
+ * GET /metrics for text, /metrics.json (or /metrics?format=json) for JSON.
+ * @author Ari & Jay
+ */
+public class MetricsServer {
+	/**
+	 * The HTTP server
+	 */
+	private HttpServer server;
+
+	/**
+	 * Constructor
+	 * Starts serving.
+	 * @param port The port to listen on, on 127.0.0.1
+	 * @throws IOException if the port can't be bound
+	 */
+	public MetricsServer(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange);
+			}
+		});
+		server.start();
+	}
+
+	/**
+	 * Stops serving, without waiting for requests in progress.
+	 */
+	public void stop() {
+		server.stop(0);
+	}
+
+	/**
+	 * Answers one request with the dumped metrics.
+	 * @param exchange The request & response
+	 * @throws IOException on failure writing the response
+	 */
+	private static void serve(HttpExchange exchange) throws IOException {
+		try {
+			String path = exchange.getRequestURI().getPath();
+			String query = exchange.getRequestURI().getQuery();
+			boolean json = path.endsWith(".json") || "format=json".equals(query);
+			if(!path.equals("/metrics") && !path.equals("/metrics.json")) {
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+
+			byte[] body = (json ? Metrics.toJSON() : Metrics.toText()).getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", json ? "application/json" : "text/plain; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		}
+		finally {
+			exchange.close();
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package main;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.swing.table.AbstractTableModel;
+
+import connection.PeerStats;
+
+/**
+ * Table model for the GUI's peer table, backed by an immutable list of PeerStats.
+ * Cells are formatted from the list on demand, and a new list is swapped in whole,
+ * with one table-changed event, rather than cell by cell.
+ * Only use it on the event dispatch thread.
+ * @author Ari & Jay
+ */
+public class PeerTableModel extends AbstractTableModel {
+	/**
+	 * Automatically generated for god-knows-what-reason
+	 */
+	private static final long serialVersionUID = 4387716527349064213L;
+
+	/**
+	 * Column names, in order
+	 */
+	private static final String[] columns = { "Peer ID", "IP Address", "Piece Downloading", "Unchoked?", "Interested?", "Downloaded", "Uploaded", "Down Rate", "Up Rate" };
+
+	/**
+	 * The rows being shown
+	 */
+	private List<PeerStats> peers = Collections.emptyList();
+
+	/**
+	 * Shows a new list of peers, if it isn't the one already shown.
+	 * @param stats The peers' stats; must never be modified
+	 */
+	public void setStats(List<PeerStats> stats) {
+		if(stats == peers) {
+			return;
+		}
+		peers = stats;
+		fireTableDataChanged();
+	}
+
+	/**
+	 * Gets the number of peers shown.
+	 * @return an int
+	 */
+	@Override
+	public int getRowCount() {
+		return peers.size();
+	}
+
+	/**
+	 * Gets the number of columns.
+	 * @return an int
+	 */
+	@Override
+	public int getColumnCount() {
+		return columns.length;
+	}
+
+	/**
+	 * Gets a column's name.
+	 * @param column The column's index
+	 * @return a String
+	 */
+	@Override
+	public String getColumnName(int column) {
+		return columns[column];
+	}
+
+	/**
+	 * Formats a cell.
+	 * @param row The peer's index
+	 * @param column The column's index
+	 * @return the cell's text
+	 */
+	@Override
+	public Object getValueAt(int row, int column) {
+		PeerStats p = peers.get(row);
+		switch(column) {
+		case 0:
+			return p.getID();
+		case 1:
+			return p.getIP();
+		case 2:
+			return (p.getCurrentPiece() >= 0) ? Integer.toString(p.getCurrentPiece()) : "N/A";
+		case 3:
+			return p.isChoked() ? "NOPE" : "YES";
+		case 4:
+			return p.isInterested() ? "YES" : "NOPE";
+		case 5:
+			return p.getDownloaded()/1024 + " KB";
+		case 6:
+			return p.getUploaded()/1024 + " KB";
+		case 7:
+			return (long)p.getDownloadRate()/1024 + " KB/s";
+		default:
+			return (long)p.getUploadRate()/1024 + " KB/s";
+		}
+	}
+}
@@ -0,0 +1,628 @@
+package main;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dht.DHTNode;
+import structures.TokenBucket;
+import bencoding.TorrentDecoder;
+import connection.ConnectionManager;
+import connection.ListenerThread;
+import connection.LocalPeerDiscovery;
+import connection.PeerThreads;
+
+/**
+ * Downloads & seeds many torrents in one process, each an Engine.
+ * The engines share our peer ID and one listener, which routes each incoming connection
+ * to its torrent by the info hash in its handshake, and one connection manager, which
+ * makes their outgoing connections. They also share a pool of disk writer
+ * threads, a pool of piece hashing threads, and limits on total connections & transfer rates,
+ * so the process's sockets and disk & hashing threads don't grow with the number of torrents.
+ * Each torrent still runs its own peer manager, choker & tracker announcer threads (and a
+ * DHT announcer, with the DHT on), which exit when the torrent is removed.
+ * @author Ari & Jay
+ */
+public class Session {
+	/**
+	 * Usage text for the command line.
+	 */
+	public static final String usage = "Expected arguments are <torrent file> <download target> [<torrent file> <download target> ...] [options]";
+
+	/**
+	 * Options text for the command line.
+	 */
+	public static final String options = "Options are -maxconns <n> -halfopen <n> -iothreads <n> -hashthreads <n> -up <KB/s> -down <KB/s> -virtual -loglevel <debug|info|warn|error> -metrics <port> -port <port> -dht -bootstrap <host:port> -lsd -lsdif <interface>";
+
+	/**
+	 * Default limit on connections across every torrent
+	 */
+	public static final int default_max_connections = 500;
+
+	/**
+	 * Default number of disk writer threads
+	 */
+	public static final int default_io_threads = 4;
+
+	/**
+	 * Our peer ID, for every torrent
+	 */
+	private String peer_id;
+
+	/**
+	 * Listener for incoming connections to every torrent
+	 */
+	private ListenerThread listener = null;
+
+	/**
+	 * Makes outgoing connections for every torrent
+	 */
+	private ConnectionManager connections;
+
+	/**
+	 * Port the listener is on
+	 */
+	private int port = 0;
+
+	/**
+	 * Nodes to join the DHT through, or null if the DHT is off
+	 */
+	private List<InetSocketAddress> dht_bootstrap = null;
+
+	/**
+	 * DHT node finding peers for every torrent, on the listener's port, or null
+	 */
+	private DHTNode dht = null;
+
+	/**
+	 * Whether to find peers on the LAN by local peer discovery
+	 */
+	private boolean lsd_enabled = false;
+
+	/**
+	 * Interface to discover LAN peers on, or null for the system's default
+	 */
+	private NetworkInterface lsd_interface = null;
+
+	/**
+	 * Local peer discovery for every torrent, or null
+	 */
+	private LocalPeerDiscovery lsd = null;
+
+	/**
+	 * Lowest port to listen on
+	 */
+	private int first_port = 6881;
+
+	/**
+	 * Highest port to listen on
+	 */
+	private int last_port = 6889;
+
+	/**
+	 * Limit on total upload rate, shared by every torrent & peer
+	 */
+	private TokenBucket upload_limit = new TokenBucket(0, null);
+
+	/**
+	 * Limit on total download rate, shared by every torrent & peer
+	 */
+	private TokenBucket download_limit = new TokenBucket(0, null);
+
+	/**
+	 * Most connections across every torrent
+	 */
+	private int max_connections;
+
+	/**
+	 * Connections allowed; each connected peer holds a permit
+	 */
+	private Semaphore connection_slots;
+
+	/**
+	 * Threads which write every torrent's pieces & metadata to disk
+	 */
+	private ScheduledExecutorService io_pool;
+
+	/**
+	 * Threads which hash every torrent's downloaded pieces
+	 */
+	private ExecutorService hash_pool;
+
+	/**
+	 * The torrents
+	 */
+	private List<Engine> engines = new CopyOnWriteArrayList<Engine>();
+
+	/**
+	 * Whether start() has been called and not shutdown()
+	 */
+	private volatile boolean started = false;
+
+	/**
+	 * Server for the metrics, or null
+	 */
+	private MetricsServer metrics_server = null;
+
+	/**
+	 * Constructor
+	 * @param max_connections Most connections across every torrent
+	 * @param max_half_open Most outgoing connects in progress at once
+	 * @param io_threads Number of disk writer threads
+	 * @param hash_threads Number of piece hashing threads, or 0 for one per core
+	 */
+	public Session(int max_connections, int max_half_open, int io_threads, int hash_threads) {
+		if(hash_threads < 1) {
+			hash_threads = Runtime.getRuntime().availableProcessors();
+		}
+		this.max_connections = max_connections;
+		connection_slots = new Semaphore(max_connections);
+		connections = new ConnectionManager(max_half_open, connection_slots);
+		io_pool = Executors.newScheduledThreadPool(Math.max(1, io_threads), daemonThreads("Disk writer"));
+		hash_pool = Executors.newFixedThreadPool(hash_threads, daemonThreads("Piece hasher"));
+		peer_id = Engine.generatePeerID();
+		registerGauges();
+	}
+
+	/**
+	 * Creates a session from command-line arguments, logging any errors.
+	 * @param args <torrent file> <download target> [<torrent file> <download target> ...] [options]
+	 * @return a new Session with its torrents added, or null on error
+	 */
+	public static Session fromArgs(String[] args) {
+		//Read optional args:
+		int first_option = 0;
+		while(first_option < args.length && !args[first_option].startsWith("-")) {
+			first_option++;
+		}
+		if(first_option == 0 || first_option % 2 != 0) {
+			Log.logError("Wrong number of arguments.");
+			Log.logError(usage);
+			Log.logError(options);
+			return null;
+		}
+
+		int max_connections = default_max_connections;
+		int max_half_open = ConnectionManager.default_max_half_open;
+		int io_threads = default_io_threads;
+		int hash_threads = 0;
+		long up = 0;
+		long down = 0;
+		int port = 0;
+		int metrics_port = 0;
+		boolean virtual_threads = false;
+		List<InetSocketAddress> bootstrap = null;
+		boolean lsd = false;
+		NetworkInterface lsd_interface = null;
+		try {
+			for(int x = first_option; x < args.length; x++) {
+				if(args[x].equals("-maxconns") && x + 1 < args.length) {
+					max_connections = Integer.parseInt(args[++x]);
+				}
+				else if(args[x].equals("-halfopen") && x + 1 < args.length) {
+					max_half_open = Integer.parseInt(args[++x]);
+				}
+				else if(args[x].equals("-iothreads") && x + 1 < args.length) {
+					io_threads = Integer.parseInt(args[++x]);
+				}
+				else if(args[x].equals("-hashthreads") && x + 1 < args.length) {
+					hash_threads = Integer.parseInt(args[++x]);
+				}
+				else if(args[x].equals("-up") && x + 1 < args.length) {
+					up = Integer.parseInt(args[++x]) * 1024L;
+				}
+				else if(args[x].equals("-down") && x + 1 < args.length) {
+					down = Integer.parseInt(args[++x]) * 1024L;
+				}
+				else if(args[x].equals("-virtual")) {
+					virtual_threads = true;
+				}
+				else if(args[x].equals("-loglevel") && x + 1 < args.length && Log.parseLevel(args[x+1]) >= 0) {
+					Log.setLevel(Log.parseLevel(args[++x]));
+				}
+				else if(args[x].equals("-port") && x + 1 < args.length) {
+					port = Integer.parseInt(args[++x]);
+				}
+				else if(args[x].equals("-dht")) {
+					if(bootstrap == null) {
+						bootstrap = new ArrayList<InetSocketAddress>();
+					}
+				}
+				else if(args[x].equals("-bootstrap") && x + 1 < args.length) {
+					if(bootstrap == null) {
+						bootstrap = new ArrayList<InetSocketAddress>();
+					}
+					bootstrap.add(DHTNode.parseAddress(args[++x]));
+				}
+				else if(args[x].equals("-lsd")) {
+					lsd = true;
+				}
+				else if(args[x].equals("-lsdif") && x + 1 < args.length) {
+					lsd = true;
+					lsd_interface = Engine.findInterface(args[++x]);
+					if(lsd_interface == null) {
+						return null;
+					}
+				}
+				else if(args[x].equals("-metrics") && x + 1 < args.length) {
+					metrics_port = Integer.parseInt(args[++x]);
+				}
+				else {
+					Log.logError("Unknown option " + args[x] + ".");
+					return null;
+				}
+			}
+		} catch (NumberFormatException e) {
+			Log.logError("Option values must be integers, and bootstrap nodes host:port.");
+			return null;
+		}
+		if(virtual_threads && PeerThreads.setVirtual(true)) {
+			Log.log("Running peers on virtual threads.");
+		}
+
+		Session session = new Session(max_connections, max_half_open, io_threads, hash_threads);
+		session.upload_limit.setRate(up);
+		session.download_limit.setRate(down);
+		if(port != 0) {
+			session.setPorts(port, port);
+		}
+		if(bootstrap != null) {
+			session.enableDHT(bootstrap);
+		}
+		if(lsd) {
+			session.enableLocalDiscovery(lsd_interface);
+		}
+		if(metrics_port != 0) {
+			try {
+				session.metrics_server = new MetricsServer(metrics_port);
+				Log.log("Serving metrics at http://127.0.0.1:" + metrics_port + "/metrics");
+			} catch (IOException e) {
+				Log.logError("Unable to serve metrics on port " + metrics_port + ".");
+				session.shutdown();
+				return null;
+			}
+		}
+
+		//Add torrents:
+		for(int x = 0; x < first_option; x += 2) {
+			try {
+				session.add(args[x], args[x+1]);
+			} catch (IOException e) {
+				Log.logError(args[x] + ": " + e.getMessage());
+				session.shutdown();
+				return null;
+			}
+		}
+		return session;
+	}
+
+	/**
+	 * Entry point for seeding & downloading many torrents without a GUI.
+	 * @param args <torrent file> <download target> [<torrent file> <download target> ...] [options]
+	 */
+	public static void main(String[] args) {
+		final Session session = fromArgs(args);
+		if(session == null) {
+			Log.flush();
+			return;
+		}
+
+		//Add shutdown hook:
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				session.shutdown();
+			}
+		});
+
+		session.start();
+	}
+
+	/**
+	 * Starts listening, then starts every torrent added so far.
+	 * @return false if no listening port was free
+	 */
+	public boolean start() {
+		for(port = first_port; port <= last_port; port++) {
+			try {
+				listener = new ListenerThread(port,peer_id,connection_slots);
+				new Thread(listener, "Listener").start();
+				Log.log("Listening on port " + port);
+			} catch (IOException e) {
+				continue;
+			}
+			break;
+		}
+		if(port > last_port) {
+			Log.logError("Unable to create listener on any port.");
+			return false;
+		}
+
+		if(dht_bootstrap != null) {
+			try {
+				dht = new DHTNode(new InetSocketAddress(port), dht_bootstrap);
+				dht.start();
+				Log.log("DHT node on UDP port " + port);
+			} catch (SocketException e) {
+				Log.warn("Unable to start DHT node on UDP port " + port + ".");
+			}
+		}
+
+		if(lsd_enabled) {
+			try {
+				lsd = new LocalPeerDiscovery(connections, lsd_interface);
+				lsd.start();
+			} catch (IOException e) {
+				Log.warn("Unable to start local peer discovery: " + e.getMessage());
+			}
+		}
+
+		connections.start();
+		started = true;
+		for(Engine e : engines) {
+			e.start();
+		}
+		return true;
+	}
+
+	/**
+	 * Adds a torrent, starting it if the session has started.
+	 * @param torrent Path of the .torrent file
+	 * @param target Where to save the file (or directory, for a multi-file torrent)
+	 * @return the torrent's Engine
+	 * @throws IOException if the torrent is missing, invalid or already added, or the target can't be opened
+	 */
+	public synchronized Engine add(String torrent, String target) throws IOException {
+		//Check for a duplicate before opening the target, which the existing engine has open:
+		TorrentDecoder torrent_data = Engine.decode(torrent);
+		for(Engine e : engines) {
+			if(e.getTorrent().getInfoHash().equals(torrent_data.getInfoHash())) {
+				throw new IOException("Torrent already added.");
+			}
+		}
+
+		Engine engine = new Engine(torrent_data, target, this);
+		engines.add(engine);
+		if(started) {
+			engine.start();
+		}
+		return engine;
+	}
+
+	/**
+	 * Stops a torrent and removes it from the session.
+	 * Blocks until its peers have disconnected and its pieces are on disk.
+	 * @param engine The torrent's Engine
+	 */
+	public void remove(Engine engine) {
+		if(engines.remove(engine)) {
+			engine.shutdown();
+		}
+	}
+
+	/**
+	 * Called during shutdown.
+	 * Shuts down every torrent, then stops the listener and the thread pools.
+	 */
+	public void shutdown() {
+		started = false;
+		for(Engine e : engines) {
+			remove(e);
+		}
+		if(listener != null) {
+			listener.stop();
+		}
+		if(dht != null) {
+			dht.stop();
+		}
+		if(lsd != null) {
+			lsd.stop();
+		}
+		connections.stop();
+		io_pool.shutdown();
+		hash_pool.shutdown();
+		if(metrics_server != null) {
+			metrics_server.stop();
+		}
+		Log.flush();
+	}
+
+	/**
+	 * Sets the ports to try listening on, lowest first; by default 6881-6889.
+	 * Call before start().
+	 * @param first The lowest port
+	 * @param last The highest port
+	 */
+	public void setPorts(int first, int last) {
+		first_port = first;
+		last_port = last;
+	}
+
+	/**
+	 * Finds every torrent's peers through the mainline DHT as well as their trackers,
+	 * with one node on the listener's port, joining through the given nodes, or the
+	 * public DHT's usual bootstrap nodes if none are given. Private torrents don't use it.
+	 * Call before start().
+	 * @param bootstrap Nodes to join through, as possibly unresolved addresses; may be empty
+	 */
+	public void enableDHT(List<InetSocketAddress> bootstrap) {
+		dht_bootstrap = bootstrap.isEmpty() ? DHTNode.defaultBootstrap() : bootstrap;
+	}
+
+	/**
+	 * Finds every torrent's peers on the LAN by local peer discovery (BEP 14) as well,
+	 * and favors them. Private torrents don't use it.
+	 * Call before start().
+	 * @param network_interface The interface to discover peers on, or null for the system's default
+	 */
+	public void enableLocalDiscovery(NetworkInterface network_interface) {
+		lsd_enabled = true;
+		lsd_interface = network_interface;
+	}
+
+	/**
+	 * Getter for the torrents.
+	 * @return an unmodifiable List, which doesn't change as torrents are added & removed
+	 */
+	public List<Engine> getEngines() {
+		return Collections.unmodifiableList(new ArrayList<Engine>(engines));
+	}
+
+	/**
+	 * Getter for our peer ID.
+	 * @return a String
+	 */
+	public String getPeerID() {
+		return peer_id;
+	}
+
+	/**
+	 * Getter for the listener shared by every torrent.
+	 * @return the ListenerThread, or null before start()
+	 */
+	ListenerThread getListener() {
+		return listener;
+	}
+
+	/**
+	 * Getter for the connection manager shared by every torrent.
+	 * @return the ConnectionManager
+	 */
+	ConnectionManager getConnections() {
+		return connections;
+	}
+
+	/**
+	 * Getter for the DHT node shared by every torrent.
+	 * @return the DHTNode, or null if the DHT is off or before start()
+	 */
+	DHTNode getDHT() {
+		return dht;
+	}
+
+	/**
+	 * Getter for the local peer discovery shared by every torrent.
+	 * @return the LocalPeerDiscovery, or null if off or before start()
+	 */
+	LocalPeerDiscovery getLocalDiscovery() {
+		return lsd;
+	}
+
+	/**
+	 * Getter for the port the listener is on.
+	 * @return the port, or 0 before start()
+	 */
+	int getPort() {
+		return port;
+	}
+
+	/**
+	 * Getter for the connections allowed across every torrent.
+	 * @return the Semaphore
+	 */
+	Semaphore getConnectionSlots() {
+		return connection_slots;
+	}
+
+	/**
+	 * Getter for the disk writer threads.
+	 * @return the ScheduledExecutorService
+	 */
+	ScheduledExecutorService getIOPool() {
+		return io_pool;
+	}
+
+	/**
+	 * Getter for the piece hashing threads.
+	 * @return the ExecutorService
+	 */
+	ExecutorService getHashPool() {
+		return hash_pool;
+	}
+
+	/**
+	 * Getter for the limit on total upload rate.
+	 * @return the TokenBucket
+	 */
+	public TokenBucket getUploadLimit() {
+		return upload_limit;
+	}
+
+	/**
+	 * Getter for the limit on total download rate.
+	 * @return the TokenBucket
+	 */
+	public TokenBucket getDownloadLimit() {
+		return download_limit;
+	}
+
+	/**
+	 * Registers gauges for the session's state with the metrics registry.
+	 */
+	private void registerGauges() {
+		Metrics.gauge("session.torrents", new Metrics.Gauge() {
+			@Override
+			public long get() {
+				return engines.size();
+			}
+		});
+		Metrics.gauge("session.connections", new Metrics.Gauge() {
+			@Override
+			public long get() {
+				return max_connections - connection_slots.availablePermits();
+			}
+		});
+		Metrics.gauge("session.download_rate", new Metrics.Gauge() {
+			@Override
+			public long get() {
+				double rate = 0;
+				for(Engine e : engines) {
+					rate += e.getFileInfo().getDownloadMeter().getRate();
+				}
+				return (long)rate;
+			}
+		});
+		Metrics.gauge("session.upload_rate", new Metrics.Gauge() {
+			@Override
+			public long get() {
+				double rate = 0;
+				for(Engine e : engines) {
+					rate += e.getFileInfo().getUploadMeter().getRate();
+				}
+				return (long)rate;
+			}
+		});
+	}
+
+	/**
+	 * Creates a factory for named daemon threads, numbered from 0.
+	 * @param name The threads' name, before the number
+	 * @return a ThreadFactory
+	 */
+	private static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			/**
+			 * Number of the next thread
+			 */
+			private AtomicInteger next = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + " " + next.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+}
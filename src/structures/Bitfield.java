@@ -37,7 +37,7 @@ public class Bitfield {
 			field[bit/8] |= (byte)1 << (7 - (bit % 8));
 		}
 		else {
-			field[bit/8] &= ~(byte)1 << (7 - (bit % 8));
+			field[bit/8] &= ~(1 << (7 - (bit % 8)));
 		}
 	}
 	
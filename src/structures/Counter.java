@@ -0,0 +1,40 @@
+package structures;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonically increasing count of events, for the metrics registry.
+ * Backed by a LongAdder, so threads incrementing it at once touch separate cells
+ * instead of fighting over one; reading it sums the cells.
+ * @author Ari & Jay
+ */
+public class Counter {
+	/**
+	 * The count
+	 */
+	private final LongAdder count = new LongAdder();
+
+	/**
+	 * Counts one event.
+	 */
+	public void increment() {
+		count.increment();
+	}
+
+	/**
+	 * Counts several events, or adds an amount such as a number of bytes.
+	 * @param amount The amount to add; should not be negative
+	 */
+	public void add(long amount) {
+		count.add(amount);
+	}
+
+	/**
+	 * Gets the count.
+	 * Not an atomic snapshot while other threads are adding.
+	 * @return a long
+	 */
+	public long get() {
+		return count.sum();
+	}
+}
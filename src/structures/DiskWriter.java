@@ -0,0 +1,335 @@
+package structures;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import main.Log;
+
+/**
+ * Writes verified pieces to disk on behalf of the peer threads, either on a thread of
+ * its own or, when many torrents share a Session, as tasks on a shared I/O pool.
+ * Pieces queued together are sorted, and runs of adjacent pieces are written with one I/O.
+ * Written pieces are recorded in the resume journal every flush_pieces pieces,
+ * or every flush_interval ms.
+ * @author Ari & Jay
+ */
+public class DiskWriter implements Runnable {
+	/**
+	 * Pieces written between metadata flushes.
+	 */
+	public static final int flush_pieces = 16;
+
+	/**
+	 * Longest time between metadata flushes (in milliseconds)
+	 */
+	public static final long flush_interval = 5000;
+
+	/**
+	 * Largest single write when coalescing adjacent pieces (in bytes)
+	 */
+	private static final int max_coalesce = 8 * 1024 * 1024;
+
+	/**
+	 * Bytes allowed to wait in the queue before completePiece blocks.
+	 * Only reached when the disk cannot keep up with the network.
+	 */
+	private static final long max_queued_bytes = 256L * 1024 * 1024;
+
+	/**
+	 * The torrent data being written.
+	 */
+	private FileInfo file;
+
+	/**
+	 * Indices of pieces waiting to be written.
+	 */
+	private LinkedBlockingQueue<Integer> queue = new LinkedBlockingQueue<Integer>();
+
+	/**
+	 * Bytes of the pieces queued but not yet written.
+	 */
+	private long queued_bytes = 0;
+
+	/**
+	 * Mutex for queued_bytes.
+	 * Peer threads may wait on it, so it is a lock rather than a monitor (see PeerThreads).
+	 */
+	private ReentrantLock queue_lock = new ReentrantLock();
+	
+	/**
+	 * Signalled when queued_bytes changes.
+	 */
+	private Condition queue_changed = queue_lock.newCondition();
+
+	/**
+	 * Boolean to indicate if the thread should stop.
+	 */
+	private volatile boolean done = false;
+
+	/**
+	 * Pool the writes run on, or null for a thread of our own
+	 */
+	private ScheduledExecutorService pool;
+
+	/**
+	 * Whether a task draining the queue is waiting or running on the pool
+	 */
+	private AtomicBoolean draining = new AtomicBoolean(false);
+
+	/**
+	 * Periodic metadata flush on the pool, or null
+	 */
+	private ScheduledFuture<?> flusher = null;
+
+	/**
+	 * Pieces written since the last metadata flush
+	 */
+	private AtomicInteger unflushed = new AtomicInteger(0);
+
+	/**
+	 * Time of the last metadata flush (in milliseconds)
+	 */
+	private volatile long last_flush = System.currentTimeMillis();
+
+	/**
+	 * Constructor
+	 * @param file The torrent data whose pieces we write
+	 * @param pool Pool to write on, shared with other torrents, or null for a thread of our own
+	 */
+	public DiskWriter(FileInfo file, ScheduledExecutorService pool) {
+		this.file = file;
+		this.pool = pool;
+	}
+
+	/**
+	 * Starts writing queued pieces in the background.
+	 */
+	public void start() {
+		if(pool == null) {
+			Thread writer_thread = new Thread(this, "Disk writer");
+			writer_thread.setDaemon(true);
+			writer_thread.start();
+		}
+		else {
+			flusher = pool.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					flushIfDue();
+				}
+			}, flush_interval, flush_interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Queues a verified piece for writing.
+	 * Blocks only if max_queued_bytes are already waiting.
+	 * @param piece The piece's index
+	 * @param size The piece's size (in bytes)
+	 */
+	public void enqueue(int piece, int size) {
+		queue_lock.lock();
+		try {
+			while(queued_bytes > max_queued_bytes && !done) {
+				try {
+					queue_changed.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			queued_bytes += size;
+		}
+		finally {
+			queue_lock.unlock();
+		}
+		queue.add(piece);
+		if(pool != null) {
+			scheduleDrain();
+		}
+	}
+
+	/**
+	 * Waits until every queued piece is on disk, then flushes metadata.
+	 * @throws IOException on failure writing metadata
+	 */
+	public void flush() throws IOException {
+		queue_lock.lock();
+		try {
+			while(queued_bytes > 0 && !done) {
+				try {
+					queue_changed.await(100, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		finally {
+			queue_lock.unlock();
+		}
+		file.writeMetadata();
+	}
+
+	/**
+	 * Writes any queued pieces and stops the thread.
+	 */
+	public void stop() {
+		try {
+			flush();
+		} catch (IOException e) {
+			Log.logError("Unable to write metadata to disk.");
+		}
+		done = true;
+		if(flusher != null) {
+			flusher.cancel(false);
+		}
+		queue_lock.lock();
+		try {
+			queue_changed.signalAll();
+		}
+		finally {
+			queue_lock.unlock();
+		}
+	}
+
+	/**
+	 * Code for our own thread: writes pieces as they are queued, until stop() is called.
+	 */
+	@Override
+	public void run() {
+		ArrayList<Integer> batch = new ArrayList<Integer>();
+
+		while(!done) {
+			//Wait for pieces, but not past the next metadata flush:
+			Integer first = null;
+			try {
+				first = queue.poll(flush_interval, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {}
+
+			if(first != null) {
+				batch.clear();
+				batch.add(first);
+				queue.drainTo(batch);
+				writeBatch(batch);
+			}
+
+			flushIfDue();
+		}
+	}
+
+	/**
+	 * Submits a task to the pool which writes every queued piece, unless one is already waiting.
+	 * At most one task per writer is on the pool at a time, so writes stay in order.
+	 */
+	private void scheduleDrain() {
+		if(draining.compareAndSet(false, true)) {
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					ArrayList<Integer> batch = new ArrayList<Integer>();
+					queue.drainTo(batch);
+					if(!batch.isEmpty()) {
+						writeBatch(batch);
+						flushIfDue();
+					}
+
+					//Pieces queued after the drain need another task:
+					draining.set(false);
+					if(!queue.isEmpty()) {
+						scheduleDrain();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Writes a batch of queued pieces, in order, coalescing runs of adjacent pieces.
+	 * @param batch The pieces' indices; sorted in place
+	 */
+	private void writeBatch(List<Integer> batch) {
+		Collections.sort(batch);
+
+		//Write runs of adjacent pieces:
+		int start = 0;
+		while(start < batch.size()) {
+			int end = start + 1;
+			int run_bytes = file.getPieceSize(batch.get(start));
+			while(end < batch.size() && batch.get(end) == batch.get(end-1) + 1
+					&& run_bytes + file.getPieceSize(batch.get(end)) <= max_coalesce) {
+				run_bytes += file.getPieceSize(batch.get(end));
+				end++;
+			}
+			writeRun(batch.subList(start, end), run_bytes);
+			start = end;
+		}
+		unflushed.addAndGet(batch.size());
+	}
+
+	/**
+	 * Flushes metadata if enough pieces or time has passed since the last flush.
+	 */
+	private void flushIfDue() {
+		long now = System.currentTimeMillis();
+		if(!done && (unflushed.get() >= flush_pieces || now - last_flush >= flush_interval)) {
+			try {
+				file.writeMetadata();
+			} catch (IOException e) {
+				Log.logError("Unable to write metadata to disk.");
+			}
+			unflushed.set(0);
+			last_flush = now;
+		}
+	}
+
+	/**
+	 * Writes adjacent pieces to disk with a single write, then marks them as stored.
+	 * @param pieces Ascending, consecutive piece indices
+	 * @param run_bytes Total size of the pieces
+	 */
+	private void writeRun(List<Integer> pieces, int run_bytes) {
+		try {
+			if(pieces.size() == 1) {
+				file.writeToDisk(pieces.get(0), file.getPendingPiece(pieces.get(0)));
+			}
+			else {
+				byte[] run = new byte[run_bytes];
+				int offset = 0;
+				for(int piece : pieces) {
+					byte[] data = file.getPendingPiece(piece);
+					System.arraycopy(data, 0, run, offset, data.length);
+					offset += data.length;
+				}
+				file.writeToDisk(pieces.get(0), run);
+			}
+
+			for(int piece : pieces) {
+				file.pieceWritten(piece);
+			}
+		} catch (IOException e) {
+			Log.logError("Unable to write pieces " + pieces.get(0) + "-" + pieces.get(pieces.size()-1) + " to disk; they will be downloaded again.");
+			for(int piece : pieces) {
+				file.pieceWriteFailed(piece);
+			}
+		}
+
+		queue_lock.lock();
+		try {
+			queued_bytes -= run_bytes;
+			queue_changed.signalAll();
+		}
+		finally {
+			queue_lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package structures;
+
+/**
+ * A simple structure to store one file of a torrent: its path and length,
+ * and where its bytes begin within the torrent's concatenated data.
+ * @author Ari & Jay
+ */
+public class FileEntry {
+	/**
+	 * File data:
+	 */
+	private String path;
+	private long length;
+	private long offset;
+
+	/**
+	 * Constructor
+	 * @param path The file's path, relative to the download target for multi-file torrents
+	 * @param length The file's size (in bytes)
+	 * @param offset Position of the file's first byte within the torrent's data
+	 */
+	public FileEntry(String path, long length, long offset) {
+		this.path = path;
+		this.length = length;
+		this.offset = offset;
+	}
+
+	/**
+	 * @return the path
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * @return the length
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return the offset
+	 */
+	public long getOffset() {
+		return offset;
+	}
+}
@@ -0,0 +1,279 @@
+package structures;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps a bounded number of the torrent's files open, closing the least recently used first.
+ * Channels are shared between threads and used only for positional I/O.
+ * A thread pins a file's handle with acquire() for the length of its I/O and release()s it
+ * after; an evicted handle is closed only once its last user releases it, so eviction never
+ * closes a channel in use. While evicted handles are still in use, more than max_open files
+ * may be open.
+ * Files are opened as AsynchronousFileChannels, whose I/O the Handle waits for
+ * uninterruptibly: an interrupt of a thread blocked in a FileChannel would close the
+ * channel for every thread sharing it.
+ * @author Ari & Jay
+ */
+public class FileHandlePool {
+	/**
+	 * Default limit on the number of open files.
+	 */
+	public static final int default_max_open = 64;
+
+	/**
+	 * The torrent's files, with absolute or working-directory-relative paths.
+	 */
+	private ArrayList<FileEntry> files;
+
+	/**
+	 * Open handles by file index, in least-recently-used order; evicted handles still in use aren't in it.
+	 */
+	private LinkedHashMap<Integer,Handle> open;
+
+	/**
+	 * Mutex for open & the handles' use counts; a lock rather than a monitor, since peer threads open files while holding it.
+	 */
+	private ReentrantLock open_lock = new ReentrantLock();
+
+	/**
+	 * Constructor
+	 * @param files The torrent's files
+	 * @param max_open The most files that may be open at once, not counting evicted files still in use
+	 */
+	public FileHandlePool(ArrayList<FileEntry> files, final int max_open) {
+		this.files = files;
+		open = new LinkedHashMap<Integer,Handle>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer,Handle> eldest) {
+				if(size() > max_open) {
+					Handle handle = eldest.getValue();
+					handle.evicted = true;
+					if(handle.users == 0) {
+						handle.closeQuietly();
+					}
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Gets a file's handle, opening (and creating) the file if needed, and pins it until release().
+	 * @param index The file's index in the torrent's file list
+	 * @return the Handle
+	 * @throws IOException on failure to open the file
+	 */
+	public Handle acquire(int index) throws IOException {
+		open_lock.lock();
+		try {
+			Handle handle = open.get(index);
+			if(handle == null) {
+				File f = new File(files.get(index).getPath());
+				if(f.getParentFile() != null) {
+					f.getParentFile().mkdirs();
+				}
+				handle = new Handle(AsynchronousFileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE));
+				open.put(index, handle);
+			}
+			handle.users++;
+			return handle;
+		}
+		finally {
+			open_lock.unlock();
+		}
+	}
+
+	/**
+	 * Unpins a handle from acquire(), closing it if it was evicted and this was its last user.
+	 * @param handle The handle
+	 */
+	public void release(Handle handle) {
+		open_lock.lock();
+		try {
+			handle.users--;
+			if(handle.evicted && handle.users == 0) {
+				handle.closeQuietly();
+			}
+		}
+		finally {
+			open_lock.unlock();
+		}
+	}
+
+	/**
+	 * Makes sure every file exists with its full length, so later writes never extend a file.
+	 * @throws IOException on failure to create a file
+	 */
+	public void allocate() throws IOException {
+		for(int x = 0; x < files.size(); x++) {
+			Handle handle = acquire(x);
+			try {
+				if(handle.size() < files.get(x).getLength()) {
+					//Extend the file by writing its last byte:
+					handle.write(ByteBuffer.wrap(new byte[1]), files.get(x).getLength() - 1);
+				}
+			}
+			finally {
+				release(handle);
+			}
+		}
+	}
+
+	/**
+	 * Syncs files' data to disk, reopening any which were closed since being written,
+	 * since syncing any handle to a file syncs all of its data.
+	 * @param indices The files' indices in the torrent's file list
+	 * @throws IOException on failure to sync a file
+	 */
+	public void force(Collection<Integer> indices) throws IOException {
+		for(int index : indices) {
+			Handle handle = acquire(index);
+			try {
+				handle.channel.force(false);
+			}
+			finally {
+				release(handle);
+			}
+		}
+	}
+
+	/**
+	 * Closes every open file; files still in use are closed when released.
+	 * @throws IOException on failure to close a file
+	 */
+	public void close() throws IOException {
+		open_lock.lock();
+		try {
+			IOException failure = null;
+			for(Handle handle : open.values()) {
+				handle.evicted = true;
+				if(handle.users == 0) {
+					try {
+						handle.channel.close();
+					} catch (IOException e) {
+						failure = e;
+					}
+				}
+			}
+			open.clear();
+			if(failure != null) {
+				throw failure;
+			}
+		}
+		finally {
+			open_lock.unlock();
+		}
+	}
+
+	/**
+	 * An open file, shared by the threads using it.
+	 */
+	public static class Handle {
+		/**
+		 * The file's channel
+		 */
+		private final AsynchronousFileChannel channel;
+
+		/**
+		 * Threads which acquired the handle & haven't released it; guarded by the pool's lock
+		 */
+		private int users = 0;
+
+		/**
+		 * Whether the handle has left the pool, to be closed once unused; guarded by the pool's lock
+		 */
+		private boolean evicted = false;
+
+		/**
+		 * Constructor
+		 * @param channel The file's channel
+		 */
+		Handle(AsynchronousFileChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Reads from the file at a position, like FileChannel.read().
+		 * @param buffer The buffer to read into
+		 * @param position The offset in the file
+		 * @return the number of bytes read, or -1 at the end of the file
+		 * @throws IOException on failure to read
+		 */
+		public int read(ByteBuffer buffer, long position) throws IOException {
+			return await(channel.read(buffer, position));
+		}
+
+		/**
+		 * Writes to the file at a position, like FileChannel.write().
+		 * @param buffer The bytes to write
+		 * @param position The offset in the file
+		 * @return the number of bytes written
+		 * @throws IOException on failure to write
+		 */
+		public int write(ByteBuffer buffer, long position) throws IOException {
+			return await(channel.write(buffer, position));
+		}
+
+		/**
+		 * Gets the file's current size.
+		 * @return the size (in bytes)
+		 * @throws IOException on failure
+		 */
+		public long size() throws IOException {
+			return channel.size();
+		}
+
+		/**
+		 * Closes the channel, ignoring failures.
+		 */
+		private void closeQuietly() {
+			try {
+				channel.close();
+			} catch (IOException e) {}
+		}
+
+		/**
+		 * Waits for an I/O to finish, even if the thread is interrupted, since the I/O
+		 * keeps using the caller's buffer; the interrupt is kept for the caller to see.
+		 * @param result The I/O's result
+		 * @return the number of bytes transferred
+		 * @throws IOException if the I/O failed
+		 */
+		private static int await(Future<Integer> result) throws IOException {
+			boolean interrupted = false;
+			try {
+				while(true) {
+					try {
+						return result.get();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					} catch (ExecutionException e) {
+						if(e.getCause() instanceof IOException) {
+							throw (IOException)e.getCause();
+						}
+						throw new IOException(e.getCause());
+					}
+				}
+			}
+			finally {
+				if(interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+}
@@ -1,27 +1,51 @@
 package structures;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+
+import main.Events;
+import main.Log;
+import main.Metrics;
 
-import main.RUBTClient;
 /**
- * Used to store data of downloading file.
+ * Used to store data of downloading torrent, which may span several files.
  * Thread-safe; not all getter data is guaranteed to be up-to-date, but setters are safe.
  * @author Ari & Jay
  */
 public class FileInfo {
 	/**
-	 * An array of pieces where each piece is an array of bytes:
+	 * Size of the whole file (in bytes)
+	 */
+	private long file_size;
+	
+	/**
+	 * Size of every piece but the last (in bytes)
 	 */
-	private byte[][] file_bytes;
+	private int piece_size;
 	
 	/**
 	 * An array for piece rarity
 	 */
 	private int[] piece_rarity;
 	
+	/**
+	 * Number of connected LAN peers having each piece
+	 */
+	private int[] local_availability;
+	
 	/**
 	 * A random number generator
 	 */
@@ -59,14 +83,85 @@ public class FileInfo {
 	private long bytes_uploaded = 0;
 	
 	/**
-	 * RandomAccessFile to save to disk:
+	 * The files on disk making up the torrent's data.
+	 */
+	private ArrayList<FileEntry> files;
+	
+	/**
+	 * Maps torrent byte ranges onto the files.
+	 */
+	private PieceMapper mapper;
+	
+	/**
+	 * Open files, used for positional reads & writes.
+	 * Unlike seek() followed by read(), positional I/O is safe from several threads.
+	 */
+	FileHandlePool disk_files;
+	
+	/**
+	 * Cache of complete pieces, for serving block requests from memory.
+	 */
+	private PieceCache cache;
+	
+	/**
+	 * Verified pieces waiting for the disk writer, by index.
+	 */
+	private ConcurrentHashMap<Integer,byte[]> pending_pieces = new ConcurrentHashMap<Integer,byte[]>();
+	
+	/**
+	 * Thread which writes verified pieces and metadata to disk.
+	 */
+	private DiskWriter writer;
+	
+	/**
+	 * Pool which hashes downloaded pieces, shared with other torrents, or null to hash on the peer's thread
+	 */
+	private ExecutorService hash_pool = null;
+	
+	/**
+	 * Pieces written to disk but not yet recorded in the journal.
+	 */
+	private ArrayList<Integer> unjournaled_pieces = new ArrayList<Integer>();
+	
+	/**
+	 * Mutex for metadata and unjournaled_pieces
+	 */
+	private Object metadata_lock = new Object();
+	
+	/**
+	 * Crash-safe record of pieces on disk, used to resume.
+	 */
+	private ResumeJournal metadata;
+	
+	/**
+	 * Limit on the torrent's total upload rate; unlimited unless set.
 	 */
-	RandomAccessFile disk_file;
+	private TokenBucket upload_limit = new TokenBucket(0, null);
 	
 	/**
-	 * RandomAccessFile for metadata:
+	 * Limit on the torrent's total download rate; unlimited unless set.
 	 */
-	RandomAccessFile metadata;
+	private TokenBucket download_limit = new TokenBucket(0, null);
+	
+	/**
+	 * Measures the torrent's payload download rate; its peers' meters feed it.
+	 */
+	private RateEstimator download_meter = new RateEstimator(RateEstimator.default_window, null);
+	
+	/**
+	 * Measures the torrent's payload upload rate; its peers' meters feed it.
+	 */
+	private RateEstimator upload_meter = new RateEstimator(RateEstimator.default_window, null);
+	
+	/**
+	 * Measures every byte the torrent's peers receive, including protocol overhead.
+	 */
+	private RateEstimator received_meter = new RateEstimator(RateEstimator.default_window, null);
+	
+	/**
+	 * Measures every byte the torrent's peers send, including protocol overhead.
+	 */
+	private RateEstimator sent_meter = new RateEstimator(RateEstimator.default_window, null);
 	
 	/**
 	 * Mutex for piece states
@@ -99,51 +194,181 @@ public class FileInfo {
 	public static final byte state_complete = 2;
 	
 	/**
-	 * Only constructor for FileInfo
+	 * Pieces claimed for downloading, in every torrent
+	 */
+	private static final Counter pieces_claimed = Metrics.counter("piece.claimed");
+	
+	/**
+	 * Pieces downloaded & verified, in every torrent
+	 */
+	private static final Counter pieces_completed = Metrics.counter("piece.completed");
+	
+	/**
+	 * Claimed pieces given up on, in every torrent
+	 */
+	private static final Counter pieces_cancelled = Metrics.counter("piece.cancelled");
+	
+	/**
+	 * Verified pieces which could not be written, in every torrent
+	 */
+	private static final Counter write_failures = Metrics.counter("disk.write_failures");
+	
+	/**
+	 * Time taken by each disk write (in microseconds)
+	 */
+	private static final Histogram write_latency = Metrics.histogram("disk.write_us");
+	
+	/**
+	 * Time taken by each disk read (in microseconds)
+	 */
+	private static final Histogram read_latency = Metrics.histogram("disk.read_us");
+	
+	/**
+	 * Constructor for single-file torrents
 	 * Sets up the object, loading data and metadata from disk if possible
+	 * Piece data lives only on disk; nothing larger than a piece is kept in memory.
 	 * @param file_size The size of the file we are downloading/uploading (in bytes)
 	 * @param piece_size The size of each piece of the file (in bytes)
 	 * @param path The location to save/load the file.
 	 * @throws Exception on failure to read/write to disk
 	 */
-	public FileInfo(int file_size, int piece_size, String path) throws Exception {
-		this.file_bytes = new byte[1 + (file_size-1)/piece_size][piece_size];
-		this.piece_state = new byte[file_bytes.length];
-		this.last_piece_size = file_size % piece_size;
-		this.piece_rarity = new int[file_bytes.length];
+	public FileInfo(long file_size, int piece_size, String path) throws Exception {
+		this(file_size, piece_size, path, null, null);
+	}
+	
+	/**
+	 * Constructor for single-file torrents sharing thread pools with other torrents
+	 * @param file_size The size of the file we are downloading/uploading (in bytes)
+	 * @param piece_size The size of each piece of the file (in bytes)
+	 * @param path The location to save/load the file.
+	 * @param io_pool Pool to write pieces on, or null for a thread of our own
+	 * @param hash_pool Pool to hash pieces on, or null to hash on peer threads
+	 * @throws Exception on failure to read/write to disk
+	 */
+	public FileInfo(long file_size, int piece_size, String path, ScheduledExecutorService io_pool, ExecutorService hash_pool) throws Exception {
+		ArrayList<FileEntry> single = new ArrayList<FileEntry>();
+		single.add(new FileEntry(path, file_size, 0));
+		init(single, piece_size, path, io_pool, hash_pool);
+	}
+	
+	/**
+	 * Constructor for multi-file torrents
+	 * Sets up the object, loading data and metadata from disk if possible
+	 * @param torrent_files The torrent's files, with paths relative to directory
+	 * @param piece_size The size of each piece of the torrent (in bytes)
+	 * @param directory The directory in which to save/load the files.
+	 * @throws Exception on failure to read/write to disk
+	 */
+	public FileInfo(ArrayList<FileEntry> torrent_files, int piece_size, String directory) throws Exception {
+		this(torrent_files, piece_size, directory, null, null);
+	}
+	
+	/**
+	 * Constructor for multi-file torrents sharing thread pools with other torrents
+	 * @param torrent_files The torrent's files, with paths relative to directory
+	 * @param piece_size The size of each piece of the torrent (in bytes)
+	 * @param directory The directory in which to save/load the files.
+	 * @param io_pool Pool to write pieces on, or null for a thread of our own
+	 * @param hash_pool Pool to hash pieces on, or null to hash on peer threads
+	 * @throws Exception on failure to read/write to disk
+	 */
+	public FileInfo(ArrayList<FileEntry> torrent_files, int piece_size, String directory, ScheduledExecutorService io_pool, ExecutorService hash_pool) throws Exception {
+		ArrayList<FileEntry> resolved = new ArrayList<FileEntry>();
+		for(FileEntry f : torrent_files) {
+			resolved.add(new FileEntry(new File(directory, f.getPath()).getPath(), f.getLength(), f.getOffset()));
+		}
+		new File(directory).mkdirs();
+		init(resolved, piece_size, directory, io_pool, hash_pool);
+	}
+	
+	/**
+	 * Sets up the object for either constructor.
+	 * @param files The files on disk, in torrent order
+	 * @param piece_size The size of each piece (in bytes)
+	 * @param path The download target, next to which metadata is saved
+	 * @param io_pool Pool to write pieces on, or null for a thread of our own
+	 * @param hash_pool Pool to hash pieces on, or null to hash on peer threads
+	 * @throws Exception on failure to read/write to disk
+	 */
+	private void init(ArrayList<FileEntry> files, int piece_size, String path, ScheduledExecutorService io_pool, ExecutorService hash_pool) throws Exception {
+		long file_size = 0;
+		for(FileEntry f : files) {
+			file_size += f.getLength();
+		}
+		
+		long num_pieces = 1 + (file_size-1)/piece_size;
+		if(num_pieces > Integer.MAX_VALUE) {
+			throw new Exception("Too many pieces.");
+		}
+		this.file_size = file_size;
+		this.piece_size = piece_size;
+		this.piece_state = new byte[(int)num_pieces];
+		this.last_piece_size = (int)(file_size % piece_size);
+		this.piece_rarity = new int[piece_state.length];
+		this.local_availability = new int[piece_state.length];
 		if(last_piece_size == 0)
 			last_piece_size = piece_size;
-		bitfield = new Bitfield(this.file_bytes.length);
+		bitfield = new Bitfield(piece_state.length);
 		
-		for(int x = 0; x < file_bytes.length; x++) {
+		for(int x = 0; x < piece_state.length; x++) {
 			piece_state[x] = state_missing;
 		}
 		
-		//Disk file & metadata file:
-		disk_file = new RandomAccessFile(path,"rw");
-		metadata = new RandomAccessFile(path + ".meta","rw");
-		if(disk_file.length() == 0) {//new file
-			disk_file.setLength(last_piece_size + file_bytes[0].length * (file_bytes.length-1));
-			metadata.writeInt(0);
-			metadata.writeInt(0);
-			metadata.write(bitfield.getBytes());
+		//Disk files & metadata journal:
+		this.files = files;
+		mapper = new PieceMapper(files);
+		disk_files = new FileHandlePool(files, FileHandlePool.default_max_open);
+		cache = new PieceCache(this, PieceCache.default_budget);
+		metadata = new ResumeJournal(path, piece_state.length);
+		if(metadata.isNew()) {//new download
+			disk_files.allocate();
 		}
 		else {//already existed
-			byte[] temp = new byte[bitfield.getByteSize()];
-			bytes_downloaded = metadata.readLong();
-			bytes_uploaded = metadata.readLong();
-			metadata.read(temp, 0, temp.length);
-			bitfield.setBytes(temp);
+			bytes_downloaded = metadata.getDownloaded();
+			bytes_uploaded = metadata.getUploaded();
+			bitfield.setBytes(metadata.getBitfieldBytes());
 			
 			for(int x = 0; x < bitfield.getBitSize(); x++) {
 				if(bitfield.getBit(x) == 1) {//remember complete pieces
 					piece_state[x] = state_complete;
-					disk_file.seek(x * file_bytes[0].length);
-					disk_file.read(file_bytes[x], 0, getPieceSize(x));
 					complete_pieces++;
 				}
 			}
 		}
+		
+		//Start writing pieces in the background:
+		this.hash_pool = hash_pool;
+		writer = new DiskWriter(this, io_pool);
+		writer.start();
+	}
+	
+	/**
+	 * Computes the SHA-1 hash of a downloaded piece; on the hashing pool, if there is one,
+	 * so that however many peers finish pieces at once, only the pool's threads compete for the CPU.
+	 * Blocks until the hash is done.
+	 * @param data The piece's data
+	 * @return the 20-byte hash, or null if SHA-1 is unavailable
+	 */
+	public byte[] hashPiece(final byte[] data) {
+		if(hash_pool != null) {
+			try {
+				return hash_pool.submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws NoSuchAlgorithmException {
+						return MessageDigest.getInstance("SHA-1").digest(data);
+					}
+				}).get();
+			} catch (RejectedExecutionException e) {//pool shut down; hash here
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {}
+		}
+		
+		try {
+			return MessageDigest.getInstance("SHA-1").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		}
 	}
 	
 	/**
@@ -155,6 +380,10 @@ public class FileInfo {
 		synchronized(piece_state_lock) {
 			if(piece >= 0 && piece_state[piece] == state_missing) {
 				piece_state[piece] = state_downloading;
+				pieces_claimed.increment();
+				Events.PieceClaimed event = new Events.PieceClaimed();
+				event.piece = piece;
+				event.commit();
 				return true;
 			}
 		}
@@ -172,26 +401,30 @@ public class FileInfo {
 			synchronized(piece_state_lock) {
 				piece_state[piece] = state_missing;
 			}
+			pieces_cancelled.increment();
+			Events.PieceCancelled event = new Events.PieceCancelled();
+			event.piece = piece;
+			event.commit();
 		}
 	}
 	
 	/**
 	 * Store completely downloaded piece
 	 * Assumes that the piece's state = state_downloading
+	 * The piece is queued for the disk writer, and served from memory until written.
+	 * The caller must not modify data afterwards.
 	 * @param piece The number identifying the piece
 	 * @param data The piece's bytes
 	 * @throws Exception for invalid byte[]
 	 */
 	public void completePiece(int piece, byte[] data) throws Exception {
 		if(data.length != getPieceSize(piece)) {
-			RUBTClient.logError("Invalid byte array for piece " + piece + ".");
+			Log.logError("Invalid byte array for piece " + piece + ".");
 			throw new Exception("Invalid piece.");
 		}
 		
-		//Write to memory
-		for(int x = 0; x < data.length; x++) {
-			file_bytes[piece][x] = data[x];
-		}
+		//Keep in memory before anyone may request the piece:
+		pending_pieces.put(piece, data);
 		
 		//Set piece state
 		synchronized(piece_state_lock) {
@@ -199,33 +432,176 @@ public class FileInfo {
 			bitfield.setBit(piece,true);
 			complete_pieces++;
 		}
+		pieces_completed.increment();
 		
-		//Write to disk
-		disk_file.seek(piece*getPieceSize(0));
-		disk_file.write(file_bytes[piece],0,getPieceSize(piece));
-		metadata.seek(16 + piece/8);
-		metadata.write(bitfield.getBytes()[piece/8]);
-		metadata.seek(0);
-		metadata.writeLong(bytes_downloaded);
-		metadata.writeLong(bytes_uploaded);
+		//Write to disk later:
+		writer.enqueue(piece, data.length);
+	}
+	
+	/**
+	 * Gets a piece waiting for the disk writer.
+	 * @param piece The piece's index
+	 * @return the piece's bytes, or null if it is not waiting
+	 */
+	byte[] getPendingPiece(int piece) {
+		return pending_pieces.get(piece);
+	}
+	
+	/**
+	 * Writes one or more adjacent pieces to disk.
+	 * @param first_piece The index of the first piece
+	 * @param data The pieces' bytes, concatenated
+	 * @throws IOException on failure writing disk
+	 */
+	void writeToDisk(int first_piece, byte[] data) throws IOException {
+		Events.PieceWritten event = new Events.PieceWritten();
+		event.begin();
+		long start = System.nanoTime();
+		transfer(data, getPieceOffset(first_piece), true);
+		write_latency.record((System.nanoTime() - start) / 1000);
+		event.piece = first_piece;
+		event.size = data.length;
+		event.commit();
+	}
+	
+	/**
+	 * Called by the disk writer once a piece is on disk.
+	 * @param piece The piece's index
+	 */
+	void pieceWritten(int piece) {
+		synchronized(metadata_lock) {
+			unjournaled_pieces.add(piece);
+		}
+		pending_pieces.remove(piece);
 	}
 	
 	/**
-	 * Find a missing piece we can download
+	 * Called by the disk writer if a piece could not be written; the piece becomes missing again.
+	 * @param piece The piece's index
+	 */
+	void pieceWriteFailed(int piece) {
+		synchronized(piece_state_lock) {
+			piece_state[piece] = state_missing;
+			bitfield.setBit(piece, false);
+			complete_pieces--;
+		}
+		pending_pieces.remove(piece);
+		write_failures.increment();
+	}
+	
+	/**
+	 * Records newly written pieces and the byte counts in the journal, with one synced write,
+	 * after syncing the files the pieces are in, so the journal never gets ahead of the data.
+	 * @throws IOException on failure writing disk
+	 */
+	void writeMetadata() throws IOException {
+		ArrayList<Integer> pieces;
+		synchronized(metadata_lock) {
+			pieces = new ArrayList<Integer>(unjournaled_pieces);
+			unjournaled_pieces.clear();
+		}
+		
+		try {
+			//Synced outside the lock, so disk writers can keep reporting pieces:
+			TreeSet<Integer> touched = new TreeSet<Integer>();
+			for(int piece : pieces) {
+				for(FileSpan span : mapper.getSpans(getPieceOffset(piece), getPieceSize(piece))) {
+					touched.add(span.getFile());
+				}
+			}
+			disk_files.force(touched);
+			
+			synchronized(metadata_lock) {
+				metadata.append(pieces, bytes_downloaded, bytes_uploaded);
+			}
+		} catch (IOException e) {
+			synchronized(metadata_lock) {//try again next time
+				unjournaled_pieces.addAll(pieces);
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * Whether the resume data was corrupt, so recheck() must be called before the pieces on disk are trusted.
+	 * @return true until recheck() is called
+	 */
+	public boolean needsRecheck() {
+		synchronized(metadata_lock) {
+			return metadata.needsRecheck();
+		}
+	}
+	
+	/**
+	 * Hashes every piece on disk, keeping those which match the torrent & treating the rest
+	 * as missing, and records the result as the resume data.
+	 * Call before any piece is downloaded, e.g. when needsRecheck().
+	 * @param hashes The torrent's 20-byte piece hashes, in order
+	 * @return the number of pieces found intact
+	 * @throws IOException on failure writing the resume data
+	 */
+	public int recheck(byte[][] hashes) throws IOException {
+		disk_files.allocate();
+		int intact = 0;
+		for(int piece = 0; piece < piece_state.length; piece++) {
+			boolean valid = false;
+			if(piece < hashes.length) {
+				byte[] data = new byte[getPieceSize(piece)];
+				try {
+					transfer(data, getPieceOffset(piece), false);
+					valid = Arrays.equals(hashPiece(data), hashes[piece]);
+				} catch (IOException e) {}//unreadable; download it again
+			}
+			synchronized(piece_state_lock) {
+				if(valid != (piece_state[piece] == state_complete)) {
+					complete_pieces += valid ? 1 : -1;
+				}
+				piece_state[piece] = valid ? state_complete : state_missing;
+				bitfield.setBit(piece, valid);
+			}
+			if(valid) {
+				intact++;
+			}
+		}
+		
+		synchronized(metadata_lock) {
+			metadata.replace(bitfield.getBytes());
+		}
+		return intact;
+	}
+	
+	/**
+	 * Find a missing piece we can download, rarest first
 	 * @param peer_bitfield The peer's bitfield
 	 * @return The missing piece's id, or -1.
 	 */
 	public int getMissingPiece(Bitfield peer_bitfield) {
+		return getMissingPiece(peer_bitfield, true);
+	}
+	
+	/**
+	 * Find a missing piece we can download from a peer, rarest first.
+	 * A peer outside our LAN is asked first for pieces no LAN peer has, since LAN peers
+	 * can send the others far faster.
+	 * @param peer_bitfield The peer's bitfield
+	 * @param local_peer Whether the peer is on our LAN
+	 * @return The missing piece's id, or -1.
+	 */
+	public int getMissingPiece(Bitfield peer_bitfield, boolean local_peer) {
+		int min_tier = Integer.MAX_VALUE;
 		int min = Integer.MAX_VALUE;
 		ArrayList<Integer> duplicates = new ArrayList<Integer>();
 		
 		for(int i=0;i<piece_rarity.length;i++){
 			if(peer_bitfield.getBit(i) == 1 && piece_state[i] == state_missing) {
-				if(piece_rarity[i] < min){
+				int tier = (!local_peer && local_availability[i] > 0) ? 1 : 0;
+				if(tier < min_tier || (tier == min_tier && piece_rarity[i] < min)){
+					min_tier = tier;
+					min = piece_rarity[i];
 					duplicates.clear();
 					duplicates.add(i);
 				}
-				else if(piece_rarity[i] == min)
+				else if(tier == min_tier && piece_rarity[i] == min)
 				{
 					duplicates.add(i);
 				}
@@ -278,17 +654,29 @@ public class FileInfo {
 	 * @return true or false
 	 */
 	public boolean complete() {
-		return (complete_pieces == file_bytes.length);
+		return (complete_pieces == piece_state.length);
 	}
 	
 	/**
-	 * Saves file to disk.
+	 * Saves file to disk, waiting for any queued pieces to be written.
+	 * Files stay open so that we can keep uploading.
 	 * @param path Location to save file.
-	 * @throws IOException on failure to close streams
+	 * @throws IOException on failure to write to disk
 	 */
 	public void saveFile(String path) throws IOException {
-		disk_file.close();
-		metadata.close();
+		writer.flush();
+	}
+	
+	/**
+	 * Writes any queued pieces, stops the disk writer and closes all files.
+	 * @throws IOException on failure to close files
+	 */
+	public void close() throws IOException {
+		writer.stop();
+		disk_files.close();
+		synchronized(metadata_lock) {
+			metadata.close();
+		}
 	}
 	
 	/**
@@ -306,21 +694,167 @@ public class FileInfo {
 	 * @return an integer value
 	 */
 	public int getPieceSize(int index) {
-		if(index == file_bytes.length - 1) {
+		if(index == piece_state.length - 1) {
 			return last_piece_size;
 		}
 		else {
-			return file_bytes[0].length;
+			return piece_size;
+		}
+	}
+	
+	/**
+	 * Gets the position of a piece within the file.
+	 * @param index The index of the piece
+	 * @return the byte offset of the piece's first byte
+	 */
+	public long getPieceOffset(int index) {
+		return (long)index * piece_size;
+	}
+	
+	/**
+	 * Gets the size of the whole file.
+	 * @return a long number of bytes
+	 */
+	public long getFileSize() {
+		return file_size;
+	}
+	
+	/**
+	 * Gets the number of bytes we are still missing, for the tracker's "left" value.
+	 * @return a long number of bytes
+	 */
+	public long getBytesLeft() {
+		long left = file_size;
+		for(int x = 0; x < piece_state.length; x++) {
+			if(piece_state[x] == state_complete) {
+				left -= getPieceSize(x);
+			}
 		}
+		return left;
 	}
 
 	/**
-	 * Gets the byte array for a piece
-	 * @param index The index of the piece whose bytes we want
-	 * @return a byte array
+	 * Reads part of a complete piece, from the piece cache or else from disk.
+	 * @param index The index of the piece
+	 * @param begin The offset within the piece
+	 * @param length The number of bytes to read
+	 * @return a new byte array
+	 * @throws IOException on failure reading disk
+	 */
+	public byte[] getBlock(int index, int begin, int length) throws IOException {
+		return cache.getBlock(index, begin, length);
+	}
+	
+	/**
+	 * Reads part of a piece directly from disk, bypassing the cache.
+	 * @param index The index of the piece
+	 * @param begin The offset within the piece
+	 * @param block The array to fill
+	 * @throws IOException on failure reading disk
+	 */
+	void readFromDisk(int index, int begin, byte[] block) throws IOException {
+		//Pieces are removed from pending_pieces only after they are on disk:
+		byte[] pending = pending_pieces.get(index);
+		if(pending != null) {
+			System.arraycopy(pending, begin, block, 0, block.length);
+			return;
+		}
+		long start = System.nanoTime();
+		transfer(block, getPieceOffset(index) + begin, false);
+		read_latency.record((System.nanoTime() - start) / 1000);
+	}
+	
+	/**
+	 * Getter for the piece cache, e.g. to read its hit & miss counters or change its budget.
+	 * @return the PieceCache
+	 */
+	public PieceCache getCache() {
+		return cache;
+	}
+	
+	/**
+	 * Getter for the torrent's upload limit, which its peers' limits are nested in.
+	 * Give it a parent to place the torrent under a global limit.
+	 * @return the TokenBucket
 	 */
-	public byte[] getPieceBytes(int index) {
-		return file_bytes[index];
+	public TokenBucket getUploadLimit() {
+		return upload_limit;
+	}
+	
+	/**
+	 * Getter for the torrent's download limit, which its peers' limits are nested in.
+	 * @return the TokenBucket
+	 */
+	public TokenBucket getDownloadLimit() {
+		return download_limit;
+	}
+	
+	/**
+	 * Getter for the torrent's payload download meter, which its peers' meters feed.
+	 * @return the RateEstimator
+	 */
+	public RateEstimator getDownloadMeter() {
+		return download_meter;
+	}
+	
+	/**
+	 * Getter for the torrent's payload upload meter, which its peers' meters feed.
+	 * @return the RateEstimator
+	 */
+	public RateEstimator getUploadMeter() {
+		return upload_meter;
+	}
+	
+	/**
+	 * Getter for the torrent's meter of all bytes received, which its peers' meters feed.
+	 * @return the RateEstimator
+	 */
+	public RateEstimator getReceivedMeter() {
+		return received_meter;
+	}
+	
+	/**
+	 * Getter for the torrent's meter of all bytes sent, which its peers' meters feed.
+	 * @return the RateEstimator
+	 */
+	public RateEstimator getSentMeter() {
+		return sent_meter;
+	}
+	
+	/**
+	 * Reads or writes a range of torrent data, one positional I/O per file it touches.
+	 * @param data The bytes to write, or the array to read into
+	 * @param position The byte offset within the torrent's data
+	 * @param write true to write data to disk, false to read into it
+	 * @throws IOException on failure reading/writing disk
+	 */
+	private void transfer(byte[] data, long position, boolean write) throws IOException {
+		ArrayList<FileSpan> spans = mapper.getSpans(position, data.length);
+		if(spans == null) {
+			throw new IOException("Position " + position + " is outside the torrent.");
+		}
+		
+		int done = 0;
+		for(FileSpan span : spans) {
+			ByteBuffer buffer = ByteBuffer.wrap(data, done, span.getLength());
+			//Pinned, so another thread opening files can't evict & close it mid-transfer:
+			FileHandlePool.Handle handle = disk_files.acquire(span.getFile());
+			try {
+				while(buffer.hasRemaining()) {
+					long file_position = span.getPosition() + buffer.position() - done;
+					if(write) {
+						handle.write(buffer, file_position);
+					}
+					else if(handle.read(buffer, file_position) < 0) {
+						throw new IOException("Unexpected end of file " + files.get(span.getFile()).getPath() + ".");
+					}
+				}
+			}
+			finally {
+				disk_files.release(handle);
+			}
+			done += span.getLength();
+		}
 	}
 	
 	/**
@@ -328,8 +862,20 @@ public class FileInfo {
 	 * @param index The index of the piece whose rarity we want to increment.
 	 */
 	public void incrementPieceRarity(int index){
+		incrementPieceRarity(index, false);
+	}
+	
+	/**
+	 * Increment Piece rarity, for a piece a peer has
+	 * @param index The index of the piece whose rarity we want to increment.
+	 * @param local_peer Whether the peer is on our LAN
+	 */
+	public void incrementPieceRarity(int index, boolean local_peer){
 		synchronized(rarity_lock ){
 			piece_rarity[index]++;
+			if(local_peer) {
+				local_availability[index]++;
+			}
 		}
 	}
 	
@@ -338,8 +884,20 @@ public class FileInfo {
 	 * @param index The piece whose rarity we want to decrement
 	 */
 	public void decrementPieceRarity(int index){
+		decrementPieceRarity(index, false);
+	}
+	
+	/**
+	 * Decrement Piece Rarity, for a piece of a peer which disconnected
+	 * @param index The piece whose rarity we want to decrement
+	 * @param local_peer Whether the peer is on our LAN
+	 */
+	public void decrementPieceRarity(int index, boolean local_peer){
 		synchronized(rarity_lock){
 			piece_rarity[index]--;
+			if(local_peer) {
+				local_availability[index]--;
+			}
 		}
 	}
 	
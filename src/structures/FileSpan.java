@@ -0,0 +1,47 @@
+package structures;
+
+/**
+ * A contiguous run of torrent bytes which lies within a single file.
+ * @author Ari & Jay
+ */
+public class FileSpan {
+	/**
+	 * Span data:
+	 */
+	private int file;
+	private long position;
+	private int length;
+
+	/**
+	 * Constructor
+	 * @param file Index of the file in the torrent's file list
+	 * @param position Offset of the span within that file
+	 * @param length Number of bytes in the span
+	 */
+	public FileSpan(int file, long position, int length) {
+		this.file = file;
+		this.position = position;
+		this.length = length;
+	}
+
+	/**
+	 * @return the file index
+	 */
+	public int getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the position within the file
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * @return the length
+	 */
+	public int getLength() {
+		return length;
+	}
+}
@@ -0,0 +1,164 @@
+package structures;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the distribution of non-negative values (e.g. latencies in microseconds),
+ * for the metrics registry.
+ * Buckets are log-linear, like an HDR histogram: each power of two is split into
+ * 16 equal buckets, so any value is known to within 1/16 (6.25%) while the whole
+ * range of a long fits in under a thousand buckets.
+ * Recording is lock-free and allocation-free: one atomic add on the bucket,
+ * plus the count, sum & maximum.
+ * @author Ari & Jay
+ */
+public class Histogram {
+	/**
+	 * log2 of the number of buckets per power of two
+	 */
+	private static final int sub_bits = 4;
+
+	/**
+	 * Number of buckets per power of two
+	 */
+	private static final int sub_count = 1 << sub_bits;
+
+	/**
+	 * Number of buckets: values below sub_count get one each, then sub_count per power of two
+	 */
+	private static final int bucket_count = (64 - sub_bits + 1) * sub_count;
+
+	/**
+	 * Values recorded, by bucket
+	 */
+	private final AtomicLongArray buckets = new AtomicLongArray(bucket_count);
+
+	/**
+	 * Number of values recorded
+	 */
+	private final LongAdder count = new LongAdder();
+
+	/**
+	 * Sum of the values recorded
+	 */
+	private final LongAdder sum = new LongAdder();
+
+	/**
+	 * Largest value recorded
+	 */
+	private final AtomicLong max = new AtomicLong(0);
+
+	/**
+	 * Records a value.
+	 * @param value The value; negative values are recorded as 0
+	 */
+	public void record(long value) {
+		if(value < 0) {
+			value = 0;
+		}
+		buckets.incrementAndGet(bucketOf(value));
+		count.increment();
+		sum.add(value);
+
+		long old_max = max.get();
+		while(value > old_max && !max.compareAndSet(old_max, value)) {
+			old_max = max.get();
+		}
+	}
+
+	/**
+	 * Gets the number of values recorded.
+	 * @return a long
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Gets the sum of the values recorded.
+	 * @return a long
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * Gets the largest value recorded.
+	 * @return 0 if none have been
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Gets the mean of the values recorded.
+	 * @return 0 if none have been
+	 */
+	public double getMean() {
+		long n = count.sum();
+		return (n == 0) ? 0 : (double)sum.sum() / n;
+	}
+
+	/**
+	 * Estimates a percentile of the values recorded.
+	 * The answer is the top of the bucket holding the percentile, so it overestimates by
+	 * at most 1/16, and is never more than the maximum.
+	 * @param percentile Between 0 and 100, e.g. 99 for the 99th percentile
+	 * @return 0 if no values have been recorded
+	 */
+	public long getPercentile(double percentile) {
+		//Copy the buckets, so the total matches what we walk through:
+		long[] counts = new long[bucket_count];
+		long total = 0;
+		for(int x = 0; x < bucket_count; x++) {
+			counts[x] = buckets.get(x);
+			total += counts[x];
+		}
+		if(total == 0) {
+			return 0;
+		}
+
+		long target = (long)Math.ceil(total * Math.max(0, Math.min(100, percentile)) / 100);
+		if(target < 1) {
+			target = 1;
+		}
+		long seen = 0;
+		for(int x = 0; x < bucket_count; x++) {
+			seen += counts[x];
+			if(seen >= target) {
+				return Math.min(bucketTop(x), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Finds the bucket a value belongs in.
+	 * @param value A non-negative value
+	 * @return the bucket's index
+	 */
+	private static int bucketOf(long value) {
+		if(value < sub_count) {
+			return (int)value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);//at least sub_bits
+		int sub = (int)(value >>> (exponent - sub_bits)) & (sub_count - 1);
+		return (exponent - sub_bits + 1) * sub_count + sub;
+	}
+
+	/**
+	 * Finds the largest value belonging in a bucket.
+	 * @param bucket The bucket's index
+	 * @return a long
+	 */
+	private static long bucketTop(int bucket) {
+		if(bucket < sub_count) {
+			return bucket;
+		}
+		int shift = bucket / sub_count - 1;
+		long bottom = (long)(sub_count + bucket % sub_count) << shift;
+		return bottom + (1L << shift) - 1;
+	}
+}
@@ -1,8 +1,11 @@
 package structures;
 
+import java.util.Arrays;
+
 /**
  * Store an InfoHash as both a byte array and a URL-encoded String
- * Conversion is automatic on construction to save time later.
+ * The String is built the first time it's needed, so an InfoHash made from bytes is cheap
+ * enough to use as a hash table key for every incoming handshake.
  * @author Ari Hayes
  */
 public class InfoHash {
@@ -12,9 +15,9 @@ public class InfoHash {
 	private byte[] bytes;
 	
 	/**
-	 * String form of hash
+	 * String form of hash, or null until first needed
 	 */
-	private String string;
+	private String string = null;
 	
 	/**
 	 * Creates an InfoHash from the 20-byte hash value.
@@ -26,17 +29,16 @@ public class InfoHash {
 			throw new Exception("Invalid hash length.");
 		
 		bytes = hash;
-		
-		//Create ASCII String equivalent of hash:
-		string = "";
-		for(int x = 0; x < 20; x++) {
-			if(bytes[x] >= 'A' && bytes[x]<'Z' || bytes[x] >= 'a' && bytes[x]<'z' || bytes[x] >= '0' && bytes[x]<'9' || bytes[x] == '.' || bytes[x] == '-' || bytes[x] == '_' || bytes[x] == '~') {
-				string = string + ((char)bytes[x]);
-			}
-			else {
-				string = string + "%" + String.format("%02x", bytes[x]).toUpperCase();
-			}
-		}
+	}
+	
+	/**
+	 * Creates an InfoHash from a 20-byte hash value within a larger array, such as a handshake.
+	 * The bytes are copied.
+	 * @param buffer The array holding the hash
+	 * @param offset Index of the hash's first byte
+	 */
+	public InfoHash(byte[] buffer, int offset) {
+		bytes = Arrays.copyOfRange(buffer, offset, offset + 20);
 	}
 	
 	/**
@@ -72,12 +74,26 @@ public class InfoHash {
 	 * @return true if equivalent, false otherwise.
 	 */
 	public boolean equals(InfoHash hash) {
-		for(int x = 0; x < 20; x++) {
-			if(bytes[x] != hash.bytes[x]) {
-				return false;
-			}
-		}
-		return true;
+		return hash != null && Arrays.equals(bytes, hash.bytes);
+	}
+	
+	/**
+	 * Checks if an object is an equivalent InfoHash, for use as a hash table key.
+	 * @param o The object to compare against
+	 * @return true if equivalent, false otherwise.
+	 */
+	@Override
+	public boolean equals(Object o) {
+		return (o instanceof InfoHash) && equals((InfoHash)o);
+	}
+	
+	/**
+	 * Hash code for hash tables: the first 4 bytes, which SHA-1 already spreads evenly.
+	 * @return an int
+	 */
+	@Override
+	public int hashCode() {
+		return (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
 	}
 	
 	/**
@@ -90,9 +106,23 @@ public class InfoHash {
 	
 	/**
 	 * Public getter
+	 * Builds the URL-encoded form the first time.
 	 * @return String
 	 */
 	public String toString() {
+		if(string == null) {
+			//Create ASCII String equivalent of hash:
+			StringBuilder encoded = new StringBuilder(60);
+			for(int x = 0; x < 20; x++) {
+				if(bytes[x] >= 'A' && bytes[x]<'Z' || bytes[x] >= 'a' && bytes[x]<'z' || bytes[x] >= '0' && bytes[x]<'9' || bytes[x] == '.' || bytes[x] == '-' || bytes[x] == '_' || bytes[x] == '~') {
+					encoded.append((char)bytes[x]);
+				}
+				else {
+					encoded.append('%').append(String.format("%02x", bytes[x]).toUpperCase());
+				}
+			}
+			string = encoded.toString();
+		}
 		return string;
 	}
 }
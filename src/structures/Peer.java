@@ -13,6 +13,11 @@ public class Peer {
 	private int port;
 	private Bitfield bitfield = null;
 
+	/**
+	 * Whether the peer was found on our LAN, by local peer discovery
+	 */
+	private volatile boolean local = false;
+
 	/**
 	 * Constructor
 	 * @param id The peer's id
@@ -53,6 +58,13 @@ public class Peer {
 		return bitfield;
 	}
 	
+	/**
+	 * @return true if the peer was found on our LAN
+	 */
+	public boolean isLocal() {
+		return local;
+	}
+	
 	/**
 	 * @param peer_id the id
 	 */
@@ -66,4 +78,11 @@ public class Peer {
 	public void setBitfield(Bitfield bitfield) {
 		this.bitfield = bitfield;
 	}
+	
+	/**
+	 * @param local whether the peer was found on our LAN
+	 */
+	public void setLocal(boolean local) {
+		this.local = local;
+	}
 }
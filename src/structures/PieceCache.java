@@ -0,0 +1,199 @@
+package structures;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A byte-budgeted cache of complete pieces, for serving peers' block requests.
+ * The first request for a block reads the whole piece from disk, so the rest of
+ * the piece's blocks are served from memory. The least recently used pieces are
+ * evicted first, and their buffers are reused for the next pieces read.
+ * Thread-safe.
+ * @author Ari & Jay
+ */
+public class PieceCache {
+	/**
+	 * Default memory budget (in bytes)
+	 */
+	public static final long default_budget = 64L * 1024 * 1024;
+
+	/**
+	 * Most spare buffers kept for reuse.
+	 */
+	private static final int max_spare_buffers = 4;
+
+	/**
+	 * The torrent data the cache reads from.
+	 */
+	private FileInfo file;
+
+	/**
+	 * Cached pieces by index, in least-recently-used order.
+	 */
+	private LinkedHashMap<Integer,byte[]> pieces = new LinkedHashMap<Integer,byte[]>(16, 0.75f, true);
+
+	/**
+	 * Evicted full-size buffers, ready for reuse.
+	 */
+	private ArrayList<byte[]> spare_buffers = new ArrayList<byte[]>();
+
+	/**
+	 * Bytes held by cached pieces.
+	 */
+	private long used = 0;
+
+	/**
+	 * Most bytes the cached pieces may hold.
+	 */
+	private volatile long budget;
+
+	/**
+	 * Number of requests served from memory.
+	 */
+	private AtomicLong hits = new AtomicLong();
+
+	/**
+	 * Number of requests which had to read from disk.
+	 */
+	private AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Mutex for pieces, spare_buffers and used
+	 */
+	private Object cache_lock = new Object();
+
+	/**
+	 * Constructor
+	 * @param file The torrent data to read pieces from
+	 * @param budget Most bytes of piece data to keep in memory
+	 */
+	public PieceCache(FileInfo file, long budget) {
+		this.file = file;
+		this.budget = budget;
+	}
+
+	/**
+	 * Gets part of a complete piece, reading the whole piece from disk if it isn't cached.
+	 * @param index The index of the piece
+	 * @param begin The offset within the piece
+	 * @param length The number of bytes wanted
+	 * @return a new byte array
+	 * @throws IOException on failure reading disk
+	 */
+	public byte[] getBlock(int index, int begin, int length) throws IOException {
+		byte[] block = new byte[length];
+		synchronized(cache_lock) {
+			byte[] piece = pieces.get(index);
+			if(piece != null) {
+				System.arraycopy(piece, begin, block, 0, length);
+				hits.incrementAndGet();
+				return block;
+			}
+		}
+		misses.incrementAndGet();
+
+		//Pieces larger than the whole budget bypass the cache:
+		int size = file.getPieceSize(index);
+		if(size > budget) {
+			file.readFromDisk(index, begin, block);
+			return block;
+		}
+
+		//Read ahead the whole piece, outside the lock:
+		byte[] piece = takeBuffer(size);
+		file.readFromDisk(index, 0, piece);
+		System.arraycopy(piece, begin, block, 0, length);
+
+		synchronized(cache_lock) {
+			byte[] old = pieces.put(index, piece);
+			if(old != null) {//another thread read it too
+				used -= old.length;
+				recycle(old);
+			}
+			used += piece.length;
+			evict();
+		}
+
+		return block;
+	}
+
+	/**
+	 * Changes the memory budget, evicting pieces if it shrinks.
+	 * @param bytes The new budget (in bytes)
+	 */
+	public void setBudget(long bytes) {
+		budget = bytes;
+		synchronized(cache_lock) {
+			evict();
+		}
+	}
+
+	/**
+	 * Gets the number of requests served from memory.
+	 * @return a long
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of requests which had to read from disk.
+	 * @return a long
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Gets the bytes currently held by cached pieces.
+	 * @return a long
+	 */
+	public long getUsedBytes() {
+		synchronized(cache_lock) {
+			return used;
+		}
+	}
+
+	/**
+	 * Evicts least recently used pieces until within budget.
+	 * Must hold cache_lock.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<Integer,byte[]>> it = pieces.entrySet().iterator();
+		while(used > budget && it.hasNext()) {
+			byte[] piece = it.next().getValue();
+			it.remove();
+			used -= piece.length;
+			recycle(piece);
+		}
+	}
+
+	/**
+	 * Keeps an evicted buffer for reuse, if it is a full-size piece.
+	 * Must hold cache_lock.
+	 * @param buffer The evicted buffer
+	 */
+	private void recycle(byte[] buffer) {
+		if(buffer.length == file.getPieceSize(0) && spare_buffers.size() < max_spare_buffers) {
+			spare_buffers.add(buffer);
+		}
+	}
+
+	/**
+	 * Gets a buffer for a piece, reusing an evicted one if possible.
+	 * @param size The piece's size
+	 * @return a byte array of the given size
+	 */
+	private byte[] takeBuffer(int size) {
+		synchronized(cache_lock) {
+			if(size == file.getPieceSize(0) && !spare_buffers.isEmpty()) {
+				return spare_buffers.remove(spare_buffers.size() - 1);
+			}
+		}
+		return new byte[size];
+	}
+}
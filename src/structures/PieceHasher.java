@@ -0,0 +1,211 @@
+package structures;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes the SHA-1 hashes of every piece of a file, using several threads.
+ * Each thread claims a run of consecutive pieces at a time and streams them from disk
+ * with positional reads into its own direct buffer, so threads never share a file pointer.
+ * @author Ari & Jay
+ */
+public class PieceHasher {
+	/**
+	 * Smallest piece length chosen automatically (16 KiB, one block).
+	 */
+	public static final int min_piece_length = 16 * 1024;
+
+	/**
+	 * Largest piece length chosen automatically (16 MiB).
+	 */
+	public static final int max_piece_length = 16 * 1024 * 1024;
+
+	/**
+	 * Smallest piece length accepted (16 KiB, one block).
+	 */
+	public static final int min_allowed_piece_length = 16 * 1024;
+
+	/**
+	 * Largest piece length accepted (64 MiB); each hashing thread buffers a whole piece.
+	 */
+	public static final int max_allowed_piece_length = 64 * 1024 * 1024;
+
+	/**
+	 * Most pieces a file may have, so that their hashes fit in one array.
+	 */
+	public static final long max_piece_count = Integer.MAX_VALUE / 20;
+
+	/**
+	 * Number of pieces we aim for when choosing a piece length automatically.
+	 */
+	private static final long target_piece_count = 1500;
+
+	/**
+	 * How many bytes a thread reads sequentially before claiming more work.
+	 */
+	private static final int batch_bytes = 16 * 1024 * 1024;
+
+	/**
+	 * The file being hashed.
+	 */
+	private String path;
+
+	/**
+	 * The size of each piece (in bytes)
+	 */
+	private int piece_length;
+
+	/**
+	 * Number of hashing threads.
+	 */
+	private int thread_count;
+
+	/**
+	 * Constructor
+	 * @param path The file to hash
+	 * @param piece_length The size of each piece (in bytes)
+	 * @param threads The number of hashing threads, or 0 for one per core
+	 * @throws IllegalArgumentException if the piece length is outside min_allowed_piece_length to max_allowed_piece_length
+	 */
+	public PieceHasher(String path, int piece_length, int threads) {
+		if(piece_length < min_allowed_piece_length || piece_length > max_allowed_piece_length) {
+			throw new IllegalArgumentException("Piece length " + piece_length + " is out of range.");
+		}
+		this.path = path;
+		this.piece_length = piece_length;
+		if(threads < 1) {
+			threads = Runtime.getRuntime().availableProcessors();
+		}
+		this.thread_count = threads;
+	}
+
+	/**
+	 * Picks a power-of-two piece length giving roughly target_piece_count pieces.
+	 * @param file_size The total size of the data (in bytes)
+	 * @return a piece length between min_piece_length and max_piece_length
+	 */
+	public static int choosePieceLength(long file_size) {
+		long ideal = file_size / target_piece_count;
+		int length = min_piece_length;
+		while(length < ideal && length < max_piece_length) {
+			length *= 2;
+		}
+		return length;
+	}
+
+	/**
+	 * Hashes the whole file.
+	 * @return the concatenated 20-byte hashes of all pieces, in order
+	 * @throws IOException on failure reading the file, if it has more than max_piece_count
+	 * pieces, or if a hashing thread failed for any other reason
+	 */
+	public byte[] hash() throws IOException {
+		final RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			final FileChannel channel = file.getChannel();
+			final long file_size = channel.size();
+			long piece_count = 1 + (file_size - 1) / piece_length;
+			if(piece_count > max_piece_count) {
+				throw new IOException("File has too many pieces (" + piece_count + "); use a longer piece length.");
+			}
+			final int num_pieces = (int)piece_count;
+			final int pieces_per_batch = Math.max(1, batch_bytes / piece_length);
+			final byte[] hashes = new byte[num_pieces * 20];
+			final AtomicInteger next_piece = new AtomicInteger(0);
+			//The first failure of any worker, e.g. a read error or running out of direct memory:
+			final Throwable[] failure = new Throwable[1];
+
+			Thread[] workers = new Thread[Math.min(thread_count, num_pieces)];
+			for(int t = 0; t < workers.length; t++) {
+				workers[t] = new Thread("Piece hasher " + t) {
+					@Override
+					public void run() {
+						try {
+							hashPieces();
+						} catch (Throwable e) {
+							synchronized(failure) {
+								if(failure[0] == null) {
+									failure[0] = e;
+								}
+							}
+							//Stop the other workers:
+							next_piece.set(num_pieces);
+						}
+					}
+
+					/**
+					 * Hashes runs of pieces until none are left.
+					 * @throws IOException on failure reading the file
+					 */
+					private void hashPieces() throws IOException {
+						MessageDigest md;
+						try {
+							md = MessageDigest.getInstance("SHA-1");
+						} catch (NoSuchAlgorithmException e) {
+							throw new IllegalStateException("SHA-1 hashes don't exist.", e);
+						}
+						ByteBuffer buffer = ByteBuffer.allocateDirect(piece_length);
+
+						while(true) {
+							//Claim a run of pieces:
+							int first = next_piece.getAndAdd(pieces_per_batch);
+							if(first >= num_pieces) {
+								return;
+							}
+							int last = Math.min(num_pieces, first + pieces_per_batch);
+
+							for(int piece = first; piece < last; piece++) {
+								long position = (long)piece * piece_length;
+								int size = (int)Math.min(piece_length, file_size - position);
+
+								//Read piece:
+								buffer.clear();
+								buffer.limit(size);
+								while(buffer.hasRemaining()) {
+									if(channel.read(buffer, position + buffer.position()) < 0) {
+										throw new IOException("File shrank while hashing.");
+									}
+								}
+
+								//Hash piece:
+								buffer.flip();
+								md.update(buffer);
+								System.arraycopy(md.digest(), 0, hashes, piece * 20, 20);
+							}
+						}
+					}
+				};
+				workers[t].start();
+			}
+
+			//Wait for workers:
+			for(int t = 0; t < workers.length; t++) {
+				try {
+					workers[t].join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while hashing.");
+				}
+			}
+
+			//Every piece was hashed only if no worker failed:
+			synchronized(failure) {
+				if(failure[0] instanceof IOException) {
+					throw (IOException)failure[0];
+				}
+				else if(failure[0] != null) {
+					throw new IOException("Hashing failed: " + failure[0], failure[0]);
+				}
+			}
+			return hashes;
+		}
+		finally {
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package structures;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Maps ranges of the torrent's concatenated data onto the files which hold them.
+ * Lookups binary-search the files' cumulative offsets, so the cost is logarithmic
+ * in the number of files plus one span for each file the range touches.
+ * @author Ari & Jay
+ */
+public class PieceMapper {
+	/**
+	 * Starting offset of each non-empty file, ascending.
+	 */
+	private long[] starts;
+	
+	/**
+	 * Length of each non-empty file, parallel to starts.
+	 */
+	private long[] lengths;
+	
+	/**
+	 * Index in the torrent's file list of each non-empty file, parallel to starts.
+	 */
+	private int[] indices;
+	
+	/**
+	 * Constructor
+	 * @param files The torrent's files, in order
+	 */
+	public PieceMapper(ArrayList<FileEntry> files) {
+		int count = 0;
+		for(FileEntry f : files) {
+			if(f.getLength() > 0) {
+				count++;
+			}
+		}
+		
+		//Empty files hold no bytes, so leave them out of the index:
+		starts = new long[count];
+		lengths = new long[count];
+		indices = new int[count];
+		int y = 0;
+		for(int x = 0; x < files.size(); x++) {
+			if(files.get(x).getLength() > 0) {
+				starts[y] = files.get(x).getOffset();
+				lengths[y] = files.get(x).getLength();
+				indices[y] = x;
+				y++;
+			}
+		}
+	}
+	
+	/**
+	 * Splits a range of torrent data into per-file spans.
+	 * @param offset The position of the range's first byte within the torrent
+	 * @param length The number of bytes in the range
+	 * @return spans in ascending order, or null if the range is out of bounds
+	 */
+	public ArrayList<FileSpan> getSpans(long offset, int length) {
+		ArrayList<FileSpan> spans = new ArrayList<FileSpan>(2);
+		if(starts.length == 0 || offset < 0) {
+			return null;
+		}
+		
+		//Find the last file starting at or before offset:
+		int x = Arrays.binarySearch(starts, offset);
+		if(x < 0) {
+			x = -x - 2;
+		}
+		
+		while(length > 0) {
+			if(x >= starts.length) {
+				return null;
+			}
+			long position = offset - starts[x];
+			int span_length = (int)Math.min(length, lengths[x] - position);
+			spans.add(new FileSpan(indices[x], position, span_length));
+			offset += span_length;
+			length -= span_length;
+			x++;
+		}
+		
+		return spans;
+	}
+}
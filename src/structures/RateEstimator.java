@@ -0,0 +1,113 @@
+package structures;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures a transfer rate as an exponentially-weighted moving average over
+ * fixed one-second buckets, optionally feeding a parent estimator as well
+ * (e.g. per-peer into per-torrent).
+ * Lock-free: bytes are added to the current bucket with an atomic add, and the
+ * first thread to notice that a bucket has ended folds it into the average.
+ * Bucket boundaries are whole seconds of System.nanoTime(), so estimators started
+ * at different times roll over together and can be compared or subtracted.
+ * @author Ari & Jay
+ */
+public class RateEstimator {
+	/**
+	 * Length of a bucket (in nanoseconds)
+	 */
+	private static final long bucket_length = 1000000000L;
+
+	/**
+	 * Default time constant of the average (in seconds)
+	 */
+	public static final double default_window = 5;
+
+	/**
+	 * Weight of the newest bucket in the average.
+	 */
+	private final double alpha;
+
+	/**
+	 * The estimator which also counts our bytes, or null
+	 */
+	private final RateEstimator parent;
+
+	/**
+	 * Bytes counted in the current bucket.
+	 */
+	private AtomicLong bucket_bytes = new AtomicLong(0);
+
+	/**
+	 * Index of the current bucket (System.nanoTime() / bucket_length)
+	 */
+	private AtomicLong bucket = new AtomicLong(System.nanoTime() / bucket_length);
+
+	/**
+	 * Total bytes counted.
+	 */
+	private AtomicLong total = new AtomicLong(0);
+
+	/**
+	 * The average (in bytes/second); only written by the thread which rolls a bucket over.
+	 */
+	private volatile double rate = 0;
+
+	/**
+	 * Constructor
+	 * @param window Time constant of the average (in seconds); larger is smoother
+	 * @param parent The estimator which also counts our bytes, or null
+	 */
+	public RateEstimator(double window, RateEstimator parent) {
+		this.alpha = 1 - Math.exp(-1 / Math.max(1, window));
+		this.parent = parent;
+	}
+
+	/**
+	 * Counts transferred bytes, here and in every parent.
+	 * @param bytes The number of bytes
+	 */
+	public void add(long bytes) {
+		for(RateEstimator e = this; e != null; e = e.parent) {
+			e.roll();
+			e.bucket_bytes.addAndGet(bytes);
+			e.total.addAndGet(bytes);
+		}
+	}
+
+	/**
+	 * Gets the average rate over the finished buckets.
+	 * @return bytes/second
+	 */
+	public double getRate() {
+		roll();
+		return rate;
+	}
+
+	/**
+	 * Gets the bytes counted since the estimator was created.
+	 * @return a long
+	 */
+	public long getTotal() {
+		return total.get();
+	}
+
+	/**
+	 * Folds finished buckets into the average. Buckets with no traffic count as zero.
+	 */
+	private void roll() {
+		long now = System.nanoTime() / bucket_length;
+		long current = bucket.get();
+		if(now <= current || !bucket.compareAndSet(current, now)) {
+			return;
+		}
+
+		//Only the thread which moved the bucket gets here:
+		double r = alpha * bucket_bytes.getAndSet(0) + (1 - alpha) * rate;
+		long idle = now - current - 1;
+		if(idle > 0) {
+			r *= Math.pow(1 - alpha, Math.min(idle, 1000));
+		}
+		rate = r;
+	}
+}
@@ -0,0 +1,420 @@
+package structures;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import main.Log;
+
+/**
+ * Crash-safe record of which pieces are on disk, plus the byte counts.
+ * State is kept as a checksummed snapshot (path.resume) plus an append-only
+ * log of checksummed records (path.journal). Appends are batched and synced
+ * once per batch; when the log grows large, a new snapshot is written to a
+ * temporary file and renamed over the old one, and the log is emptied.
+ * Every record is idempotent, so replaying a log over a newer snapshot is harmless,
+ * and a torn record at the end of the log is simply discarded.
+ * A piece must be synced to disk before it is appended. A corrupt snapshot says nothing
+ * about what is on disk, so it is discarded and needsRecheck() tells the owner to hash
+ * the data & replace() the recorded pieces.
+ * @author Ari & Jay
+ */
+public class ResumeJournal {
+	/**
+	 * First bytes of a snapshot ("RUBT")
+	 */
+	private static final int snapshot_magic = 0x52554254;
+
+	/**
+	 * Version of the snapshot layout.
+	 */
+	private static final int snapshot_version = 1;
+
+	/**
+	 * Log record type: a piece is on disk.
+	 */
+	private static final byte record_piece = 1;
+
+	/**
+	 * Log record type: new byte counts.
+	 */
+	private static final byte record_counters = 2;
+
+	/**
+	 * Size of a piece record: type, index, checksum.
+	 */
+	private static final int piece_record_size = 1 + 4 + 4;
+
+	/**
+	 * Size of a counter record: type, downloaded, uploaded, checksum.
+	 */
+	private static final int counters_record_size = 1 + 8 + 8 + 4;
+
+	/**
+	 * Smallest log size at which we compact (in bytes)
+	 */
+	private static final long min_compact_size = 64 * 1024;
+
+	/**
+	 * The snapshot file.
+	 */
+	private File snapshot_file;
+
+	/**
+	 * The log file.
+	 */
+	private File log_file;
+
+	/**
+	 * Channel for appending to the log.
+	 */
+	private FileChannel log;
+
+	/**
+	 * Pieces recorded as being on disk.
+	 */
+	private Bitfield bitfield;
+
+	/**
+	 * Recorded bytes downloaded.
+	 */
+	private long downloaded = 0;
+
+	/**
+	 * Recorded bytes uploaded.
+	 */
+	private long uploaded = 0;
+
+	/**
+	 * Whether no resume state existed before.
+	 */
+	private boolean fresh = true;
+
+	/**
+	 * Whether the snapshot was corrupt, so the recorded pieces can't be trusted.
+	 */
+	private boolean recheck = false;
+
+	/**
+	 * Constructor
+	 * Loads the latest snapshot and replays the log, or starts empty.
+	 * @param path The download target; journal files are saved next to it
+	 * @param num_pieces The number of pieces in the torrent
+	 * @throws IOException on failure to read or create the journal
+	 */
+	public ResumeJournal(String path, int num_pieces) throws IOException {
+		snapshot_file = new File(path + ".resume");
+		log_file = new File(path + ".journal");
+		bitfield = new Bitfield(num_pieces);
+
+		if(snapshot_file.exists()) {
+			try {
+				readSnapshot();
+			} catch (IOException e) {
+				Log.logError(e.getMessage() + " Rechecking the data on disk.");
+				bitfield = new Bitfield(num_pieces);
+				downloaded = 0;
+				uploaded = 0;
+				recheck = true;
+			}
+			fresh = false;
+		}
+		else if(new File(path + ".meta").exists()) {
+			importMeta(new File(path + ".meta"));
+			fresh = false;
+		}
+
+		//Replay the log, discarding anything after a torn record:
+		log = new RandomAccessFile(log_file, "rw").getChannel();
+		long valid_length = replay();
+		if(valid_length > 0) {
+			fresh = false;
+		}
+		log.truncate(valid_length);
+		log.position(valid_length);
+
+		if(fresh) {
+			compact();
+		}
+	}
+
+	/**
+	 * Records pieces now on disk and the current byte counts, with one write and one sync.
+	 * @param pieces The pieces written since the last call
+	 * @param downloaded Total bytes downloaded
+	 * @param uploaded Total bytes uploaded
+	 * @throws IOException on failure writing disk
+	 */
+	public synchronized void append(List<Integer> pieces, long downloaded, long uploaded) throws IOException {
+		boolean counters_changed = (downloaded != this.downloaded || uploaded != this.uploaded);
+		if(pieces.isEmpty() && !counters_changed) {
+			return;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(pieces.size() * piece_record_size + counters_record_size);
+		CRC32 crc = new CRC32();
+		for(int piece : pieces) {
+			int start = buffer.position();
+			buffer.put(record_piece);
+			buffer.putInt(piece);
+			putChecksum(buffer, start, crc);
+			bitfield.setBit(piece, true);
+		}
+		if(counters_changed) {
+			int start = buffer.position();
+			buffer.put(record_counters);
+			buffer.putLong(downloaded);
+			buffer.putLong(uploaded);
+			putChecksum(buffer, start, crc);
+			this.downloaded = downloaded;
+			this.uploaded = uploaded;
+		}
+
+		buffer.flip();
+		while(buffer.hasRemaining()) {
+			log.write(buffer);
+		}
+		log.force(false);
+
+		//Compact once the log outgrows a few snapshots:
+		if(log.size() > Math.max(min_compact_size, 4L * bitfield.getByteSize())) {
+			compact();
+		}
+	}
+
+	/**
+	 * Writes a new snapshot of the current state, then empties the log.
+	 * @throws IOException on failure writing disk
+	 */
+	public synchronized void compact() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 8 + 8 + 4 + bitfield.getByteSize() + 4);
+		buffer.putInt(snapshot_magic);
+		buffer.putInt(snapshot_version);
+		buffer.putLong(downloaded);
+		buffer.putLong(uploaded);
+		buffer.putInt(bitfield.getBitSize());
+		buffer.put(bitfield.getBytes());
+		putChecksum(buffer, 0, new CRC32());
+		buffer.flip();
+
+		//Write beside the old snapshot, then swap it in atomically:
+		File temp = new File(snapshot_file.getPath() + ".tmp");
+		FileChannel out = new RandomAccessFile(temp, "rw").getChannel();
+		try {
+			out.truncate(0);
+			while(buffer.hasRemaining()) {
+				out.write(buffer);
+			}
+			out.force(true);
+		}
+		finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), snapshot_file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		//The rename must be on disk before the log it replaces is emptied:
+		syncDirectory(snapshot_file.getAbsoluteFile().getParentFile());
+
+		log.truncate(0);
+		log.position(0);
+		log.force(true);
+	}
+
+	/**
+	 * Replaces the recorded pieces, e.g. with those found intact by a recheck, and writes a new snapshot.
+	 * @param bitfield_bytes The pieces on disk, as a bitfield's bytes
+	 * @throws IOException on failure writing disk
+	 */
+	public synchronized void replace(byte[] bitfield_bytes) throws IOException {
+		setBitfield(bitfield_bytes.clone());
+		recheck = false;
+		compact();
+	}
+
+	/**
+	 * Writes a final snapshot and closes the log.
+	 * @throws IOException on failure writing disk
+	 */
+	public synchronized void close() throws IOException {
+		compact();
+		log.close();
+	}
+
+	/**
+	 * Whether there was no resume state on disk.
+	 * @return true for a new download
+	 */
+	public boolean isNew() {
+		return fresh;
+	}
+
+	/**
+	 * Whether the snapshot was corrupt, so the pieces on disk must be hashed and replace()d.
+	 * @return true until replace() is called
+	 */
+	public synchronized boolean needsRecheck() {
+		return recheck;
+	}
+
+	/**
+	 * Gets the pieces recorded as being on disk.
+	 * @return a copy of the bitfield
+	 */
+	public synchronized byte[] getBitfieldBytes() {
+		return bitfield.getBytes().clone();
+	}
+
+	/**
+	 * Gets the recorded bytes downloaded.
+	 * @return a long
+	 */
+	public synchronized long getDownloaded() {
+		return downloaded;
+	}
+
+	/**
+	 * Gets the recorded bytes uploaded.
+	 * @return a long
+	 */
+	public synchronized long getUploaded() {
+		return uploaded;
+	}
+
+	/**
+	 * Loads the snapshot file.
+	 * @throws IOException if the snapshot is unreadable or corrupt
+	 */
+	private void readSnapshot() throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(snapshot_file.toPath()));
+		if(buffer.remaining() < 4 + 4 + 8 + 8 + 4 + 4 || !checksumValid(buffer, 0, buffer.limit() - 4)) {
+			throw new IOException("Resume snapshot " + snapshot_file + " is corrupt.");
+		}
+		if(buffer.getInt() != snapshot_magic || buffer.getInt() != snapshot_version) {
+			throw new IOException("Resume snapshot " + snapshot_file + " has an unknown format.");
+		}
+		downloaded = buffer.getLong();
+		uploaded = buffer.getLong();
+		if(buffer.getInt() != bitfield.getBitSize() || buffer.remaining() != bitfield.getByteSize() + 4) {
+			throw new IOException("Resume snapshot " + snapshot_file + " belongs to a different torrent.");
+		}
+		byte[] bytes = new byte[bitfield.getByteSize()];
+		buffer.get(bytes);
+		setBitfield(bytes);
+	}
+
+	/**
+	 * Imports the older .meta layout (two longs, then the bitfield) and removes it.
+	 * @param meta The .meta file
+	 * @throws IOException on failure reading it
+	 */
+	private void importMeta(File meta) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(meta.toPath()));
+		if(buffer.remaining() < 16 + bitfield.getByteSize()) {
+			Log.logError("Ignoring truncated " + meta + ".");
+			return;
+		}
+		downloaded = buffer.getLong();
+		uploaded = buffer.getLong();
+		byte[] bytes = new byte[bitfield.getByteSize()];
+		buffer.get(bytes);
+		setBitfield(bytes);
+
+		compact();
+		meta.delete();
+	}
+
+	/**
+	 * Applies every intact record in the log.
+	 * @return the length of the intact part of the log
+	 * @throws IOException on failure reading the log
+	 */
+	private long replay() throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(log_file.toPath()));
+		while(buffer.hasRemaining()) {
+			int start = buffer.position();
+			byte type = buffer.get(start);
+			int size = (type == record_piece) ? piece_record_size : (type == record_counters) ? counters_record_size : -1;
+			if(size < 0 || buffer.remaining() < size || !checksumValid(buffer, start, size - 4)) {
+				return start;//torn or corrupt record
+			}
+
+			buffer.get();
+			if(type == record_piece) {
+				int piece = buffer.getInt();
+				if(piece < 0 || piece >= bitfield.getBitSize()) {
+					return start;
+				}
+				bitfield.setBit(piece, true);
+			}
+			else {
+				downloaded = buffer.getLong();
+				uploaded = buffer.getLong();
+			}
+			buffer.getInt();//checksum
+		}
+		return buffer.position();
+	}
+
+	/**
+	 * Syncs a directory, so renames & new files in it survive a crash.
+	 * Some platforms (e.g. Windows) can't open a directory; there a rename is as durable as it gets.
+	 * @param directory The directory
+	 */
+	private static void syncDirectory(File directory) {
+		try {
+			FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			}
+			finally {
+				channel.close();
+			}
+		} catch (IOException e) {}
+	}
+
+	/**
+	 * Copies bytes into the bitfield, clearing any bits past the last piece.
+	 * @param bytes The bitfield's bytes
+	 */
+	private void setBitfield(byte[] bytes) {
+		try {
+			bitfield.setBytes(bytes);
+		} catch (Exception e) {
+			//Impossible; sizes were checked by the caller
+		}
+		for(int x = bitfield.getBitSize(); x % 8 != 0; x++) {
+			bitfield.setBit(x, false);
+		}
+	}
+
+	/**
+	 * Appends the CRC32 of the bytes from start to the buffer's position.
+	 * @param buffer The buffer being filled
+	 * @param start Position of the first byte to checksum
+	 * @param crc A CRC32 to reuse
+	 */
+	private static void putChecksum(ByteBuffer buffer, int start, CRC32 crc) {
+		crc.reset();
+		crc.update(buffer.array(), start, buffer.position() - start);
+		buffer.putInt((int)crc.getValue());
+	}
+
+	/**
+	 * Checks the CRC32 which follows a range of bytes.
+	 * @param buffer The buffer holding the bytes
+	 * @param start Position of the first byte
+	 * @param length Number of bytes covered by the checksum
+	 * @return true if the checksum matches
+	 */
+	private static boolean checksumValid(ByteBuffer buffer, int start, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), start, length);
+		return buffer.getInt(start + length) == (int)crc.getValue();
+	}
+}
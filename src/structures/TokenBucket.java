@@ -0,0 +1,154 @@
+package structures;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket for limiting a transfer rate, optionally nested inside a parent bucket
+ * (e.g. per-peer inside per-torrent inside global).
+ * Lock-free: a transfer reserves its bytes from every bucket up the chain at once,
+ * letting the buckets go into debt, then sleeps for as long as the most indebted bucket
+ * needs to refill. Transfers are therefore served in the order they ask, which shares the
+ * rate fairly between peers sending similarly-sized chunks.
+ * Rates may be changed at any time.
+ * @author Ari & Jay
+ */
+public class TokenBucket {
+	/**
+	 * Smallest burst a limited bucket allows (in bytes); two blocks.
+	 */
+	private static final long min_capacity = 2 * 16384;
+
+	/**
+	 * Fraction of a second's worth of tokens a bucket may save up.
+	 */
+	private static final long capacity_divisor = 20;
+
+	/**
+	 * Refill granularity (in nanoseconds)
+	 */
+	private static final long min_refill_interval = 1000000;
+
+	/**
+	 * The rate limit (in bytes/second), or 0 for unlimited
+	 */
+	private volatile long rate;
+
+	/**
+	 * The enclosing bucket, or null
+	 */
+	private volatile TokenBucket parent;
+
+	/**
+	 * Available tokens (bytes); negative while in debt.
+	 */
+	private AtomicLong tokens = new AtomicLong(0);
+
+	/**
+	 * System.nanoTime() of the last refill
+	 */
+	private AtomicLong last_refill = new AtomicLong(System.nanoTime());
+
+	/**
+	 * Constructor
+	 * @param rate The rate limit (in bytes/second), or 0 for unlimited
+	 * @param parent The enclosing bucket, or null
+	 */
+	public TokenBucket(long rate, TokenBucket parent) {
+		this.rate = Math.max(0, rate);
+		this.parent = parent;
+	}
+
+	/**
+	 * Waits until the given number of bytes may be transferred under this bucket and its parents.
+	 * @param bytes The number of bytes about to be sent or received
+	 */
+	public void acquire(int bytes) {
+		long wait = 0;
+		for(TokenBucket b = this; b != null; b = b.parent) {
+			wait = Math.max(wait, b.reserve(bytes));
+		}
+
+		if(wait > 0) {
+			try {
+				Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Takes tokens from this bucket only.
+	 * @param bytes The number of tokens to take
+	 * @return how long until the bucket is out of debt (in nanoseconds), or 0
+	 */
+	private long reserve(int bytes) {
+		long r = rate;
+		if(r <= 0) {
+			return 0;
+		}
+		refill(r);
+		long left = tokens.addAndGet(-bytes);
+		if(left >= 0) {
+			return 0;
+		}
+		return -left * 1000000000L / r;
+	}
+
+	/**
+	 * Adds the tokens earned since the last refill, up to the bucket's capacity.
+	 * Only the thread which wins the race to move last_refill adds tokens.
+	 * @param r The current rate
+	 */
+	private void refill(long r) {
+		long now = System.nanoTime();
+		long last = last_refill.get();
+		long elapsed = now - last;
+		if(elapsed < min_refill_interval || !last_refill.compareAndSet(last, now)) {
+			return;
+		}
+
+		long earned = (elapsed >= 1000000000L) ? r * (elapsed / 1000000000L) + r * (elapsed % 1000000000L) / 1000000000L
+				: r * elapsed / 1000000000L;
+		long capacity = Math.max(min_capacity, r / capacity_divisor);
+		while(true) {
+			long current = tokens.get();
+			long next = Math.min(capacity, current + earned);
+			if(next <= current || tokens.compareAndSet(current, next)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Changes the rate limit.
+	 * @param rate The new limit (in bytes/second), or 0 for unlimited
+	 */
+	public void setRate(long rate) {
+		this.rate = Math.max(0, rate);
+	}
+
+	/**
+	 * Gets the rate limit.
+	 * @return bytes/second, or 0 for unlimited
+	 */
+	public long getRate() {
+		return rate;
+	}
+
+	/**
+	 * Changes the enclosing bucket.
+	 * @param parent The new parent, or null
+	 */
+	public void setParent(TokenBucket parent) {
+		this.parent = parent;
+	}
+
+	/**
+	 * Gets the enclosing bucket.
+	 * @return a TokenBucket, or null
+	 */
+	public TokenBucket getParent() {
+		return parent;
+	}
+}
@@ -0,0 +1,125 @@
+package bencoding;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import structures.FileEntry;
+
+/**
+ * Tests that torrent lengths beyond 32 bits decode without overflowing.
+ * @author Ari & Jay
+ */
+public class TorrentDecoderTest {
+	/**
+	 * Five GiB: more than fits in an int, and not a multiple of 4 GiB
+	 */
+	private static final long large_length = 5L << 30;
+
+	/**
+	 * Piece length of the test torrents
+	 */
+	private static final int piece_length = 4 << 20;
+
+	/**
+	 * Directory for the test torrents
+	 */
+	@TempDir
+	Path directory;
+
+	/**
+	 * A single file over 4 GiB keeps its full length.
+	 * @throws IOException on failure writing the torrent
+	 */
+	@Test
+	public void singleFileOver4GiB() throws IOException {
+		Map<String,Object> info = new HashMap<String,Object>();
+		info.put("name", "large");
+		info.put("length", large_length);
+
+		TorrentDecoder torrent = decode(info, large_length);
+		assertTrue(torrent.valid());
+		assertEquals(large_length, torrent.getFileLength());
+		assertEquals(large_length, torrent.getFiles().get(0).getLength());
+		assertEquals((int)(large_length / piece_length), torrent.getHashCount());
+	}
+
+	/**
+	 * Files over 4 GiB in a multi-file torrent keep their lengths, and later files
+	 * get offsets past 4 GiB.
+	 * @throws IOException on failure writing the torrent
+	 */
+	@Test
+	public void multiFileOffsetsOver4GiB() throws IOException {
+		long first = 3L << 30;
+		long second = large_length;
+		long third = 1234567;
+
+		List<Object> files = new ArrayList<Object>();
+		files.add(file("a", first));
+		files.add(file("b", second));
+		files.add(file("c", third));
+		Map<String,Object> info = new HashMap<String,Object>();
+		info.put("name", "large");
+		info.put("files", files);
+
+		TorrentDecoder torrent = decode(info, first + second + third);
+		assertTrue(torrent.valid());
+		assertEquals(first + second + third, torrent.getFileLength());
+
+		ArrayList<FileEntry> entries = torrent.getFiles();
+		assertEquals(3, entries.size());
+		assertEquals(0, entries.get(0).getOffset());
+		assertEquals(second, entries.get(1).getLength());
+		assertEquals(first, entries.get(1).getOffset());
+		assertEquals(first + second, entries.get(2).getOffset());
+	}
+
+	/**
+	 * Makes a file entry for a multi-file info dictionary.
+	 * @param name The file's name
+	 * @param length The file's length
+	 * @return the entry
+	 */
+	private static Map<String,Object> file(String name, long length) {
+		List<Object> path = new ArrayList<Object>();
+		path.add(name);
+		Map<String,Object> entry = new HashMap<String,Object>();
+		entry.put("path", path);
+		entry.put("length", length);
+		return entry;
+	}
+
+	/**
+	 * Writes a torrent with the given info dictionary, filling in the piece length
+	 * & placeholder hashes, and decodes it.
+	 * @param info The info dictionary
+	 * @param total_length The torrent's total length, for the number of hashes
+	 * @return the decoded torrent
+	 * @throws IOException on failure writing the torrent
+	 */
+	private TorrentDecoder decode(Map<String,Object> info, long total_length) throws IOException {
+		int pieces = (int)(1 + (total_length - 1) / piece_length);
+		info.put("piece length", piece_length);
+		info.put("pieces", new byte[pieces * 20]);
+
+		Map<String,Object> root = new HashMap<String,Object>();
+		root.put("announce", "http://127.0.0.1:6969/announce");
+		root.put("info", info);
+
+		File torrent = directory.resolve("test.torrent").toFile();
+		Files.write(torrent.toPath(), BencodeEncoder.encode(root));
+		return new TorrentDecoder(torrent.getPath());
+	}
+}
@@ -0,0 +1,74 @@
+package dht;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import structures.InfoHash;
+import structures.Peer;
+
+/**
+ * Tests a small DHT of in-process nodes on loopback.
+ * @author Ari & Jay
+ */
+public class DHTNodeTest {
+	/**
+	 * Nodes in the test network
+	 */
+	private static final int node_count = 6;
+
+	/**
+	 * Port announced for the test peer
+	 */
+	private static final int peer_port = 20000;
+
+	/**
+	 * A peer announced by one node is found by a lookup from another.
+	 * @throws Exception on failure to open a node's socket
+	 */
+	@Test
+	public void lookupFindsAnnouncedPeer() throws Exception {
+		ArrayList<DHTNode> nodes = new ArrayList<DHTNode>();
+		try {
+			//Start the nodes, each joining through the first:
+			nodes.add(new DHTNode(new InetSocketAddress("127.0.0.1", 0), new ArrayList<InetSocketAddress>()));
+			List<InetSocketAddress> bootstrap = new ArrayList<InetSocketAddress>();
+			bootstrap.add(new InetSocketAddress("127.0.0.1", nodes.get(0).getPort()));
+			for(int x = 1; x < node_count; x++) {
+				nodes.add(new DHTNode(new InetSocketAddress("127.0.0.1", 0), bootstrap));
+			}
+			for(DHTNode node : nodes) {
+				node.start();
+			}
+			for(DHTNode node : nodes) {
+				node.bootstrap();
+			}
+			for(DHTNode node : nodes) {
+				assertTrue(node.getNodeCount() > 0);
+			}
+
+			byte[] hash = new byte[20];
+			new Random(49).nextBytes(hash);
+			InfoHash info_hash = new InfoHash(hash, 0);
+			nodes.get(1).announce(info_hash, peer_port);
+
+			boolean found = false;
+			for(Peer p : nodes.get(node_count - 1).getPeers(info_hash)) {
+				if(p.getPort() == peer_port && p.getIP().equals("127.0.0.1")) {
+					found = true;
+				}
+			}
+			assertTrue(found);
+		}
+		finally {
+			for(DHTNode node : nodes) {
+				node.stop();
+			}
+		}
+	}
+}
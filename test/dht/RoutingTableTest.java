@@ -0,0 +1,51 @@
+package dht;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the routing table's bucket arithmetic.
+ * @author Ari & Jay
+ */
+public class RoutingTableTest {
+	/**
+	 * The bucket index is the first differing bit, counted from the most significant.
+	 */
+	@Test
+	public void bucketIndexIsFirstDifferingBit() {
+		byte[] a = new byte[20];
+		byte[] b = new byte[20];
+		assertEquals(-1, RoutingTable.bucketIndex(a, b));
+
+		b[0] = (byte)0x80;
+		assertEquals(0, RoutingTable.bucketIndex(a, b));
+		b[0] = 0x01;
+		assertEquals(7, RoutingTable.bucketIndex(a, b));
+		b[0] = 0;
+		b[3] = 0x20;
+		assertEquals(26, RoutingTable.bucketIndex(a, b));
+		b[3] = 0;
+		b[19] = 0x01;
+		assertEquals(159, RoutingTable.bucketIndex(a, b));
+	}
+
+	/**
+	 * A random ID for a bucket lands in that bucket, for every bucket.
+	 */
+	@Test
+	public void randomIDFallsInItsBucket() {
+		Random random = new Random(49);
+		byte[] my_id = new byte[20];
+		random.nextBytes(my_id);
+		RoutingTable table = new RoutingTable(my_id);
+
+		for(int index = 0; index < 160; index++) {
+			for(int x = 0; x < 4; x++) {
+				assertEquals(index, RoutingTable.bucketIndex(my_id, table.randomID(index, random)));
+			}
+		}
+	}
+}
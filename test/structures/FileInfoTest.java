@@ -0,0 +1,126 @@
+package structures;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests reading & writing pieces which lie beyond 4 GiB in a sparse file.
+ * @author Ari & Jay
+ */
+public class FileInfoTest {
+	/**
+	 * Five GiB plus a short last piece, so the last piece starts past 4 GiB
+	 */
+	private static final long file_size = (5L << 30) + 12345;
+
+	/**
+	 * Piece size of the test file
+	 */
+	private static final int piece_size = 1 << 20;
+
+	/**
+	 * Directory for the test file & its metadata
+	 */
+	@TempDir
+	Path directory;
+
+	/**
+	 * Piece offsets past 4 GiB don't overflow.
+	 * @throws Exception on failure to open the file
+	 */
+	@Test
+	public void pieceOffsetsOver4GiB() throws Exception {
+		FileInfo file = new FileInfo(file_size, piece_size, path());
+		try {
+			int last = file.getBitfieldBitSize() - 1;
+			assertEquals((int)(file_size / piece_size), last);
+			assertEquals((long)last * piece_size, file.getPieceOffset(last));
+			assertTrue(file.getPieceOffset(last) > 0xFFFFFFFFL);
+			assertEquals(12345, file.getPieceSize(last));
+			assertEquals(file_size, file.getFileSize());
+			assertEquals(file_size, file.getBytesLeft());
+		}
+		finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Pieces past 4 GiB are written where they belong, read back from disk and
+	 * remembered after reopening.
+	 * @throws Exception on failure to read/write to disk
+	 */
+	@Test
+	public void piecesOver4GiBSurviveReopen() throws Exception {
+		Random random = new Random(27);
+		FileInfo file = new FileInfo(file_size, piece_size, path());
+		int last = file.getBitfieldBitSize() - 1;
+		//The first piece starting past 4 GiB, and the short last piece:
+		int high = (int)((1L << 32) / piece_size);
+		byte[] high_data = new byte[file.getPieceSize(high)];
+		byte[] last_data = new byte[file.getPieceSize(last)];
+		random.nextBytes(high_data);
+		random.nextBytes(last_data);
+		try {
+			assertTrue(file.downloadingPiece(high));
+			file.completePiece(high, high_data);
+			assertTrue(file.downloadingPiece(last));
+			file.completePiece(last, last_data);
+			file.saveFile(path());
+		}
+		finally {
+			file.close();
+		}
+		assertEquals(file_size, new File(path()).length());
+		//Read the raw file, so wrapped offsets can't cancel out between writing & reading:
+		RandomAccessFile raw = new RandomAccessFile(path(), "r");
+		try {
+			byte[] on_disk = new byte[high_data.length];
+			raw.seek((long)high * piece_size);
+			raw.readFully(on_disk);
+			assertArrayEquals(high_data, on_disk);
+			on_disk = new byte[last_data.length];
+			raw.seek(file_size - last_data.length);
+			raw.readFully(on_disk);
+			assertArrayEquals(last_data, on_disk);
+		}
+		finally {
+			raw.close();
+		}
+
+		file = new FileInfo(file_size, piece_size, path());
+		try {
+			assertEquals(2, file.getCompleteCount());
+			assertEquals(FileInfo.state_complete, file.getPieceState(high));
+			assertEquals(FileInfo.state_complete, file.getPieceState(last));
+			assertEquals(file_size - piece_size - 12345, file.getBytesLeft());
+
+			byte[] block = new byte[high_data.length];
+			file.readFromDisk(high, 0, block);
+			assertArrayEquals(high_data, block);
+			block = new byte[last_data.length];
+			file.readFromDisk(last, 0, block);
+			assertArrayEquals(last_data, block);
+		}
+		finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Gets the test file's path.
+	 * @return the path
+	 */
+	private String path() {
+		return directory.resolve("large.bin").toString();
+	}
+}
@@ -0,0 +1,51 @@
+package structures;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that torrent offsets beyond 32 bits map to the right files and positions.
+ * @author Ari & Jay
+ */
+public class PieceMapperTest {
+	/**
+	 * A span crossing from a file over 4 GiB into the next file splits at the boundary.
+	 */
+	@Test
+	public void spanAcrossBoundaryOver4GiB() {
+		long first = 5L << 30;
+		ArrayList<FileEntry> files = new ArrayList<FileEntry>();
+		files.add(new FileEntry("a", first, 0));
+		files.add(new FileEntry("b", 3L << 30, first));
+		PieceMapper mapper = new PieceMapper(files);
+
+		ArrayList<FileSpan> spans = mapper.getSpans(first - 100, 300);
+		assertEquals(2, spans.size());
+		assertEquals(0, spans.get(0).getFile());
+		assertEquals(first - 100, spans.get(0).getPosition());
+		assertEquals(100, spans.get(0).getLength());
+		assertEquals(1, spans.get(1).getFile());
+		assertEquals(0, spans.get(1).getPosition());
+		assertEquals(200, spans.get(1).getLength());
+	}
+
+	/**
+	 * Positions past 4 GiB within a later file stay exact.
+	 */
+	@Test
+	public void positionOver4GiBInLaterFile() {
+		ArrayList<FileEntry> files = new ArrayList<FileEntry>();
+		files.add(new FileEntry("a", 1L << 30, 0));
+		files.add(new FileEntry("b", 6L << 30, 1L << 30));
+		PieceMapper mapper = new PieceMapper(files);
+
+		ArrayList<FileSpan> spans = mapper.getSpans((5L << 30) + 7, 16);
+		assertEquals(1, spans.size());
+		assertEquals(1, spans.get(0).getFile());
+		assertEquals((4L << 30) + 7, spans.get(0).getPosition());
+		assertEquals(16, spans.get(0).getLength());
+	}
+}